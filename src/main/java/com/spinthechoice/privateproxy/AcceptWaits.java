@@ -0,0 +1,63 @@
+package com.spinthechoice.privateproxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Estimates how long clients wait in the accept backlog before a handler takes them.
+ * <p>
+ * The kernel does not say when a queued client arrived, but it does say when the backlog was empty:
+ * an accept that blocked found no client waiting. So every client that an accept returns at once arrived
+ * after the backlog was last seen empty, and has waited at most the time since then. The longest of those
+ * waits between two samples is what {@link HandlerPool} compares with its growth threshold.
+ * While some handler is free, accepts block and the wait stays near zero; once every handler is busy,
+ * the wait grows for as long as clients keep arriving faster than handlers free up.
+ */
+class AcceptWaits {
+    // an accept that returns faster than this took a client that was already waiting
+    static final long QUEUED_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final LongSupplier clock;
+    private final AtomicLong emptyAt = new AtomicLong();
+    private final AtomicLong longestWait = new AtomicLong();
+
+    /**
+     * Creates an estimate that starts with an empty backlog.
+     * @param clock current time in nanoseconds
+     */
+    AcceptWaits(final LongSupplier clock) {
+        this.clock = clock;
+        emptyAt.set(clock.getAsLong());
+    }
+
+    /**
+     * Returns the current time, to pass to {@link #accepted(long)} once the accept returns.
+     * @return time in nanoseconds
+     */
+    long beforeAccept() {
+        return clock.getAsLong();
+    }
+
+    /**
+     * Records an accepted client.
+     * @param start time from {@link #beforeAccept()}
+     */
+    void accepted(final long start) {
+        final long now = clock.getAsLong();
+        if (now - start >= QUEUED_NANOS) {
+            // the backlog was empty until this client arrived
+            emptyAt.accumulateAndGet(now, Math::max);
+        } else {
+            longestWait.accumulateAndGet(now - emptyAt.get(), Math::max);
+        }
+    }
+
+    /**
+     * Returns the longest wait since the last call, and starts over.
+     * @return wait in nanoseconds
+     */
+    long takeLongest() {
+        return longestWait.getAndSet(0);
+    }
+}
@@ -0,0 +1,255 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+
+import com.spinthechoice.privateproxy.ConnectParser.Server;
+import com.spinthechoice.privateproxy.EventLog.Event;
+
+/**
+ * Traffic accounting that never records client data.
+ * The outcome of every tunnel is added to totals for its minute, destination and status:
+ * number of tunnels, bytes in each direction, and a histogram of connect times.
+ * Once a minute is over, its totals are appended to an {@link AccessLogWriter} as compact binary records,
+ * which {@link AccessLogReader} converts to CSV.
+ * <p>
+ * The destination is only recorded once it has passed validation, so it is always one of the trusted services.
+ * Requests that fail before that are recorded with the destination {@value #NO_DESTINATION}.
+ */
+public class AccessLog implements AutoCloseable {
+    /**
+     * Destination of requests that did not name a valid server.
+     */
+    static final String NO_DESTINATION = "-";
+
+    /**
+     * Status of requests where the client hung up before it got a response.
+     */
+    static final int NO_STATUS = 0;
+
+    /**
+     * Upper bounds, in milliseconds, of the connect time buckets. The last bucket has no upper bound.
+     */
+    static final long[] CONNECT_BUCKET_MILLIS = {1, 4, 16, 64, 256, 1024, 4096};
+
+    static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Outcome of one request. Closing the entry adds it to the totals.
+     */
+    class Entry implements AutoCloseable {
+        private final AtomicLong bytesUpstream = new AtomicLong();
+        private final AtomicLong bytesDownstream = new AtomicLong();
+        private String destination = NO_DESTINATION;
+        private int status = NO_STATUS;
+        private volatile long connectNanos = -1;
+        private boolean closed;
+
+        private Entry() {
+        }
+
+        /**
+         * Sets the destination, once it has passed validation.
+         * @param server destination
+         */
+        void destination(final Server server) {
+            destination = UpstreamGuard.key(server);
+        }
+
+        /**
+         * Sets the time it took to connect (or fail to connect) to the destination.
+         * @param nanos connect time
+         */
+        void connected(final long nanos) {
+            connectNanos = nanos;
+        }
+
+        /**
+         * Sets the status sent to the client, as an HTTP status code.
+         * @param status status
+         */
+        void status(final int status) {
+            this.status = status;
+        }
+
+        /**
+         * Returns a callback for bytes sent to the destination.
+         * @return callback
+         */
+        IntConsumer upstream() {
+            return bytesUpstream::addAndGet;
+        }
+
+        /**
+         * Returns a callback for bytes sent to the client.
+         * @return callback
+         */
+        IntConsumer downstream() {
+            return bytesDownstream::addAndGet;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                add(this);
+            }
+        }
+    }
+
+    private record Key(long window, String destination, int status) {}
+
+    /**
+     * Totals of one window, destination and status. Only changed inside {@link Map#compute}.
+     */
+    private static class Totals {
+        private long connections;
+        private long bytesUpstream;
+        private long bytesDownstream;
+        private final long[] connectBuckets = new long[CONNECT_BUCKET_MILLIS.length + 1];
+
+        Totals add(final Entry entry) {
+            connections++;
+            bytesUpstream += entry.bytesUpstream.get();
+            bytesDownstream += entry.bytesDownstream.get();
+            if (entry.connectNanos >= 0) {
+                connectBuckets[bucket(TimeUnit.NANOSECONDS.toMillis(entry.connectNanos))]++;
+            }
+            return this;
+        }
+    }
+
+    private final AccessLogWriter writer;
+    private final EventLog log;
+    private final LongSupplier clock;
+    private final Map<Key, Totals> windows = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Creates an access log that flushes finished windows in the background.
+     * @param writer destination of records, or {@code null} to disable the access log
+     * @param log where write errors are reported
+     */
+    AccessLog(final AccessLogWriter writer, final EventLog log) {
+        this(writer, log, System::currentTimeMillis);
+        if (flusher != null) {
+            flusher.scheduleWithFixedDelay(() -> flush(false),
+                    FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Creates an access log that is only flushed when {@link #flush(boolean)} is called.
+     * @param writer destination of records, or {@code null} to disable the access log
+     * @param log where write errors are reported
+     * @param clock current time in epoch milliseconds
+     */
+    AccessLog(final AccessLogWriter writer, final EventLog log, final LongSupplier clock) {
+        this.writer = writer;
+        this.log = log;
+        this.clock = clock;
+        this.flusher = writer == null ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "access-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts recording the outcome of a request.
+     * @return entry, which must be closed once the request is finished
+     */
+    Entry begin() {
+        return new Entry();
+    }
+
+    private void add(final Entry entry) {
+        if (writer == null) {
+            return;
+        }
+        final long window = clock.getAsLong() / WINDOW_MILLIS * WINDOW_MILLIS;
+        windows.compute(new Key(window, entry.destination, entry.status),
+                (key, totals) -> (totals == null ? new Totals() : totals).add(entry));
+    }
+
+    /**
+     * Writes totals to the log.
+     * A window that gets more entries after it is written is written again; readers should add the records up.
+     * @param everything whether to write the current window too, instead of only finished windows
+     */
+    void flush(final boolean everything) {
+        if (writer == null) {
+            return;
+        }
+        final long current = clock.getAsLong() / WINDOW_MILLIS * WINDOW_MILLIS;
+        final ByteBuffer record = ByteBuffer.allocate(AccessLogWriter.MAX_RECORD_LENGTH);
+        for (final Key key : windows.keySet()) {
+            if (everything || key.window() < current) {
+                final Totals totals = windows.remove(key);
+                if (totals != null) {
+                    write(record, key, totals);
+                }
+            }
+        }
+    }
+
+    private void write(final ByteBuffer record, final Key key, final Totals totals) {
+        record.clear();
+        record.putInt((int) (key.window() / WINDOW_MILLIS));
+        record.putShort((short) key.status());
+        final byte[] destination = key.destination().getBytes(StandardCharsets.UTF_8);
+        final int destinationLength = Math.min(destination.length, AccessLogWriter.MAX_DESTINATION_LENGTH);
+        record.put((byte) destinationLength);
+        record.put(destination, 0, destinationLength);
+        AccessLogWriter.putVarLong(record, totals.connections);
+        AccessLogWriter.putVarLong(record, totals.bytesUpstream);
+        AccessLogWriter.putVarLong(record, totals.bytesDownstream);
+        record.put((byte) totals.connectBuckets.length);
+        for (final long count : totals.connectBuckets) {
+            AccessLogWriter.putVarLong(record, count);
+        }
+        record.flip();
+        try {
+            writer.append(record);
+        } catch (IOException e) {
+            log.log(Event.ACCESS_LOG_FAILED, e);
+        }
+    }
+
+    static int bucket(final long millis) {
+        for (int i = 0; i < CONNECT_BUCKET_MILLIS.length; i++) {
+            if (millis < CONNECT_BUCKET_MILLIS[i]) {
+                return i;
+            }
+        }
+        return CONNECT_BUCKET_MILLIS.length;
+    }
+
+    /**
+     * Writes all totals, including the current window, and closes the writer.
+     */
+    @Override
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        flusher.shutdownNow();
+        try {
+            flusher.awaitTermination(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(true);
+        writer.close();
+    }
+}
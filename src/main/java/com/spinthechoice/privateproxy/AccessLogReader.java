@@ -0,0 +1,119 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Converts access log segments (see {@link AccessLogWriter}) to CSV, one line per record.
+ * A window can have more than one record for the same destination and status; add them up when aggregating.
+ */
+public class AccessLogReader {
+    private final Appendable out;
+
+    /**
+     * Creates a reader.
+     * @param out destination of the CSV lines
+     */
+    AccessLogReader(final Appendable out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the CSV header.
+     * @throws IOException if the header cannot be written
+     */
+    void header() throws IOException {
+        out.append("window,destination,status,connections,bytes_upstream,bytes_downstream");
+        for (final long millis : AccessLog.CONNECT_BUCKET_MILLIS) {
+            out.append(",connect_lt_").append(Long.toString(millis)).append("ms");
+        }
+        out.append(",connect_ge_")
+                .append(Long.toString(AccessLog.CONNECT_BUCKET_MILLIS[AccessLog.CONNECT_BUCKET_MILLIS.length - 1]))
+                .append("ms\n");
+    }
+
+    /**
+     * Writes the records of one segment.
+     * @param file segment file
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    void read(final Path file) throws IOException {
+        final ByteBuffer segment;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.BIG_ENDIAN);
+        }
+        if (segment.remaining() < AccessLogWriter.HEADER_LENGTH || segment.getInt() != AccessLogWriter.MAGIC) {
+            throw new IOException("Not an access log segment: " + file);
+        }
+        if (segment.getInt() != AccessLogWriter.VERSION) {
+            throw new IOException("Unsupported access log version: " + file);
+        }
+        try {
+            while (segment.remaining() >= 2) {
+                final int length = Short.toUnsignedInt(segment.getShort());
+                if (length == 0) {
+                    // the rest of the segment was never written
+                    break;
+                }
+                final ByteBuffer record = segment.slice(segment.position(), length);
+                segment.position(segment.position() + length);
+                write(record);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // a crash can leave the last record incomplete
+            throw new IOException("Truncated access log segment: " + file, e);
+        }
+    }
+
+    private void write(final ByteBuffer record) throws IOException {
+        final long window = record.getInt() * AccessLog.WINDOW_MILLIS;
+        final int status = Short.toUnsignedInt(record.getShort());
+        final byte[] destination = new byte[Byte.toUnsignedInt(record.get())];
+        record.get(destination);
+        out.append(Instant.ofEpochMilli(window).toString())
+                .append(',').append(new String(destination, StandardCharsets.UTF_8))
+                .append(',').append(Integer.toString(status));
+        for (int i = 0; i < 3; i++) {
+            out.append(',').append(Long.toString(AccessLogWriter.getVarLong(record)));
+        }
+        final int buckets = Byte.toUnsignedInt(record.get());
+        for (int i = 0; i < buckets; i++) {
+            out.append(',').append(Long.toString(AccessLogWriter.getVarLong(record)));
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Prints the access log as CSV.
+     * The only argument is the access log directory, or a single segment file.
+     * @param args arguments
+     */
+    public static void main(final String[] args) {
+        if (args.length != 1) {
+            System.err.println("USAGE: java " + AccessLogReader.class.getSimpleName() + " DIRECTORY|SEGMENT");
+            return;
+        }
+
+        try {
+            final Path path = Path.of(args[0]);
+            final List<Path> files = Files.isDirectory(path) ? AccessLogWriter.segments(path) : List.of(path);
+            final AccessLogReader reader = new AccessLogReader(System.out);
+            reader.header();
+            for (final Path file : files) {
+                reader.read(file);
+            }
+            System.out.flush();
+        } catch (IOException e) {
+            System.err.println("Unable to read " + args[0] + ": " + e.getMessage());
+        }
+    }
+}
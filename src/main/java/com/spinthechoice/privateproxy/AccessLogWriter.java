@@ -0,0 +1,173 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Appends access log records to memory-mapped segment files.
+ * Segments are named {@code access-NNNNNNNNNN.seg}, numbered in the order they were created. A new segment is
+ * started when the proxy starts and when the current segment is full; only the newest segments are kept.
+ * <p>
+ * All values are big-endian. Each segment has this layout:
+ * <pre>
+ * magic ("PPXA"), version        2 x int32
+ * records, each                  uint16 length, then that many bytes
+ * zeroes                         to the end of the segment
+ * </pre>
+ * A record is:
+ * <pre>
+ * window start (epoch minutes)   int32
+ * status                         uint16
+ * destination                    uint8 length, then UTF-8 bytes
+ * connections                    varint
+ * bytes upstream                 varint
+ * bytes downstream               varint
+ * connect time buckets           uint8 count, then a varint per bucket (see {@link AccessLog#CONNECT_BUCKET_MILLIS})
+ * </pre>
+ * Varints are unsigned LEB128: seven bits per byte, least significant first, high bit set on all but the last.
+ * The segment is opened on the first write, so creating a writer never fails.
+ */
+class AccessLogWriter implements AutoCloseable {
+    static final int MAGIC = 0x50505841; // "PPXA"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 8;
+    static final int MAX_DESTINATION_LENGTH = 255;
+    static final int MAX_RECORD_LENGTH = 4 + 2 + 1 + MAX_DESTINATION_LENGTH + 3 * 10
+            + 1 + (AccessLog.CONNECT_BUCKET_MILLIS.length + 1) * 10;
+    static final String PREFIX = "access-";
+    static final String SUFFIX = ".seg";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int segmentCount;
+    private long sequence = -1;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+
+    /**
+     * Creates a writer.
+     * @param directory directory of the segment files
+     * @param segmentBytes size of each segment file
+     * @param segmentCount number of segment files to keep
+     */
+    AccessLogWriter(final Path directory, final int segmentBytes, final int segmentCount) {
+        this.directory = directory;
+        this.segmentBytes = Math.max(segmentBytes, HEADER_LENGTH + 2 + MAX_RECORD_LENGTH);
+        this.segmentCount = Math.max(1, segmentCount);
+    }
+
+    /**
+     * Appends a record.
+     * @param record record, from its position to its limit
+     * @throws IOException if a segment cannot be created
+     */
+    synchronized void append(final ByteBuffer record) throws IOException {
+        if (segment == null || segment.remaining() < 2 + record.remaining()) {
+            rotate();
+        }
+        segment.putShort((short) record.remaining());
+        segment.put(record);
+    }
+
+    private void rotate() throws IOException {
+        closeSegment();
+        if (sequence < 0) {
+            Files.createDirectories(directory);
+            sequence = segments(directory).stream().mapToLong(AccessLogWriter::sequence).max().orElse(0);
+        }
+        sequence++;
+        final Path file = directory.resolve(String.format("%s%010d%s", PREFIX, sequence, SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segment.order(ByteOrder.BIG_ENDIAN);
+        segment.putInt(MAGIC);
+        segment.putInt(VERSION);
+
+        final List<Path> segments = segments(directory);
+        for (int i = 0; i < segments.size() - segmentCount; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    /**
+     * Returns the segment files in a directory, oldest first.
+     * @param directory directory
+     * @return segment files
+     * @throws IOException if the directory cannot be listed
+     */
+    static List<Path> segments(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.filter(AccessLogWriter::isSegment).sorted().collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static boolean isSegment(final Path file) {
+        final String name = file.getFileName().toString();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX) || name.length() <= PREFIX.length() + SUFFIX.length()) {
+            return false;
+        }
+        return name.substring(PREFIX.length(), name.length() - SUFFIX.length()).chars().allMatch(Character::isDigit);
+    }
+
+    private static long sequence(final Path file) {
+        final String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    static void putVarLong(final ByteBuffer buf, final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7fL) != 0) {
+            buf.put((byte) ((remaining & 0x7f) | 0x80));
+            remaining >>>= 7;
+        }
+        buf.put((byte) remaining);
+    }
+
+    static long getVarLong(final ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            final byte b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint is too long");
+    }
+
+    private void closeSegment() {
+        if (segment != null) {
+            segment.force();
+            segment = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the mapping was already forced to disk
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes the current segment to disk and closes it.
+     */
+    @Override
+    public synchronized void close() {
+        closeSegment();
+    }
+}
@@ -0,0 +1,235 @@
+package com.spinthechoice.privateproxy;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Limits bandwidth per tunnel, per client address and globally.
+ * Limits are applied by the tunnel threads themselves. After each write, the relay thread takes tokens for
+ * the bytes it just wrote, going into debt if needed, and parks for as long as the debt takes to pay off.
+ * Nothing is read while it is parked, so TCP flow control slows down the sender. No additional threads are used.
+ * <p>
+ * Tokens are taken after the write rather than before the read, because a read cannot know how much it
+ * will return. A tunnel can therefore exceed its rate by at most one buffer plus the burst allowance
+ * before it pauses; at low limits, a smaller {@link ProxyConfig#bufferSize()} makes the pauses shorter
+ * and more even. Every tunnel already has a thread of its own blocked in reads and writes, so parking it
+ * costs no more than the blocking it does anyway.
+ * Interactive tunnels (see {@link PriorityScheduler}) count towards the global limit but
+ * are not paused by it, so bulk tunnels absorb the global limit.
+ * A limit of zero or less means unlimited.
+ */
+public class BandwidthShaper {
+    /**
+     * Limits applied to a single connection. Both directions of the tunnel share the limits.
+     */
+    class Throttle implements AutoCloseable {
+        private final TokenBucket tunnelBucket;
+        private final InetAddress client;
+        private final ClientBucket clientBucket;
+        private final BooleanSupplier interactive;
+
+        private Throttle(final InetAddress client, final BooleanSupplier interactive) {
+            this.tunnelBucket = bucket(perTunnelBytesPerSecond);
+            this.interactive = interactive;
+            this.client = client;
+            this.clientBucket = client == null ? null : acquireClientBucket(client);
+        }
+
+        /**
+         * Accounts for bytes that were just transferred, pausing the current thread if over a limit.
+         * @param bytes bytes transferred
+         */
+        void transferred(final int bytes) {
+            meter.record(bytes);
+
+            final long now = System.nanoTime();
+            final long globalPause = reserve(globalBucket, bytes, now);
+            long pause = interactive.getAsBoolean() ? 0 : globalPause;
+            pause = Math.max(pause, reserve(tunnelBucket, bytes, now));
+            if (clientBucket != null) {
+                pause = Math.max(pause, reserve(clientBucket.bucket, bytes, now));
+            }
+
+            if (pause > 0) {
+                throttleCount.increment();
+                throttledNanos.add(pause);
+                LockSupport.parkNanos(pause);
+            }
+        }
+
+        /**
+         * Releases the per-client limit once the connection is closed.
+         */
+        @Override
+        public void close() {
+            if (clientBucket != null) {
+                releaseClientBucket(client);
+            }
+        }
+    }
+
+    private static class ClientBucket {
+        private final TokenBucket bucket;
+        private int references;
+
+        ClientBucket(final TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * Throughput measured over the last full second.
+     */
+    private static class RateMeter {
+        private final AtomicLong second = new AtomicLong();
+        private final LongAdder current = new LongAdder();
+        private volatile long previous;
+
+        void record(final int bytes) {
+            roll(System.nanoTime());
+            current.add(bytes);
+        }
+
+        long perSecond() {
+            roll(System.nanoTime());
+            return previous;
+        }
+
+        private void roll(final long now) {
+            final long nowSecond = TimeUnit.NANOSECONDS.toSeconds(now);
+            final long lastSecond = second.get();
+            if (nowSecond != lastSecond && second.compareAndSet(lastSecond, nowSecond)) {
+                final long bytes = current.sumThenReset();
+                previous = nowSecond == lastSecond + 1 ? bytes : 0;
+            }
+        }
+    }
+
+    private volatile long perTunnelBytesPerSecond;
+    private volatile long perClientBytesPerSecond;
+    private volatile TokenBucket globalBucket;
+    private final Map<InetAddress, ClientBucket> clientBuckets = new ConcurrentHashMap<>();
+    private final RateMeter meter = new RateMeter();
+    private final LongAdder throttleCount = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    /**
+     * Creates a shaper.
+     * @param perTunnelBytesPerSecond limit for each tunnel
+     * @param perClientBytesPerSecond limit for all tunnels from one client address
+     * @param globalBytesPerSecond limit for all tunnels
+     */
+    BandwidthShaper(final long perTunnelBytesPerSecond, final long perClientBytesPerSecond,
+                    final long globalBytesPerSecond) {
+        this.perTunnelBytesPerSecond = perTunnelBytesPerSecond;
+        this.perClientBytesPerSecond = perClientBytesPerSecond;
+        this.globalBucket = bucket(globalBytesPerSecond);
+    }
+
+    /**
+     * Changes the limits of a running server. The global limit applies at once. Open tunnels keep their
+     * own limit, and clients keep theirs until all their tunnels are closed.
+     * @param perTunnelBytesPerSecond limit for each tunnel
+     * @param perClientBytesPerSecond limit for all tunnels from one client address
+     * @param globalBytesPerSecond limit for all tunnels
+     */
+    synchronized void limits(final long perTunnelBytesPerSecond, final long perClientBytesPerSecond,
+                             final long globalBytesPerSecond) {
+        this.perTunnelBytesPerSecond = perTunnelBytesPerSecond;
+        this.perClientBytesPerSecond = perClientBytesPerSecond;
+        final TokenBucket global = globalBucket;
+        final long current = global == null ? 0 : global.bytesPerSecond();
+        if (Math.max(0, globalBytesPerSecond) != current) {
+            globalBucket = bucket(globalBytesPerSecond);
+        }
+    }
+
+    /**
+     * Creates a shaper that does not limit bandwidth but still measures it.
+     * @return unlimited shaper
+     */
+    static BandwidthShaper unlimited() {
+        return new BandwidthShaper(0, 0, 0);
+    }
+
+    /**
+     * Creates the limits for a new connection.
+     * @param client client address
+     * @return throttle for the connection, which must be closed with the connection
+     */
+    Throttle open(final InetAddress client) {
+        return open(client, () -> false);
+    }
+
+    /**
+     * Creates the limits for a new connection.
+     * @param client client address
+     * @param interactive whether the connection is currently interactive
+     * @return throttle for the connection, which must be closed with the connection
+     */
+    Throttle open(final InetAddress client, final BooleanSupplier interactive) {
+        return new Throttle(perClientBytesPerSecond > 0 ? client : null, interactive);
+    }
+
+    /**
+     * Returns the number of bytes tunneled (in both directions) during the last second.
+     * @return bytes per second
+     */
+    public long throughput() {
+        return meter.perSecond();
+    }
+
+    /**
+     * Returns the number of times a tunnel was paused because it was over a limit.
+     * @return throttle count
+     */
+    public long throttleCount() {
+        return throttleCount.sum();
+    }
+
+    /**
+     * Returns the total time tunnels were paused because they were over a limit.
+     * @return time throttled in nanoseconds
+     */
+    public long throttledNanos() {
+        return throttledNanos.sum();
+    }
+
+    /**
+     * Returns the number of client addresses that currently have a limit.
+     * @return number of clients with a limit
+     */
+    int clientCount() {
+        return clientBuckets.size();
+    }
+
+    private ClientBucket acquireClientBucket(final InetAddress client) {
+        return clientBuckets.compute(client, (key, existing) -> {
+            final ClientBucket bucket = existing == null
+                    ? new ClientBucket(bucket(perClientBytesPerSecond))
+                    : existing;
+            bucket.references++;
+            return bucket;
+        });
+    }
+
+    private void releaseClientBucket(final InetAddress client) {
+        clientBuckets.computeIfPresent(client, (key, bucket) ->
+                --bucket.references == 0 ? null : bucket);
+    }
+
+    private static TokenBucket bucket(final long bytesPerSecond) {
+        // allow a quarter of a second of data to pass without pausing
+        return bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond / 4) : null;
+    }
+
+    private static long reserve(final TokenBucket bucket, final int bytes, final long now) {
+        return bucket == null ? 0 : bucket.reserve(bytes, now);
+    }
+}
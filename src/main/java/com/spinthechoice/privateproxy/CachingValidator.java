@@ -0,0 +1,179 @@
+package com.spinthechoice.privateproxy;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import com.spinthechoice.privateproxy.ConnectParser.Server;
+
+/**
+ * Checks servers with a policy that may take a while, such as one that asks another service,
+ * and remembers its decisions so that repeated destinations cost nothing.
+ * <ul>
+ *     <li>A trusted server is remembered for the time to live, and an untrusted one for the negative time to live,
+ *     so a client that keeps asking for a forbidden server does not keep the policy busy either.</li>
+ *     <li>Clients that ask for the same server while it is being checked wait for the same check.</li>
+ *     <li>A check that fails or takes longer than the timeout completes exceptionally, which the handler reports
+ *     as 503 Service Unavailable. It is not remembered, so the next client tries again.</li>
+ *     <li>At most the given number of servers are remembered; the one used longest ago is forgotten first.</li>
+ * </ul>
+ * Servers are told apart by the name the client gave, their address and their port,
+ * since a policy may decide by any of them.
+ */
+class CachingValidator implements SocketHandler.Validator {
+    /**
+     * A check of a server that completes later.
+     */
+    @FunctionalInterface
+    interface Policy {
+        /**
+         * Starts checking the server.
+         * @param server server
+         * @return stage that completes with the reason the server is invalid, or {@code null} or empty String
+         */
+        CompletionStage<String> check(Server server);
+    }
+
+    /**
+     * A decision, or a check still in progress.
+     */
+    private static class Cached {
+        private final CompletableFuture<String> decision;
+        private volatile long expiresAt;
+
+        Cached(final CompletableFuture<String> decision, final long expiresAt) {
+            this.decision = decision;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Policy policy;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long timeoutNanos;
+    private final LongSupplier clock;
+    private final Map<String, Cached> entries;
+
+    /**
+     * Creates the validator.
+     * @param policy check of a server
+     * @param ttl how long a trusted server is remembered
+     * @param negativeTtl how long an untrusted server is remembered
+     * @param maxEntries most servers remembered
+     * @param timeout longest time a check may take
+     */
+    CachingValidator(final Policy policy, final Duration ttl, final Duration negativeTtl, final int maxEntries,
+                     final Duration timeout) {
+        this(policy, ttl, negativeTtl, maxEntries, timeout, System::nanoTime);
+    }
+
+    /**
+     * Creates the validator.
+     * @param policy check of a server
+     * @param ttl how long a trusted server is remembered
+     * @param negativeTtl how long an untrusted server is remembered
+     * @param maxEntries most servers remembered
+     * @param timeout longest time a check may take
+     * @param clock current time in nanoseconds
+     */
+    CachingValidator(final Policy policy, final Duration ttl, final Duration negativeTtl, final int maxEntries,
+                     final Duration timeout, final LongSupplier clock) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.policy = policy;
+        this.ttlNanos = ttl.toNanos();
+        this.negativeTtlNanos = negativeTtl.toNanos();
+        this.timeoutNanos = timeout.toNanos();
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Cached> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public CompletionStage<String> checkServerAsync(final Server server) {
+        final String key = key(server);
+        final Cached entry;
+        synchronized (entries) {
+            final Cached cached = entries.get(key);
+            if (cached != null && clock.getAsLong() - cached.expiresAt < 0) {
+                return cached.decision.copy();
+            }
+            // a check in progress never expires, so it only gets here once per decision
+            entry = new Cached(new CompletableFuture<>(), Long.MAX_VALUE);
+            entries.put(key, entry);
+        }
+
+        start(server).whenComplete((reason, error) -> {
+            if (error == null) {
+                final boolean trusted = reason == null || reason.isEmpty();
+                entry.expiresAt = clock.getAsLong() + (trusted ? ttlNanos : negativeTtlNanos);
+                entry.decision.complete(reason);
+            } else {
+                forget(key, entry);
+                entry.decision.completeExceptionally(error);
+            }
+        });
+        // callers get a copy, so one that cancels its decision does not cancel the others'
+        return entry.decision.copy();
+    }
+
+    /**
+     * A policy that throws is treated like one whose check failed.
+     * The policy's own stage is copied, so the timeout does not complete it.
+     */
+    private CompletableFuture<String> start(final Server server) {
+        try {
+            return policy.check(server).toCompletableFuture().copy()
+                    .orTimeout(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void forget(final String key, final Cached entry) {
+        synchronized (entries) {
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Waits for the decision. Prefer {@link #checkServerAsync(Server)}, which does not block.
+     * @param server server
+     * @return reason server is invalid, or {@code null} or empty String otherwise
+     */
+    @Override
+    public String checkServer(final Server server) {
+        try {
+            return checkServerAsync(server).toCompletableFuture().join();
+        } catch (CompletionException e) {
+            return "Server could not be checked";
+        }
+    }
+
+    /**
+     * Returns the number of servers remembered, including those being checked.
+     * @return number of entries
+     */
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Names are not looked up, so a name and its address are remembered separately.
+     */
+    private static String key(final Server server) {
+        return UpstreamGuard.key(server);
+    }
+}
@@ -0,0 +1,174 @@
+package com.spinthechoice.privateproxy;
+
+import java.time.Duration;
+
+/**
+ * Stops connecting to a remote server that keeps failing.
+ * <ul>
+ *     <li>{@link State#CLOSED}: connections are allowed. The outcomes of the last few connections
+ *     are kept, and if too many failed (or were too slow) the breaker opens.</li>
+ *     <li>{@link State#OPEN}: connections fail immediately. After a while the breaker becomes half open.</li>
+ *     <li>{@link State#HALF_OPEN}: one trial connection is allowed. If it succeeds the breaker closes,
+ *     otherwise it opens again.</li>
+ * </ul>
+ * Every allowed connection gets a ticket, the breaker's generation at the time, and the generation changes
+ * whenever the breaker opens, allows a trial, or closes. Only outcomes with a current ticket count, so a slow
+ * connection started before the breaker opened can neither close it nor stand in for the trial's result.
+ */
+class CircuitBreaker {
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Number of recent connections considered.
+     */
+    static final int WINDOW_SIZE = 20;
+
+    /**
+     * Minimum number of connections in the window before the breaker can open.
+     */
+    static final int MINIMUM_CALLS = 10;
+
+    /**
+     * Returned by {@link #tryAcquire()} when no connection may be attempted.
+     */
+    static final long REFUSED = -1;
+
+    private final double failureRateThreshold;
+    private final long openNanos;
+    private final long slowNanos;
+    private final boolean[] failures = new boolean[WINDOW_SIZE];
+    private int calls;
+    private int failureCount;
+    private int next;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean trialInProgress;
+    private long generation;
+
+    /**
+     * Creates a closed breaker.
+     * @param failureRateThreshold fraction of failed connections (0 to 1) at which the breaker opens
+     * @param openDuration how long the breaker stays open before allowing a trial connection
+     * @param slowThreshold connections slower than this count as failures
+     */
+    CircuitBreaker(final double failureRateThreshold, final Duration openDuration, final Duration slowThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.slowNanos = slowThreshold.toNanos();
+    }
+
+    /**
+     * Returns the current state.
+     * @return state
+     */
+    synchronized State state() {
+        return state;
+    }
+
+    /**
+     * Returns whether a connection may be attempted.
+     * Unless this returns {@link #REFUSED}, the outcome must be reported with {@link #record(long, boolean, long)},
+     * or with {@link #abandon(long)} if no connection was attempted after all.
+     * @return ticket to report the outcome with, or {@link #REFUSED}
+     */
+    long tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    synchronized long tryAcquire(final long now) {
+        if (state == State.OPEN && now - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+        }
+
+        switch (state) {
+            case CLOSED:
+                return generation;
+            case HALF_OPEN:
+                if (trialInProgress) {
+                    return REFUSED;
+                }
+                trialInProgress = true;
+                return ++generation;
+            default:
+                return REFUSED;
+        }
+    }
+
+    /**
+     * Records the outcome of a connection.
+     * @param ticket ticket from {@link #tryAcquire()}
+     * @param success whether the connection was established
+     * @param elapsedNanos time it took to connect (or fail)
+     */
+    void record(final long ticket, final boolean success, final long elapsedNanos) {
+        record(ticket, success, elapsedNanos, System.nanoTime());
+    }
+
+    synchronized void record(final long ticket, final boolean success, final long elapsedNanos, final long now) {
+        if (ticket != generation) {
+            // started before the breaker last changed, so it says nothing about the server now
+            return;
+        }
+        final boolean failure = !success || elapsedNanos > slowNanos;
+
+        if (state == State.HALF_OPEN) {
+            trialInProgress = false;
+            if (failure) {
+                open(now);
+            } else {
+                reset();
+            }
+            return;
+        }
+
+        addToWindow(failure);
+        if (state == State.CLOSED && calls >= MINIMUM_CALLS &&
+                failureCount >= failureRateThreshold * calls) {
+            open(now);
+        }
+    }
+
+    /**
+     * Gives up a connection that was allowed but never attempted, such as one refused by another limit.
+     * It counts as neither a success nor a failure. If it was the trial, a half-open breaker allows another.
+     * @param ticket ticket from {@link #tryAcquire()}
+     */
+    synchronized void abandon(final long ticket) {
+        if (state == State.HALF_OPEN && ticket == generation) {
+            trialInProgress = false;
+        }
+    }
+
+    private void addToWindow(final boolean failure) {
+        if (calls == WINDOW_SIZE) {
+            if (failures[next]) {
+                failureCount--;
+            }
+        } else {
+            calls++;
+        }
+        failures[next] = failure;
+        if (failure) {
+            failureCount++;
+        }
+        next = (next + 1) % WINDOW_SIZE;
+    }
+
+    private void open(final long now) {
+        state = State.OPEN;
+        openedAt = now;
+        generation++;
+    }
+
+    private void reset() {
+        state = State.CLOSED;
+        generation++;
+        calls = 0;
+        failureCount = 0;
+        next = 0;
+    }
+}
@@ -0,0 +1,550 @@
+package com.spinthechoice.privateproxy;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.spinthechoice.privateproxy.ConnectParser.Server;
+import com.spinthechoice.privateproxy.UpstreamGuard.UnavailableException;
+
+/**
+ * Limits that hold across all the proxies of a cluster: open connections and new connections per second
+ * from one client, and open tunnels to one destination.
+ * <p>
+ * Every proxy counts its own connections, and sends the counts that changed to the other proxies
+ * over UDP every {@link ProxyConfig#clusterGossipInterval()}. All counts are sent every {@value #FULL_EVERY}
+ * intervals, so a proxy that starts or missed a datagram catches up. A proxy admits a connection if its own
+ * count plus the last counts it heard from the others is below the limit. The view of other proxies is at most
+ * about one interval old, so the cluster can briefly go over a limit by the connections admitted meanwhile.
+ * Counts not refreshed for {@value #EXPIRE_AFTER} intervals are dropped, so a proxy that dies stops counting.
+ * There is no central store and no coordination: each count has one owner, which is the only one to change it.
+ * <p>
+ * Clients and destinations are sent as keyed hashes, never as addresses or names. Datagrams are
+ * authenticated with the cluster secret, and carry the number of the sender's round in the authenticated
+ * header. A datagram from an earlier round than the last one heard from its sender is dropped, so a late or
+ * replayed datagram cannot bring back an old count. The last round of every proxy heard from is kept for
+ * as long as this proxy runs, which is one small entry per proxy process.
+ * Without a cluster port, limits apply to this proxy alone.
+ */
+public class ClusterLimits implements AutoCloseable {
+    static final int MAGIC = 0x47585050; // "PPXG" when read as little-endian bytes
+    static final int VERSION = 2;
+    static final int MAX_DATAGRAM_LENGTH = 1200;
+    static final int FULL_EVERY = 10;
+    static final int EXPIRE_AFTER = 3 * FULL_EVERY;
+    private static final int HEADER_LENGTH = Integer.BYTES + 1 + Long.BYTES + Long.BYTES + Short.BYTES;
+    private static final int ENTRY_LENGTH = 1 + Long.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int MAC_LENGTH = 16;
+    private static final int MAX_ENTRIES = (MAX_DATAGRAM_LENGTH - HEADER_LENGTH - MAC_LENGTH) / ENTRY_LENGTH;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * What is counted.
+     */
+    enum Kind {
+        /** Open connections from a client. */
+        CLIENT,
+        /** New connections from a client in the current second. */
+        CLIENT_RATE,
+        /** Open tunnels to a destination. */
+        DESTINATION
+    }
+
+    /**
+     * A counted client or destination.
+     * @param kind what is counted
+     * @param hash keyed hash of the client address or destination
+     */
+    record Key(Kind kind, long hash) {}
+
+    /**
+     * This proxy's count. Only changed inside {@link ConcurrentHashMap#compute}, which locks the key.
+     */
+    private static class Local {
+        private int value;
+        private long window;
+        private boolean dirty;
+    }
+
+    /**
+     * The last count heard from another proxy.
+     */
+    private static record Remote(int value, long window, long receivedMillis) {}
+
+    /**
+     * An open connection or tunnel that is counted. Must be closed when it closes.
+     */
+    class Permit implements AutoCloseable {
+        private final Key key;
+        private boolean closed;
+
+        private Permit(final Key key) {
+            this.key = key;
+        }
+
+        @Override
+        public void close() {
+            if (!closed && key != null) {
+                closed = true;
+                release(key);
+            }
+        }
+    }
+
+    private volatile int maxPerClient;
+    private volatile int maxPerClientPerSecond;
+    private volatile int maxPerDestination;
+    private final DatagramSocket socket;
+    private final List<InetSocketAddress> peers;
+    private final long intervalMillis;
+    private final EventLog log;
+    private final LongSupplier clock;
+    private final long nodeId = new SecureRandom().nextLong();
+    private final ThreadLocal<Mac> macs;
+    private final Map<Key, Local> locals = new ConcurrentHashMap<>();
+    private final Map<Key, Map<Long, Remote>> remotes = new ConcurrentHashMap<>();
+    // last round heard from each proxy; only the receive thread changes it
+    private final Map<Long, Long> rounds = new ConcurrentHashMap<>();
+    private final LongAdder clientRejections = new LongAdder();
+    private final LongAdder destinationRejections = new LongAdder();
+    private final LongAdder datagramsSent = new LongAdder();
+    private final LongAdder datagramsReceived = new LongAdder();
+    private final LongAdder datagramsRejected = new LongAdder();
+    private ScheduledExecutorService gossip;
+    private boolean closed;
+    private long round;
+
+    /**
+     * Creates the limits of a server, and starts exchanging counts if a cluster port is configured.
+     * @param config settings
+     * @param log event log
+     * @param clock current time in milliseconds
+     * @throws IOException if the cluster port cannot be bound
+     */
+    ClusterLimits(final ProxyConfig config, final EventLog log, final LongSupplier clock) throws IOException {
+        this.maxPerClient = config.clusterMaxConnectionsPerClient();
+        this.maxPerClientPerSecond = config.clusterMaxConnectionsPerClientPerSecond();
+        this.maxPerDestination = config.clusterMaxTunnelsPerDestination();
+        this.peers = config.clusterPeers();
+        this.intervalMillis = Math.max(1, config.clusterGossipInterval().toMillis());
+        this.log = log;
+        this.clock = clock;
+
+        byte[] secret = config.clusterSecret();
+        if (config.clusterPort() > 0 && (secret == null || secret.length == 0)) {
+            throw new IllegalArgumentException("A cluster secret is required with a cluster port");
+        }
+        if (secret == null || secret.length == 0) {
+            // the hashes never leave this proxy, so any key will do
+            secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+        }
+        final SecretKeySpec key = new SecretKeySpec(secret, MAC_ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> mac(key));
+
+        this.socket = config.clusterPort() > 0 ? new DatagramSocket(config.clusterPort()) : null;
+        if (socket != null) {
+            daemon(this::receive, "cluster-receive").start();
+        }
+        startGossip();
+    }
+
+    /**
+     * Without a cluster, rounds still drop the counts that went to zero, so they only run if something is counted.
+     */
+    private synchronized void startGossip() {
+        if (gossip == null && !closed
+                && (socket != null || maxPerClient > 0 || maxPerClientPerSecond > 0 || maxPerDestination > 0)) {
+            gossip = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "cluster-gossip"));
+            gossip.scheduleWithFixedDelay(this::gossip, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Changes the limits of a running server. Connections that are already open are only counted
+     * if their limit was set when they opened.
+     * @param maxPerClient most connections from one client, or 0 for no limit
+     * @param maxPerClientPerSecond most new connections from one client per second, or 0 for no limit
+     * @param maxPerDestination most tunnels to one destination, or 0 for no limit
+     */
+    void limits(final int maxPerClient, final int maxPerClientPerSecond, final int maxPerDestination) {
+        this.maxPerClient = maxPerClient;
+        this.maxPerClientPerSecond = maxPerClientPerSecond;
+        this.maxPerDestination = maxPerDestination;
+        startGossip();
+    }
+
+    private static Mac mac(final SecretKeySpec key) {
+        try {
+            final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Every JVM supports " + MAC_ALGORITHM, e);
+        }
+    }
+
+    private static Thread daemon(final Runnable runnable, final String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Admits a new connection from a client if the client is below its limits across the cluster.
+     * @param client client address
+     * @return permit, to be closed when the connection closes
+     * @throws UnavailableException if the client has too many connections
+     */
+    Permit acquireClient(final InetAddress client) throws UnavailableException {
+        final int maxPerClient = this.maxPerClient;
+        final int maxPerClientPerSecond = this.maxPerClientPerSecond;
+        if (maxPerClient <= 0 && maxPerClientPerSecond <= 0) {
+            return new Permit(null);
+        }
+        final long hash = hash(Kind.CLIENT, client.getAddress());
+        if (maxPerClientPerSecond > 0
+                && !tryAcquire(new Key(Kind.CLIENT_RATE, hash), maxPerClientPerSecond, currentSecond())) {
+            clientRejections.increment();
+            throw new UnavailableException("Too many new connections from client");
+        }
+        if (maxPerClient <= 0) {
+            return new Permit(null);
+        }
+        final Key key = new Key(Kind.CLIENT, hash);
+        if (!tryAcquire(key, maxPerClient, 0)) {
+            clientRejections.increment();
+            throw new UnavailableException("Too many connections from client");
+        }
+        return new Permit(key);
+    }
+
+    /**
+     * Admits a new tunnel to a destination if the destination is below its limit across the cluster.
+     * @param server destination
+     * @return permit, to be closed when the tunnel closes
+     * @throws UnavailableException if the destination has too many tunnels
+     */
+    Permit acquireDestination(final Server server) throws UnavailableException {
+        final int maxPerDestination = this.maxPerDestination;
+        if (maxPerDestination <= 0) {
+            return new Permit(null);
+        }
+        final Key key = new Key(Kind.DESTINATION, hash(Kind.DESTINATION, destination(server)));
+        if (!tryAcquire(key, maxPerDestination, 0)) {
+            destinationRejections.increment();
+            throw new UnavailableException("Too many tunnels to " + server.host() + " in the cluster");
+        }
+        return new Permit(key);
+    }
+
+    private boolean tryAcquire(final Key key, final int limit, final long window) {
+        final int others = remoteCount(key, window);
+        final boolean[] admitted = new boolean[1];
+        locals.compute(key, (k, local) -> {
+            final Local count = local == null ? new Local() : local;
+            if (count.window != window) {
+                count.window = window;
+                count.value = 0;
+            }
+            if (count.value + others < limit) {
+                count.value++;
+                count.dirty = true;
+                admitted[0] = true;
+            }
+            return count.value == 0 && !count.dirty ? null : count;
+        });
+        return admitted[0];
+    }
+
+    private void release(final Key key) {
+        locals.computeIfPresent(key, (k, local) -> {
+            local.value = Math.max(0, local.value - 1);
+            local.dirty = true;
+            return local;
+        });
+    }
+
+    private int remoteCount(final Key key, final long window) {
+        final Map<Long, Remote> counts = remotes.get(key);
+        if (counts == null) {
+            return 0;
+        }
+        final long oldest = clock.getAsLong() - EXPIRE_AFTER * intervalMillis;
+        int sum = 0;
+        for (final Remote remote : counts.values()) {
+            if (remote.window() == window && remote.receivedMillis() >= oldest) {
+                sum += remote.value();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of open connections from a client across the cluster, as far as this proxy knows.
+     * @param client client address
+     * @return number of connections
+     */
+    public int clientConnections(final InetAddress client) {
+        return count(new Key(Kind.CLIENT, hash(Kind.CLIENT, client.getAddress())), 0);
+    }
+
+    /**
+     * Returns the number of open tunnels to a destination across the cluster, as far as this proxy knows.
+     * @param server destination
+     * @return number of tunnels
+     */
+    int destinationTunnels(final Server server) {
+        return count(new Key(Kind.DESTINATION, hash(Kind.DESTINATION, destination(server))), 0);
+    }
+
+    private int count(final Key key, final long window) {
+        final Local local = locals.get(key);
+        // a racy read is fine for reporting
+        return (local == null || local.window != window ? 0 : local.value) + remoteCount(key, window);
+    }
+
+    /**
+     * Returns the UDP port on which counts are received.
+     * @return port, or -1 if counts are not exchanged
+     */
+    public int port() {
+        return socket == null ? -1 : socket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of connections refused because a client was over a cluster-wide limit.
+     * @return number of refusals
+     */
+    public long clientRejections() {
+        return clientRejections.sum();
+    }
+
+    /**
+     * Returns the number of tunnels refused because a destination was over its cluster-wide limit.
+     * @return number of refusals
+     */
+    public long destinationRejections() {
+        return destinationRejections.sum();
+    }
+
+    /**
+     * Returns the number of datagrams sent to other proxies.
+     * @return number of datagrams
+     */
+    public long datagramsSent() {
+        return datagramsSent.sum();
+    }
+
+    /**
+     * Returns the number of valid datagrams received from other proxies.
+     * @return number of datagrams
+     */
+    public long datagramsReceived() {
+        return datagramsReceived.sum();
+    }
+
+    /**
+     * Returns the number of datagrams dropped because they were malformed, not authenticated, or out of date.
+     * @return number of datagrams
+     */
+    public long datagramsRejected() {
+        return datagramsRejected.sum();
+    }
+
+    private long currentSecond() {
+        return clock.getAsLong() / 1000;
+    }
+
+    private static byte[] destination(final Server server) {
+        return UpstreamGuard.key(server).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hashes a client address or destination with the cluster secret, so every proxy gets the same hash
+     * but nobody without the secret can tell which client or destination it stands for.
+     */
+    private long hash(final Kind kind, final byte[] value) {
+        final Mac mac = macs.get();
+        // rates and open connections of a client share a hash
+        mac.update((byte) (kind == Kind.DESTINATION ? 1 : 0));
+        return ByteBuffer.wrap(mac.doFinal(value)).getLong();
+    }
+
+    /**
+     * Sends the counts that changed since the last round, or all of them every few rounds.
+     */
+    private void gossip() {
+        try {
+            final boolean full = ++round % FULL_EVERY == 0;
+            final long second = currentSecond();
+            final List<Entry> entries = new ArrayList<>();
+            for (final Key key : locals.keySet()) {
+                locals.computeIfPresent(key, (k, local) -> {
+                    final boolean current = k.kind() != Kind.CLIENT_RATE || local.window == second;
+                    if (current && (full || local.dirty)) {
+                        entries.add(new Entry(k, local.value, local.window));
+                    }
+                    local.dirty = false;
+                    return local.value == 0 || !current ? null : local;
+                });
+            }
+            expireRemotes();
+            if (socket != null) {
+                send(entries, round);
+            }
+        } catch (RuntimeException e) {
+            // the next round sends everything again soon enough
+            log.log(EventLog.Event.CLUSTER_FAILED, e);
+        }
+    }
+
+    private void expireRemotes() {
+        final long oldest = clock.getAsLong() - EXPIRE_AFTER * intervalMillis;
+        remotes.values().forEach(counts -> counts.values().removeIf(remote -> remote.receivedMillis() < oldest));
+        remotes.values().removeIf(Map::isEmpty);
+    }
+
+    /**
+     * A count to send.
+     */
+    private static record Entry(Key key, int value, long window) {}
+
+    private void send(final List<Entry> entries, final long round) {
+        for (int start = 0; start < entries.size(); start += MAX_ENTRIES) {
+            final byte[] datagram = encode(entries.subList(start, Math.min(entries.size(), start + MAX_ENTRIES)),
+                    round);
+            for (final InetSocketAddress peer : peers) {
+                try {
+                    socket.send(new DatagramPacket(datagram, datagram.length, peer));
+                    datagramsSent.increment();
+                } catch (IOException e) {
+                    if (socket.isClosed()) {
+                        return;
+                    }
+                    log.log(EventLog.Event.CLUSTER_FAILED, e);
+                }
+            }
+        }
+    }
+
+    private byte[] encode(final List<Entry> entries, final long round) {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + ENTRY_LENGTH * entries.size() + MAC_LENGTH);
+        buffer.putInt(MAGIC).put((byte) VERSION).putLong(nodeId).putLong(round).putShort((short) entries.size());
+        for (final Entry entry : entries) {
+            buffer.put((byte) entry.key().kind().ordinal())
+                    .putLong(entry.key().hash())
+                    .putInt(entry.value())
+                    .putLong(entry.window());
+        }
+        final Mac mac = macs.get();
+        mac.update(buffer.array(), 0, buffer.position());
+        buffer.put(mac.doFinal(), 0, MAC_LENGTH);
+        return buffer.array();
+    }
+
+    private void receive() {
+        final byte[] buf = new byte[MAX_DATAGRAM_LENGTH];
+        final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+                if (decode(buf, packet.getLength())) {
+                    datagramsReceived.increment();
+                } else {
+                    datagramsRejected.increment();
+                }
+            } catch (SocketException e) {
+                // closed
+            } catch (IOException | RuntimeException e) {
+                log.log(EventLog.Event.CLUSTER_FAILED, e);
+            }
+        }
+    }
+
+    /**
+     * Applies the counts in a datagram from another proxy.
+     * @return whether the datagram was valid
+     */
+    private boolean decode(final byte[] buf, final int length) {
+        if (length < HEADER_LENGTH + MAC_LENGTH) {
+            return false;
+        }
+        final Mac mac = macs.get();
+        mac.update(buf, 0, length - MAC_LENGTH);
+        final byte[] expected = mac.doFinal();
+        final byte[] actual = new byte[MAC_LENGTH];
+        System.arraycopy(buf, length - MAC_LENGTH, actual, 0, MAC_LENGTH);
+        if (!MessageDigest.isEqual(actual, Arrays.copyOf(expected, MAC_LENGTH))) {
+            return false;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(buf, 0, length - MAC_LENGTH);
+        final int magic = buffer.getInt();
+        final int version = buffer.get();
+        final long sender = buffer.getLong();
+        final long round = buffer.getLong();
+        final int count = buffer.getShort() & 0xffff;
+        if (magic != MAGIC || version != VERSION || buffer.remaining() != count * ENTRY_LENGTH) {
+            return false;
+        }
+        if (sender == nodeId) {
+            // a proxy listed as its own peer
+            return true;
+        }
+        // a round may take several datagrams, so the same round is still current
+        if (round < rounds.getOrDefault(sender, Long.MIN_VALUE)) {
+            return false;
+        }
+        rounds.put(sender, round);
+        final long now = clock.getAsLong();
+        final Kind[] kinds = Kind.values();
+        for (int i = 0; i < count; i++) {
+            final int kind = buffer.get();
+            final long hash = buffer.getLong();
+            final int value = buffer.getInt();
+            final long window = buffer.getLong();
+            if (kind < 0 || kind >= kinds.length) {
+                continue;
+            }
+            remotes.computeIfAbsent(new Key(kinds[kind], hash), k -> new ConcurrentHashMap<>())
+                    .put(sender, new Remote(value, window, now));
+        }
+        return true;
+    }
+
+    /**
+     * Stops exchanging counts.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (gossip != null) {
+            gossip.shutdownNow();
+        }
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
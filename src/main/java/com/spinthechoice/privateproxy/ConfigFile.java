@@ -0,0 +1,413 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Settings of a standalone server, read from a properties file, with overrides from environment variables.
+ * <ul>
+ *     <li>{@code port} (a number, or {@value ProxyServer#INHERITED_PORT}), {@code threads}, {@code drainTimeout}
+ *     and {@code trustedServers} (comma-separated {@code host:port}) start the server</li>
+ *     <li>every other key is the name of a {@link ProxyConfig.Builder} method, such as {@code maxHandlers}</li>
+ *     <li>socket options are set per side, such as {@code clientSocket.keepAlive} or
+ *     {@code upstreamSocket.receiveBufferSize} (see {@link SocketOptions.Builder})</li>
+ * </ul>
+ * An environment variable named {@value #ENV_PREFIX} and the key in upper case, with underscores between words,
+ * overrides the file: {@code PRIVATE_PROXY_MAX_HANDLERS}, {@code PRIVATE_PROXY_CLIENT_SOCKET_KEEP_ALIVE}.
+ * Durations are ISO-8601 ({@code PT5S}) or a number followed by {@code ms}, {@code s}, {@code m} or {@code h}.
+ * Unknown keys and values out of range are all reported at once, and nothing is loaded.
+ * @param port port, or {@link #INHERITED} to use the listening socket inherited from the parent process
+ * @param threads number of handlers
+ * @param drainTimeout how long to wait for open connections on shutdown
+ * @param trustedServers servers that clients may reach, as lower case {@code host:port}
+ * @param config tuning settings
+ */
+public record ConfigFile(int port, int threads, Duration drainTimeout, Set<String> trustedServers,
+                         ProxyConfig config) {
+    /**
+     * Port value of a server that uses the listening socket inherited from its parent process.
+     */
+    public static final int INHERITED = -1;
+    static final String ENV_PREFIX = "PRIVATE_PROXY_";
+    static final Duration CHECK_INTERVAL = Duration.ofSeconds(2);
+    private static final Pattern SHORT_DURATION = Pattern.compile("(\\d+)\\s*(ms|s|m|h)");
+    private static final Map<String, Setting> SETTINGS = settings();
+
+    /**
+     * How to read one key.
+     * @param expected what a valid value looks like, for error messages
+     * @param apply parses the value and sets it
+     */
+    private static record Setting(String expected, BiConsumer<Target, String> apply) {}
+
+    /**
+     * Values as they are read.
+     */
+    private static class Target {
+        private final ProxyConfig.Builder config = ProxyConfig.builder();
+        private final SocketOptions.Builder clientSocket = SocketOptions.builder();
+        private final SocketOptions.Builder upstreamSocket = SocketOptions.builder();
+        private Integer port;
+        private int threads = ProxyServer.DEFAULT_THREAD_COUNT;
+        private Duration drainTimeout = ProxyServer.DEFAULT_DRAIN_TIMEOUT;
+        private Set<String> trustedServers = Set.of(ProxyServer.GIPHY_SERVER);
+    }
+
+    /**
+     * Loads settings from a file and the environment of this process.
+     * @param file properties file
+     * @return settings
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if any key is unknown or any value is invalid
+     */
+    public static ConfigFile load(final Path file) throws IOException {
+        return load(file, System.getenv());
+    }
+
+    /**
+     * Loads settings from a file and environment variables.
+     * @param file properties file
+     * @param env environment variables
+     * @return settings
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if any key is unknown or any value is invalid
+     */
+    static ConfigFile load(final Path file, final Map<String, String> env) throws IOException {
+        final Properties properties = new Properties();
+        try (final Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+
+        final List<String> problems = new ArrayList<>();
+        final Map<String, String> values = new LinkedHashMap<>();
+        new TreeMap<>(properties).forEach((key, value) -> values.put((String) key, ((String) value).strip()));
+        new TreeMap<>(env).forEach((name, value) -> {
+            if (name.startsWith(ENV_PREFIX)) {
+                final String key = SETTINGS.keySet().stream()
+                        .filter(candidate -> envName(candidate).equals(name))
+                        .findFirst()
+                        .orElse(null);
+                if (key == null) {
+                    problems.add("unknown environment variable " + name);
+                } else {
+                    values.put(key, value.strip());
+                }
+            }
+        });
+
+        final Target target = new Target();
+        values.forEach((key, value) -> {
+            final Setting setting = SETTINGS.get(key);
+            if (setting == null) {
+                problems.add("unknown setting " + key);
+                return;
+            }
+            try {
+                setting.apply().accept(target, value);
+            } catch (RuntimeException e) {
+                // the value is not repeated, since it may be a secret
+                problems.add(key + " must be " + setting.expected());
+            }
+        });
+
+        final ProxyConfig config = target.config
+                .clientSocketOptions(target.clientSocket.build())
+                .upstreamSocketOptions(target.upstreamSocket.build())
+                .build();
+        try {
+            config.validate();
+        } catch (IllegalArgumentException e) {
+            problems.add(e.getMessage());
+        }
+        if (!values.containsKey("port")) {
+            problems.add("port is required");
+        } else if (target.port != null && (target.port < INHERITED || target.port > 65535)) {
+            problems.add("port must be from 0 to 65535, or " + ProxyServer.INHERITED_PORT);
+        }
+        if (target.threads < 1) {
+            problems.add("threads must be positive");
+        }
+        if (target.drainTimeout.isNegative()) {
+            problems.add("drainTimeout must not be negative");
+        }
+        if (target.trustedServers.isEmpty()) {
+            problems.add("trustedServers must not be empty");
+        }
+        if (!problems.isEmpty()) {
+            throw new IllegalArgumentException(file + ": " + String.join("; ", problems));
+        }
+        return new ConfigFile(target.port, target.threads, target.drainTimeout, target.trustedServers, config);
+    }
+
+    /**
+     * Returns the environment variable that overrides a key.
+     */
+    static String envName(final String key) {
+        return ENV_PREFIX + key.replaceAll("([a-z0-9])([A-Z])", "$1_$2").replace('.', '_').toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Loads the file again and applies it to a running server.
+     * @param file properties file
+     * @param env environment variables
+     * @param started settings the server was started with
+     * @param server running server
+     * @return names of the settings that changed but need a restart
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if any key is unknown or any value is invalid, in which case nothing changes
+     */
+    static List<String> reload(final Path file, final Map<String, String> env, final ConfigFile started,
+                               final ProxyServer server) throws IOException {
+        final ConfigFile next = load(file, env);
+        final List<String> restart = new ArrayList<>();
+        if (next.port != started.port) {
+            restart.add("port");
+        }
+        if (next.threads != started.threads) {
+            restart.add("threads");
+        }
+        if (!next.drainTimeout.equals(started.drainTimeout)) {
+            restart.add("drainTimeout");
+        }
+        if (!next.trustedServers.equals(started.trustedServers)) {
+            restart.add("trustedServers");
+        }
+        restart.addAll(server.reload(next.config));
+        return restart;
+    }
+
+    /**
+     * Checks the file for changes every {@link #CHECK_INTERVAL} on a daemon thread, and reloads it into
+     * the server when it changes. Changed settings that need a restart and files that cannot be loaded are reported
+     * in the server's event log; the server then keeps running with the settings it has.
+     * @param file properties file
+     * @param started settings the server was started with
+     * @param server running server
+     * @return the thread that checks the file, to be shut down with the server
+     */
+    static ScheduledExecutorService watch(final Path file, final ConfigFile started, final ProxyServer server) {
+        final ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "config-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final FileTime[] modified = {modified(file)};
+        watcher.scheduleWithFixedDelay(() -> {
+            final FileTime current = modified(file);
+            if (current == null || current.equals(modified[0])) {
+                return;
+            }
+            modified[0] = current;
+            try {
+                if (!reload(file, System.getenv(), started, server).isEmpty()) {
+                    server.log().log(EventLog.Event.CONFIG_RESTART_NEEDED);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                server.log().log(EventLog.Event.CONFIG_RELOAD_FAILED, e);
+            }
+        }, CHECK_INTERVAL.toMillis(), CHECK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        return watcher;
+    }
+
+    private static FileTime modified(final Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            // being replaced; check again later
+            return null;
+        }
+    }
+
+    private static Map<String, Setting> settings() {
+        final Map<String, Setting> settings = new LinkedHashMap<>();
+        settings.put("port", new Setting("a port number or " + ProxyServer.INHERITED_PORT, (target, value) ->
+                target.port = ProxyServer.INHERITED_PORT.equalsIgnoreCase(value)
+                        ? INHERITED
+                        : Integer.parseInt(value)));
+        settings.put("threads", integer((target, value) -> target.threads = value));
+        settings.put("drainTimeout", duration((target, value) -> target.drainTimeout = value));
+        settings.put("trustedServers", new Setting("a list of host:port", (target, value) ->
+                target.trustedServers = servers(value)));
+
+        settings.put("perTunnelBytesPerSecond",
+                number((target, value) -> target.config.perTunnelBytesPerSecond(value)));
+        settings.put("perClientBytesPerSecond",
+                number((target, value) -> target.config.perClientBytesPerSecond(value)));
+        settings.put("globalBytesPerSecond", number((target, value) -> target.config.globalBytesPerSecond(value)));
+        settings.put("bulkThresholdBytes", number((target, value) -> target.config.bulkThresholdBytes(value)));
+        settings.put("bulkConcurrency", integer((target, value) -> target.config.bulkConcurrency(value)));
+        settings.put("slowWriteThreshold", duration((target, value) -> target.config.slowWriteThreshold(value)));
+        settings.put("tlsRecordFraming", flag((target, value) -> target.config.tlsRecordFraming(value)));
+        settings.put("minHandlers", integer((target, value) -> target.config.minHandlers(value)));
+        settings.put("maxHandlers", integer((target, value) -> target.config.maxHandlers(value)));
+        settings.put("handlerResizeInterval", duration((target, value) -> target.config.handlerResizeInterval(value)));
+        settings.put("maxTunnelsPerDestination",
+                integer((target, value) -> target.config.maxTunnelsPerDestination(value)));
+        settings.put("circuitBreakerFailureRate",
+                fraction((target, value) -> target.config.circuitBreakerFailureRate(value)));
+        settings.put("circuitBreakerOpenDuration",
+                duration((target, value) -> target.config.circuitBreakerOpenDuration(value)));
+        settings.put("slowConnectThreshold", duration((target, value) -> target.config.slowConnectThreshold(value)));
+        settings.put("connectTimeout", duration((target, value) -> target.config.connectTimeout(value)));
+        settings.put("listenerMode", new Setting("one of " + Arrays.toString(ListenerMode.values()),
+                (target, value) -> target.config.listenerMode(ListenerMode.valueOf(value.toUpperCase(Locale.ROOT)))));
+        settings.put("sniUpstreamPort", integer((target, value) -> target.config.sniUpstreamPort(value)));
+        settings.put("backlog", integer((target, value) -> target.config.backlog(value)));
+        settings.put("logFile", path((target, value) -> target.config.logFile(value)));
+        settings.put("logFileMaxBytes", number((target, value) -> target.config.logFileMaxBytes(value)));
+        settings.put("logFileCount", integer((target, value) -> target.config.logFileCount(value)));
+        settings.put("metricsFile", path((target, value) -> target.config.metricsFile(value)));
+        settings.put("accessLogDirectory", path((target, value) -> target.config.accessLogDirectory(value)));
+        settings.put("accessLogSegmentBytes", integer((target, value) -> target.config.accessLogSegmentBytes(value)));
+        settings.put("accessLogSegmentCount", integer((target, value) -> target.config.accessLogSegmentCount(value)));
+        settings.put("warmUpDuration", duration((target, value) -> target.config.warmUpDuration(value)));
+        settings.put("releaseBuffersAfter", duration((target, value) -> target.config.releaseBuffersAfter(value)));
+        settings.put("bufferSize", integer((target, value) -> target.config.bufferSize(value)));
+        settings.put("tunnelStackSize", number((target, value) -> target.config.tunnelStackSize(value)));
+        settings.put("maxBufferBytes", number((target, value) -> target.config.maxBufferBytes(value)));
+        settings.put("healthPort", integer((target, value) -> target.config.healthPort(value)));
+        settings.put("clusterPort", integer((target, value) -> target.config.clusterPort(value)));
+        settings.put("clusterPeers", new Setting("a list of host:port", (target, value) ->
+                target.config.clusterPeers(peers(value))));
+        settings.put("clusterSecret", new Setting("text", (target, value) ->
+                target.config.clusterSecret(value.getBytes(StandardCharsets.UTF_8))));
+        settings.put("clusterGossipInterval", duration((target, value) -> target.config.clusterGossipInterval(value)));
+        settings.put("clusterMaxConnectionsPerClient",
+                integer((target, value) -> target.config.clusterMaxConnectionsPerClient(value)));
+        settings.put("clusterMaxConnectionsPerClientPerSecond",
+                integer((target, value) -> target.config.clusterMaxConnectionsPerClientPerSecond(value)));
+        settings.put("clusterMaxTunnelsPerDestination",
+                integer((target, value) -> target.config.clusterMaxTunnelsPerDestination(value)));
+        settings.put("memoryShrinkBuffersAt", fraction((target, value) -> target.config.memoryShrinkBuffersAt(value)));
+        settings.put("memoryRefuseTunnelsAt", fraction((target, value) -> target.config.memoryRefuseTunnelsAt(value)));
+        settings.put("memoryCloseIdleAt", fraction((target, value) -> target.config.memoryCloseIdleAt(value)));
+
+        socketOptions(settings, "clientSocket.", target -> target.clientSocket);
+        socketOptions(settings, "upstreamSocket.", target -> target.upstreamSocket);
+        return settings;
+    }
+
+    private static void socketOptions(final Map<String, Setting> settings, final String prefix,
+                                      final Function<Target, SocketOptions.Builder> options) {
+        settings.put(prefix + "tcpNoDelay", flag((target, value) -> options.apply(target).tcpNoDelay(value)));
+        settings.put(prefix + "keepAlive", flag((target, value) -> options.apply(target).keepAlive(value)));
+        settings.put(prefix + "keepAliveIdle", duration((target, value) -> options.apply(target).keepAliveIdle(value)));
+        settings.put(prefix + "keepAliveInterval",
+                duration((target, value) -> options.apply(target).keepAliveInterval(value)));
+        settings.put(prefix + "keepAliveCount",
+                integer((target, value) -> options.apply(target).keepAliveCount(value)));
+        settings.put(prefix + "sendBufferSize",
+                integer((target, value) -> options.apply(target).sendBufferSize(value)));
+        settings.put(prefix + "receiveBufferSize",
+                integer((target, value) -> options.apply(target).receiveBufferSize(value)));
+        settings.put(prefix + "linger", duration((target, value) -> options.apply(target).linger(value)));
+    }
+
+    private static Setting integer(final BiConsumer<Target, Integer> apply) {
+        return new Setting("a whole number", (target, value) -> apply.accept(target, Integer.parseInt(value)));
+    }
+
+    private static Setting number(final BiConsumer<Target, Long> apply) {
+        return new Setting("a whole number", (target, value) -> apply.accept(target, Long.parseLong(value)));
+    }
+
+    private static Setting fraction(final BiConsumer<Target, Double> apply) {
+        return new Setting("a number", (target, value) -> apply.accept(target, Double.parseDouble(value)));
+    }
+
+    private static Setting flag(final BiConsumer<Target, Boolean> apply) {
+        return new Setting("true or false", (target, value) -> {
+            if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+                throw new IllegalArgumentException(value);
+            }
+            apply.accept(target, Boolean.parseBoolean(value));
+        });
+    }
+
+    private static Setting duration(final BiConsumer<Target, Duration> apply) {
+        return new Setting("a duration such as 500ms, 5s or PT5S", (target, value) ->
+                apply.accept(target, parseDuration(value)));
+    }
+
+    private static Setting path(final BiConsumer<Target, Path> apply) {
+        return new Setting("a path", (target, value) -> apply.accept(target, Path.of(value)));
+    }
+
+    static Duration parseDuration(final String value) {
+        final Matcher matcher = SHORT_DURATION.matcher(value);
+        if (!matcher.matches()) {
+            return Duration.parse(value);
+        }
+        final long amount = Long.parseLong(matcher.group(1));
+        return switch (matcher.group(2)) {
+            case "ms" -> Duration.ofMillis(amount);
+            case "s" -> Duration.ofSeconds(amount);
+            case "m" -> Duration.ofMinutes(amount);
+            default -> Duration.ofHours(amount);
+        };
+    }
+
+    private static Set<String> servers(final String value) {
+        final Set<String> servers = new LinkedHashSet<>();
+        for (final String server : list(value)) {
+            parseAddress(server);
+            servers.add(server.toLowerCase(Locale.ROOT));
+        }
+        return Set.copyOf(servers);
+    }
+
+    private static List<InetSocketAddress> peers(final String value) {
+        final List<InetSocketAddress> peers = new ArrayList<>();
+        for (final String peer : list(value)) {
+            final InetSocketAddress unresolved = parseAddress(peer);
+            final InetSocketAddress address = new InetSocketAddress(unresolved.getHostString(), unresolved.getPort());
+            if (address.isUnresolved()) {
+                throw new IllegalArgumentException("Unknown host");
+            }
+            peers.add(address);
+        }
+        return peers;
+    }
+
+    private static List<String> list(final String value) {
+        final List<String> items = new ArrayList<>();
+        for (final String item : value.split(",")) {
+            if (!item.isBlank()) {
+                items.add(item.strip());
+            }
+        }
+        return items;
+    }
+
+    private static InetSocketAddress parseAddress(final String value) {
+        final int colon = value.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("No port");
+        }
+        final int port = Integer.parseInt(value.substring(colon + 1));
+        return InetSocketAddress.createUnresolved(value.substring(0, colon), port);
+    }
+}
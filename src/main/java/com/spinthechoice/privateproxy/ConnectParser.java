@@ -1,7 +1,5 @@
 package com.spinthechoice.privateproxy;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.StringTokenizer;
 
 /**
@@ -15,9 +13,10 @@ class ConnectParser {
     }
 
     /**
-     * Result type.
+     * Result type. The host is kept as the client sent it; it is only looked up when connecting,
+     * so a destination that is refused anyway costs no DNS lookup.
      */
-    static record Server (InetAddress host, int port) {}
+    static record Server (String host, int port) {}
 
     private static final String METHOD = "CONNECT";
 
@@ -67,12 +66,12 @@ class ConnectParser {
     }
 
     private static Server toServer(final String[] parts) throws InvalidConnectException {
+        if (parts[0].isEmpty()) {
+            throw new InvalidConnectException("Invalid host in " + METHOD);
+        }
         try {
-            final InetAddress name = InetAddress.getByName(parts[0]);
             final int port = Integer.parseInt(parts[1]);
-            return new Server(name, port);
-        } catch (UnknownHostException e) {
-            throw new InvalidConnectException("Invalid host in " + METHOD);
+            return new Server(parts[0], port);
         } catch (NumberFormatException e) {
             throw new InvalidConnectException("Invalid port in " + METHOD);
         }
@@ -88,4 +87,13 @@ class ConnectParser {
     static ConnectParser fromRequestLine(final String line) {
         return new ConnectParser(line);
     }
+
+    /**
+     * Creates a parser for the {@code :authority} of an HTTP/2 CONNECT request.
+     * @param authority server-name:server-port
+     * @return parser instance
+     */
+    static ConnectParser fromAuthority(final String authority) {
+        return new ConnectParser(METHOD + " " + authority);
+    }
 }
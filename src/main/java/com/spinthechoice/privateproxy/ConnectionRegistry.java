@@ -0,0 +1,251 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Tracks the connections that are currently open.
+ * Adding and removing a connection is constant time, and listing the
+ * connections never blocks the handlers that are adding and removing them.
+ * No client information (such as the client's address) is exposed.
+ */
+public class ConnectionRegistry {
+    /**
+     * Lifecycle of a connection.
+     */
+    public enum State {
+        /** Client connected, CONNECT message not yet handled. */
+        ACCEPTED,
+        /** Connecting to the remote server. */
+        CONNECTING,
+        /** Data is being tunneled. */
+        TUNNELING,
+        /** Connection is being closed. */
+        CLOSING
+    }
+
+    /**
+     * Point-in-time view of a connection, safe to hand to an admin view.
+     */
+    public static record Snapshot(long id, State state, Duration age, Duration idle,
+                                  long bytesUpstream, long bytesDownstream) {}
+
+    /**
+     * A single open connection.
+     */
+    static class Connection {
+        private final long id;
+        private final long openedAt;
+        private final Socket client;
+        private final AtomicLong bytesUpstream = new AtomicLong();
+        private final AtomicLong bytesDownstream = new AtomicLong();
+        private volatile State state = State.ACCEPTED;
+        private volatile long lastActivity;
+        private volatile Socket upstream;
+
+        private Connection(final long id, final Socket client) {
+            this.id = id;
+            this.client = client;
+            this.openedAt = System.nanoTime();
+            this.lastActivity = openedAt;
+        }
+
+        long id() {
+            return id;
+        }
+
+        State state() {
+            return state;
+        }
+
+        void state(final State state) {
+            this.state = state;
+        }
+
+        /**
+         * Attaches the socket to the remote server so that it is closed along with the connection.
+         * @param upstream socket to the remote server
+         */
+        void attach(final Socket upstream) {
+            this.upstream = upstream;
+        }
+
+        void recordUpstream(final int bytes) {
+            bytesUpstream.addAndGet(bytes);
+            lastActivity = System.nanoTime();
+        }
+
+        void recordDownstream(final int bytes) {
+            bytesDownstream.addAndGet(bytes);
+            lastActivity = System.nanoTime();
+        }
+
+        long idleNanos(final long now) {
+            return now - lastActivity;
+        }
+
+        Snapshot snapshot(final long now) {
+            return new Snapshot(id, state,
+                    Duration.ofNanos(now - openedAt), Duration.ofNanos(idleNanos(now)),
+                    bytesUpstream.get(), bytesDownstream.get());
+        }
+
+        /**
+         * Closes both ends of the connection, which ends its tunnel threads.
+         */
+        void close() {
+            state = State.CLOSING;
+            close(upstream);
+            close(client);
+        }
+
+        private static void close(final Socket socket) {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private final Map<Long, Connection> connections = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final LongAdder closedCount = new LongAdder();
+
+    /**
+     * Adds a newly accepted client connection.
+     * @param client client socket
+     * @return the registered connection
+     */
+    Connection register(final Socket client) {
+        final Connection connection = new Connection(nextId.incrementAndGet(), client);
+        connections.put(connection.id(), connection);
+        return connection;
+    }
+
+    /**
+     * Removes a connection once it has been closed.
+     * @param connection connection
+     */
+    void unregister(final Connection connection) {
+        if (connections.remove(connection.id()) != null) {
+            closedCount.increment();
+        }
+    }
+
+    /**
+     * Returns the number of open connections.
+     * @return number of open connections
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of connections opened since the registry was created.
+     * Compare with {@link #closed()} and {@link #size()} to detect leaks.
+     * @return number of connections ever opened
+     */
+    public long opened() {
+        return nextId.get();
+    }
+
+    /**
+     * Returns the number of connections closed since the registry was created.
+     * @return number of connections closed
+     */
+    public long closed() {
+        return closedCount.sum();
+    }
+
+    /**
+     * Lists the open connections.
+     * @return snapshots of the open connections
+     */
+    public List<Snapshot> list() {
+        final long now = System.nanoTime();
+        return connections.values().stream()
+                .map(c -> c.snapshot(now))
+                .collect(toList());
+    }
+
+    /**
+     * Forcibly closes a connection.
+     * @param id connection ID
+     * @return whether the connection was open
+     */
+    public boolean kill(final long id) {
+        final Connection connection = connections.get(id);
+        if (connection == null) {
+            return false;
+        }
+        connection.close();
+        return true;
+    }
+
+    /**
+     * Closes connections that have not transferred any data for at least the given time.
+     * @param maxIdle maximum idle time
+     * @return number of connections closed
+     */
+    public int closeIdle(final Duration maxIdle) {
+        final long now = System.nanoTime();
+        final long limit = maxIdle.toNanos();
+        int count = 0;
+        for (Connection connection : connections.values()) {
+            if (connection.idleNanos(now) >= limit) {
+                connection.close();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the tunnels that have gone longest without transferring data, which frees the most memory
+     * for the least harm to clients. Connections that are not yet tunneling are left alone.
+     * @param count most tunnels to close
+     * @param minIdle least time a tunnel must have been idle to be closed
+     * @return number of tunnels closed
+     */
+    int closeIdlest(final int count, final Duration minIdle) {
+        final long now = System.nanoTime();
+        final long limit = minIdle.toNanos();
+        // idle times are read once, because they change while the tunnels are sorted
+        final List<Map.Entry<Long, Connection>> idle = new ArrayList<>();
+        for (Connection connection : connections.values()) {
+            final long idleNanos = connection.idleNanos(now);
+            if (connection.state() == State.TUNNELING && idleNanos >= limit) {
+                idle.add(Map.entry(idleNanos, connection));
+            }
+        }
+        idle.sort(Map.Entry.<Long, Connection>comparingByKey().reversed());
+        final int closed = Math.min(count, idle.size());
+        for (int i = 0; i < closed; i++) {
+            idle.get(i).getValue().close();
+        }
+        return closed;
+    }
+
+    /**
+     * Forcibly closes every open connection.
+     * @return number of connections closed
+     */
+    public int closeAll() {
+        int count = 0;
+        for (Connection connection : connections.values()) {
+            connection.close();
+            count++;
+        }
+        return count;
+    }
+}
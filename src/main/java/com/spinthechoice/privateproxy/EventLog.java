@@ -0,0 +1,249 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log of proxy events.
+ * Handler and tunnel threads only claim a slot in a fixed-size ring buffer, which takes no locks.
+ * A single background thread formats the events and writes them in batches. If the ring is full,
+ * the event is dropped and counted instead of making the caller wait.
+ * <p>
+ * To protect users' privacy, events never include client data: no addresses, no host names,
+ * and no exception messages (which may contain either). Only the kind of event and the class
+ * of the exception are recorded.
+ */
+public class EventLog implements AutoCloseable {
+    /**
+     * How bad an event is.
+     */
+    public enum Level { INFO, WARN, ERROR }
+
+    /**
+     * Something that happened.
+     */
+    enum Event {
+        ACCEPT_FAILED(Level.ERROR, "accept_failed"),
+        CONNECTION_FAILED(Level.WARN, "connection_failed"),
+        METRICS_FILE_FAILED(Level.ERROR, "metrics_file_failed"),
+        ACCESS_LOG_FAILED(Level.ERROR, "access_log_failed"),
+        WARM_UP_FAILED(Level.WARN, "warm_up_failed"),
+        HEALTH_ENDPOINT_FAILED(Level.ERROR, "health_endpoint_failed"),
+        CLUSTER_FAILED(Level.WARN, "cluster_failed"),
+        CONFIG_RELOAD_FAILED(Level.WARN, "config_reload_failed"),
+        CONFIG_RESTART_NEEDED(Level.WARN, "config_restart_needed"),
+        MEMORY_NORMAL(Level.INFO, "memory_normal"),
+        MEMORY_SHRINK_BUFFERS(Level.WARN, "memory_shrink_buffers"),
+        MEMORY_REFUSE_TUNNELS(Level.WARN, "memory_refuse_tunnels"),
+        MEMORY_CLOSE_IDLE(Level.ERROR, "memory_close_idle");
+
+        private final Level level;
+        private final String name;
+
+        Event(final Level level, final String name) {
+            this.level = level;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Destination of formatted events.
+     */
+    interface Sink extends Closeable {
+        /**
+         * Writes a batch of lines.
+         * @param lines one or more complete lines
+         * @throws IOException if the lines cannot be written
+         */
+        void write(CharSequence lines) throws IOException;
+
+        /**
+         * Returns a sink that writes to standard output.
+         * @return sink
+         */
+        static Sink stdout() {
+            final PrintStream out = System.out;
+            return new Sink() {
+                @Override
+                public void write(final CharSequence lines) {
+                    out.append(lines);
+                    out.flush();
+                }
+
+                @Override
+                public void close() {
+                    out.flush();
+                }
+            };
+        }
+    }
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Sink sink;
+    private final int mask;
+    private final Event[] events;
+    private final Class<?>[] causes;
+    private final long[] times;
+    // a slot may be written when its sequence equals the producer position, and read when it is one more
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private long head; // writer thread only
+    private long reportedDropped; // writer thread only
+    private volatile boolean closed;
+
+    /**
+     * Creates a log and starts its writer thread.
+     * @param sink destination of formatted events
+     */
+    EventLog(final Sink sink) {
+        this(sink, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a log and starts its writer thread.
+     * @param sink destination of formatted events
+     * @param capacity number of events that can wait to be written; rounded up to a power of two
+     */
+    EventLog(final Sink sink, final int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.sink = sink;
+        this.mask = size - 1;
+        this.events = new Event[size];
+        this.causes = new Class<?>[size];
+        this.times = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.writer = new Thread(this::writeUntilClosed, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records an event.
+     * @param event event
+     */
+    void log(final Event event) {
+        log(event, null);
+    }
+
+    /**
+     * Records an event caused by an exception. Only the exception's class is kept.
+     * @param event event
+     * @param cause exception, or {@code null}
+     */
+    void log(final Event event, final Throwable cause) {
+        long position = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) position & mask;
+            final long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the writer has not caught up
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        events[slot] = event;
+        causes[slot] = cause == null ? null : cause.getClass();
+        times[slot] = System.currentTimeMillis();
+        sequences.lazySet(slot, position + 1);
+    }
+
+    /**
+     * Returns the number of events dropped because the writer could not keep up.
+     * @return number of dropped events
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    private void writeUntilClosed() {
+        while (!closed) {
+            if (writeBatch() == 0) {
+                LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+            }
+        }
+        writeBatch();
+    }
+
+    private int writeBatch() {
+        final StringBuilder batch = new StringBuilder();
+        int count = 0;
+        while (true) {
+            final int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            format(batch, times[slot], events[slot].level, events[slot].name, causes[slot]);
+            events[slot] = null;
+            causes[slot] = null;
+            sequences.lazySet(slot, head + events.length);
+            head++;
+            count++;
+        }
+
+        final long droppedNow = dropped.sum();
+        if (droppedNow != reportedDropped) {
+            batch.append(Instant.ofEpochMilli(System.currentTimeMillis())).append(' ').append(Level.WARN)
+                    .append(" events_dropped count=").append(droppedNow - reportedDropped).append('\n');
+            reportedDropped = droppedNow;
+        }
+
+        if (batch.length() > 0) {
+            try {
+                sink.write(batch);
+            } catch (IOException e) {
+                // nowhere left to report this
+            }
+        }
+        return count;
+    }
+
+    private static void format(final StringBuilder batch, final long time, final Level level,
+                               final String event, final Class<?> cause) {
+        batch.append(Instant.ofEpochMilli(time)).append(' ').append(level).append(' ').append(event);
+        if (cause != null) {
+            batch.append(" cause=").append(cause.getName());
+        }
+        batch.append('\n');
+    }
+
+    /**
+     * Writes any remaining events and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.NANOSECONDS.toMillis(FLUSH_INTERVAL_NANOS) * 10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            sink.close();
+        } catch (IOException e) {
+            // nowhere left to report this
+        }
+    }
+}
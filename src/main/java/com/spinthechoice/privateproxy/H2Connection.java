@@ -0,0 +1,731 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Serves one HTTP/2 client connection (cleartext, with prior knowledge) on which every
+ * CONNECT stream is a separate tunnel (RFC 7540 section 8.3).
+ * This lets a client open many tunnels with a single TCP connection to the proxy.
+ * Flow control is bridged to the remote servers: the client is allowed to send more data on
+ * a stream only once earlier data was written to the stream's remote server, and data from
+ * a remote server is read only as fast as the client's windows allow it to be sent.
+ */
+class H2Connection {
+    /**
+     * Sets up the tunnel for a CONNECT stream.
+     * Each stream is handled on its own thread. The handler must either
+     * {@link Stream#respond(int) refuse} the stream or {@link Stream#tunnel tunnel} it.
+     */
+    @FunctionalInterface
+    interface StreamHandler {
+        void handle(Stream stream) throws IOException;
+    }
+
+    /**
+     * An error that ends the connection.
+     */
+    private static class ConnectionException extends Exception {
+        private final int errorCode;
+
+        ConnectionException(final int errorCode, final String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * A CONNECT stream.
+     */
+    class Stream {
+        private final int id;
+        private final String authority;
+        private final BlockingQueue<byte[]> inbound = new LinkedBlockingQueue<>();
+        private final AtomicInteger receiveWindow = new AtomicInteger(INITIAL_WINDOW_SIZE);
+        private long sendWindow; // guarded by windows
+        private boolean inputEnded; // read by the connection thread only
+        private volatile boolean responded;
+        private volatile boolean reset;
+        private volatile Socket upstream;
+
+        private Stream(final int id, final String authority, final long sendWindow) {
+            this.id = id;
+            this.authority = authority;
+            this.sendWindow = sendWindow;
+        }
+
+        /**
+         * Returns the server requested by the client.
+         * @return server-name:server-port
+         */
+        String authority() {
+            return authority;
+        }
+
+        /**
+         * Refuses the CONNECT request.
+         * @param status HTTP status
+         * @throws IOException if the response cannot be sent
+         */
+        void respond(final int status) throws IOException {
+            responded = true;
+            writeHeaders(id, status, true);
+        }
+
+        /**
+         * Accepts the CONNECT request and relays data between the stream and the remote server
+         * until both directions are finished. The caller still owns (and closes) the socket.
+         * @param upstream connected remote server
+         * @param onUpstream receives the number of bytes written to the remote server
+         * @param onDownstream receives the number of bytes read from the remote server
+         * @throws IOException if the response cannot be sent
+         */
+        void tunnel(final Socket upstream, final IntConsumer onUpstream, final IntConsumer onDownstream)
+                throws IOException {
+            this.upstream = upstream;
+            if (reset) {
+                return;
+            }
+            responded = true;
+            writeHeaders(id, 200, false);
+
+            final Future<?> clientToServer = executor.submit(() -> relayToUpstream(onUpstream));
+            relayToClient(onDownstream);
+            try {
+                clientToServer.get();
+            } catch (ExecutionException e) {
+                reset(CANCEL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reset(CANCEL);
+            }
+        }
+
+        private void relayToUpstream(final IntConsumer onUpstream) {
+            try {
+                final OutputStream out = upstream.getOutputStream();
+                byte[] data;
+                while ((data = inbound.take()) != END_OF_STREAM && !reset) {
+                    out.write(data);
+                    out.flush();
+                    onUpstream.accept(data.length);
+                    // the data has left the proxy, so the client may send more
+                    receiveWindow.addAndGet(data.length);
+                    writeWindowUpdate(id, data.length);
+                }
+                if (!reset) {
+                    upstream.shutdownOutput();
+                }
+            } catch (IOException e) {
+                reset(CONNECT_ERROR);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reset(CANCEL);
+            }
+        }
+
+        private void relayToClient(final IntConsumer onDownstream) {
+            final byte[] buf = new byte[DEFAULT_MAX_FRAME_SIZE];
+            try {
+                final InputStream in = upstream.getInputStream();
+                int length;
+                while ((length = in.read(buf)) != -1) {
+                    onDownstream.accept(length);
+                    for (int offset = 0, sent; offset < length; offset += sent) {
+                        sent = reserveSendWindow(this, length - offset);
+                        if (sent == 0) {
+                            return;
+                        }
+                        writeFrame(DATA, 0, id, buf, offset, sent);
+                    }
+                }
+                writeFrame(DATA, END_STREAM, id, buf, 0, 0);
+            } catch (IOException e) {
+                reset(CONNECT_ERROR);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reset(CANCEL);
+            }
+        }
+
+        private void receive(final byte[] payload, final int offset, final int length, final boolean endStream) {
+            if (receiveWindow.addAndGet(-payload.length) < 0) {
+                reset(FLOW_CONTROL_ERROR);
+                return;
+            }
+            if (length < payload.length) {
+                // padding never reaches the remote server, so give it back right away
+                receiveWindow.addAndGet(payload.length - length);
+                writeWindowUpdate(id, payload.length - length);
+            }
+            if (length > 0) {
+                inbound.add(Arrays.copyOfRange(payload, offset, offset + length));
+            }
+            if (endStream) {
+                endInput();
+            }
+        }
+
+        private void endInput() {
+            inputEnded = true;
+            inbound.add(END_OF_STREAM);
+        }
+
+        /**
+         * Ends the stream abruptly, telling the client why.
+         */
+        private void reset(final int errorCode) {
+            if (abort()) {
+                writeReset(id, errorCode);
+            }
+        }
+
+        /**
+         * Ends the stream abruptly without telling the client.
+         * @return whether the stream was open
+         */
+        private boolean abort() {
+            synchronized (windows) {
+                if (reset) {
+                    return false;
+                }
+                reset = true;
+                windows.notifyAll();
+            }
+            inbound.add(END_OF_STREAM);
+            final Socket socket = upstream;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sent by clients before anything else.
+     */
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int CANCEL = 0x8;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int CONNECT_ERROR = 0xa;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_MAX_FRAME_SIZE = (1 << 24) - 1;
+    private static final int INITIAL_WINDOW_SIZE = DEFAULT_WINDOW_SIZE;
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_HEADER_BLOCK_LENGTH = 4 * DEFAULT_MAX_FRAME_SIZE;
+    private static final byte[] END_OF_STREAM = new byte[0];
+    // how long a refused client may take to hang up before its connection is closed anyway
+    private static final int REFUSAL_LINGER_MILLIS = 500;
+
+    private final Socket socket;
+    private final ExecutorService executor;
+    private final StreamHandler handler;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final HpackDecoder decoder = new HpackDecoder(HEADER_TABLE_SIZE);
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final Object windows = new Object();
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE; // guarded by windows
+    private long peerInitialWindowSize = DEFAULT_WINDOW_SIZE; // guarded by windows
+    private volatile int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private volatile boolean closed;
+    private int lastStreamId;
+    private boolean goingAway;
+    private ByteArrayOutputStream headerBlock;
+    private int headerStreamId;
+    private boolean headerEndStream;
+
+    /**
+     * Creates a connection.
+     * @param socket client socket
+     * @param executor executor for stream threads
+     * @param handler sets up the tunnel for each CONNECT stream
+     * @throws IOException if the socket's streams cannot be opened
+     */
+    H2Connection(final Socket socket, final ExecutorService executor, final StreamHandler handler)
+            throws IOException {
+        this.socket = socket;
+        this.executor = executor;
+        this.handler = handler;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Reads frames until the client hangs up or breaks the protocol.
+     * All streams are reset before this returns, but the caller still owns the client socket.
+     * @throws IOException if the client connection fails
+     */
+    void serve() throws IOException {
+        try {
+            if (!readPreface()) {
+                return;
+            }
+            writeSettings();
+            while (readFrame()) {
+                // frames are handled as they are read
+            }
+        } catch (ConnectionException e) {
+            writeGoAway(e.errorCode);
+        } catch (HpackDecoder.CompressionException e) {
+            writeGoAway(COMPRESSION_ERROR);
+        } finally {
+            closed = true;
+            streams.values().forEach(Stream::abort);
+        }
+    }
+
+    /**
+     * Turns the client away before any stream is opened, so it backs off instead of retrying at once
+     * as it would after a connection that just closed. The caller still owns the client socket.
+     * @throws IOException if the client connection fails
+     */
+    void refuse() throws IOException {
+        writeSettings();
+        writeGoAway(ENHANCE_YOUR_CALM);
+        // closing with the client's preface unread would reset the connection, and the client could lose the GOAWAY
+        socket.shutdownOutput();
+        socket.setSoTimeout(REFUSAL_LINGER_MILLIS);
+        final byte[] discarded = new byte[DEFAULT_MAX_FRAME_SIZE];
+        try {
+            while (in.read(discarded) != -1) {
+                // the client has nothing more to say to a refused connection
+            }
+        } catch (SocketTimeoutException e) {
+            // the client did not hang up; close it anyway
+        }
+    }
+
+    private boolean readPreface() throws IOException {
+        final byte[] preface = new byte[PREFACE.length];
+        try {
+            in.readFully(preface);
+        } catch (EOFException e) {
+            return false;
+        }
+        return Arrays.equals(PREFACE, preface);
+    }
+
+    private boolean readFrame() throws IOException, ConnectionException, HpackDecoder.CompressionException {
+        final int first = in.read();
+        if (first == -1) {
+            return false;
+        }
+        final int length = (first << 16) | in.readUnsignedShort();
+        final int type = in.readUnsignedByte();
+        final int flags = in.readUnsignedByte();
+        final int streamId = in.readInt() & 0x7fffffff;
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Frame too large");
+        }
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        if (headerBlock != null && type != CONTINUATION) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Expected CONTINUATION");
+        }
+        switch (type) {
+            case DATA -> onData(streamId, flags, payload);
+            case HEADERS -> onHeaders(streamId, flags, payload);
+            case CONTINUATION -> onContinuation(streamId, flags, payload);
+            case RST_STREAM -> onReset(streamId);
+            case SETTINGS -> onSettings(flags, payload);
+            case PING -> onPing(flags, payload);
+            case GOAWAY -> goingAway = true;
+            case WINDOW_UPDATE -> onWindowUpdate(streamId, payload);
+            case PUSH_PROMISE -> throw new ConnectionException(PROTOCOL_ERROR, "Clients cannot push");
+            default -> {
+                // PRIORITY and unknown frames are ignored
+            }
+        }
+        return true;
+    }
+
+    private void onData(final int streamId, final int flags, final byte[] payload) throws ConnectionException {
+        final int padding = padding(flags, payload);
+        final int offset = (flags & PADDED) != 0 ? 1 : 0;
+        final int length = payload.length - offset - padding;
+        if (streamId == 0 || length < 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Invalid DATA frame");
+        }
+        // each stream's window bounds what is buffered, so the connection window is returned right away
+        if (payload.length > 0) {
+            writeWindowUpdate(0, payload.length);
+        }
+
+        final Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new ConnectionException(PROTOCOL_ERROR, "DATA on idle stream");
+            }
+            writeReset(streamId, STREAM_CLOSED);
+        } else if (stream.inputEnded) {
+            stream.reset(STREAM_CLOSED);
+        } else {
+            stream.receive(payload, offset, length, (flags & END_STREAM) != 0);
+        }
+    }
+
+    private void onHeaders(final int streamId, final int flags, final byte[] payload)
+            throws ConnectionException, HpackDecoder.CompressionException {
+        if (streamId == 0 || streamId % 2 == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Invalid stream " + streamId);
+        }
+        int offset = (flags & PADDED) != 0 ? 1 : 0;
+        final int padding = padding(flags, payload);
+        if ((flags & PRIORITY) != 0) {
+            offset += 5;
+        }
+        final int length = payload.length - offset - padding;
+        if (length < 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Invalid HEADERS frame");
+        }
+
+        headerBlock = new ByteArrayOutputStream();
+        headerBlock.write(payload, offset, length);
+        headerStreamId = streamId;
+        headerEndStream = (flags & END_STREAM) != 0;
+        if ((flags & END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(final int streamId, final int flags, final byte[] payload)
+            throws ConnectionException, HpackDecoder.CompressionException {
+        if (headerBlock == null || streamId != headerStreamId) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+        headerBlock.write(payload, 0, payload.length);
+        if (headerBlock.size() > MAX_HEADER_BLOCK_LENGTH) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Header block too large");
+        }
+        if ((flags & END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onHeaderBlock() throws ConnectionException, HpackDecoder.CompressionException {
+        final byte[] block = headerBlock.toByteArray();
+        final int streamId = headerStreamId;
+        headerBlock = null;
+        // every block must be decoded to keep the dynamic table in sync, even if it is ignored
+        final Map<String, String> headers = decoder.decode(block, 0, block.length);
+
+        final Stream existing = streams.get(streamId);
+        if (existing != null) {
+            // trailers
+            if (headerEndStream && !existing.inputEnded) {
+                existing.endInput();
+            }
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Stream " + streamId + " was already used");
+        }
+        lastStreamId = streamId;
+
+        if (goingAway || streams.size() >= MAX_CONCURRENT_STREAMS) {
+            writeReset(streamId, REFUSED_STREAM);
+            return;
+        }
+        final String authority = headers.get(":authority");
+        if (!"CONNECT".equals(headers.get(":method")) || authority == null
+                || headers.containsKey(":path") || headers.containsKey(":scheme")) {
+            writeHeadersQuietly(streamId, 400);
+            return;
+        }
+
+        final Stream stream = openStream(streamId, authority);
+        if (headerEndStream) {
+            stream.endInput();
+        }
+        executor.submit(() -> handle(stream));
+    }
+
+    private Stream openStream(final int streamId, final String authority) {
+        final Stream stream;
+        synchronized (windows) {
+            stream = new Stream(streamId, authority, peerInitialWindowSize);
+        }
+        streams.put(streamId, stream);
+        return stream;
+    }
+
+    private void handle(final Stream stream) {
+        try {
+            handler.handle(stream);
+        } catch (IOException e) {
+            stream.reset(CANCEL);
+        } finally {
+            if (!stream.responded) {
+                stream.reset(CANCEL);
+            }
+            streams.remove(stream.id);
+        }
+    }
+
+    private void onReset(final int streamId) {
+        final Stream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.abort();
+        }
+    }
+
+    private void onSettings(final int flags, final byte[] payload) throws IOException, ConnectionException {
+        if ((flags & ACK) != 0) {
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            final int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            final long value = readUnsignedInt(payload, i + 2);
+            if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                if (value > MAX_WINDOW_SIZE) {
+                    throw new ConnectionException(FLOW_CONTROL_ERROR, "Invalid initial window size");
+                }
+                changeInitialWindowSize(value);
+            } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_MAX_FRAME_SIZE) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "Invalid max frame size");
+                }
+                peerMaxFrameSize = (int) value;
+            }
+        }
+        writeFrame(SETTINGS, ACK, 0, payload, 0, 0);
+    }
+
+    /**
+     * A larger initial window enlarges the windows of open streams too, and none of them may exceed the maximum.
+     */
+    private void changeInitialWindowSize(final long size) throws ConnectionException {
+        synchronized (windows) {
+            final long delta = size - peerInitialWindowSize;
+            for (Stream stream : streams.values()) {
+                if (stream.sendWindow + delta > MAX_WINDOW_SIZE) {
+                    throw new ConnectionException(FLOW_CONTROL_ERROR, "Stream window too large");
+                }
+            }
+            peerInitialWindowSize = size;
+            for (Stream stream : streams.values()) {
+                stream.sendWindow += delta;
+            }
+            windows.notifyAll();
+        }
+    }
+
+    private void onPing(final int flags, final byte[] payload) throws IOException, ConnectionException {
+        if (payload.length != 8) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid PING frame");
+        }
+        if ((flags & ACK) == 0) {
+            writeFrame(PING, ACK, 0, payload, 0, payload.length);
+        }
+    }
+
+    private void onWindowUpdate(final int streamId, final byte[] payload) throws ConnectionException {
+        if (payload.length != 4) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        }
+        final long increment = readUnsignedInt(payload, 0) & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new ConnectionException(PROTOCOL_ERROR, "Zero WINDOW_UPDATE increment");
+            }
+            synchronized (windows) {
+                if (connectionSendWindow + increment > MAX_WINDOW_SIZE) {
+                    throw new ConnectionException(FLOW_CONTROL_ERROR, "Connection window too large");
+                }
+                connectionSendWindow += increment;
+                windows.notifyAll();
+            }
+            return;
+        }
+
+        final Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        // on a stream these are stream errors, which leave the other streams alone
+        if (increment == 0) {
+            stream.reset(PROTOCOL_ERROR);
+            return;
+        }
+        final boolean overflow;
+        synchronized (windows) {
+            overflow = stream.sendWindow + increment > MAX_WINDOW_SIZE;
+            if (!overflow) {
+                stream.sendWindow += increment;
+                windows.notifyAll();
+            }
+        }
+        if (overflow) {
+            stream.reset(FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Waits until some data may be sent on the stream.
+     * @return number of bytes that may be sent, or 0 if the stream was reset
+     */
+    private int reserveSendWindow(final Stream stream, final int wanted) throws InterruptedException {
+        synchronized (windows) {
+            while (!stream.reset && (connectionSendWindow <= 0 || stream.sendWindow <= 0)) {
+                windows.wait();
+            }
+            if (stream.reset) {
+                return 0;
+            }
+            final int allowed = (int) Math.min(Math.min(wanted, peerMaxFrameSize),
+                    Math.min(connectionSendWindow, stream.sendWindow));
+            connectionSendWindow -= allowed;
+            stream.sendWindow -= allowed;
+            return allowed;
+        }
+    }
+
+    private static int padding(final int flags, final byte[] payload) throws ConnectionException {
+        if ((flags & PADDED) == 0) {
+            return 0;
+        }
+        if (payload.length == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Missing pad length");
+        }
+        return payload[0] & 0xff;
+    }
+
+    private static long readUnsignedInt(final byte[] buf, final int offset) {
+        return ((buf[offset] & 0xffL) << 24) | ((buf[offset + 1] & 0xff) << 16)
+                | ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(final byte[] buf, final int offset, final int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    private void writeSettings() throws IOException {
+        final byte[] payload = new byte[18];
+        writeSetting(payload, 0, SETTINGS_HEADER_TABLE_SIZE, HEADER_TABLE_SIZE);
+        writeSetting(payload, 6, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        writeSetting(payload, 12, SETTINGS_INITIAL_WINDOW_SIZE, INITIAL_WINDOW_SIZE);
+        writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    private static void writeSetting(final byte[] buf, final int offset, final int id, final int value) {
+        buf[offset] = (byte) (id >>> 8);
+        buf[offset + 1] = (byte) id;
+        writeInt(buf, offset + 2, value);
+    }
+
+    private void writeHeaders(final int streamId, final int status, final boolean endStream) throws IOException {
+        // :status as a literal without indexing, with the name from static table entry 8
+        final byte[] block = ("\u0008\u0003" + status).getBytes(StandardCharsets.US_ASCII);
+        writeFrame(HEADERS, END_HEADERS | (endStream ? END_STREAM : 0), streamId, block, 0, block.length);
+    }
+
+    private void writeHeadersQuietly(final int streamId, final int status) {
+        try {
+            writeHeaders(streamId, status, true);
+        } catch (IOException e) {
+            // the connection is gone; the read loop will notice
+        }
+    }
+
+    private void writeWindowUpdate(final int streamId, final int increment) {
+        final byte[] payload = new byte[4];
+        writeInt(payload, 0, increment);
+        writeQuietly(WINDOW_UPDATE, streamId, payload);
+    }
+
+    private void writeReset(final int streamId, final int errorCode) {
+        final byte[] payload = new byte[4];
+        writeInt(payload, 0, errorCode);
+        writeQuietly(RST_STREAM, streamId, payload);
+    }
+
+    private void writeGoAway(final int errorCode) {
+        final byte[] payload = new byte[8];
+        writeInt(payload, 0, lastStreamId);
+        writeInt(payload, 4, errorCode);
+        writeQuietly(GOAWAY, 0, payload);
+    }
+
+    private void writeQuietly(final int type, final int streamId, final byte[] payload) {
+        try {
+            writeFrame(type, 0, streamId, payload, 0, payload.length);
+        } catch (IOException e) {
+            // the connection is gone; the read loop will notice
+        }
+    }
+
+    private void writeFrame(final int type, final int flags, final int streamId,
+                            final byte[] payload, final int offset, final int length) throws IOException {
+        if (closed && type != GOAWAY) {
+            throw new IOException("Connection closed");
+        }
+        final byte[] header = new byte[FRAME_HEADER_LENGTH];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        writeInt(header, 5, streamId);
+        synchronized (out) {
+            out.write(header);
+            out.write(payload, offset, length);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * State shared by all the {@link SocketHandler}s of a server.
+ * @param registry open connections
+ * @param shaper bandwidth limits
+ * @param scheduler prioritizes interactive tunnels over bulk tunnels
+ * @param upstreams bulkheads and circuit breakers for remote servers
+ * @param log asynchronous event log
+ * @param metrics counters and histograms
+ * @param accessLog per-minute traffic totals
+ * @param tunnelMemory buffers of tunnels
+ * @param cluster limits shared with other proxies
+ * @param acceptWaits how long clients wait to be accepted
+ * @param settings current tuning settings, which change when the server reloads them
+ */
+record HandlerContext(ConnectionRegistry registry, BandwidthShaper shaper, PriorityScheduler scheduler,
+                      UpstreamGuard upstreams, EventLog log, MetricsFile metrics, AccessLog accessLog,
+                      TunnelMemory tunnelMemory, ClusterLimits cluster, AcceptWaits acceptWaits,
+                      AtomicReference<ProxyConfig> settings) implements AutoCloseable {
+    /**
+     * Creates the shared state for a server.
+     * @param config tuning settings
+     * @return context
+     */
+    static HandlerContext from(final ProxyConfig config) {
+        final EventLog log = new EventLog(config.logFile() == null
+                ? EventLog.Sink.stdout()
+                : new RotatingFileSink(config.logFile(), config.logFileMaxBytes(), config.logFileCount()));
+        final ClusterLimits cluster = cluster(config, log);
+        return new HandlerContext(
+                new ConnectionRegistry(),
+                new BandwidthShaper(
+                        config.perTunnelBytesPerSecond(),
+                        config.perClientBytesPerSecond(),
+                        config.globalBytesPerSecond()),
+                new PriorityScheduler(
+                        config.bulkThresholdBytes(),
+                        config.bulkConcurrency(),
+                        config.slowWriteThreshold()),
+                new UpstreamGuard(
+                        config.maxTunnelsPerDestination(),
+                        config.circuitBreakerFailureRate(),
+                        config.circuitBreakerOpenDuration(),
+                        config.slowConnectThreshold(),
+                        cluster),
+                log,
+                metrics(config.metricsFile(), log),
+                new AccessLog(config.accessLogDirectory() == null ? null : new AccessLogWriter(
+                        config.accessLogDirectory(), config.accessLogSegmentBytes(), config.accessLogSegmentCount()),
+                        log),
+                new TunnelMemory(config.releaseBuffersAfter(), config.maxBufferBytes(), config.bufferSize()),
+                cluster,
+                new AcceptWaits(System::nanoTime),
+                new AtomicReference<>(config));
+    }
+
+    /**
+     * Returns the current tuning settings. Handlers read them as they need them,
+     * so new connections pick up settings that were reloaded.
+     * @return settings
+     */
+    ProxyConfig config() {
+        return settings.get();
+    }
+
+    /**
+     * Stops the background work of the context: the event log's writer, the cluster exchange,
+     * and the access and metrics files. Open connections are left alone.
+     */
+    @Override
+    public void close() {
+        accessLog.close();
+        cluster.close();
+        log.close();
+        metrics.close();
+    }
+
+    /**
+     * If the cluster port cannot be bound, limits still apply to this proxy's own connections.
+     */
+    private static ClusterLimits cluster(final ProxyConfig config, final EventLog log) {
+        try {
+            return new ClusterLimits(config, log, System::currentTimeMillis);
+        } catch (IOException e) {
+            log.log(EventLog.Event.CLUSTER_FAILED, e);
+            try {
+                return new ClusterLimits(config.toBuilder().clusterPort(0).build(), log, System::currentTimeMillis);
+            } catch (IOException impossible) {
+                throw new IllegalStateException("No socket is bound without a cluster port", impossible);
+            }
+        }
+    }
+
+    /**
+     * A metrics file that cannot be mapped should not stop the proxy, so metrics are kept in memory instead.
+     */
+    private static MetricsFile metrics(final Path file, final EventLog log) {
+        if (file == null) {
+            return MetricsFile.inMemory();
+        }
+        try {
+            return MetricsFile.create(file);
+        } catch (IOException e) {
+            log.log(EventLog.Event.METRICS_FILE_FAILED, e);
+            return MetricsFile.inMemory();
+        }
+    }
+}
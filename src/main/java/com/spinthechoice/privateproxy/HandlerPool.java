@@ -0,0 +1,150 @@
+package com.spinthechoice.privateproxy;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The running {@link LoopingSocketHandler}s.
+ * The number of handlers can grow or shrink between a minimum and a maximum based on
+ * utilization, meaning the fraction of handlers that are busy with a connection rather
+ * than waiting for one, and on how long clients wait in the accept backlog (see {@link AcceptWaits}).
+ * The pool grows when either is high, and only shrinks when utilization is low and clients do not wait.
+ * To avoid flapping, the pool only grows or shrinks after utilization stays past a
+ * threshold for several consecutive samples, and it shrinks much more reluctantly than it grows.
+ */
+class HandlerPool {
+    static final double GROW_UTILIZATION = 0.9;
+    static final double SHRINK_UTILIZATION = 0.5;
+    static final int GROW_AFTER_SAMPLES = 2;
+    static final int SHRINK_AFTER_SAMPLES = 30;
+    static final long GROW_ACCEPT_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final ExecutorService executor;
+    private final Supplier<SocketHandler> handlerFactory;
+    private final IntSupplier busyHandlers;
+    private final LongSupplier acceptWait;
+    private int min;
+    private volatile int max;
+    private final Deque<LoopingSocketHandler> handlers = new ArrayDeque<>();
+    private int highSamples;
+    private int lowSamples;
+
+    /**
+     * Creates the pool. No handlers are started until {@link #start(int)} is called.
+     * @param executor runs the handlers; it must be able to run {@code max} handlers at once
+     * @param handlerFactory creates handlers
+     * @param busyHandlers number of handlers currently handling a connection
+     * @param acceptWait longest time in nanoseconds a client waited to be accepted since the last call
+     * @param min minimum number of handlers
+     * @param max maximum number of handlers
+     */
+    HandlerPool(final ExecutorService executor, final Supplier<SocketHandler> handlerFactory,
+                final IntSupplier busyHandlers, final LongSupplier acceptWait, final int min, final int max) {
+        checkBounds(min, max);
+        this.executor = executor;
+        this.handlerFactory = handlerFactory;
+        this.busyHandlers = busyHandlers;
+        this.acceptWait = acceptWait;
+        this.min = min;
+        this.max = max;
+    }
+
+    private static void checkBounds(final int min, final int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid handler pool bounds: " + min + " to " + max);
+        }
+    }
+
+    /**
+     * Changes the bounds of a running pool, starting or stopping handlers to stay within them.
+     * A stopped handler finishes its current connection first.
+     * @param min minimum number of handlers
+     * @param max maximum number of handlers
+     */
+    synchronized void bounds(final int min, final int max) {
+        checkBounds(min, max);
+        this.min = min;
+        this.max = max;
+        if (!handlers.isEmpty()) {
+            resize(Math.max(min, Math.min(max, handlers.size())));
+        }
+    }
+
+    /**
+     * Starts handlers.
+     * @param count number of handlers to start, limited to the pool bounds
+     */
+    synchronized void start(final int count) {
+        resize(Math.max(min, Math.min(max, count)));
+    }
+
+    /**
+     * Returns whether the pool can change size.
+     * @return whether the minimum and maximum differ
+     */
+    synchronized boolean isResizable() {
+        return min < max;
+    }
+
+    /**
+     * Returns the number of running handlers.
+     * @return number of handlers
+     */
+    synchronized int size() {
+        return handlers.size();
+    }
+
+    /**
+     * Returns the most handlers the pool can grow to.
+     * @return maximum number of handlers
+     */
+    int max() {
+        return max;
+    }
+
+    /**
+     * Samples utilization and accept waits, and grows or shrinks the pool if needed.
+     * This is meant to be called periodically.
+     */
+    synchronized void sample() {
+        final int size = handlers.size();
+        final double utilization = size == 0 ? 1.0 : busyHandlers.getAsInt() / (double) size;
+        final boolean clientsWait = acceptWait.getAsLong() >= GROW_ACCEPT_WAIT_NANOS;
+
+        highSamples = utilization >= GROW_UTILIZATION || clientsWait ? highSamples + 1 : 0;
+        lowSamples = utilization <= SHRINK_UTILIZATION && !clientsWait ? lowSamples + 1 : 0;
+
+        if (highSamples >= GROW_AFTER_SAMPLES && size < max) {
+            // grow quickly: traffic spikes need capacity now
+            resize(Math.min(max, size + Math.max(1, size / 2)));
+            highSamples = 0;
+        } else if (lowSamples >= SHRINK_AFTER_SAMPLES && size > min) {
+            resize(size - 1);
+            lowSamples = 0;
+        }
+    }
+
+    /**
+     * Stops all handlers.
+     */
+    synchronized void stop() {
+        handlers.forEach(LoopingSocketHandler::stop);
+        handlers.clear();
+    }
+
+    private void resize(final int size) {
+        while (handlers.size() < size) {
+            final LoopingSocketHandler handler = new LoopingSocketHandler(handlerFactory.get());
+            handlers.push(handler);
+            executor.submit(handler);
+        }
+        while (handlers.size() > size) {
+            handlers.pop().stop();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the lines of an HTTP request header.
+ * Unlike a {@link java.io.BufferedReader}, the buffer starts small and is dropped with {@link #release()},
+ * so a connection that stays open for a long time after its header does not keep it.
+ */
+class HeaderReader {
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private final InputStream in;
+    private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    /**
+     * Creates a reader.
+     * @param in input
+     */
+    HeaderReader(final InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads a line, without the line terminator ({@code \n} or {@code \r\n}).
+     * @return line, or {@code null} if the input ended
+     * @throws IOException if the input cannot be read, or the line is too long
+     */
+    String readLine() throws IOException {
+        if (buf == null) {
+            throw new IOException("Header reader was released");
+        }
+        // bytes of the line already scanned, which stays valid when fill() moves the line to the front
+        int scanned = 0;
+        while (true) {
+            for (; position + scanned < limit; scanned++) {
+                if (buf[position + scanned] == '\n') {
+                    final int length = scanned > 0 && buf[position + scanned - 1] == '\r' ? scanned - 1 : scanned;
+                    final String line = new String(buf, position, length, StandardCharsets.US_ASCII);
+                    position += scanned + 1;
+                    return line;
+                }
+            }
+
+            if (!fill()) {
+                if (position == limit) {
+                    return null;
+                }
+                final String line = new String(buf, position, limit - position, StandardCharsets.US_ASCII);
+                position = limit;
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Makes room and reads more input.
+     * @return whether anything was read
+     */
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buf, position, buf, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buf.length) {
+            if (buf.length >= MAX_LINE_LENGTH) {
+                throw new IOException("Header line is too long");
+            }
+            final byte[] larger = new byte[Math.min(buf.length * 2, MAX_LINE_LENGTH)];
+            System.arraycopy(buf, 0, larger, 0, limit);
+            buf = larger;
+        }
+        final int read = in.read(buf, limit, buf.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    /**
+     * Drops the buffer. Any input read past the header is dropped too.
+     */
+    void release() {
+        buf = null;
+    }
+}
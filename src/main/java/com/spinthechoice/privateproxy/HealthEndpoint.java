@@ -0,0 +1,242 @@
+package com.spinthechoice.privateproxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.spinthechoice.privateproxy.MetricsFile.Histogram;
+
+/**
+ * A small HTTP endpoint for load balancers, served by one background thread:
+ * <ul>
+ *     <li>{@code GET /live}: 200 while the process is up</li>
+ *     <li>{@code GET /ready}: 200 when every listener is ready (see {@link ProxyServer#isReady()}), else 503</li>
+ *     <li>{@code GET /capacity}: headroom of the node, and {@code GET /capacity/NAME} of one listener</li>
+ * </ul>
+ * Capacity is plain text, one {@code name value} pair per line, starting with {@code headroom}: a score
+ * from 0 (send nothing) to 100 (idle) that a load balancer can use as a weight. It is the share of handlers
+ * (and of the buffer budget, if set) that is free, reduced as the recent 90th percentile connect time
+ * approaches {@link ProxyConfig#slowConnectThreshold()}, and 0 while the listener refuses tunnels because memory
+ * is short (see {@link MemoryGuard}). Every value is read from counters the proxy keeps anyway, so polling every
+ * second costs next to nothing. With several listeners, the node's headroom is that of the fullest listener,
+ * and the other lines are prefixed with the listener name.
+ */
+public class HealthEndpoint implements AutoCloseable {
+    // connect times are compared over windows of at least this long, so they follow load changes
+    static final Duration WINDOW = Duration.ofSeconds(1);
+    private static final int PERCENTILE = 90;
+
+    /**
+     * Capacity of one listener.
+     * @param headroom score from 0 to 100
+     * @param ready whether the listener is ready
+     * @param connections open client connections, each of which takes a handler
+     * @param handlers most handlers the listener can run
+     * @param bufferBytes bytes held in tunnel buffers
+     * @param connectMicros recent 90th percentile time to connect to remote servers (upper bound)
+     */
+    static record Capacity(int headroom, boolean ready, int connections, int handlers, long bufferBytes,
+                           long connectMicros) {}
+
+    /**
+     * Samples one listener, and remembers its connect times as of the start of the current window.
+     */
+    private static class Listener {
+        private final ProxyServer server;
+        private long[] windowStart;
+        private long windowStartNanos;
+        private long connectMicros;
+
+        Listener(final ProxyServer server) {
+            this.server = server;
+            this.windowStart = server.metrics().buckets(Histogram.CONNECT_MICROS);
+            this.windowStartNanos = System.nanoTime();
+        }
+
+        synchronized Capacity capacity() {
+            final long now = System.nanoTime();
+            if (now - windowStartNanos >= WINDOW.toNanos()) {
+                final long[] buckets = server.metrics().buckets(Histogram.CONNECT_MICROS);
+                final long[] window = new long[buckets.length];
+                for (int i = 0; i < buckets.length; i++) {
+                    window[i] = buckets[i] - windowStart[i];
+                }
+                // with no connects in the window, a past spike must not keep the weight down
+                connectMicros = percentile(window, PERCENTILE);
+                windowStart = buckets;
+                windowStartNanos = now;
+            }
+
+            final ProxyConfig config = server.config();
+            final boolean ready = server.isReady();
+            // a listener that refuses tunnels for lack of memory should get no more clients
+            final boolean accepting = server.memory().level().compareTo(MemoryGuard.Level.REFUSE_TUNNELS) < 0;
+            final int connections = server.connections().size();
+            final int handlers = server.maxHandlerCount();
+            final long bufferBytes = server.tunnelMemory().bufferBytes();
+            return new Capacity(
+                    headroom(ready && accepting, connections, handlers, bufferBytes, config.maxBufferBytes(),
+                            connectMicros, config.slowConnectThreshold().toNanos() / 1000),
+                    ready, connections, handlers, bufferBytes, connectMicros);
+        }
+    }
+
+    private final HttpServer http;
+    private final ExecutorService executor;
+    private final Map<String, Listener> listeners = new LinkedHashMap<>();
+
+    /**
+     * Starts the endpoint.
+     * @param address address to listen on
+     * @param servers listeners by name
+     * @throws IOException if the address cannot be bound
+     */
+    public HealthEndpoint(final InetSocketAddress address, final Map<String, ProxyServer> servers)
+            throws IOException {
+        servers.forEach((name, server) -> listeners.put(name, new Listener(server)));
+        http = HttpServer.create(address, 0);
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http.setExecutor(executor);
+        http.createContext("/live", exchange -> respond(exchange, 200, "live\n"));
+        http.createContext("/ready", exchange -> {
+            final boolean ready = isReady();
+            respond(exchange, ready ? 200 : 503, ready ? "ready\n" : "not ready\n");
+        });
+        http.createContext("/capacity", this::capacity);
+        http.start();
+    }
+
+    /**
+     * Returns the port the endpoint listens on.
+     * @return port
+     */
+    public int port() {
+        return http.getAddress().getPort();
+    }
+
+    private boolean isReady() {
+        return listeners.values().stream().allMatch(listener -> listener.server.isReady());
+    }
+
+    private void capacity(final HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final String name = path.length() > "/capacity/".length() ? path.substring("/capacity/".length()) : "";
+        if (!name.isEmpty()) {
+            final Listener listener = listeners.get(name);
+            if (listener == null) {
+                respond(exchange, 404, "no listener " + name + "\n");
+            } else {
+                respond(exchange, 200, format(listener.capacity(), ""));
+            }
+            return;
+        }
+
+        if (listeners.size() == 1) {
+            respond(exchange, 200, format(listeners.values().iterator().next().capacity(), ""));
+            return;
+        }
+        int headroom = 100;
+        final StringBuilder body = new StringBuilder();
+        for (final Map.Entry<String, Listener> entry : listeners.entrySet()) {
+            final Capacity capacity = entry.getValue().capacity();
+            headroom = Math.min(headroom, capacity.headroom());
+            body.append(format(capacity, entry.getKey() + "."));
+        }
+        respond(exchange, 200, "headroom " + headroom + "\n" + body);
+    }
+
+    private static String format(final Capacity capacity, final String prefix) {
+        return String.format(Locale.ROOT, "%1$sheadroom %2$d\n%1$sready %3$b\n%1$sconnections %4$d\n"
+                        + "%1$shandlers %5$d\n%1$sbuffer_bytes %6$d\n%1$sconnect_p90_micros %7$d\n",
+                prefix, capacity.headroom(), capacity.ready(), capacity.connections(), capacity.handlers(),
+                capacity.bufferBytes(), capacity.connectMicros());
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String body)
+            throws IOException {
+        try (exchange) {
+            final String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final byte[] bytes = body.getBytes(StandardCharsets.US_ASCII);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=us-ascii");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Scores the free capacity of a listener.
+     * @param ready whether the listener is ready; a listener that is not gets 0
+     * @param connections open client connections
+     * @param handlers most handlers the listener can run
+     * @param bufferBytes bytes held in tunnel buffers
+     * @param maxBufferBytes buffer budget, or 0 for none
+     * @param connectMicros recent connect time
+     * @param slowMicros connect time at which the score reaches 0, or 0 to ignore connect times
+     * @return score from 0 to 100
+     */
+    static int headroom(final boolean ready, final int connections, final int handlers, final long bufferBytes,
+                        final long maxBufferBytes, final long connectMicros, final long slowMicros) {
+        if (!ready || handlers <= 0) {
+            return 0;
+        }
+        double used = Math.min(1.0, connections / (double) handlers);
+        if (maxBufferBytes > 0) {
+            used = Math.max(used, Math.min(1.0, bufferBytes / (double) maxBufferBytes));
+        }
+        final double latency = slowMicros > 0 ? Math.max(0.0, 1.0 - connectMicros / (double) slowMicros) : 1.0;
+        return (int) Math.round(100 * (1.0 - used) * latency);
+    }
+
+    /**
+     * Returns the upper bound of the bucket that holds a percentile.
+     */
+    static long percentile(final long[] buckets, final int percentile) {
+        long total = 0;
+        for (final long count : buckets) {
+            total += count;
+        }
+        final long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Stops the endpoint.
+     */
+    @Override
+    public void close() {
+        http.stop(0);
+        executor.shutdownNow();
+    }
+}
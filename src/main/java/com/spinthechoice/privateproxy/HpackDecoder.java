@@ -0,0 +1,232 @@
+package com.spinthechoice.privateproxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decodes HTTP/2 header blocks (RFC 7541).
+ * A connection has one decoder, because the dynamic table is shared by all of its header blocks.
+ */
+class HpackDecoder {
+    /**
+     * Thrown when a header block cannot be decoded. The connection cannot continue after this.
+     */
+    static class CompressionException extends Exception {
+        CompressionException(final String message) {
+            super(message);
+        }
+    }
+
+    private static record Entry(String name, String value) {
+        int size() {
+            // RFC 7541 section 4.1: each entry has 32 bytes of overhead
+            return name.length() + value.length() + 32;
+        }
+    }
+
+    private static final Entry[] STATIC_TABLE = {
+            null,
+            new Entry(":authority", ""),
+            new Entry(":method", "GET"),
+            new Entry(":method", "POST"),
+            new Entry(":path", "/"),
+            new Entry(":path", "/index.html"),
+            new Entry(":scheme", "http"),
+            new Entry(":scheme", "https"),
+            new Entry(":status", "200"),
+            new Entry(":status", "204"),
+            new Entry(":status", "206"),
+            new Entry(":status", "304"),
+            new Entry(":status", "400"),
+            new Entry(":status", "404"),
+            new Entry(":status", "500"),
+            new Entry("accept-charset", ""),
+            new Entry("accept-encoding", "gzip, deflate"),
+            new Entry("accept-language", ""),
+            new Entry("accept-ranges", ""),
+            new Entry("accept", ""),
+            new Entry("access-control-allow-origin", ""),
+            new Entry("age", ""),
+            new Entry("allow", ""),
+            new Entry("authorization", ""),
+            new Entry("cache-control", ""),
+            new Entry("content-disposition", ""),
+            new Entry("content-encoding", ""),
+            new Entry("content-language", ""),
+            new Entry("content-length", ""),
+            new Entry("content-location", ""),
+            new Entry("content-range", ""),
+            new Entry("content-type", ""),
+            new Entry("cookie", ""),
+            new Entry("date", ""),
+            new Entry("etag", ""),
+            new Entry("expect", ""),
+            new Entry("expires", ""),
+            new Entry("from", ""),
+            new Entry("host", ""),
+            new Entry("if-match", ""),
+            new Entry("if-modified-since", ""),
+            new Entry("if-none-match", ""),
+            new Entry("if-range", ""),
+            new Entry("if-unmodified-since", ""),
+            new Entry("last-modified", ""),
+            new Entry("link", ""),
+            new Entry("location", ""),
+            new Entry("max-forwards", ""),
+            new Entry("proxy-authenticate", ""),
+            new Entry("proxy-authorization", ""),
+            new Entry("range", ""),
+            new Entry("referer", ""),
+            new Entry("refresh", ""),
+            new Entry("retry-after", ""),
+            new Entry("server", ""),
+            new Entry("set-cookie", ""),
+            new Entry("strict-transport-security", ""),
+            new Entry("transfer-encoding", ""),
+            new Entry("user-agent", ""),
+            new Entry("vary", ""),
+            new Entry("via", ""),
+            new Entry("www-authenticate", ""),
+    };
+
+    private final int maxTableSize;
+    private final Deque<Entry> dynamicTable = new ArrayDeque<>();
+    private int tableSize;
+    private int tableSizeLimit;
+    private byte[] block;
+    private int position;
+    private int end;
+
+    /**
+     * Creates a decoder.
+     * @param maxTableSize the table size advertised in SETTINGS_HEADER_TABLE_SIZE
+     */
+    HpackDecoder(final int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        this.tableSizeLimit = maxTableSize;
+    }
+
+    /**
+     * Decodes a complete header block. If a name appears more than once, the last value wins.
+     * @param block buffer
+     * @param offset start of the header block
+     * @param length length of the header block
+     * @return headers in the order they were sent
+     * @throws CompressionException if the block is invalid
+     */
+    Map<String, String> decode(final byte[] block, final int offset, final int length)
+            throws CompressionException {
+        this.block = block;
+        this.position = offset;
+        this.end = offset + length;
+
+        final Map<String, String> headers = new LinkedHashMap<>();
+        while (position < end) {
+            final int b = block[position] & 0xff;
+            if ((b & 0x80) != 0) {
+                final Entry entry = entry(readInteger(7));
+                headers.put(entry.name, entry.value);
+            } else if ((b & 0x40) != 0) {
+                final Entry entry = readLiteral(6);
+                headers.put(entry.name, entry.value);
+                add(entry);
+            } else if ((b & 0x20) != 0) {
+                resize(readInteger(5));
+            } else {
+                // never indexed and without indexing look the same to a decoder
+                final Entry entry = readLiteral(4);
+                headers.put(entry.name, entry.value);
+            }
+        }
+        return headers;
+    }
+
+    private Entry readLiteral(final int prefixBits) throws CompressionException {
+        final int index = readInteger(prefixBits);
+        final String name = index == 0 ? readString() : entry(index).name;
+        return new Entry(name, readString());
+    }
+
+    private int readInteger(final int prefixBits) throws CompressionException {
+        final int mask = (1 << prefixBits) - 1;
+        int value = block[position++] & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (position >= end || shift > 21) {
+                throw new CompressionException("Invalid integer");
+            }
+            b = block[position++] & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private String readString() throws CompressionException {
+        if (position >= end) {
+            throw new CompressionException("Truncated header block");
+        }
+        final boolean huffman = (block[position] & 0x80) != 0;
+        final int length = readInteger(7);
+        if (length > end - position) {
+            throw new CompressionException("Truncated header block");
+        }
+        final String value = huffman
+                ? new String(decodeHuffman(length), StandardCharsets.ISO_8859_1)
+                : new String(block, position, length, StandardCharsets.ISO_8859_1);
+        position += length;
+        return value;
+    }
+
+    private byte[] decodeHuffman(final int length) throws CompressionException {
+        try {
+            return Huffman.decode(block, position, length);
+        } catch (Huffman.InvalidCodeException e) {
+            throw new CompressionException(e.getMessage());
+        }
+    }
+
+    private Entry entry(final int index) throws CompressionException {
+        if (index > 0 && index < STATIC_TABLE.length) {
+            return STATIC_TABLE[index];
+        }
+        final int dynamicIndex = index - STATIC_TABLE.length;
+        if (index == 0 || dynamicIndex >= dynamicTable.size()) {
+            throw new CompressionException("Invalid header index " + index);
+        }
+        final Iterator<Entry> entries = dynamicTable.iterator();
+        for (int i = 0; i < dynamicIndex; i++) {
+            entries.next();
+        }
+        return entries.next();
+    }
+
+    private void add(final Entry entry) {
+        // newest entries have the lowest index
+        dynamicTable.addFirst(entry);
+        tableSize += entry.size();
+        evict();
+    }
+
+    private void resize(final int size) throws CompressionException {
+        if (size > maxTableSize) {
+            throw new CompressionException("Header table size " + size + " exceeds " + maxTableSize);
+        }
+        tableSizeLimit = size;
+        evict();
+    }
+
+    private void evict() {
+        while (tableSize > tableSizeLimit) {
+            tableSize -= dynamicTable.removeLast().size();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.spinthechoice.privateproxy;
+
+/**
+ * How clients tell a listener which server they want.
+ */
+public enum ListenerMode {
+    /**
+     * Clients send an HTTP CONNECT message and wait for a response before starting TLS.
+     */
+    CONNECT,
+
+    /**
+     * Clients start TLS immediately, and the server is taken from the SNI in the ClientHello.
+     * This saves the client a round trip, but only works for TLS on a single, known port.
+     */
+    SNI,
+
+    /**
+     * Clients speak HTTP/2 without TLS (with prior knowledge), and every CONNECT stream is a tunnel.
+     * This lets a client open many tunnels over one connection to the proxy.
+     */
+    H2
+}
@@ -1,18 +1,28 @@
 package com.spinthechoice.privateproxy;
 
 /**
- * Runs a {@link SocketHandler} continuously until the server is closed.
+ * Runs a {@link SocketHandler} continuously until the server is closed
+ * or the handler is stopped.
  */
 class LoopingSocketHandler implements Runnable {
     private final SocketHandler delegate;
+    private volatile boolean stopped;
 
     LoopingSocketHandler(final SocketHandler delegate) {
         this.delegate = delegate;
     }
 
+    /**
+     * Stops the loop once the current connection (if any) is handled.
+     * A handler waiting for a connection still handles one more connection.
+     */
+    void stop() {
+        stopped = true;
+    }
+
     @Override
     public void run() {
-        while (delegate.isServerOpen()) {
+        while (!stopped && delegate.isServerOpen()) {
             delegate.run();
         }
     }
@@ -0,0 +1,179 @@
+package com.spinthechoice.privateproxy;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.ToDoubleFunction;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+
+/**
+ * Degrades a server step by step as memory runs short, instead of letting a burst of tunnels
+ * end in GC thrashing or an {@link OutOfMemoryError}. After every garbage collection, the memory that is
+ * still in use is compared with the thresholds of {@link ProxyConfig}, and the server moves to the highest
+ * {@link Level} whose threshold is reached. Each level also keeps the steps of the levels below it.
+ * <p>
+ * Memory in use is the larger of the heap left after each pool's last collection (what the pools report as
+ * collection usage) and the direct buffers, both as a share of the maximum heap, which is also the JVM's
+ * default limit of direct memory. A heap that is merely full of garbage does not trigger anything.
+ * The server steps back down once usage falls a margin below the threshold of its level, so it does not
+ * flap between two levels on every collection.
+ */
+public class MemoryGuard implements AutoCloseable {
+    /**
+     * How far the server has degraded.
+     */
+    public enum Level {
+        /** Memory is fine. */
+        NORMAL(config -> 0, EventLog.Event.MEMORY_NORMAL),
+        /** Tunnels read into smaller buffers (see {@link ProxyConfig#memoryShrinkBuffersAt()}). */
+        SHRINK_BUFFERS(ProxyConfig::memoryShrinkBuffersAt, EventLog.Event.MEMORY_SHRINK_BUFFERS),
+        /** New tunnels get 503 Service Unavailable (see {@link ProxyConfig#memoryRefuseTunnelsAt()}). */
+        REFUSE_TUNNELS(ProxyConfig::memoryRefuseTunnelsAt, EventLog.Event.MEMORY_REFUSE_TUNNELS),
+        /** The tunnels that have been idle longest are closed (see {@link ProxyConfig#memoryCloseIdleAt()}). */
+        CLOSE_IDLE(ProxyConfig::memoryCloseIdleAt, EventLog.Event.MEMORY_CLOSE_IDLE);
+
+        private final ToDoubleFunction<ProxyConfig> threshold;
+        private final EventLog.Event event;
+
+        Level(final ToDoubleFunction<ProxyConfig> threshold, final EventLog.Event event) {
+            this.threshold = threshold;
+            this.event = event;
+        }
+    }
+
+    // share of the heap that usage must fall below a level's threshold before the server steps down
+    static final double MARGIN = 0.05;
+    // a tunnel that relayed data this recently is still in use, and closing it would free little
+    static final Duration MIN_IDLE = Duration.ofSeconds(1);
+    // share of the open connections closed after each collection while memory stays short
+    private static final int CLOSE_PERCENT = 10;
+
+    private final HandlerContext context;
+    private final DoubleSupplier usage;
+    private final Duration minIdle;
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final NotificationListener listener = (notification, handback) -> check();
+    private final LongAdder closedTunnels = new LongAdder();
+    private volatile Level level = Level.NORMAL;
+
+    /**
+     * Creates a guard that does nothing until it is checked.
+     * @param context state of the server
+     * @param usage share of memory in use
+     * @param minIdle least time a tunnel must have been idle to be closed
+     */
+    MemoryGuard(final HandlerContext context, final DoubleSupplier usage, final Duration minIdle) {
+        this.context = context;
+        this.usage = usage;
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * Checks memory after every garbage collection from now on, until the guard is closed.
+     */
+    synchronized void watch() {
+        final NotificationFilter filter = notification ->
+                GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType());
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter && !emitters.contains(collector)) {
+                final NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(listener, filter, null);
+                emitters.add(emitter);
+            }
+        }
+    }
+
+    /**
+     * Measures memory in use the way the JVM does when it compares a pool with its collection usage threshold.
+     * @return share of the maximum heap
+     */
+    static double usedAfterCollection() {
+        final long max = Runtime.getRuntime().maxMemory();
+        long heap = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                final MemoryUsage collected = pool.getCollectionUsage();
+                heap += collected != null ? collected.getUsed() : pool.getUsage().getUsed();
+            }
+        }
+        long direct = 0;
+        for (final BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                direct = pool.getMemoryUsed();
+            }
+        }
+        return Math.max(heap, direct) / (double) max;
+    }
+
+    /**
+     * Compares memory in use with the thresholds, moves to the matching level,
+     * and closes idle tunnels while memory stays short.
+     */
+    synchronized void check() {
+        final ProxyConfig config = context.config();
+        final double used = usage.getAsDouble();
+        final Level current = level;
+        Level next = Level.NORMAL;
+        for (final Level candidate : Level.values()) {
+            final double threshold = candidate.threshold.applyAsDouble(config);
+            final boolean reached = candidate.compareTo(current) <= 0
+                    ? used >= threshold - MARGIN
+                    : used >= threshold;
+            if (threshold > 0 && reached) {
+                next = candidate;
+            }
+        }
+
+        if (next != current) {
+            level = next;
+            context.tunnelMemory().degrade(next.compareTo(Level.SHRINK_BUFFERS) >= 0,
+                    next.compareTo(Level.REFUSE_TUNNELS) >= 0);
+            context.log().log(next.event);
+        }
+        if (next == Level.CLOSE_IDLE) {
+            final ConnectionRegistry registry = context.registry();
+            closedTunnels.add(registry.closeIdlest(Math.max(1, registry.size() * CLOSE_PERCENT / 100), minIdle));
+        }
+    }
+
+    /**
+     * Returns how far the server has degraded.
+     * @return current level
+     */
+    public Level level() {
+        return level;
+    }
+
+    /**
+     * Returns how many tunnels were closed because memory was short.
+     * @return number of tunnels closed
+     */
+    public long closedTunnels() {
+        return closedTunnels.sum();
+    }
+
+    /**
+     * Stops checking memory. The server keeps its current level.
+     */
+    @Override
+    public synchronized void close() {
+        for (final NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException ignored) { }
+        }
+        emitters.clear();
+    }
+}
@@ -0,0 +1,201 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Counters and histograms kept in a memory-mapped file, so other processes can read them
+ * without any cost to the proxy, and the last values survive if the proxy crashes.
+ * <p>
+ * The layout is fixed. All values are little-endian, and every long is 8-byte aligned.
+ * <pre>
+ * offset  size  field
+ *      0     4  magic ("PPXM")
+ *      4     4  version
+ *      8     8  start time (epoch milliseconds)
+ *     16     4  number of counters (C)
+ *     20     4  number of histograms (H)
+ *     24     4  buckets per histogram (B)
+ *     28     4  reserved
+ *     32   8*C  counters, in {@link Counter} order
+ *      .  8*H*(B+2)  histograms, in {@link Histogram} order: B buckets, then count, then sum
+ * </pre>
+ * Bucket {@code i} counts values below {@code 2^i}; the last bucket also counts anything larger.
+ * <p>
+ * The version is bumped whenever {@link Counter} or {@link Histogram} gains, loses or reorders a constant,
+ * since readers find values by their position. Version 2 added {@link Counter#CLIENTS_LIMITED}.
+ */
+public class MetricsFile implements AutoCloseable {
+    /**
+     * Things that are counted.
+     */
+    public enum Counter {
+        CONNECTIONS_ACCEPTED,
+        CONNECTIONS_CLOSED,
+        TUNNELS_OPENED,
+        BAD_REQUESTS,
+        UPSTREAM_UNAVAILABLE,
+        UPSTREAM_FAILURES,
+        BYTES_UPSTREAM,
+        BYTES_DOWNSTREAM,
+        CLIENTS_LIMITED
+    }
+
+    /**
+     * Things whose distribution is recorded.
+     */
+    public enum Histogram {
+        /**
+         * Time to connect to a remote server, in microseconds.
+         */
+        CONNECT_MICROS,
+
+        /**
+         * Time a tunnel was open, in milliseconds.
+         */
+        TUNNEL_MILLIS
+    }
+
+    static final int MAGIC = 0x4d585050; // "PPXM" when read as little-endian bytes
+    static final int VERSION = 2;
+    static final int BUCKETS = 32;
+    static final int HEADER_LENGTH = 32;
+    static final int LENGTH = HEADER_LENGTH
+            + Long.BYTES * (Counter.values().length + Histogram.values().length * (BUCKETS + 2));
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final ByteBuffer buffer;
+    private final FileChannel channel;
+
+    private MetricsFile(final ByteBuffer buffer, final FileChannel channel) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.channel = channel;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, System.currentTimeMillis());
+        buffer.putInt(16, Counter.values().length);
+        buffer.putInt(20, Histogram.values().length);
+        buffer.putInt(24, BUCKETS);
+    }
+
+    /**
+     * Creates metrics that are kept in memory only.
+     * @return metrics
+     */
+    static MetricsFile inMemory() {
+        return new MetricsFile(ByteBuffer.allocateDirect(LENGTH), null);
+    }
+
+    /**
+     * Creates (or replaces) a metrics file.
+     * @param file file
+     * @return metrics
+     * @throws IOException if the file cannot be mapped
+     */
+    static MetricsFile create(final Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            return new MetricsFile(channel.map(FileChannel.MapMode.READ_WRITE, 0, LENGTH), channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds one to a counter.
+     * @param counter counter
+     */
+    void increment(final Counter counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * Adds to a counter.
+     * @param counter counter
+     * @param amount amount to add
+     */
+    void add(final Counter counter, final long amount) {
+        LONGS.getAndAdd(buffer, counterOffset(counter), amount);
+    }
+
+    /**
+     * Records a value in a histogram.
+     * @param histogram histogram
+     * @param value value, in the histogram's unit
+     */
+    void record(final Histogram histogram, final long value) {
+        final int offset = histogramOffset(histogram);
+        LONGS.getAndAdd(buffer, offset + Long.BYTES * bucket(value), 1L);
+        LONGS.getAndAdd(buffer, offset + Long.BYTES * BUCKETS, 1L);
+        LONGS.getAndAdd(buffer, offset + Long.BYTES * (BUCKETS + 1), Math.max(0, value));
+    }
+
+    /**
+     * Returns the current value of a counter.
+     * @param counter counter
+     * @return value
+     */
+    public long get(final Counter counter) {
+        return (long) LONGS.getVolatile(buffer, counterOffset(counter));
+    }
+
+    /**
+     * Returns the number of values recorded in a histogram.
+     * @param histogram histogram
+     * @return number of values
+     */
+    public long count(final Histogram histogram) {
+        return (long) LONGS.getVolatile(buffer, histogramOffset(histogram) + Long.BYTES * BUCKETS);
+    }
+
+    /**
+     * Returns the number of values recorded in each bucket of a histogram.
+     * Bucket {@code i} holds values below {@code 2^i}.
+     * @param histogram histogram
+     * @return bucket counts
+     */
+    long[] buckets(final Histogram histogram) {
+        final int offset = histogramOffset(histogram);
+        final long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = (long) LONGS.getVolatile(buffer, offset + Long.BYTES * i);
+        }
+        return buckets;
+    }
+
+    static int bucket(final long value) {
+        return Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, value)));
+    }
+
+    static int counterOffset(final Counter counter) {
+        return HEADER_LENGTH + Long.BYTES * counter.ordinal();
+    }
+
+    static int histogramOffset(final Histogram histogram) {
+        return HEADER_LENGTH + Long.BYTES * (Counter.values().length + histogram.ordinal() * (BUCKETS + 2));
+    }
+
+    /**
+     * Unmaps the file when the buffer is collected. The last values stay in the file.
+     */
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the mapping stays valid until it is collected
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+
+import com.spinthechoice.privateproxy.MetricsFile.Counter;
+import com.spinthechoice.privateproxy.MetricsFile.Histogram;
+
+/**
+ * Prints the contents of a {@link MetricsFile}.
+ * The file is mapped read-only, so reading it never affects the proxy, and it can be read after the proxy exits.
+ * Percentiles are upper bounds, because histogram buckets are powers of two.
+ */
+public class MetricsReader {
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a reader for a metrics buffer.
+     * @param buffer buffer with the layout described by {@link MetricsFile}
+     * @throws IOException if the buffer is not a metrics file this reader understands
+     */
+    MetricsReader(final ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < MetricsFile.HEADER_LENGTH || buffer.getInt(0) != MetricsFile.MAGIC) {
+            throw new IOException("Not a metrics file");
+        }
+        if (buffer.getInt(4) != MetricsFile.VERSION) {
+            throw new IOException("Unsupported metrics file version " + buffer.getInt(4));
+        }
+        if (buffer.getInt(16) != Counter.values().length || buffer.getInt(20) != Histogram.values().length
+                || buffer.getInt(24) != MetricsFile.BUCKETS || buffer.limit() < MetricsFile.LENGTH) {
+            throw new IOException("Unexpected metrics file layout");
+        }
+    }
+
+    /**
+     * Maps a metrics file read-only.
+     * @param file metrics file
+     * @return reader
+     * @throws IOException if the file cannot be read or is not a metrics file
+     */
+    static MetricsReader open(final Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new MetricsReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Returns the time the proxy started.
+     * @return start time
+     */
+    Instant started() {
+        return Instant.ofEpochMilli(buffer.getLong(8));
+    }
+
+    /**
+     * Returns the value of a counter.
+     * @param counter counter
+     * @return value
+     */
+    long get(final Counter counter) {
+        return buffer.getLong(MetricsFile.counterOffset(counter));
+    }
+
+    /**
+     * Returns the number of values recorded in a histogram.
+     * @param histogram histogram
+     * @return number of values
+     */
+    long count(final Histogram histogram) {
+        return buffer.getLong(MetricsFile.histogramOffset(histogram) + Long.BYTES * MetricsFile.BUCKETS);
+    }
+
+    /**
+     * Returns the sum of the values recorded in a histogram.
+     * @param histogram histogram
+     * @return sum
+     */
+    long sum(final Histogram histogram) {
+        return buffer.getLong(MetricsFile.histogramOffset(histogram) + Long.BYTES * (MetricsFile.BUCKETS + 1));
+    }
+
+    /**
+     * Returns an upper bound of a percentile of a histogram.
+     * @param histogram histogram
+     * @param percentile percentile, from 0 to 100
+     * @return upper bound of the bucket holding the percentile, or 0 if the histogram is empty
+     */
+    long percentile(final Histogram histogram, final double percentile) {
+        final int offset = MetricsFile.histogramOffset(histogram);
+        final long[] buckets = new long[MetricsFile.BUCKETS];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = buffer.getLong(offset + Long.BYTES * i);
+            total += buckets[i];
+        }
+        // buckets are read one by one while the proxy updates them, so use their total instead of the count
+        final long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Prints every counter and histogram, one per line.
+     * @param out destination
+     */
+    void print(final PrintStream out) {
+        out.println("started " + started());
+        for (final Counter counter : Counter.values()) {
+            out.println(name(counter) + " " + get(counter));
+        }
+        for (final Histogram histogram : Histogram.values()) {
+            out.printf(Locale.ROOT, "%s count=%d sum=%d p50<=%d p99<=%d%n", name(histogram),
+                    count(histogram), sum(histogram),
+                    percentile(histogram, 50), percentile(histogram, 99));
+        }
+    }
+
+    private static String name(final Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Prints the contents of metrics files.
+     * The arguments are paths to files, for example one per listener of a {@link ProxyHost}.
+     * With more than one file, each is preceded by its path.
+     * @param args arguments
+     */
+    public static void main(final String[] args) {
+        if (args.length == 0) {
+            System.err.println("USAGE: java " + MetricsReader.class.getSimpleName() + " METRICS_FILE...");
+            return;
+        }
+
+        for (final String arg : args) {
+            try {
+                final MetricsReader reader = open(Path.of(arg));
+                if (args.length > 1) {
+                    System.out.println("# " + arg);
+                }
+                reader.print(System.out);
+            } catch (IOException e) {
+                System.err.println("Unable to read " + arg + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.spinthechoice.privateproxy;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Gives short, interactive tunnels (such as search results) priority over bulk transfers
+ * (such as image downloads).
+ * <p>
+ * Every connection starts out interactive. It becomes bulk when its recent rate reaches the threshold,
+ * or when it keeps filling the tunnel buffer (the sender is producing data faster than it is relayed).
+ * The rate is an exponentially weighted average with a time constant of one second, so a long-lived
+ * connection that sends a little now and then stays interactive however much it sends in total.
+ * A bulk connection becomes interactive again once its rate falls to half the threshold and it stops
+ * filling the buffer.
+ * <p>
+ * The time interactive writes take is the signal that the proxy is short of CPU or bandwidth.
+ * While their average is above the slow write threshold and an interactive write is in progress,
+ * a bulk write waits if the limit of bulk writes is already in progress. It waits at most the threshold,
+ * and nothing is held while it writes, so bulk tunnels whose receivers stall only count toward the limit
+ * and never stop the other tunnels. When bandwidth is limited, {@link BandwidthShaper} makes bulk tunnels
+ * absorb the global limit.
+ */
+public class PriorityScheduler {
+    /**
+     * Traffic pattern of a connection.
+     */
+    public enum TrafficClass {
+        INTERACTIVE,
+        BULK
+    }
+
+    /**
+     * Consecutive full-buffer reads after which a connection is considered bulk.
+     */
+    private static final int BULK_STREAK = 32;
+    // time constant of a connection's rate: what it sent this long ago counts 1/e as much as what it sends now
+    private static final double RATE_TIME_CONSTANT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // weight of the newest interactive write in the average write time
+    private static final int LATENCY_WEIGHT = 8;
+
+    /**
+     * Schedules the writes of a single connection. Both directions of the tunnel share the flow.
+     */
+    class Flow implements Tunnel.Gate {
+        private int largeStreak;
+        private double recentBytes;
+        private long updatedAt = clock.getAsLong();
+        private volatile boolean bulk;
+
+        private Flow() {
+            interactiveFlows.increment();
+        }
+
+        /**
+         * Returns the current classification.
+         * @return traffic class
+         */
+        TrafficClass trafficClass() {
+            return bulk ? TrafficClass.BULK : TrafficClass.INTERACTIVE;
+        }
+
+        boolean isInteractive() {
+            return !bulk;
+        }
+
+        @Override
+        public Runnable enter(final int length, final int capacity) throws InterruptedException {
+            classify(length, capacity);
+            if (isInteractive()) {
+                interactiveWrites.incrementAndGet();
+                final long start = clock.getAsLong();
+                return () -> interactiveDone(start);
+            }
+
+            awaitTurn();
+            return bulkDone;
+        }
+
+        /**
+         * Both directions classify the flow, so the rate is kept under the flow's lock.
+         */
+        private synchronized void classify(final int length, final int capacity) {
+            final long now = clock.getAsLong();
+            recentBytes = recentBytes * Math.exp(-(now - updatedAt) / RATE_TIME_CONSTANT_NANOS) + length;
+            updatedAt = now;
+            largeStreak = length >= capacity ? largeStreak + 1 : 0;
+
+            // the weights of past writes add up to the time constant, one second, so this is bytes per second
+            final double rate = recentBytes;
+            final boolean nextBulk = bulk
+                    ? rate >= bulkThresholdBytes / 2.0 || largeStreak > 0
+                    : rate >= bulkThresholdBytes || largeStreak >= BULK_STREAK;
+            if (nextBulk != bulk) {
+                bulk = nextBulk;
+                (nextBulk ? interactiveFlows : bulkFlows).decrement();
+                (nextBulk ? bulkFlows : interactiveFlows).increment();
+            }
+        }
+    }
+
+    private final long bulkThresholdBytes;
+    private final int bulkConcurrency;
+    private final long slowWriteNanos;
+    private final LongSupplier clock;
+    private final AtomicInteger interactiveWrites = new AtomicInteger();
+    private final AtomicInteger bulkWrites = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong interactiveLatency = new AtomicLong();
+    private final Object turns = new Object();
+    private final LongAdder interactiveFlows = new LongAdder();
+    private final LongAdder bulkFlows = new LongAdder();
+    private final LongAdder bulkWaits = new LongAdder();
+    private final Runnable bulkDone = () -> finished(bulkWrites);
+
+    /**
+     * Creates a scheduler.
+     * @param bulkThresholdBytes recent bytes per second above which a connection is considered bulk
+     * @param bulkConcurrency number of bulk writes that may run at the same time while interactive writes are slow
+     * @param slowWriteThreshold average interactive write time above which bulk writes are held back,
+     *                           or 0 to never hold them back
+     */
+    PriorityScheduler(final long bulkThresholdBytes, final int bulkConcurrency, final Duration slowWriteThreshold) {
+        this(bulkThresholdBytes, bulkConcurrency, slowWriteThreshold, System::nanoTime);
+    }
+
+    /**
+     * Creates a scheduler.
+     * @param bulkThresholdBytes recent bytes per second above which a connection is considered bulk
+     * @param bulkConcurrency number of bulk writes that may run at the same time while interactive writes are slow
+     * @param slowWriteThreshold average interactive write time above which bulk writes are held back,
+     *                           or 0 to never hold them back
+     * @param clock current time in nanoseconds, for rates and write times
+     */
+    PriorityScheduler(final long bulkThresholdBytes, final int bulkConcurrency, final Duration slowWriteThreshold,
+                      final LongSupplier clock) {
+        this.bulkThresholdBytes = bulkThresholdBytes;
+        this.bulkConcurrency = bulkConcurrency;
+        this.slowWriteNanos = slowWriteThreshold.toNanos();
+        this.clock = clock;
+    }
+
+    /**
+     * Starts scheduling a new connection.
+     * @return flow for the connection
+     */
+    Flow open() {
+        return new Flow();
+    }
+
+    private void interactiveDone(final long start) {
+        final long elapsed = clock.getAsLong() - start;
+        interactiveLatency.accumulateAndGet(elapsed,
+                (average, sample) -> average + (sample - average) / LATENCY_WEIGHT);
+        finished(interactiveWrites);
+    }
+
+    private void finished(final AtomicInteger writes) {
+        writes.decrementAndGet();
+        // a waiter counts itself before it checks, so it either sees this write finish or gets woken
+        if (waiting.get() > 0) {
+            synchronized (turns) {
+                turns.notifyAll();
+            }
+        }
+    }
+
+    private boolean mustWait() {
+        return slowWriteNanos > 0
+                && interactiveLatency.get() >= slowWriteNanos
+                && interactiveWrites.get() > 0
+                && bulkWrites.get() >= bulkConcurrency;
+    }
+
+    /**
+     * Waits while interactive writes are slow and the limit of bulk writes is in progress,
+     * but no longer than the slow write threshold, since a bulk write in progress may be stuck on its receiver.
+     */
+    private void awaitTurn() throws InterruptedException {
+        if (mustWait()) {
+            bulkWaits.increment();
+            final long deadline = System.nanoTime() + slowWriteNanos;
+            synchronized (turns) {
+                waiting.incrementAndGet();
+                try {
+                    long remaining = slowWriteNanos;
+                    while (mustWait() && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(turns, remaining);
+                        remaining = deadline - System.nanoTime();
+                    }
+                } finally {
+                    waiting.decrementAndGet();
+                }
+            }
+        }
+        bulkWrites.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of connections, open or closed, last classified as interactive.
+     * @return number of interactive connections
+     */
+    public long interactiveCount() {
+        return interactiveFlows.sum();
+    }
+
+    /**
+     * Returns the number of connections, open or closed, last classified as bulk.
+     * @return number of bulk connections
+     */
+    public long bulkCount() {
+        return bulkFlows.sum();
+    }
+
+    /**
+     * Returns the number of times a bulk write was held back for slow interactive writes.
+     * @return number of waits
+     */
+    public long bulkWaitCount() {
+        return bulkWaits.sum();
+    }
+
+    /**
+     * Returns the average time an interactive write takes.
+     * @return average write time
+     */
+    public Duration interactiveWriteTime() {
+        return Duration.ofNanos(interactiveLatency.get());
+    }
+}
@@ -0,0 +1,1215 @@
+package com.spinthechoice.privateproxy;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Tuning settings for the {@link ProxyServer}.
+ * Use {@link #builder()} to create an instance; unset values keep their defaults.
+ * A running server can take new bandwidth limits, handler bounds, connect timeout, TLS record framing,
+ * SNI upstream port, socket options, buffer settings, cluster limits and memory thresholds
+ * (see {@link ProxyServer#reload});
+ * the other settings only apply when a server starts.
+ */
+public class ProxyConfig {
+    private static final long DEFAULT_BULK_THRESHOLD_BYTES = 256 * 1024;
+    private static final Duration DEFAULT_SLOW_WRITE_THRESHOLD = Duration.ofMillis(5);
+    private static final Duration DEFAULT_HANDLER_RESIZE_INTERVAL = Duration.ofSeconds(1);
+    private static final double DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 0.5;
+    private static final Duration DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_SLOW_CONNECT_THRESHOLD = Duration.ofSeconds(3);
+    private static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final int DEFAULT_SNI_UPSTREAM_PORT = 443;
+    private static final long DEFAULT_LOG_FILE_MAX_BYTES = 10 * 1024 * 1024;
+    private static final int DEFAULT_LOG_FILE_COUNT = 5;
+    private static final int DEFAULT_ACCESS_LOG_SEGMENT_BYTES = 1024 * 1024;
+    private static final int DEFAULT_ACCESS_LOG_SEGMENT_COUNT = 10;
+    private static final Duration DEFAULT_WARM_UP_DURATION = Duration.ZERO;
+    private static final Duration DEFAULT_RELEASE_BUFFERS_AFTER = Duration.ofSeconds(5);
+    private static final Duration DEFAULT_CLUSTER_GOSSIP_INTERVAL = Duration.ofMillis(100);
+    private static final int DEFAULT_BUFFER_SIZE = TunnelMemory.DEFAULT_BUFFER_SIZE;
+    private static final double DEFAULT_MEMORY_SHRINK_BUFFERS_AT = 0.8;
+    private static final double DEFAULT_MEMORY_REFUSE_TUNNELS_AT = 0.9;
+    private static final double DEFAULT_MEMORY_CLOSE_IDLE_AT = 0.95;
+    private static final int MAX_PORT = 65535;
+
+    /**
+     * Builds a {@link ProxyConfig}.
+     */
+    public static class Builder {
+        private long perTunnelBytesPerSecond;
+        private long perClientBytesPerSecond;
+        private long globalBytesPerSecond;
+        private long bulkThresholdBytes = DEFAULT_BULK_THRESHOLD_BYTES;
+        private int bulkConcurrency = Runtime.getRuntime().availableProcessors();
+        private Duration slowWriteThreshold = DEFAULT_SLOW_WRITE_THRESHOLD;
+        private boolean tlsRecordFraming;
+        private int minHandlers;
+        private int maxHandlers;
+        private Duration handlerResizeInterval = DEFAULT_HANDLER_RESIZE_INTERVAL;
+        private int maxTunnelsPerDestination;
+        private double circuitBreakerFailureRate = DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE;
+        private Duration circuitBreakerOpenDuration = DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION;
+        private Duration slowConnectThreshold = DEFAULT_SLOW_CONNECT_THRESHOLD;
+        private Duration connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        private ListenerMode listenerMode = ListenerMode.CONNECT;
+        private int sniUpstreamPort = DEFAULT_SNI_UPSTREAM_PORT;
+        private SocketOptions clientSocketOptions = SocketOptions.defaults();
+        private SocketOptions upstreamSocketOptions = SocketOptions.defaults();
+        private int backlog;
+        private Path logFile;
+        private long logFileMaxBytes = DEFAULT_LOG_FILE_MAX_BYTES;
+        private int logFileCount = DEFAULT_LOG_FILE_COUNT;
+        private Path metricsFile;
+        private Path accessLogDirectory;
+        private int accessLogSegmentBytes = DEFAULT_ACCESS_LOG_SEGMENT_BYTES;
+        private int accessLogSegmentCount = DEFAULT_ACCESS_LOG_SEGMENT_COUNT;
+        private Duration warmUpDuration = DEFAULT_WARM_UP_DURATION;
+        private Duration releaseBuffersAfter = DEFAULT_RELEASE_BUFFERS_AFTER;
+        private long tunnelStackSize;
+        private long maxBufferBytes;
+        private int healthPort;
+        private int clusterPort;
+        private List<InetSocketAddress> clusterPeers = List.of();
+        private byte[] clusterSecret;
+        private Duration clusterGossipInterval = DEFAULT_CLUSTER_GOSSIP_INTERVAL;
+        private int clusterMaxConnectionsPerClient;
+        private int clusterMaxConnectionsPerClientPerSecond;
+        private int clusterMaxTunnelsPerDestination;
+        private int bufferSize = DEFAULT_BUFFER_SIZE;
+        private double memoryShrinkBuffersAt = DEFAULT_MEMORY_SHRINK_BUFFERS_AT;
+        private double memoryRefuseTunnelsAt = DEFAULT_MEMORY_REFUSE_TUNNELS_AT;
+        private double memoryCloseIdleAt = DEFAULT_MEMORY_CLOSE_IDLE_AT;
+
+        private Builder() {
+        }
+
+        private Builder(final ProxyConfig config) {
+            perTunnelBytesPerSecond = config.perTunnelBytesPerSecond;
+            perClientBytesPerSecond = config.perClientBytesPerSecond;
+            globalBytesPerSecond = config.globalBytesPerSecond;
+            bulkThresholdBytes = config.bulkThresholdBytes;
+            bulkConcurrency = config.bulkConcurrency;
+            slowWriteThreshold = config.slowWriteThreshold;
+            tlsRecordFraming = config.tlsRecordFraming;
+            minHandlers = config.minHandlers;
+            maxHandlers = config.maxHandlers;
+            handlerResizeInterval = config.handlerResizeInterval;
+            maxTunnelsPerDestination = config.maxTunnelsPerDestination;
+            circuitBreakerFailureRate = config.circuitBreakerFailureRate;
+            circuitBreakerOpenDuration = config.circuitBreakerOpenDuration;
+            slowConnectThreshold = config.slowConnectThreshold;
+            connectTimeout = config.connectTimeout;
+            listenerMode = config.listenerMode;
+            sniUpstreamPort = config.sniUpstreamPort;
+            clientSocketOptions = config.clientSocketOptions;
+            upstreamSocketOptions = config.upstreamSocketOptions;
+            backlog = config.backlog;
+            logFile = config.logFile;
+            logFileMaxBytes = config.logFileMaxBytes;
+            logFileCount = config.logFileCount;
+            metricsFile = config.metricsFile;
+            accessLogDirectory = config.accessLogDirectory;
+            accessLogSegmentBytes = config.accessLogSegmentBytes;
+            accessLogSegmentCount = config.accessLogSegmentCount;
+            warmUpDuration = config.warmUpDuration;
+            releaseBuffersAfter = config.releaseBuffersAfter;
+            tunnelStackSize = config.tunnelStackSize;
+            maxBufferBytes = config.maxBufferBytes;
+            healthPort = config.healthPort;
+            clusterPort = config.clusterPort;
+            clusterPeers = config.clusterPeers;
+            clusterSecret = config.clusterSecret;
+            clusterGossipInterval = config.clusterGossipInterval;
+            clusterMaxConnectionsPerClient = config.clusterMaxConnectionsPerClient;
+            clusterMaxConnectionsPerClientPerSecond = config.clusterMaxConnectionsPerClientPerSecond;
+            clusterMaxTunnelsPerDestination = config.clusterMaxTunnelsPerDestination;
+            bufferSize = config.bufferSize;
+            memoryShrinkBuffersAt = config.memoryShrinkBuffersAt;
+            memoryRefuseTunnelsAt = config.memoryRefuseTunnelsAt;
+            memoryCloseIdleAt = config.memoryCloseIdleAt;
+        }
+
+        /**
+         * Sets the bandwidth limit for each tunnel.
+         * @param bytesPerSecond limit, or 0 for unlimited
+         * @return this builder
+         */
+        public Builder perTunnelBytesPerSecond(final long bytesPerSecond) {
+            this.perTunnelBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Sets the bandwidth limit for all tunnels from the same client address.
+         * @param bytesPerSecond limit, or 0 for unlimited
+         * @return this builder
+         */
+        public Builder perClientBytesPerSecond(final long bytesPerSecond) {
+            this.perClientBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Sets the bandwidth limit for all tunnels.
+         * @param bytesPerSecond limit, or 0 for unlimited
+         * @return this builder
+         */
+        public Builder globalBytesPerSecond(final long bytesPerSecond) {
+            this.globalBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Sets the rate, in bytes per second over the last few seconds, above which a tunnel is treated as a
+         * bulk transfer. A bulk tunnel is treated as interactive again once its rate falls to half of this.
+         * @param bytes threshold
+         * @return this builder
+         */
+        public Builder bulkThresholdBytes(final long bytes) {
+            this.bulkThresholdBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the number of bulk tunnels that may write at the same time while interactive writes are slow.
+         * @param concurrency number of concurrent bulk writes
+         * @return this builder
+         */
+        public Builder bulkConcurrency(final int concurrency) {
+            this.bulkConcurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * Sets how long interactive writes may take on average before bulk writes are held back.
+         * @param threshold average write time, or 0 to never hold bulk writes back
+         * @return this builder
+         */
+        public Builder slowWriteThreshold(final Duration threshold) {
+            this.slowWriteThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Sets whether tunnels write whole TLS records at a time.
+         * @param enabled whether to frame TLS records
+         * @return this builder
+         */
+        public Builder tlsRecordFraming(final boolean enabled) {
+            this.tlsRecordFraming = enabled;
+            return this;
+        }
+
+        /**
+         * Sets the minimum number of handlers.
+         * @param count minimum, or 0 to use the server's thread count
+         * @return this builder
+         */
+        public Builder minHandlers(final int count) {
+            this.minHandlers = count;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of handlers.
+         * The handler executor must be able to run this many handlers at once.
+         * @param count maximum, or 0 to use the server's thread count
+         * @return this builder
+         */
+        public Builder maxHandlers(final int count) {
+            this.maxHandlers = count;
+            return this;
+        }
+
+        /**
+         * Sets how often handler utilization is sampled to decide whether to resize the handler pool.
+         * @param interval sampling interval
+         * @return this builder
+         */
+        public Builder handlerResizeInterval(final Duration interval) {
+            this.handlerResizeInterval = interval;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of open tunnels to a single destination (host and port).
+         * @param count maximum, or 0 for unlimited
+         * @return this builder
+         */
+        public Builder maxTunnelsPerDestination(final int count) {
+            this.maxTunnelsPerDestination = count;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of recent connections to a destination that must fail before connections to it are refused.
+         * @param rate fraction between 0 and 1
+         * @return this builder
+         */
+        public Builder circuitBreakerFailureRate(final double rate) {
+            this.circuitBreakerFailureRate = rate;
+            return this;
+        }
+
+        /**
+         * Sets how long connections to a failing destination are refused before trying it again.
+         * @param duration time to refuse connections
+         * @return this builder
+         */
+        public Builder circuitBreakerOpenDuration(final Duration duration) {
+            this.circuitBreakerOpenDuration = duration;
+            return this;
+        }
+
+        /**
+         * Sets the connect time above which a connection to a destination counts as a failure.
+         * @param threshold connect time
+         * @return this builder
+         */
+        public Builder slowConnectThreshold(final Duration threshold) {
+            this.slowConnectThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Sets the maximum time to wait when connecting to a remote server.
+         * It also bounds the wait for the validator's decision, which gets 503 Service Unavailable when it runs out.
+         * @param timeout connect timeout, or 0 to wait indefinitely
+         * @return this builder
+         */
+        public Builder connectTimeout(final Duration timeout) {
+            this.connectTimeout = timeout;
+            return this;
+        }
+
+        /**
+         * Sets how clients choose the server to tunnel to.
+         * @param mode listener mode
+         * @return this builder
+         */
+        public Builder listenerMode(final ListenerMode mode) {
+            this.listenerMode = mode;
+            return this;
+        }
+
+        /**
+         * Sets the port of remote servers in {@link ListenerMode#SNI} mode.
+         * @param port remote port
+         * @return this builder
+         */
+        public Builder sniUpstreamPort(final int port) {
+            this.sniUpstreamPort = port;
+            return this;
+        }
+
+        /**
+         * Sets the TCP options for connections from clients.
+         * @param options socket options
+         * @return this builder
+         */
+        public Builder clientSocketOptions(final SocketOptions options) {
+            this.clientSocketOptions = options;
+            return this;
+        }
+
+        /**
+         * Sets the TCP options for connections to remote servers.
+         * @param options socket options
+         * @return this builder
+         */
+        public Builder upstreamSocketOptions(final SocketOptions options) {
+            this.upstreamSocketOptions = options;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of connections waiting to be accepted.
+         * Only used when the server creates its own listening socket.
+         * @param backlog queue length, or 0 for the default
+         * @return this builder
+         */
+        public Builder backlog(final int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * Sets the file that events are logged to.
+         * @param file log file, or {@code null} for standard output
+         * @return this builder
+         */
+        public Builder logFile(final Path file) {
+            this.logFile = file;
+            return this;
+        }
+
+        /**
+         * Sets the size at which the log file is rotated.
+         * @param bytes maximum size
+         * @return this builder
+         */
+        public Builder logFileMaxBytes(final long bytes) {
+            this.logFileMaxBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the number of rotated log files to keep.
+         * @param count number of old files
+         * @return this builder
+         */
+        public Builder logFileCount(final int count) {
+            this.logFileCount = count;
+            return this;
+        }
+
+        /**
+         * Sets the file where counters and histograms are published, so other processes can read them
+         * (see {@link MetricsFile}).
+         * @param file file to map, or {@code null} to keep metrics in memory only
+         * @return this builder
+         */
+        public Builder metricsFile(final Path file) {
+            this.metricsFile = file;
+            return this;
+        }
+
+        /**
+         * Sets the directory where per-minute traffic totals are written (see {@link AccessLog}).
+         * @param directory directory of segment files, or {@code null} to disable the access log
+         * @return this builder
+         */
+        public Builder accessLogDirectory(final Path directory) {
+            this.accessLogDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Sets the size of each access log segment file.
+         * @param bytes segment size
+         * @return this builder
+         */
+        public Builder accessLogSegmentBytes(final int bytes) {
+            this.accessLogSegmentBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the number of access log segment files to keep.
+         * @param count number of segments
+         * @return this builder
+         */
+        public Builder accessLogSegmentCount(final int count) {
+            this.accessLogSegmentCount = count;
+            return this;
+        }
+
+        /**
+         * Sets the longest time {@link ProxyServer#run()} spends warming up the JIT before accepting connections.
+         * @param duration maximum warm-up time, or zero to accept connections immediately
+         * @return this builder
+         */
+        public Builder warmUpDuration(final Duration duration) {
+            this.warmUpDuration = duration;
+            return this;
+        }
+
+        /**
+         * Sets how long a tunnel reads nothing before it gives its buffer back (see {@link TunnelMemory}).
+         * @param idle idle time, or zero to keep buffers for the life of the tunnel
+         * @return this builder
+         */
+        public Builder releaseBuffersAfter(final Duration idle) {
+            this.releaseBuffersAfter = idle;
+            return this;
+        }
+
+        /**
+         * Sets the stack size requested for tunnel threads. A tunnel thread mostly waits in a read,
+         * so it needs far less than the default stack. The JVM may round or ignore the size.
+         * @param bytes stack size, or 0 for the JVM default
+         * @return this builder
+         */
+        public Builder tunnelStackSize(final long bytes) {
+            this.tunnelStackSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the most memory the tunnels of this server may hold in buffers. While it is used up,
+         * new tunnels are refused with 503 Service Unavailable, so one busy listener of a {@link ProxyHost}
+         * cannot take the heap from the others.
+         * @param bytes budget, or 0 for no limit
+         * @return this builder
+         */
+        public Builder maxBufferBytes(final long bytes) {
+            this.maxBufferBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the port of the HTTP health endpoint (see {@link HealthEndpoint}), which reports liveness,
+         * readiness and capacity headroom for a load balancer.
+         * @param port port, or 0 for no endpoint
+         * @return this builder
+         */
+        public Builder healthPort(final int port) {
+            this.healthPort = port;
+            return this;
+        }
+
+        /**
+         * Sets the UDP port on which this proxy exchanges connection counts with the other proxies
+         * of its cluster (see {@link ClusterLimits}).
+         * @param port port, or 0 to count only this proxy's connections
+         * @return this builder
+         */
+        public Builder clusterPort(final int port) {
+            this.clusterPort = port;
+            return this;
+        }
+
+        /**
+         * Sets the other proxies of the cluster, which this proxy sends its connection counts to.
+         * @param peers addresses of the other proxies' cluster ports
+         * @return this builder
+         */
+        public Builder clusterPeers(final List<InetSocketAddress> peers) {
+            this.clusterPeers = List.copyOf(peers);
+            return this;
+        }
+
+        /**
+         * Sets the secret shared by the proxies of a cluster. It authenticates their messages and keys
+         * the hashes that stand for client addresses, so addresses never leave a proxy.
+         * @param secret shared secret, which is required with a cluster port
+         * @return this builder
+         */
+        public Builder clusterSecret(final byte[] secret) {
+            this.clusterSecret = secret == null ? null : secret.clone();
+            return this;
+        }
+
+        /**
+         * Sets how often changed connection counts are sent to the other proxies.
+         * It bounds how stale their view of this proxy is.
+         * @param interval interval
+         * @return this builder
+         */
+        public Builder clusterGossipInterval(final Duration interval) {
+            this.clusterGossipInterval = interval;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of open connections from one client address across all proxies of the cluster.
+         * @param connections maximum, or 0 for unlimited
+         * @return this builder
+         */
+        public Builder clusterMaxConnectionsPerClient(final int connections) {
+            this.clusterMaxConnectionsPerClient = connections;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of new connections per second from one client address
+         * across all proxies of the cluster.
+         * @param connections maximum, or 0 for unlimited
+         * @return this builder
+         */
+        public Builder clusterMaxConnectionsPerClientPerSecond(final int connections) {
+            this.clusterMaxConnectionsPerClientPerSecond = connections;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of open tunnels to one destination across all proxies of the cluster.
+         * @param tunnels maximum, or 0 for unlimited
+         * @return this builder
+         */
+        public Builder clusterMaxTunnelsPerDestination(final int tunnels) {
+            this.clusterMaxTunnelsPerDestination = tunnels;
+            return this;
+        }
+
+        /**
+         * Sets the size of the buffer each tunnel direction reads into.
+         * Larger buffers move bulk data with fewer writes, at the cost of memory per busy tunnel.
+         * @param bytes buffer size
+         * @return this builder
+         */
+        public Builder bufferSize(final int bytes) {
+            this.bufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets how full memory may be after a garbage collection before tunnels read into smaller buffers.
+         * This is the first step of {@link MemoryGuard}; each step also keeps the ones before it.
+         * @param fraction share of the maximum heap, or 0 to never shrink buffers
+         * @return this builder
+         */
+        public Builder memoryShrinkBuffersAt(final double fraction) {
+            this.memoryShrinkBuffersAt = fraction;
+            return this;
+        }
+
+        /**
+         * Sets how full memory may be after a garbage collection before new tunnels are refused
+         * with 503 Service Unavailable.
+         * @param fraction share of the maximum heap, or 0 to never refuse tunnels
+         * @return this builder
+         */
+        public Builder memoryRefuseTunnelsAt(final double fraction) {
+            this.memoryRefuseTunnelsAt = fraction;
+            return this;
+        }
+
+        /**
+         * Sets how full memory may be after a garbage collection before the tunnels that have been idle longest
+         * are closed.
+         * @param fraction share of the maximum heap, or 0 to never close tunnels
+         * @return this builder
+         */
+        public Builder memoryCloseIdleAt(final double fraction) {
+            this.memoryCloseIdleAt = fraction;
+            return this;
+        }
+
+        /**
+         * Creates the configuration.
+         * @return configuration
+         */
+        public ProxyConfig build() {
+            return new ProxyConfig(this);
+        }
+    }
+
+    private final long perTunnelBytesPerSecond;
+    private final long perClientBytesPerSecond;
+    private final long globalBytesPerSecond;
+    private final long bulkThresholdBytes;
+    private final int bulkConcurrency;
+    private final Duration slowWriteThreshold;
+    private final boolean tlsRecordFraming;
+    private final int minHandlers;
+    private final int maxHandlers;
+    private final Duration handlerResizeInterval;
+    private final int maxTunnelsPerDestination;
+    private final double circuitBreakerFailureRate;
+    private final Duration circuitBreakerOpenDuration;
+    private final Duration slowConnectThreshold;
+    private final Duration connectTimeout;
+    private final ListenerMode listenerMode;
+    private final int sniUpstreamPort;
+    private final SocketOptions clientSocketOptions;
+    private final SocketOptions upstreamSocketOptions;
+    private final int backlog;
+    private final Path logFile;
+    private final long logFileMaxBytes;
+    private final int logFileCount;
+    private final Path metricsFile;
+    private final Path accessLogDirectory;
+    private final int accessLogSegmentBytes;
+    private final int accessLogSegmentCount;
+    private final Duration warmUpDuration;
+    private final Duration releaseBuffersAfter;
+    private final long tunnelStackSize;
+    private final long maxBufferBytes;
+    private final int healthPort;
+    private final int clusterPort;
+    private final List<InetSocketAddress> clusterPeers;
+    private final byte[] clusterSecret;
+    private final Duration clusterGossipInterval;
+    private final int clusterMaxConnectionsPerClient;
+    private final int clusterMaxConnectionsPerClientPerSecond;
+    private final int clusterMaxTunnelsPerDestination;
+    private final int bufferSize;
+    private final double memoryShrinkBuffersAt;
+    private final double memoryRefuseTunnelsAt;
+    private final double memoryCloseIdleAt;
+
+    private ProxyConfig(final Builder builder) {
+        perTunnelBytesPerSecond = builder.perTunnelBytesPerSecond;
+        perClientBytesPerSecond = builder.perClientBytesPerSecond;
+        globalBytesPerSecond = builder.globalBytesPerSecond;
+        bulkThresholdBytes = builder.bulkThresholdBytes;
+        bulkConcurrency = builder.bulkConcurrency;
+        slowWriteThreshold = builder.slowWriteThreshold;
+        tlsRecordFraming = builder.tlsRecordFraming;
+        minHandlers = builder.minHandlers;
+        maxHandlers = builder.maxHandlers;
+        handlerResizeInterval = builder.handlerResizeInterval;
+        maxTunnelsPerDestination = builder.maxTunnelsPerDestination;
+        circuitBreakerFailureRate = builder.circuitBreakerFailureRate;
+        circuitBreakerOpenDuration = builder.circuitBreakerOpenDuration;
+        slowConnectThreshold = builder.slowConnectThreshold;
+        connectTimeout = builder.connectTimeout;
+        listenerMode = builder.listenerMode;
+        sniUpstreamPort = builder.sniUpstreamPort;
+        clientSocketOptions = builder.clientSocketOptions;
+        upstreamSocketOptions = builder.upstreamSocketOptions;
+        backlog = builder.backlog;
+        logFile = builder.logFile;
+        logFileMaxBytes = builder.logFileMaxBytes;
+        logFileCount = builder.logFileCount;
+        metricsFile = builder.metricsFile;
+        accessLogDirectory = builder.accessLogDirectory;
+        accessLogSegmentBytes = builder.accessLogSegmentBytes;
+        accessLogSegmentCount = builder.accessLogSegmentCount;
+        warmUpDuration = builder.warmUpDuration;
+        releaseBuffersAfter = builder.releaseBuffersAfter;
+        tunnelStackSize = builder.tunnelStackSize;
+        maxBufferBytes = builder.maxBufferBytes;
+        healthPort = builder.healthPort;
+        clusterPort = builder.clusterPort;
+        clusterPeers = builder.clusterPeers;
+        clusterSecret = builder.clusterSecret;
+        clusterGossipInterval = builder.clusterGossipInterval;
+        clusterMaxConnectionsPerClient = builder.clusterMaxConnectionsPerClient;
+        clusterMaxConnectionsPerClientPerSecond = builder.clusterMaxConnectionsPerClientPerSecond;
+        clusterMaxTunnelsPerDestination = builder.clusterMaxTunnelsPerDestination;
+        bufferSize = builder.bufferSize;
+        memoryShrinkBuffersAt = builder.memoryShrinkBuffersAt;
+        memoryRefuseTunnelsAt = builder.memoryRefuseTunnelsAt;
+        memoryCloseIdleAt = builder.memoryCloseIdleAt;
+    }
+
+    /**
+     * Returns a new builder with default settings.
+     * @return builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the default settings.
+     * @return default configuration
+     */
+    public static ProxyConfig defaults() {
+        return builder().build();
+    }
+
+    /**
+     * Returns a new builder with these settings.
+     * @return builder
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Returns the bandwidth limit for each tunnel.
+     * @return bytes per second, or 0 for unlimited
+     */
+    public long perTunnelBytesPerSecond() {
+        return perTunnelBytesPerSecond;
+    }
+
+    /**
+     * Returns the bandwidth limit for all tunnels from the same client address.
+     * @return bytes per second, or 0 for unlimited
+     */
+    public long perClientBytesPerSecond() {
+        return perClientBytesPerSecond;
+    }
+
+    /**
+     * Returns the bandwidth limit for all tunnels.
+     * @return bytes per second, or 0 for unlimited
+     */
+    public long globalBytesPerSecond() {
+        return globalBytesPerSecond;
+    }
+
+    /**
+     * Returns the rate, in bytes per second over the last few seconds, above which a tunnel is treated as a
+     * bulk transfer.
+     * @return threshold in bytes
+     */
+    public long bulkThresholdBytes() {
+        return bulkThresholdBytes;
+    }
+
+    /**
+     * Returns the number of bulk tunnels that may write at the same time while interactive writes are slow.
+     * @return number of concurrent bulk writes
+     */
+    public int bulkConcurrency() {
+        return bulkConcurrency;
+    }
+
+    /**
+     * Returns how long interactive writes may take on average before bulk writes are held back.
+     * @return average write time, or 0 to never hold bulk writes back
+     */
+    public Duration slowWriteThreshold() {
+        return slowWriteThreshold;
+    }
+
+    /**
+     * Returns whether tunnels write whole TLS records at a time.
+     * @return whether TLS records are framed
+     */
+    public boolean tlsRecordFraming() {
+        return tlsRecordFraming;
+    }
+
+    /**
+     * Returns the minimum number of handlers.
+     * @return minimum, or 0 to use the server's thread count
+     */
+    public int minHandlers() {
+        return minHandlers;
+    }
+
+    /**
+     * Returns the maximum number of handlers.
+     * @return maximum, or 0 to use the server's thread count
+     */
+    public int maxHandlers() {
+        return maxHandlers;
+    }
+
+    /**
+     * Returns how often handler utilization is sampled.
+     * @return sampling interval
+     */
+    public Duration handlerResizeInterval() {
+        return handlerResizeInterval;
+    }
+
+    /**
+     * Returns the maximum number of open tunnels to a single destination.
+     * @return maximum, or 0 for unlimited
+     */
+    public int maxTunnelsPerDestination() {
+        return maxTunnelsPerDestination;
+    }
+
+    /**
+     * Returns the fraction of recent connections to a destination that must fail before connections to it are refused.
+     * @return failure rate between 0 and 1
+     */
+    public double circuitBreakerFailureRate() {
+        return circuitBreakerFailureRate;
+    }
+
+    /**
+     * Returns how long connections to a failing destination are refused before trying it again.
+     * @return time to refuse connections
+     */
+    public Duration circuitBreakerOpenDuration() {
+        return circuitBreakerOpenDuration;
+    }
+
+    /**
+     * Returns the connect time above which a connection to a destination counts as a failure.
+     * @return connect time
+     */
+    public Duration slowConnectThreshold() {
+        return slowConnectThreshold;
+    }
+
+    /**
+     * Returns the maximum time to wait when connecting to a remote server.
+     * @return connect timeout
+     */
+    public Duration connectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Returns how clients choose the server to tunnel to.
+     * @return listener mode
+     */
+    public ListenerMode listenerMode() {
+        return listenerMode;
+    }
+
+    /**
+     * Returns the port of remote servers in {@link ListenerMode#SNI} mode.
+     * @return remote port
+     */
+    public int sniUpstreamPort() {
+        return sniUpstreamPort;
+    }
+
+    /**
+     * Returns the TCP options for connections from clients.
+     * @return socket options
+     */
+    public SocketOptions clientSocketOptions() {
+        return clientSocketOptions;
+    }
+
+    /**
+     * Returns the TCP options for connections to remote servers.
+     * @return socket options
+     */
+    public SocketOptions upstreamSocketOptions() {
+        return upstreamSocketOptions;
+    }
+
+    /**
+     * Returns the maximum number of connections waiting to be accepted.
+     * @return queue length, or 0 for the default
+     */
+    public int backlog() {
+        return backlog;
+    }
+
+    /**
+     * Returns the file that events are logged to.
+     * @return log file, or {@code null} for standard output
+     */
+    public Path logFile() {
+        return logFile;
+    }
+
+    /**
+     * Returns the size at which the log file is rotated.
+     * @return maximum size
+     */
+    public long logFileMaxBytes() {
+        return logFileMaxBytes;
+    }
+
+    /**
+     * Returns the number of rotated log files to keep.
+     * @return number of old files
+     */
+    public int logFileCount() {
+        return logFileCount;
+    }
+
+    /**
+     * Returns the file where counters and histograms are published.
+     * @return metrics file, or {@code null} if metrics are kept in memory only
+     */
+    public Path metricsFile() {
+        return metricsFile;
+    }
+
+    /**
+     * Returns the directory where per-minute traffic totals are written.
+     * @return access log directory, or {@code null} if the access log is disabled
+     */
+    public Path accessLogDirectory() {
+        return accessLogDirectory;
+    }
+
+    /**
+     * Returns the size of each access log segment file.
+     * @return segment size
+     */
+    public int accessLogSegmentBytes() {
+        return accessLogSegmentBytes;
+    }
+
+    /**
+     * Returns the number of access log segment files to keep.
+     * @return number of segments
+     */
+    public int accessLogSegmentCount() {
+        return accessLogSegmentCount;
+    }
+
+    /**
+     * Returns the longest time the server spends warming up the JIT before accepting connections.
+     * @return maximum warm-up time
+     */
+    public Duration warmUpDuration() {
+        return warmUpDuration;
+    }
+
+    /**
+     * Returns how long a tunnel reads nothing before it gives its buffer back.
+     * @return idle time, or zero if buffers are kept for the life of the tunnel
+     */
+    public Duration releaseBuffersAfter() {
+        return releaseBuffersAfter;
+    }
+
+    /**
+     * Returns the stack size requested for tunnel threads.
+     * @return stack size, or 0 for the JVM default
+     */
+    public long tunnelStackSize() {
+        return tunnelStackSize;
+    }
+
+    /**
+     * Returns the most memory the tunnels of this server may hold in buffers.
+     * @return budget in bytes, or 0 for no limit
+     */
+    public long maxBufferBytes() {
+        return maxBufferBytes;
+    }
+
+    /**
+     * Returns the port of the HTTP health endpoint.
+     * @return port, or 0 for no endpoint
+     */
+    public int healthPort() {
+        return healthPort;
+    }
+
+    /**
+     * Returns the UDP port for exchanging connection counts with other proxies.
+     * @return port, or 0 if counts are not exchanged
+     */
+    public int clusterPort() {
+        return clusterPort;
+    }
+
+    /**
+     * Returns the other proxies of the cluster.
+     * @return addresses of the other proxies' cluster ports
+     */
+    public List<InetSocketAddress> clusterPeers() {
+        return clusterPeers;
+    }
+
+    /**
+     * Returns the secret shared by the proxies of a cluster.
+     * @return shared secret, or {@code null}
+     */
+    public byte[] clusterSecret() {
+        return clusterSecret == null ? null : clusterSecret.clone();
+    }
+
+    /**
+     * Returns how often changed connection counts are sent to the other proxies.
+     * @return interval
+     */
+    public Duration clusterGossipInterval() {
+        return clusterGossipInterval;
+    }
+
+    /**
+     * Returns the maximum number of open connections from one client address across the cluster.
+     * @return maximum, or 0 for unlimited
+     */
+    public int clusterMaxConnectionsPerClient() {
+        return clusterMaxConnectionsPerClient;
+    }
+
+    /**
+     * Returns the maximum number of new connections per second from one client address across the cluster.
+     * @return maximum, or 0 for unlimited
+     */
+    public int clusterMaxConnectionsPerClientPerSecond() {
+        return clusterMaxConnectionsPerClientPerSecond;
+    }
+
+    /**
+     * Returns the maximum number of open tunnels to one destination across the cluster.
+     * @return maximum, or 0 for unlimited
+     */
+    public int clusterMaxTunnelsPerDestination() {
+        return clusterMaxTunnelsPerDestination;
+    }
+
+    /**
+     * Returns the size of the buffer each tunnel direction reads into.
+     * @return buffer size in bytes
+     */
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns how full memory may be after a garbage collection before tunnels read into smaller buffers.
+     * @return share of the maximum heap, or 0 to never shrink buffers
+     */
+    public double memoryShrinkBuffersAt() {
+        return memoryShrinkBuffersAt;
+    }
+
+    /**
+     * Returns how full memory may be after a garbage collection before new tunnels are refused.
+     * @return share of the maximum heap, or 0 to never refuse tunnels
+     */
+    public double memoryRefuseTunnelsAt() {
+        return memoryRefuseTunnelsAt;
+    }
+
+    /**
+     * Returns how full memory may be after a garbage collection before idle tunnels are closed.
+     * @return share of the maximum heap, or 0 to never close tunnels
+     */
+    public double memoryCloseIdleAt() {
+        return memoryCloseIdleAt;
+    }
+
+    /**
+     * Checks that every setting is in range.
+     * @throws IllegalArgumentException naming every setting that is out of range
+     */
+    public void validate() {
+        final List<String> problems = new ArrayList<>();
+        notNegative(problems, "perTunnelBytesPerSecond", perTunnelBytesPerSecond);
+        notNegative(problems, "perClientBytesPerSecond", perClientBytesPerSecond);
+        notNegative(problems, "globalBytesPerSecond", globalBytesPerSecond);
+        notNegative(problems, "bulkThresholdBytes", bulkThresholdBytes);
+        positive(problems, "bulkConcurrency", bulkConcurrency);
+        notNegative(problems, "slowWriteThreshold", slowWriteThreshold.toNanos());
+        notNegative(problems, "minHandlers", minHandlers);
+        notNegative(problems, "maxHandlers", maxHandlers);
+        if (minHandlers > 0 && maxHandlers > 0 && minHandlers > maxHandlers) {
+            problems.add("minHandlers must not be more than maxHandlers");
+        }
+        positive(problems, "handlerResizeInterval", handlerResizeInterval.toNanos());
+        notNegative(problems, "maxTunnelsPerDestination", maxTunnelsPerDestination);
+        if (!(circuitBreakerFailureRate > 0 && circuitBreakerFailureRate <= 1)) {
+            problems.add("circuitBreakerFailureRate must be more than 0 and at most 1");
+        }
+        notNegative(problems, "circuitBreakerOpenDuration", circuitBreakerOpenDuration.toNanos());
+        notNegative(problems, "slowConnectThreshold", slowConnectThreshold.toNanos());
+        notNegative(problems, "connectTimeout", connectTimeout.toNanos());
+        port(problems, "sniUpstreamPort", sniUpstreamPort, 1);
+        notNegative(problems, "backlog", backlog);
+        positive(problems, "logFileMaxBytes", logFileMaxBytes);
+        positive(problems, "logFileCount", logFileCount);
+        positive(problems, "accessLogSegmentBytes", accessLogSegmentBytes);
+        positive(problems, "accessLogSegmentCount", accessLogSegmentCount);
+        notNegative(problems, "warmUpDuration", warmUpDuration.toNanos());
+        notNegative(problems, "releaseBuffersAfter", releaseBuffersAfter.toNanos());
+        notNegative(problems, "tunnelStackSize", tunnelStackSize);
+        notNegative(problems, "maxBufferBytes", maxBufferBytes);
+        positive(problems, "bufferSize", bufferSize);
+        port(problems, "healthPort", healthPort, 0);
+        port(problems, "clusterPort", clusterPort, 0);
+        if (clusterPort > 0 && (clusterSecret == null || clusterSecret.length == 0)) {
+            problems.add("clusterSecret is required with a clusterPort");
+        }
+        positive(problems, "clusterGossipInterval", clusterGossipInterval.toNanos());
+        notNegative(problems, "clusterMaxConnectionsPerClient", clusterMaxConnectionsPerClient);
+        notNegative(problems, "clusterMaxConnectionsPerClientPerSecond", clusterMaxConnectionsPerClientPerSecond);
+        notNegative(problems, "clusterMaxTunnelsPerDestination", clusterMaxTunnelsPerDestination);
+        memoryThresholds(problems);
+        if (!problems.isEmpty()) {
+            throw new IllegalArgumentException(String.join("; ", problems));
+        }
+    }
+
+    /**
+     * Each memory threshold is a share of the heap, and a step only makes sense after the steps before it.
+     */
+    private void memoryThresholds(final List<String> problems) {
+        final String[] names = {"memoryShrinkBuffersAt", "memoryRefuseTunnelsAt", "memoryCloseIdleAt"};
+        final double[] values = {memoryShrinkBuffersAt, memoryRefuseTunnelsAt, memoryCloseIdleAt};
+        double previous = 0;
+        String previousName = null;
+        for (int i = 0; i < values.length; i++) {
+            if (!(values[i] >= 0 && values[i] <= 1)) {
+                problems.add(names[i] + " must be from 0 to 1");
+            } else if (values[i] > 0) {
+                if (values[i] < previous) {
+                    problems.add(names[i] + " must not be less than " + previousName);
+                }
+                previous = values[i];
+                previousName = names[i];
+            }
+        }
+    }
+
+    private static void notNegative(final List<String> problems, final String name, final long value) {
+        if (value < 0) {
+            problems.add(name + " must not be negative");
+        }
+    }
+
+    private static void positive(final List<String> problems, final String name, final long value) {
+        if (value <= 0) {
+            problems.add(name + " must be positive");
+        }
+    }
+
+    private static void port(final List<String> problems, final String name, final int value, final int min) {
+        if (value < min || value > MAX_PORT) {
+            problems.add(name + " must be from " + min + " to " + MAX_PORT);
+        }
+    }
+
+    /**
+     * Returns these settings, with the settings that a running server can change taken from newer settings.
+     * @param next newer settings
+     * @return settings the server runs with after a reload
+     */
+    ProxyConfig withReloadable(final ProxyConfig next) {
+        return toBuilder()
+                .perTunnelBytesPerSecond(next.perTunnelBytesPerSecond)
+                .perClientBytesPerSecond(next.perClientBytesPerSecond)
+                .globalBytesPerSecond(next.globalBytesPerSecond)
+                .minHandlers(next.minHandlers)
+                .maxHandlers(next.maxHandlers)
+                .connectTimeout(next.connectTimeout)
+                .tlsRecordFraming(next.tlsRecordFraming)
+                .sniUpstreamPort(next.sniUpstreamPort)
+                .clientSocketOptions(next.clientSocketOptions)
+                .upstreamSocketOptions(next.upstreamSocketOptions)
+                .releaseBuffersAfter(next.releaseBuffersAfter)
+                .maxBufferBytes(next.maxBufferBytes)
+                .bufferSize(next.bufferSize)
+                .clusterMaxConnectionsPerClient(next.clusterMaxConnectionsPerClient)
+                .clusterMaxConnectionsPerClientPerSecond(next.clusterMaxConnectionsPerClientPerSecond)
+                .clusterMaxTunnelsPerDestination(next.clusterMaxTunnelsPerDestination)
+                .memoryShrinkBuffersAt(next.memoryShrinkBuffersAt)
+                .memoryRefuseTunnelsAt(next.memoryRefuseTunnelsAt)
+                .memoryCloseIdleAt(next.memoryCloseIdleAt)
+                .build();
+    }
+
+    /**
+     * Returns the settings that differ in newer settings but that a running server cannot change.
+     * @param next newer settings
+     * @return names of the settings that only change on a restart
+     */
+    List<String> restartNeeded(final ProxyConfig next) {
+        final List<String> names = new ArrayList<>();
+        differs(names, "bulkThresholdBytes", bulkThresholdBytes, next.bulkThresholdBytes);
+        differs(names, "bulkConcurrency", bulkConcurrency, next.bulkConcurrency);
+        differs(names, "slowWriteThreshold", slowWriteThreshold, next.slowWriteThreshold);
+        differs(names, "handlerResizeInterval", handlerResizeInterval, next.handlerResizeInterval);
+        differs(names, "maxTunnelsPerDestination", maxTunnelsPerDestination, next.maxTunnelsPerDestination);
+        differs(names, "circuitBreakerFailureRate", circuitBreakerFailureRate, next.circuitBreakerFailureRate);
+        differs(names, "circuitBreakerOpenDuration", circuitBreakerOpenDuration, next.circuitBreakerOpenDuration);
+        differs(names, "slowConnectThreshold", slowConnectThreshold, next.slowConnectThreshold);
+        differs(names, "listenerMode", listenerMode, next.listenerMode);
+        differs(names, "backlog", backlog, next.backlog);
+        differs(names, "logFile", logFile, next.logFile);
+        differs(names, "logFileMaxBytes", logFileMaxBytes, next.logFileMaxBytes);
+        differs(names, "logFileCount", logFileCount, next.logFileCount);
+        differs(names, "metricsFile", metricsFile, next.metricsFile);
+        differs(names, "accessLogDirectory", accessLogDirectory, next.accessLogDirectory);
+        differs(names, "accessLogSegmentBytes", accessLogSegmentBytes, next.accessLogSegmentBytes);
+        differs(names, "accessLogSegmentCount", accessLogSegmentCount, next.accessLogSegmentCount);
+        differs(names, "warmUpDuration", warmUpDuration, next.warmUpDuration);
+        differs(names, "tunnelStackSize", tunnelStackSize, next.tunnelStackSize);
+        differs(names, "healthPort", healthPort, next.healthPort);
+        differs(names, "clusterPort", clusterPort, next.clusterPort);
+        differs(names, "clusterPeers", clusterPeers, next.clusterPeers);
+        if (!Arrays.equals(clusterSecret, next.clusterSecret)) {
+            names.add("clusterSecret");
+        }
+        differs(names, "clusterGossipInterval", clusterGossipInterval, next.clusterGossipInterval);
+        return names;
+    }
+
+    private static void differs(final List<String> names, final String name, final Object current,
+                                final Object next) {
+        if (!Objects.equals(current, next)) {
+            names.add(name);
+        }
+    }
+
+}
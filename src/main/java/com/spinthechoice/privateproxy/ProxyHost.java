@@ -0,0 +1,311 @@
+package com.spinthechoice.privateproxy;
+
+import javax.net.ServerSocketFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Hosts several listeners in one process.
+ * Each listener is a {@link ProxyServer} with its own port, trusted servers, handler and tunnel threads,
+ * buffer budget ({@link ProxyConfig#maxBufferBytes()}), connection registry and metrics.
+ * Listeners share nothing but the process, so a spike of traffic to one service cannot take the threads
+ * or buffers of another, and each listener's metrics show its own load.
+ */
+public class ProxyHost implements Runnable, AutoCloseable {
+    private static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * Builds a host.
+     */
+    public static class Builder {
+        private final List<Listener> listeners = new ArrayList<>();
+        private ServerSocketFactory socketFactory = ServerSocketFactory.getDefault();
+        private Path metricsDirectory;
+        private int healthPort;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a listener.
+         * @param name unique name, used for thread and metrics file names
+         * @param port port
+         * @param threadCount number of threads to handle connections, which also limits concurrent connections
+         * @param config tuning settings, including the buffer budget
+         * @param trustedServers servers clients may reach, as {@code host:port}
+         * @return this builder
+         */
+        public Builder listener(final String name, final int port, final int threadCount, final ProxyConfig config,
+                                final String... trustedServers) {
+            listeners.add(new Listener(name, port, threadCount, config, Arrays.stream(trustedServers)
+                    .map(server -> server.toLowerCase(Locale.ROOT))
+                    .collect(Collectors.toUnmodifiableSet())));
+            return this;
+        }
+
+        /**
+         * Sets the socket factory for all listeners.
+         * @param socketFactory socket factory
+         * @return this builder
+         */
+        public Builder socketFactory(final ServerSocketFactory socketFactory) {
+            this.socketFactory = socketFactory;
+            return this;
+        }
+
+        /**
+         * Sets a directory for metrics files. Listeners without a {@link ProxyConfig#metricsFile()}
+         * publish their metrics to {@code NAME.metrics} in this directory.
+         * @param directory metrics directory, or {@code null} to keep metrics in memory
+         * @return this builder
+         */
+        public Builder metricsDirectory(final Path directory) {
+            this.metricsDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Sets the port of one {@link HealthEndpoint} for all listeners.
+         * Listeners can still have their own with {@link ProxyConfig#healthPort()}.
+         * @param port port, or 0 for no endpoint
+         * @return this builder
+         */
+        public Builder healthPort(final int port) {
+            this.healthPort = port;
+            return this;
+        }
+
+        /**
+         * Opens the listening sockets of all listeners, and the health endpoint.
+         * @return host
+         * @throws IOException if any port cannot be bound; sockets already bound are closed
+         * @throws IllegalArgumentException if two listeners share a name or any setting is out of range;
+         *                                  nothing is bound then
+         */
+        public ProxyHost build() throws IOException {
+            final Map<String, Listener> byName = new LinkedHashMap<>();
+            for (final Listener listener : listeners) {
+                if (byName.put(listener.name(), listener) != null) {
+                    throw new IllegalArgumentException("Duplicate listener " + listener.name());
+                }
+                listener.config().validate();
+            }
+            if (metricsDirectory != null) {
+                Files.createDirectories(metricsDirectory);
+            }
+
+            final Map<String, ProxyServer> servers = new LinkedHashMap<>();
+            try {
+                for (final Listener listener : listeners) {
+                    servers.put(listener.name(), start(listener));
+                }
+                final HealthEndpoint health = healthPort > 0
+                        ? new HealthEndpoint(new InetSocketAddress(healthPort), servers)
+                        : null;
+                return new ProxyHost(servers, health);
+            } catch (IOException | RuntimeException e) {
+                servers.values().forEach(ProxyServer::close);
+                throw e;
+            }
+        }
+
+        private ProxyServer start(final Listener listener) throws IOException {
+            final ProxyConfig config = metricsDirectory == null || listener.config().metricsFile() != null
+                    ? listener.config()
+                    : listener.config().toBuilder()
+                            .metricsFile(metricsDirectory.resolve(listener.name() + ".metrics"))
+                            .build();
+            final ServerSocket serverSocket = ProxyServer.listen(listener.port(), socketFactory, config);
+            final ExecutorService handlers = Executors.newCachedThreadPool(
+                    runnable -> new Thread(runnable, listener.name() + "-handler"));
+            return new ProxyServer(serverSocket, handlers, listener.threadCount(), config,
+                    trustOnly(listener.trustedServers()));
+        }
+    }
+
+    /**
+     * Settings of one listener.
+     */
+    private static record Listener(String name, int port, int threadCount, ProxyConfig config,
+                                   Set<String> trustedServers) {}
+
+    private final Map<String, ProxyServer> listeners;
+    private final HealthEndpoint health;
+
+    private ProxyHost(final Map<String, ProxyServer> listeners, final HealthEndpoint health) {
+        this.listeners = Collections.unmodifiableMap(listeners);
+        this.health = health;
+    }
+
+    /**
+     * Creates a builder.
+     * @return builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Trusts servers by name or address, and port, compared as given by the client.
+     * Nothing is looked up, so a name is not trusted because it resolves to a trusted address.
+     */
+    static SocketHandler.Validator trustOnly(final Set<String> trustedServers) {
+        return server -> {
+            final String port = ":" + server.port();
+            if (trustedServers.contains(server.host().toLowerCase(Locale.ROOT) + port)) {
+                return null;
+            } else {
+                return server.host() + " is not trusted";
+            }
+        };
+    }
+
+    /**
+     * Starts accepting connections on all listeners.
+     * Listeners that warm up do so one after the other.
+     */
+    @Override
+    public void run() {
+        listeners.values().forEach(ProxyServer::run);
+    }
+
+    /**
+     * Returns a listener, to read its connections, metrics and budgets.
+     * @param name listener name
+     * @return listener, or {@code null} if there is no listener with the name
+     */
+    public ProxyServer listener(final String name) {
+        return listeners.get(name);
+    }
+
+    /**
+     * Returns all listeners by name, in the order they were added.
+     * @return listeners
+     */
+    public Map<String, ProxyServer> listeners() {
+        return listeners;
+    }
+
+    /**
+     * Returns whether every listener is ready.
+     * @return whether the host is ready
+     */
+    public boolean isReady() {
+        return listeners.values().stream().allMatch(ProxyServer::isReady);
+    }
+
+    /**
+     * Drains all listeners at once.
+     * @param timeout maximum time to wait for open connections
+     * @return number of connections that were closed at the deadline
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int drain(final Duration timeout) throws InterruptedException {
+        final List<Thread> threads = new ArrayList<>();
+        final int[] remaining = new int[listeners.size()];
+        int i = 0;
+        for (final ProxyServer server : listeners.values()) {
+            final int index = i++;
+            final Thread thread = new Thread(() -> {
+                try {
+                    remaining[index] = server.drain(timeout);
+                } catch (InterruptedException e) {
+                    server.close();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        int total = 0;
+        for (int j = 0; j < threads.size(); j++) {
+            threads.get(j).join();
+            total += remaining[j];
+        }
+        closeHealthEndpoint();
+        return total;
+    }
+
+    /**
+     * Stops all listeners.
+     * Any open connections are closed.
+     */
+    @Override
+    public void close() {
+        listeners.values().forEach(ProxyServer::close);
+        closeHealthEndpoint();
+    }
+
+    private void closeHealthEndpoint() {
+        if (health != null) {
+            health.close();
+        }
+    }
+
+    /**
+     * Returns the health endpoint for all listeners.
+     * @return health endpoint, or {@code null} if there is none
+     */
+    public HealthEndpoint health() {
+        return health;
+    }
+
+    /**
+     * Starts a host with one listener per argument.
+     * Each argument is {@code NAME=PORT,THREAD_COUNT,HOST:PORT[,HOST:PORT...]}, for example
+     * {@code giphy=8443,4,api.giphy.com:443}.
+     * @param args arguments
+     */
+    public static void main(final String[] args) {
+        final Builder builder = builder();
+        try {
+            if (args.length == 0) {
+                throw new IllegalArgumentException("At least one listener is required");
+            }
+            for (final String arg : args) {
+                final int equals = arg.indexOf('=');
+                final String[] parts = arg.substring(equals + 1).split(",");
+                if (equals <= 0 || parts.length < 3) {
+                    throw new IllegalArgumentException("Invalid listener " + arg);
+                }
+                builder.listener(arg.substring(0, equals), Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                        ProxyConfig.defaults(), List.of(parts).subList(2, parts.length).toArray(String[]::new));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("USAGE: java " + ProxyHost.class.getSimpleName() +
+                    " NAME=PORT,THREAD_COUNT,HOST:PORT[,HOST:PORT...] ...");
+            return;
+        }
+
+        try {
+            final ProxyHost host = builder.build();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> drainQuietly(host)));
+            host.run();
+        } catch (IOException e) {
+            System.err.println("Unable to start " + ProxyHost.class.getSimpleName() + ": " + e.getMessage());
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private static void drainQuietly(final ProxyHost host) {
+        try {
+            host.drain(DEFAULT_DRAIN_TIMEOUT);
+        } catch (InterruptedException e) {
+            host.close();
+        }
+    }
+}
@@ -2,30 +2,57 @@ package com.spinthechoice.privateproxy;
 
 import javax.net.ServerSocketFactory;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import static java.util.stream.IntStream.range;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The proxy server.
  * Starts the {@link SocketHandler}s, which do most of the important work.
  */
 public class ProxyServer implements Runnable, AutoCloseable {
-    private static final int DEFAULT_THREAD_COUNT = 8;
+    static final int DEFAULT_THREAD_COUNT = 8;
+    static final String INHERITED_PORT = "inherited";
+    static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofSeconds(30);
+    static final String GIPHY_SERVER = "api.giphy.com:443";
+    private static final String CONFIG_OPTION = "--config";
 
     private final ServerSocket serverSocket;
     private final ExecutorService socketHandlerExecutor;
     private final int threadCount;
     /**
-     * A separate pool for tunnel threads.
-     * The number of tunnel threads is limited to the number of socket threads * 2.
+     * A separate pool for tunnel threads, which also connects to remote servers.
+     * The socket thread relays one direction of its tunnel, so the number of tunnel threads
+     * is limited to the number of socket threads (plus one connecting thread per socket thread
+     * while a tunnel is being set up).
+     * An HTTP/2 client multiplexes tunnels on one connection instead, so its socket thread only reads frames,
+     * and each of its streams takes two tunnel threads. That is up to twice the stream limit
+     * of {@link H2Connection} (100) per socket thread, which still bounds the pool by the handler count.
      * It makes no sense to impose any other kind of limitation on tunnel threads.
      * According to the javadoc the cached thread pool should give better
      * performance than creating a new thread for every tunnel.
      */
-    private final ExecutorService tunnelExecutor = Executors.newCachedThreadPool();
+    private final ExecutorService tunnelExecutor;
+    private final HandlerContext context;
+    private final ConnectionRegistry registry;
+    private final HandlerPool handlers;
+    private final Duration resizeInterval;
+    private final SocketHandler.Validator validator;
+    private final ProxyConfig config;
+    private final MemoryGuard memory;
+    private ScheduledExecutorService resizer;
+    private HealthEndpoint health;
+    private volatile boolean ready;
 
     /**
      * Creates a new proxy server.
@@ -37,40 +64,369 @@ public class ProxyServer implements Runnable, AutoCloseable {
      */
     public ProxyServer(final int port, final ServerSocketFactory socketFactory,
                        final ExecutorService socketHandlerExecutor, final int threadCount) throws IOException {
-        serverSocket = socketFactory.createServerSocket(port);
+        this(port, socketFactory, socketHandlerExecutor, threadCount, ProxyConfig.defaults());
+    }
+
+    /**
+     * Creates a new proxy server with custom tuning.
+     * The listening socket gets the configured backlog and client socket options.
+     * @param port port
+     * @param socketFactory socket factory
+     * @param socketHandlerExecutor thread pool for SocketHandlers
+     * @param threadCount number of threads to handle connections
+     * @param config tuning settings
+     * @throws IOException any network errors
+     * @throws IllegalArgumentException if any setting is out of range
+     */
+    public ProxyServer(final int port, final ServerSocketFactory socketFactory,
+                       final ExecutorService socketHandlerExecutor, final int threadCount,
+                       final ProxyConfig config) throws IOException {
+        this(listen(port, socketFactory, config), socketHandlerExecutor, threadCount, config);
+    }
+
+    /**
+     * Creates a new proxy server that accepts connections on an existing server socket.
+     * This allows the listening socket to outlive the server, for example when it is
+     * inherited from the process that launched the server (see {@link #inheritedServerSocket()}).
+     * @param serverSocket bound server socket
+     * @param socketHandlerExecutor thread pool for SocketHandlers
+     * @param threadCount number of threads to handle connections
+     */
+    public ProxyServer(final ServerSocket serverSocket,
+                       final ExecutorService socketHandlerExecutor, final int threadCount) {
+        this(serverSocket, socketHandlerExecutor, threadCount, ProxyConfig.defaults());
+    }
+
+    /**
+     * Creates a new proxy server with custom tuning.
+     * @param serverSocket bound server socket
+     * @param socketHandlerExecutor thread pool for SocketHandlers
+     * @param threadCount number of threads to handle connections
+     * @param config tuning settings
+     * @throws IllegalArgumentException if any setting is out of range
+     */
+    public ProxyServer(final ServerSocket serverSocket, final ExecutorService socketHandlerExecutor,
+                       final int threadCount, final ProxyConfig config) {
+        this(serverSocket, socketHandlerExecutor, threadCount, config, enforceGiphy());
+    }
+
+    /**
+     * Creates a new proxy server that trusts other servers.
+     * @param serverSocket bound server socket
+     * @param socketHandlerExecutor thread pool for SocketHandlers
+     * @param threadCount number of threads to handle connections
+     * @param config tuning settings
+     * @param validator checks the servers that clients want to reach
+     * @throws IllegalArgumentException if any setting is out of range
+     */
+    ProxyServer(final ServerSocket serverSocket, final ExecutorService socketHandlerExecutor,
+                final int threadCount, final ProxyConfig config, final SocketHandler.Validator validator) {
+        // a config built in code is checked here, before any thread, file or socket depends on it
+        config.validate();
+        this.validator = validator;
+        this.config = config;
+        this.tunnelExecutor = config.tunnelStackSize() > 0
+                ? Executors.newCachedThreadPool(
+                        runnable -> new Thread(null, runnable, "tunnel", config.tunnelStackSize()))
+                : Executors.newCachedThreadPool();
+        this.serverSocket = serverSocket;
         this.socketHandlerExecutor = socketHandlerExecutor;
         this.threadCount = threadCount;
+        this.context = HandlerContext.from(config);
+        this.registry = context.registry();
+        this.handlers = new HandlerPool(socketHandlerExecutor, this::newHandler, registry::size,
+                context.acceptWaits()::takeLongest, minHandlers(config), maxHandlers(config));
+        this.resizeInterval = config.handlerResizeInterval();
+        this.memory = new MemoryGuard(context, MemoryGuard::usedAfterCollection, MemoryGuard.MIN_IDLE);
+    }
+
+    static ServerSocket listen(final int port, final ServerSocketFactory socketFactory,
+                                final ProxyConfig config) throws IOException {
+        // nothing is bound for settings that the server would reject
+        config.validate();
+        final ServerSocket serverSocket = socketFactory.createServerSocket();
+        try {
+            config.clientSocketOptions().applyTo(serverSocket);
+            serverSocket.bind(new InetSocketAddress(port), config.backlog());
+            return serverSocket;
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the listening socket inherited from the process that launched this JVM.
+     * With systemd socket activation (or inetd in wait mode), the socket stays open
+     * while one server drains and the next one starts, so no connections are refused.
+     * They wait in the listen backlog until the next server starts, which is only after the old one has drained.
+     * @return inherited server socket
+     * @throws IOException if no listening socket was inherited
+     */
+    public static ServerSocket inheritedServerSocket() throws IOException {
+        final Channel channel = System.inheritedChannel();
+        if (!(channel instanceof ServerSocketChannel)) {
+            throw new IOException("No listening socket was inherited");
+        }
+        return ((ServerSocketChannel) channel).socket();
     }
 
+    /**
+     * Starts accepting connections.
+     * If a warm-up duration is configured, synthetic tunnels are run first; clients that connect
+     * in the meantime wait in the listen backlog. The server is ready once handlers are started.
+     */
     @Override
     public void run() {
-        range(0, threadCount)
-                .mapToObj(i -> newHandler())
-                .forEach(socketHandlerExecutor::submit);
+        if (config.healthPort() > 0) {
+            startHealthEndpoint();
+        }
+        if (!config.warmUpDuration().isZero()) {
+            warmUp();
+        }
+        handlers.start(threadCount);
+        startResizer();
+        memory.watch();
+        ready = !serverSocket.isClosed();
+    }
+
+    private int minHandlers(final ProxyConfig config) {
+        return config.minHandlers() > 0 ? config.minHandlers() : threadCount;
+    }
+
+    private int maxHandlers(final ProxyConfig config) {
+        return config.maxHandlers() > 0 ? config.maxHandlers() : threadCount;
+    }
+
+    private synchronized void startResizer() {
+        if (resizer == null && handlers.isResizable()) {
+            resizer = Executors.newSingleThreadScheduledExecutor(ProxyServer::daemonThread);
+            resizer.scheduleWithFixedDelay(handlers::sample,
+                    resizeInterval.toNanos(), resizeInterval.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void startHealthEndpoint() {
+        try {
+            health = new HealthEndpoint(new InetSocketAddress(config.healthPort()), Map.of("proxy", this));
+        } catch (IOException e) {
+            // without the endpoint the load balancer sees the server as down, which is safe
+            context.log().log(EventLog.Event.HEALTH_ENDPOINT_FAILED, e);
+        }
+    }
+
+    private void warmUp() {
+        try {
+            new WarmUp(config, config.warmUpDuration()).run();
+        } catch (IOException e) {
+            // a cold server is still better than no server
+            context.log().log(EventLog.Event.WARM_UP_FAILED, e);
+        }
+    }
+
+    /**
+     * Returns whether the server is accepting connections at full speed: it has finished warming up,
+     * and is not draining or closed. A load balancer should only send clients to a ready server.
+     * @return whether the server is ready
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    private static Thread daemonThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private SocketHandler newHandler() {
+        return new SocketHandler(serverSocket, tunnelExecutor, validator, context);
+    }
+
+    private static SocketHandler.Validator enforceGiphy() {
+        return ProxyHost.trustOnly(Set.of(GIPHY_SERVER));
+    }
+
+    /**
+     * Returns the registry of open connections.
+     * It can be used to list or close connections while the server is running.
+     * @return connection registry
+     */
+    public ConnectionRegistry connections() {
+        return registry;
+    }
+
+    /**
+     * Returns the bandwidth limits, including the current throughput and how often tunnels were throttled.
+     * @return bandwidth shaper
+     */
+    public BandwidthShaper bandwidth() {
+        return context.shaper();
+    }
+
+    /**
+     * Returns the scheduler that prioritizes interactive tunnels over bulk tunnels.
+     * @return priority scheduler
+     */
+    public PriorityScheduler scheduler() {
+        return context.scheduler();
+    }
+
+    /**
+     * Returns the bulkheads and circuit breakers that protect against failing remote servers.
+     * @return upstream guard
+     */
+    public UpstreamGuard upstreams() {
+        return context.upstreams();
+    }
+
+    /**
+     * Returns the event log, including how many events were dropped.
+     * @return event log
+     */
+    public EventLog log() {
+        return context.log();
+    }
+
+    /**
+     * Returns the counters and histograms, which are also published to the configured metrics file.
+     * @return metrics
+     */
+    public MetricsFile metrics() {
+        return context.metrics();
+    }
+
+    /**
+     * Returns the limits shared with the other proxies of the cluster.
+     * @return cluster limits
+     */
+    public ClusterLimits cluster() {
+        return context.cluster();
+    }
+
+    /**
+     * Returns the memory held by tunnel buffers, and how many tunnels are idle without one.
+     * @return tunnel memory
+     */
+    public TunnelMemory tunnelMemory() {
+        return context.tunnelMemory();
+    }
+
+    /**
+     * Returns how the server degrades when memory runs short.
+     * @return memory guard
+     */
+    public MemoryGuard memory() {
+        return memory;
+    }
+
+    /**
+     * Returns the port this server listens on.
+     * @return port
+     */
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of handlers currently accepting and handling connections.
+     * The number changes over time if the handler pool has different minimum and maximum sizes.
+     * @return number of handlers
+     */
+    public int handlerCount() {
+        return handlers.size();
+    }
+
+    /**
+     * Returns the most handlers the server can run, which is the most clients it serves at once.
+     * @return maximum number of handlers
+     */
+    public int maxHandlerCount() {
+        return handlers.max();
+    }
+
+    /**
+     * Returns the current tuning settings.
+     * @return settings
+     */
+    ProxyConfig config() {
+        return context.config();
     }
 
-    private Runnable newHandler() {
-        return new LoopingSocketHandler(
-                new SocketHandler(serverSocket, tunnelExecutor, enforceGiphy()));
+    /**
+     * Changes the settings of the running server, without dropping any connections.
+     * Settings that only apply when a server starts (see {@link ProxyConfig}) keep their current values,
+     * and their names are returned so the caller knows a restart is needed. New connections use the new
+     * settings; open connections mostly keep the ones they started with. The handler executor must be able
+     * to run as many handlers as the new maximum.
+     * @param next new settings
+     * @return names of the settings that were not changed because they need a restart
+     * @throws IllegalArgumentException if a setting is out of range, in which case nothing is changed
+     */
+    public synchronized List<String> reload(final ProxyConfig next) {
+        next.validate();
+        final ProxyConfig current = context.config();
+        final ProxyConfig applied = current.withReloadable(next);
+        handlers.bounds(minHandlers(applied), maxHandlers(applied));
+        context.shaper().limits(applied.perTunnelBytesPerSecond(), applied.perClientBytesPerSecond(),
+                applied.globalBytesPerSecond());
+        context.tunnelMemory().update(applied.releaseBuffersAfter(), applied.maxBufferBytes(), applied.bufferSize());
+        context.cluster().limits(applied.clusterMaxConnectionsPerClient(),
+                applied.clusterMaxConnectionsPerClientPerSecond(), applied.clusterMaxTunnelsPerDestination());
+        context.settings().set(applied);
+        memory.check();
+        if (ready) {
+            startResizer();
+        }
+        return current.restartNeeded(next);
     }
 
-    private SocketHandler.Validator enforceGiphy() {
-        return server -> {
-            if ("api.giphy.com".equalsIgnoreCase(server.host().getHostName()) && server.port() == 443) {
-                return null;
-            } else {
-                return server.host() + " is not trusted";
-            }
-        };
+    /**
+     * Stops accepting connections and waits for open connections to finish.
+     * Connections that are still open at the deadline are closed.
+     * The server is closed when this method returns.
+     * @param timeout maximum time to wait for open connections
+     * @return number of connections that were closed at the deadline
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int drain(final Duration timeout) throws InterruptedException {
+        // handlers finish their current connection, then exit because the server socket is closed
+        stopHandlers();
+        socketHandlerExecutor.shutdown();
+        closeServerSocket();
+        socketHandlerExecutor.awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        final int remaining = registry.closeAll();
+        close();
+        return remaining;
     }
 
     /**
      * Stops the server.
+     * Any open connections are closed.
      */
     @Override
     public void close() {
+        stopHandlers();
         socketHandlerExecutor.shutdown();
         tunnelExecutor.shutdown();
+        closeServerSocket();
+        memory.close();
+        registry.closeAll();
+        if (health != null) {
+            health.close();
+        }
+        context.close();
+    }
+
+    private synchronized void stopHandlers() {
+        ready = false;
+        if (resizer != null) {
+            resizer.shutdownNow();
+        }
+        handlers.stop();
+    }
+
+    private void closeServerSocket() {
         try {
             serverSocket.close();
         } catch (IOException e) { }
@@ -80,29 +436,41 @@ public class ProxyServer implements Runnable, AutoCloseable {
      * Starts the proxy server
      * The arguments are
      * <ol>
-     *     <li>port</li>
+     *     <li>port, or {@value #INHERITED_PORT} to use the listening socket inherited from the parent process</li>
      *     <li>number of threads (optional, default is {@value #DEFAULT_THREAD_COUNT})</li>
+     *     <li>seconds to wait for open connections on shutdown (optional, default is 30)</li>
      * </ol>
+     * or {@value #CONFIG_OPTION} and the path of a properties file (see {@link ConfigFile}). The file is
+     * reloaded whenever it changes.
      * @param args arguments
      */
     public static void main(final String[] args) {
+        if (args.length == 2 && CONFIG_OPTION.equals(args[0])) {
+            runConfigFile(Path.of(args[1]));
+            return;
+        }
+
         // get arguments
-        int port, threadCount;
+        int threadCount;
+        Duration drainTimeout;
         try {
-            port = getPort(args);
+            getPort(args);
             threadCount = getThreadCount(args);
+            drainTimeout = getDrainTimeout(args);
         } catch (Exception e) {
-            System.err.println("USAGE: java " + SocketHandler.class.getSimpleName() + " PORT [ THREAD_COUNT ]");
+            System.err.println("USAGE: java " + SocketHandler.class.getSimpleName() +
+                    " PORT|" + INHERITED_PORT + " [ THREAD_COUNT [ DRAIN_SECONDS ] ] | " + CONFIG_OPTION + " FILE");
             return;
         }
 
         // run server
         try {
-            new ProxyServer(
-                    port,
-                    ServerSocketFactory.getDefault(),
+            final ProxyServer server = new ProxyServer(
+                    serverSocket(args),
                     Executors.newFixedThreadPool(threadCount),
-                    threadCount).run();
+                    threadCount);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> drainQuietly(server, drainTimeout)));
+            server.run();
         } catch (IOException e) {
             System.err.println("Unable to start " + SocketHandler.class.getSimpleName() + ": " +
                     e.getMessage());
@@ -110,12 +478,61 @@ public class ProxyServer implements Runnable, AutoCloseable {
         }
     }
 
+    private static void runConfigFile(final Path file) {
+        final ConfigFile settings;
+        try {
+            settings = ConfigFile.load(file);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Unable to load configuration: " + e.getMessage());
+            return;
+        }
+
+        try {
+            final ServerSocket serverSocket = settings.port() == ConfigFile.INHERITED
+                    ? inheritedServerSocket()
+                    : listen(settings.port(), ServerSocketFactory.getDefault(), settings.config());
+            // a reload may raise the number of handlers, so the pool is not fixed
+            final ProxyServer server = new ProxyServer(serverSocket, Executors.newCachedThreadPool(),
+                    settings.threads(), settings.config(), ProxyHost.trustOnly(settings.trustedServers()));
+            final ScheduledExecutorService watcher = ConfigFile.watch(file, settings, server);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                watcher.shutdownNow();
+                drainQuietly(server, settings.drainTimeout());
+            }));
+            server.run();
+        } catch (IOException e) {
+            System.err.println("Unable to start " + SocketHandler.class.getSimpleName() + ": " +
+                    e.getMessage());
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private static void drainQuietly(final ProxyServer server, final Duration timeout) {
+        try {
+            server.drain(timeout);
+        } catch (InterruptedException e) {
+            server.close();
+        }
+    }
+
+    private static ServerSocket serverSocket(final String[] args) throws IOException {
+        if (isInherited(args)) {
+            return inheritedServerSocket();
+        }
+
+        return listen(Integer.parseInt(args[0]), ServerSocketFactory.getDefault(), ProxyConfig.defaults());
+    }
+
+    private static boolean isInherited(final String[] args) {
+        return INHERITED_PORT.equalsIgnoreCase(args[0]);
+    }
+
     private static int getPort(final String[] args) throws Exception {
         if (args.length < 1) {
             throw new Exception("Port is required");
         }
 
-        return Integer.parseInt(args[0]);
+        return isInherited(args) ? -1 : Integer.parseInt(args[0]);
     }
 
     private static int getThreadCount(final String[] args) throws Exception {
@@ -125,4 +542,12 @@ public class ProxyServer implements Runnable, AutoCloseable {
 
         return Integer.parseInt(args[1]);
     }
+
+    private static Duration getDrainTimeout(final String[] args) {
+        if (args.length <= 2) {
+            return DEFAULT_DRAIN_TIMEOUT;
+        }
+
+        return Duration.ofSeconds(Long.parseLong(args[2]));
+    }
 }
@@ -0,0 +1,81 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes log lines to a file, moving it aside once it reaches a maximum size.
+ * The current file is {@code name}; older files are {@code name.1} (newest) to {@code name.N} (oldest).
+ * The file is opened on the first write, so creating a sink never fails.
+ */
+class RotatingFileSink implements EventLog.Sink {
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private Writer writer;
+    private long size;
+
+    /**
+     * Creates a sink.
+     * @param file log file
+     * @param maxBytes size at which the file is rotated
+     * @param maxFiles number of old files to keep
+     */
+    RotatingFileSink(final Path file, final long maxBytes, final int maxFiles) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    public void write(final CharSequence lines) throws IOException {
+        if (writer == null) {
+            open();
+        }
+        // log lines are ASCII, so characters are bytes
+        if (size > 0 && size + lines.length() > maxBytes) {
+            rotate();
+        }
+        writer.append(lines);
+        writer.flush();
+        size += lines.length();
+    }
+
+    private void open() throws IOException {
+        writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        size = Files.size(file);
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rotated(final int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.spinthechoice.privateproxy;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the server name indication (SNI) from a TLS ClientHello.
+ * The ClientHello is sent in cleartext before any keys are negotiated, so the proxy learns
+ * the name of the server the client wants without being able to decrypt anything.
+ */
+class SniParser {
+    static class InvalidClientHelloException extends Exception {
+        InvalidClientHelloException(final String message) {
+            super(message);
+        }
+    }
+
+    private static final int HANDSHAKE_RECORD = 22;
+    private static final int CLIENT_HELLO = 1;
+    private static final int SERVER_NAME_EXTENSION = 0;
+    private static final int HOST_NAME = 0;
+    private static final int RANDOM_LENGTH = 32;
+
+    private final ByteBuffer record;
+
+    private SniParser(final byte[] record, final int length) {
+        this.record = ByteBuffer.wrap(record, 0, length);
+    }
+
+    /**
+     * Parses the ClientHello.
+     * @return server name
+     * @throws InvalidClientHelloException if the record is not a ClientHello or has no server name
+     */
+    String parse() throws InvalidClientHelloException {
+        try {
+            validateRecordHeader();
+            validateHandshakeHeader();
+            skipToExtensions();
+            return findServerName();
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new InvalidClientHelloException("Truncated ClientHello");
+        }
+    }
+
+    private void validateRecordHeader() throws InvalidClientHelloException {
+        if (unsigned(record.get()) != HANDSHAKE_RECORD) {
+            throw new InvalidClientHelloException("Not a TLS handshake");
+        }
+        skip(2); // version
+        final int length = record.getShort() & 0xffff;
+        // the ClientHello may continue in another record; parse what is here
+        record.limit(Math.min(record.limit(), record.position() + length));
+    }
+
+    private void validateHandshakeHeader() throws InvalidClientHelloException {
+        if (unsigned(record.get()) != CLIENT_HELLO) {
+            throw new InvalidClientHelloException("Not a ClientHello");
+        }
+        skip(3); // handshake message length
+    }
+
+    private void skipToExtensions() {
+        skip(2); // client version
+        skip(RANDOM_LENGTH);
+        skip(unsigned(record.get())); // session ID
+        skip(record.getShort() & 0xffff); // cipher suites
+        skip(unsigned(record.get())); // compression methods
+        skip(2); // extensions length
+    }
+
+    private String findServerName() throws InvalidClientHelloException {
+        while (record.hasRemaining()) {
+            final int type = record.getShort() & 0xffff;
+            final int length = record.getShort() & 0xffff;
+            if (type == SERVER_NAME_EXTENSION) {
+                return readServerName();
+            }
+            skip(length);
+        }
+        throw new InvalidClientHelloException("No server name in ClientHello");
+    }
+
+    private String readServerName() throws InvalidClientHelloException {
+        skip(2); // server name list length
+        if (unsigned(record.get()) != HOST_NAME) {
+            throw new InvalidClientHelloException("Unsupported server name type");
+        }
+        final byte[] name = new byte[record.getShort() & 0xffff];
+        record.get(name);
+        return new String(name, StandardCharsets.US_ASCII);
+    }
+
+    private void skip(final int length) {
+        record.position(record.position() + length);
+    }
+
+    private static int unsigned(final byte b) {
+        return b & 0xff;
+    }
+
+    /**
+     * Creates a parser for the first TLS record sent by a client.
+     * @param record the record, including its 5-byte header
+     * @param length length of the record
+     * @return parser instance
+     */
+    static SniParser fromRecord(final byte[] record, final int length) {
+        return new SniParser(record, length);
+    }
+}
@@ -1,26 +1,48 @@
 package com.spinthechoice.privateproxy;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntConsumer;
 
 import com.spinthechoice.privateproxy.ConnectParser.Server;
 import com.spinthechoice.privateproxy.ConnectParser.InvalidConnectException;
+import com.spinthechoice.privateproxy.ConnectionRegistry.Connection;
+import com.spinthechoice.privateproxy.ConnectionRegistry.State;
+import com.spinthechoice.privateproxy.EventLog.Event;
+import com.spinthechoice.privateproxy.MetricsFile.Counter;
+import com.spinthechoice.privateproxy.MetricsFile.Histogram;
+import com.spinthechoice.privateproxy.SniParser.InvalidClientHelloException;
+import com.spinthechoice.privateproxy.UpstreamGuard.UnavailableException;
 
 /**
  * Listens for and handles connections to clients.
  * For each client, the handler expects to receive an HTTP CONNECT message.
  * Once the CONNECT message is received, the handler sets up a tunnel to another
  * server, and SSL is negotiated via that server. Data is transmitted between
- * the client and remote server until one end hangs up. Note that since SSL is
+ * the client and remote server until both ends hang up. Note that since SSL is
  * negotiated by the remote server, this server cannot read any data.
+ * In {@link ListenerMode#SNI} mode, the client skips the CONNECT message and starts TLS
+ * immediately. The server is taken from the ClientHello, which is then replayed to it.
+ * In {@link ListenerMode#H2} mode, each client connection carries many CONNECT streams.
  */
 class SocketHandler implements Runnable {
     /**
      * Interface to implement for additional checks against the server.
+     * A check that takes a while (for example, one that asks another service) should also implement
+     * {@link #checkServerAsync(Server)}, so the handler can read the rest of the request meanwhile;
+     * {@link CachingValidator} does that, and remembers the decisions.
      */
     @FunctionalInterface
     interface Validator {
@@ -32,6 +54,17 @@ class SocketHandler implements Runnable {
          * @return reason server is invalid, or {@code null} or empty String otherwise.
          */
         String checkServer(Server server);
+
+        /**
+         * Starts checking the server for any problems. By default, the server is checked at once.
+         * If the stage completes exceptionally, or does not complete within the connect timeout,
+         * the server could not be checked, and the client gets 503 Service Unavailable.
+         * @param server server
+         * @return stage that completes with the reason server is invalid, or {@code null} or empty String otherwise
+         */
+        default CompletionStage<String> checkServerAsync(final Server server) {
+            return CompletableFuture.completedFuture(checkServer(server));
+        }
     }
 
     private static class BadRequestException extends Exception {
@@ -40,30 +73,64 @@ class SocketHandler implements Runnable {
         }
     }
 
-    private final ServerSocket serverSocket;
-    private final ExecutorService tunnelExecutor;
-    private final Validator validator;
-    private Socket clientSocket;
+    /**
+     * The remote server could not be reached.
+     */
+    private static class BadGatewayException extends Exception {
+        private final byte[] response;
+
+        BadGatewayException(final byte[] response, final Throwable cause) {
+            super(cause);
+            this.response = response;
+        }
+
+        int status() {
+            return response == GATEWAY_TIMEOUT ? 504 : 502;
+        }
+    }
 
     /**
-     * Creates a new handler.
-     * @param serverSocket server socket
-     * @param tunnelExecutor executor for tunnel threads
+     * Finishes setting up a tunnel once the remote server is connected.
      */
-    SocketHandler(final ServerSocket serverSocket, final ExecutorService tunnelExecutor) {
-        this(serverSocket, tunnelExecutor, x -> null);
+    @FunctionalInterface
+    private interface Handshake {
+        void complete(Socket upstream) throws IOException;
     }
 
+    // a successful response to CONNECT has no body and must not have a Content-Length
+    private static final byte[] OK = "HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BAD_GATEWAY = response("502 Bad Gateway");
+    private static final byte[] SERVICE_UNAVAILABLE = response("503 Service Unavailable");
+    private static final byte[] GATEWAY_TIMEOUT = response("504 Gateway Timeout");
+    private static final byte[] TOO_MANY_REQUESTS = response("429 Too Many Requests");
+    private static final byte[] HANDSHAKE_FAILURE = alert(40);
+    private static final byte[] INTERNAL_ERROR = alert(80);
+    private static final byte[] UNRECOGNIZED_NAME = alert(112);
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService tunnelExecutor;
+    private final Validator validator;
+    private final HandlerContext context;
+    private final ConnectionRegistry registry;
+    private final MetricsFile metrics;
+    private Socket clientSocket;
+    private Connection connection;
+
     /**
      * Creates a new handler.
      * @param serverSocket server socket
      * @param tunnelExecutor executor for tunnel threads
      * @param validator additional validation of incoming messages
+     * @param context state shared with the server's other handlers
      */
-    SocketHandler(final ServerSocket serverSocket, final ExecutorService tunnelExecutor, final Validator validator) {
+    SocketHandler(final ServerSocket serverSocket, final ExecutorService tunnelExecutor, final Validator validator,
+                  final HandlerContext context) {
         this.serverSocket = serverSocket;
         this.tunnelExecutor = tunnelExecutor;
         this.validator = validator;
+        this.context = context;
+        this.registry = context.registry();
+        this.metrics = context.metrics();
     }
 
     /**
@@ -84,7 +151,39 @@ class SocketHandler implements Runnable {
         clientSocket = acceptConnection();
 
         if (clientSocket != null) {
-            handleMessages();
+            metrics.increment(Counter.CONNECTIONS_ACCEPTED);
+            connection = registry.register(clientSocket);
+            final ClusterLimits.Permit permit;
+            try {
+                permit = context.cluster().acquireClient(clientSocket.getInetAddress());
+            } catch (UnavailableException e) {
+                refuseClient();
+                return;
+            }
+            try {
+                handleMessages();
+            } finally {
+                permit.close();
+            }
+        }
+    }
+
+    /**
+     * The client has too many connections across the cluster, so it is refused before its request is read.
+     */
+    private void refuseClient() {
+        metrics.increment(Counter.CLIENTS_LIMITED);
+        try (final AccessLog.Entry entry = context.accessLog().begin()) {
+            entry.status(429);
+            switch (context.config().listenerMode()) {
+                case SNI -> send(INTERNAL_ERROR);
+                case H2 -> new H2Connection(clientSocket, tunnelExecutor, this::handleStream).refuse();
+                default -> send(TOO_MANY_REQUESTS);
+            }
+        } catch (IOException e) {
+            context.log().log(Event.CONNECTION_FAILED, e);
+        } finally {
+            closeClient();
         }
     }
 
@@ -92,59 +191,228 @@ class SocketHandler implements Runnable {
         // isolate the error handling for accepting client connections
         // for any future errors, we know there is a client (or at one point there was)
         try {
-            return serverSocket.accept();
+            final long start = context.acceptWaits().beforeAccept();
+            final Socket socket = serverSocket.accept();
+            context.acceptWaits().accepted(start);
+            return configure(socket, context.config().clientSocketOptions());
         } catch (Exception e) {
-            System.err.println("Proxy Failed: " + e);
-            e.printStackTrace(System.err);
+            if (!isServerOpen()) {
+                // server is closing or draining
+                return null;
+            }
+            context.log().log(Event.ACCEPT_FAILED, e);
             return null;
         }
     }
 
+    private static Socket configure(final Socket socket, final SocketOptions options) throws IOException {
+        try {
+            options.applyTo(socket);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
     private void handleMessages() {
         try {
             handleMessagesThrowingErrors();
         } catch (IOException e) {
-            System.err.println("error writing response: " + e.getMessage());
-            e.printStackTrace(System.err);
+            context.log().log(Event.CONNECTION_FAILED, e);
         } finally {
             closeClient();
         }
     }
 
     private void handleMessagesThrowingErrors() throws IOException {
-        try {
+        switch (context.config().listenerMode()) {
+            case SNI -> handleClientHello();
+            case H2 -> handleH2();
+            default -> handleConnect();
+        }
+    }
+
+    /**
+     * Connecting to the remote server starts as soon as the request line is validated, while
+     * the rest of the header is read. If the validator needs time to decide, the rest of the header
+     * is read while it does, and connecting starts once the server is found valid.
+     * The client gets a 200 response only once the remote server is connected,
+     * so a failed connection gets an explicit error response.
+     */
+    private void handleConnect() throws IOException {
+        final HeaderReader in = new HeaderReader(clientSocket.getInputStream());
+        boolean headerRead = false;
+        try (final AccessLog.Entry entry = context.accessLog().begin()) {
+            try {
 
-            Server server = getServer(readRequestLine());
-            runValidator(server);
-            sendOk();
-            tunnelClientAndServer(server);
+                final Server server = getServer(ConnectParser.fromRequestLine(in.readLine()));
+                final CompletableFuture<String> decision = startValidator(server);
+                if (!decision.isDone()) {
+                    eatRestOfHeader(in);
+                    headerRead = true;
+                }
+                awaitValidator(decision);
+                entry.destination(server);
+                try (final UpstreamGuard.Permit permit = acquire(server)) {
+                    final Future<Socket> upstream = tunnelExecutor.submit(() -> connect(server, permit, entry));
+                    connection.state(State.CONNECTING);
+                    if (!headerRead) {
+                        readRestOfHeader(in, upstream);
+                    }
+                    in.release();
+                    tunnelClientAndServer(awaitConnection(upstream), socket -> send(OK), entry);
+                }
 
-        } catch (BadRequestException e) {
-            badRequest(e.getMessage());
+            } catch (BadRequestException e) {
+                metrics.increment(Counter.BAD_REQUESTS);
+                entry.status(400);
+                if (!headerRead) {
+                    eatRestOfHeader(in);
+                }
+                badRequest(e.getMessage());
+            } catch (UnavailableException e) {
+                metrics.increment(Counter.UPSTREAM_UNAVAILABLE);
+                entry.status(503);
+                if (!headerRead) {
+                    eatRestOfHeader(in);
+                }
+                send(SERVICE_UNAVAILABLE);
+            } catch (BadGatewayException e) {
+                entry.status(e.status());
+                send(e.response);
+            }
         }
     }
 
-    private Server getServer(final String requestLine) throws BadRequestException {
-        try {
-            return ConnectParser.fromRequestLine(requestLine).parse();
-        } catch (InvalidConnectException e) {
-            throw new BadRequestException(e.getMessage());
+    /**
+     * The client is speaking TLS, not HTTP, so errors are reported with a fatal TLS alert.
+     */
+    private void handleClientHello() throws IOException {
+        try (final AccessLog.Entry entry = context.accessLog().begin()) {
+            try {
+
+                final byte[] hello = readRecord();
+                final Server server = getServer(hello);
+                awaitValidator(startValidator(server));
+                entry.destination(server);
+                try (final UpstreamGuard.Permit permit = acquire(server)) {
+                    connection.state(State.CONNECTING);
+                    final Socket upstream = awaitConnection(
+                            tunnelExecutor.submit(() -> connect(server, permit, entry)));
+                    tunnelClientAndServer(upstream, socket -> replay(socket, hello, entry), entry);
+                }
+
+            } catch (InvalidClientHelloException | BadRequestException e) {
+                // alerts are recorded as the HTTP status a CONNECT request would have gotten
+                metrics.increment(Counter.BAD_REQUESTS);
+                entry.status(400);
+                send(e instanceof BadRequestException ? UNRECOGNIZED_NAME : HANDSHAKE_FAILURE);
+            } catch (UnavailableException e) {
+                metrics.increment(Counter.UPSTREAM_UNAVAILABLE);
+                entry.status(503);
+                send(INTERNAL_ERROR);
+            } catch (BadGatewayException e) {
+                entry.status(e.status());
+                send(INTERNAL_ERROR);
+            }
+        }
+    }
+
+    private void handleH2() throws IOException {
+        connection.state(State.TUNNELING);
+        new H2Connection(clientSocket, tunnelExecutor, this::handleStream).serve();
+    }
+
+    /**
+     * Sets up the tunnel for one CONNECT stream of an HTTP/2 connection.
+     */
+    private void handleStream(final H2Connection.Stream stream) throws IOException {
+        try (final AccessLog.Entry entry = context.accessLog().begin()) {
+            try {
+
+                final Server server = getServer(ConnectParser.fromAuthority(stream.authority()));
+                awaitValidator(startValidator(server));
+                entry.destination(server);
+                try (final UpstreamGuard.Permit permit = acquire(server)) {
+                    final Socket upstream;
+                    try {
+                        upstream = connect(server, permit, entry);
+                    } catch (SocketTimeoutException e) {
+                        respond(stream, entry, 504);
+                        return;
+                    } catch (IOException e) {
+                        respond(stream, entry, 502);
+                        return;
+                    }
+                    try (upstream; final BandwidthShaper.Throttle throttle =
+                            context.shaper().open(clientSocket.getInetAddress())) {
+                        metrics.increment(Counter.TUNNELS_OPENED);
+                        entry.status(200);
+                        final long start = System.nanoTime();
+                        try {
+                            stream.tunnel(upstream, upstreamBytes(throttle, entry), downstreamBytes(throttle, entry));
+                        } finally {
+                            recordTunnelDuration(start);
+                        }
+                    }
+                }
+
+            } catch (BadRequestException e) {
+                metrics.increment(Counter.BAD_REQUESTS);
+                respond(stream, entry, 400);
+            } catch (UnavailableException e) {
+                metrics.increment(Counter.UPSTREAM_UNAVAILABLE);
+                respond(stream, entry, 503);
+            }
+        }
+    }
+
+    private static void respond(final H2Connection.Stream stream, final AccessLog.Entry entry, final int status)
+            throws IOException {
+        entry.status(status);
+        stream.respond(status);
+    }
+
+    /**
+     * Reads the ClientHello record into a buffer of its exact length, which is kept until it is replayed.
+     */
+    private byte[] readRecord() throws IOException, InvalidClientHelloException {
+        final byte[] buf = new byte[TlsRecords.MAX_RECORD_LENGTH];
+        final DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+        in.readFully(buf, 0, TlsRecords.HEADER_LENGTH);
+        if (TlsRecords.completeLength(buf, TlsRecords.HEADER_LENGTH) == TlsRecords.NOT_TLS) {
+            throw new InvalidClientHelloException("Not a TLS record");
         }
+        final int payloadLength = TlsRecords.payloadLength(buf, 0);
+        in.readFully(buf, TlsRecords.HEADER_LENGTH, payloadLength);
+        return Arrays.copyOf(buf, TlsRecords.HEADER_LENGTH + payloadLength);
+    }
+
+    private Server getServer(final byte[] hello) throws InvalidClientHelloException {
+        final String name = SniParser.fromRecord(hello, hello.length).parse();
+        return new Server(name, context.config().sniUpstreamPort());
     }
 
-    private String readRequestLine() throws IOException {
-        final BufferedReader in = input();
-        final String line = in.readLine();
-        eatRestOfHeader(in);
-        return line;
+    private void replay(final Socket upstream, final byte[] hello, final AccessLog.Entry entry) throws IOException {
+        final int length = hello.length;
+        final OutputStream out = upstream.getOutputStream();
+        out.write(hello);
+        out.flush();
+        connection.recordUpstream(length);
+        metrics.add(Counter.BYTES_UPSTREAM, length);
+        entry.upstream().accept(length);
     }
 
-    private BufferedReader input() throws IOException {
-        return new BufferedReader(
-                new InputStreamReader(clientSocket.getInputStream()));
+    private Server getServer(final ConnectParser parser) throws BadRequestException {
+        try {
+            return parser.parse();
+        } catch (InvalidConnectException e) {
+            throw new BadRequestException(e.getMessage());
+        }
     }
 
-    private static void eatRestOfHeader(final BufferedReader in) throws IOException {
+    private static void eatRestOfHeader(final HeaderReader in) throws IOException {
         String line;
         do {
             line = in.readLine();
@@ -152,36 +420,152 @@ class SocketHandler implements Runnable {
                 line.charAt(0) != '\r' && line.charAt(0) != '\n');
     }
 
-    private void runValidator(final Server server) throws BadRequestException {
-        final String reason = validator.checkServer(server);
+    private static void readRestOfHeader(final HeaderReader in, final Future<Socket> upstream)
+            throws IOException {
+        try {
+            eatRestOfHeader(in);
+        } catch (IOException e) {
+            // the client is gone; don't leave the remote server connected
+            closeWhenConnected(upstream);
+            throw e;
+        }
+    }
+
+    private static void closeWhenConnected(final Future<Socket> upstream) {
+        try {
+            upstream.get().close();
+        } catch (ExecutionException | IOException e) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<String> startValidator(final Server server) {
+        return validator.checkServerAsync(server).toCompletableFuture();
+    }
+
+    /**
+     * A server that could not be checked is not trusted, but that is not the client's fault.
+     * A validator is not trusted to time out on its own, so the handler waits no longer than the connect timeout.
+     */
+    private void awaitValidator(final CompletableFuture<String> decision)
+            throws BadRequestException, UnavailableException {
+        final long timeout = context.config().connectTimeout().toNanos();
+        final String reason;
+        try {
+            reason = timeout > 0 ? decision.get(timeout, TimeUnit.NANOSECONDS) : decision.get();
+        } catch (TimeoutException e) {
+            throw new UnavailableException("Server check timed out");
+        } catch (ExecutionException e) {
+            throw new UnavailableException("Server could not be checked");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnavailableException("Interrupted while checking the server");
+        }
         if (reason != null && !reason.isEmpty()) {
             throw new BadRequestException(reason);
         }
     }
 
-    private void sendOk()  {
+    /**
+     * A tunnel needs buffers, so none is opened while the server's buffer budget is used up.
+     */
+    private UpstreamGuard.Permit acquire(final Server server) throws UnavailableException {
+        if (context.tunnelMemory().exhausted()) {
+            throw new UnavailableException("Tunnel buffers are used up");
+        }
+        return context.upstreams().acquire(server);
+    }
+
+    private static Socket awaitConnection(final Future<Socket> upstream) throws BadGatewayException {
         try {
-            final PrintWriter out = output();
-            out.print("HTTP/1.1 200 OK\r\n\r\n");
-            out.flush();
-        } catch (IOException e) {
-            e.printStackTrace(System.err);
+            return upstream.get();
+        } catch (ExecutionException e) {
+            throw new BadGatewayException(
+                    e.getCause() instanceof SocketTimeoutException ? GATEWAY_TIMEOUT : BAD_GATEWAY,
+                    e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeWhenConnected(upstream);
+            throw new BadGatewayException(BAD_GATEWAY, e);
         }
     }
 
-    private void tunnelClientAndServer(final Server server) throws IOException {
-        try (final Socket serverSocket = new Socket(server.host(), server.port());
-             final Tunnel clientToServer = new Tunnel(clientSocket, serverSocket);
-             final Tunnel serverToClient = new Tunnel(serverSocket, clientSocket)) {
+    private void tunnelClientAndServer(final Socket upstream, final Handshake handshake, final AccessLog.Entry entry)
+            throws IOException {
+        final boolean framing = context.config().tlsRecordFraming();
+        final PriorityScheduler.Flow flow = context.scheduler().open();
+        try (final Socket serverSocket = upstream;
+             final BandwidthShaper.Throttle throttle = context.shaper().open(
+                     clientSocket.getInetAddress(), flow::isInteractive);
+             final Tunnel clientToServer = new Tunnel(clientSocket, serverSocket,
+                     upstreamBytes(throttle, entry), flow, framing, context.tunnelMemory());
+             final Tunnel serverToClient = new Tunnel(serverSocket, clientSocket,
+                     downstreamBytes(throttle, entry), flow, framing, context.tunnelMemory())) {
+
+            connection.attach(serverSocket);
+            handshake.complete(serverSocket);
+            entry.status(200);
+            connection.state(State.TUNNELING);
+            metrics.increment(Counter.TUNNELS_OPENED);
+            final long start = System.nanoTime();
 
-            final Future<?> clientFuture = tunnelExecutor.submit(clientToServer);
+            // this thread would only wait for the tunnel, so it relays one direction itself
             final Future<?> serverFuture = tunnelExecutor.submit(serverToClient);
 
-            waitFor(clientFuture);
-            waitFor(serverFuture);
+            try {
+                clientToServer.run();
+                waitFor(serverFuture);
+            } finally {
+                recordTunnelDuration(start);
+            }
         }
     }
 
+    private IntConsumer upstreamBytes(final BandwidthShaper.Throttle throttle, final AccessLog.Entry entry) {
+        return both(connection::recordUpstream, throttle::transferred)
+                .andThen(entry.upstream())
+                .andThen(bytes -> metrics.add(Counter.BYTES_UPSTREAM, bytes));
+    }
+
+    private IntConsumer downstreamBytes(final BandwidthShaper.Throttle throttle, final AccessLog.Entry entry) {
+        return both(connection::recordDownstream, throttle::transferred)
+                .andThen(entry.downstream())
+                .andThen(bytes -> metrics.add(Counter.BYTES_DOWNSTREAM, bytes));
+    }
+
+    private void recordTunnelDuration(final long start) {
+        metrics.record(Histogram.TUNNEL_MILLIS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private Socket connect(final Server server, final UpstreamGuard.Permit permit, final AccessLog.Entry entry)
+            throws IOException {
+        final Socket socket = configure(new Socket(), context.config().upstreamSocketOptions());
+        final long start = System.nanoTime();
+        try {
+            // the name is looked up here, on the tunnel thread, only once the breaker has let the attempt through;
+            // a name that does not resolve fails like any other connection
+            socket.connect(new InetSocketAddress(server.host(), server.port()),
+                    (int) context.config().connectTimeout().toMillis());
+            final long elapsed = System.nanoTime() - start;
+            permit.connected(true, elapsed);
+            entry.connected(elapsed);
+            metrics.record(Histogram.CONNECT_MICROS, TimeUnit.NANOSECONDS.toMicros(elapsed));
+            return socket;
+        } catch (IOException e) {
+            final long elapsed = System.nanoTime() - start;
+            permit.connected(false, elapsed);
+            entry.connected(elapsed);
+            metrics.increment(Counter.UPSTREAM_FAILURES);
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static IntConsumer both(final IntConsumer first, final IntConsumer second) {
+        return first.andThen(second);
+    }
+
     private static void waitFor(final Future<?> future) throws IOException {
         try {
             future.get();
@@ -199,6 +583,21 @@ class SocketHandler implements Runnable {
         out.flush();
     }
 
+    private void send(final byte[] response) throws IOException {
+        final OutputStream out = clientSocket.getOutputStream();
+        out.write(response);
+        out.flush();
+    }
+
+    private static byte[] response(final String status) {
+        return ("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] alert(final int description) {
+        // fatal alert, in a record with the version clients use before negotiating one
+        return new byte[] {21, 3, 1, 0, 2, 2, (byte) description};
+    }
+
     private PrintWriter output() throws IOException {
         return output(clientSocket.getOutputStream());
     }
@@ -210,9 +609,13 @@ class SocketHandler implements Runnable {
     }
 
     private void closeClient() {
+        connection.state(State.CLOSING);
         try {
             clientSocket.close();
         } catch (IOException e) {
+        } finally {
+            registry.unregister(connection);
+            metrics.increment(Counter.CONNECTIONS_CLOSED);
         }
     }
 }
@@ -0,0 +1,292 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.time.Duration;
+
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * TCP options for one leg of a tunnel (client or remote server).
+ * Use {@link #builder()} to create an instance; unset values keep the operating system's defaults,
+ * except {@code TCP_NODELAY}, which is on by default because the proxy relays data as it arrives.
+ */
+public class SocketOptions {
+    /**
+     * Builds {@link SocketOptions}.
+     */
+    public static class Builder {
+        private boolean tcpNoDelay = true;
+        private boolean keepAlive;
+        private Duration keepAliveIdle;
+        private Duration keepAliveInterval;
+        private int keepAliveCount;
+        private int sendBufferSize;
+        private int receiveBufferSize;
+        private Duration linger;
+
+        private Builder() {
+        }
+
+        private Builder(final SocketOptions options) {
+            tcpNoDelay = options.tcpNoDelay;
+            keepAlive = options.keepAlive;
+            keepAliveIdle = options.keepAliveIdle;
+            keepAliveInterval = options.keepAliveInterval;
+            keepAliveCount = options.keepAliveCount;
+            sendBufferSize = options.sendBufferSize;
+            receiveBufferSize = options.receiveBufferSize;
+            linger = options.linger;
+        }
+
+        /**
+         * Sets whether small writes are sent immediately ({@code TCP_NODELAY}) instead of being
+         * held back by Nagle's algorithm until earlier data is acknowledged.
+         * @param enabled whether to disable Nagle's algorithm
+         * @return this builder
+         */
+        public Builder tcpNoDelay(final boolean enabled) {
+            this.tcpNoDelay = enabled;
+            return this;
+        }
+
+        /**
+         * Sets whether idle connections are probed ({@code SO_KEEPALIVE}), so dead peers are noticed.
+         * @param enabled whether to send keepalive probes
+         * @return this builder
+         */
+        public Builder keepAlive(final boolean enabled) {
+            this.keepAlive = enabled;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection is idle before the first keepalive probe.
+         * Ignored where {@code TCP_KEEPIDLE} is not supported.
+         * @param idle idle time, or {@code null} for the system default
+         * @return this builder
+         */
+        public Builder keepAliveIdle(final Duration idle) {
+            this.keepAliveIdle = idle;
+            return this;
+        }
+
+        /**
+         * Sets the time between keepalive probes.
+         * Ignored where {@code TCP_KEEPINTERVAL} is not supported.
+         * @param interval interval, or {@code null} for the system default
+         * @return this builder
+         */
+        public Builder keepAliveInterval(final Duration interval) {
+            this.keepAliveInterval = interval;
+            return this;
+        }
+
+        /**
+         * Sets the number of unanswered keepalive probes before the connection is dropped.
+         * Ignored where {@code TCP_KEEPCOUNT} is not supported.
+         * @param count number of probes, or 0 for the system default
+         * @return this builder
+         */
+        public Builder keepAliveCount(final int count) {
+            this.keepAliveCount = count;
+            return this;
+        }
+
+        /**
+         * Sets the size of the send buffer ({@code SO_SNDBUF}).
+         * @param bytes buffer size, or 0 for the system default
+         * @return this builder
+         */
+        public Builder sendBufferSize(final int bytes) {
+            this.sendBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the size of the receive buffer ({@code SO_RCVBUF}).
+         * Larger buffers allow more data in flight, which helps bulk transfers on long links.
+         * @param bytes buffer size, or 0 for the system default
+         * @return this builder
+         */
+        public Builder receiveBufferSize(final int bytes) {
+            this.receiveBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets how long closing a socket waits for unsent data ({@code SO_LINGER}).
+         * A zero duration resets the connection on close instead.
+         * @param linger linger time, or {@code null} for the system default
+         * @return this builder
+         */
+        public Builder linger(final Duration linger) {
+            this.linger = linger;
+            return this;
+        }
+
+        /**
+         * Creates the options.
+         * @return options
+         */
+        public SocketOptions build() {
+            return new SocketOptions(this);
+        }
+    }
+
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final Duration keepAliveIdle;
+    private final Duration keepAliveInterval;
+    private final int keepAliveCount;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final Duration linger;
+
+    private SocketOptions(final Builder builder) {
+        tcpNoDelay = builder.tcpNoDelay;
+        keepAlive = builder.keepAlive;
+        keepAliveIdle = builder.keepAliveIdle;
+        keepAliveInterval = builder.keepAliveInterval;
+        keepAliveCount = builder.keepAliveCount;
+        sendBufferSize = builder.sendBufferSize;
+        receiveBufferSize = builder.receiveBufferSize;
+        linger = builder.linger;
+    }
+
+    /**
+     * Creates a builder with the default options.
+     * @return builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the default options.
+     * @return default options
+     */
+    public static SocketOptions defaults() {
+        return builder().build();
+    }
+
+    /**
+     * Returns a new builder with these options.
+     * @return builder
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Applies the options to a socket.
+     * Buffer sizes should be set before the socket connects, so they are used to negotiate window scaling.
+     * @param socket socket
+     * @throws IOException if an option cannot be set
+     */
+    void applyTo(final Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        if (keepAlive) {
+            setIfSupported(socket, ExtendedSocketOptions.TCP_KEEPIDLE, keepAliveIdle);
+            setIfSupported(socket, ExtendedSocketOptions.TCP_KEEPINTERVAL, keepAliveInterval);
+            if (keepAliveCount > 0 && socket.supportedOptions().contains(ExtendedSocketOptions.TCP_KEEPCOUNT)) {
+                socket.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, keepAliveCount);
+            }
+        }
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        if (linger != null) {
+            socket.setSoLinger(true, (int) linger.toSeconds());
+        }
+    }
+
+    /**
+     * Applies the options that accepted sockets inherit from the listening socket.
+     * This must happen before the socket is bound.
+     * @param serverSocket unbound server socket
+     * @throws IOException if an option cannot be set
+     */
+    void applyTo(final ServerSocket serverSocket) throws IOException {
+        if (receiveBufferSize > 0) {
+            serverSocket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    private static void setIfSupported(final Socket socket, final SocketOption<Integer> option,
+                                       final Duration value) throws IOException {
+        if (value != null && socket.supportedOptions().contains(option)) {
+            socket.setOption(option, (int) Math.max(1, value.toSeconds()));
+        }
+    }
+
+    /**
+     * Returns whether Nagle's algorithm is disabled.
+     * @return whether {@code TCP_NODELAY} is set
+     */
+    public boolean tcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Returns whether idle connections are probed.
+     * @return whether {@code SO_KEEPALIVE} is set
+     */
+    public boolean keepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Returns how long a connection is idle before the first keepalive probe.
+     * @return idle time, or {@code null} for the system default
+     */
+    public Duration keepAliveIdle() {
+        return keepAliveIdle;
+    }
+
+    /**
+     * Returns the time between keepalive probes.
+     * @return interval, or {@code null} for the system default
+     */
+    public Duration keepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    /**
+     * Returns the number of unanswered keepalive probes before the connection is dropped.
+     * @return number of probes, or 0 for the system default
+     */
+    public int keepAliveCount() {
+        return keepAliveCount;
+    }
+
+    /**
+     * Returns the size of the send buffer.
+     * @return buffer size, or 0 for the system default
+     */
+    public int sendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Returns the size of the receive buffer.
+     * @return buffer size, or 0 for the system default
+     */
+    public int receiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Returns how long closing a socket waits for unsent data.
+     * @return linger time, or {@code null} for the system default
+     */
+    public Duration linger() {
+        return linger;
+    }
+}
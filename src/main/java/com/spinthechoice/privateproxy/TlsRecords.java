@@ -0,0 +1,82 @@
+package com.spinthechoice.privateproxy;
+
+/**
+ * Finds TLS record boundaries in tunneled data.
+ * Only the 5-byte record headers are read. They are sent in cleartext, so this does not
+ * require (or allow) decrypting anything.
+ */
+class TlsRecords {
+    /**
+     * Length of a record header: content type, protocol version and record length.
+     */
+    static final int HEADER_LENGTH = 5;
+
+    /**
+     * Largest record payload allowed by TLS 1.2 (2^14 bytes of plaintext plus 2048 bytes of expansion).
+     */
+    static final int MAX_PAYLOAD_LENGTH = (1 << 14) + 2048;
+
+    /**
+     * Largest record, including its header.
+     */
+    static final int MAX_RECORD_LENGTH = HEADER_LENGTH + MAX_PAYLOAD_LENGTH;
+
+    /**
+     * Returned when the data does not look like a stream of TLS records.
+     */
+    static final int NOT_TLS = -1;
+
+    private static final int MIN_CONTENT_TYPE = 20; // change_cipher_spec
+    private static final int MAX_CONTENT_TYPE = 24; // heartbeat
+    private static final int MAJOR_VERSION = 3;
+
+    private TlsRecords() {
+    }
+
+    /**
+     * Returns the length of the complete records at the start of the buffer.
+     * @param buf buffer that starts at a record boundary
+     * @param length number of bytes in the buffer
+     * @return length of the complete records (0 if the first record is incomplete),
+     *         or {@link #NOT_TLS} if a record header is invalid
+     */
+    static int completeLength(final byte[] buf, final int length) {
+        int offset = 0;
+        while (offset < length) {
+            if (!isValidPrefix(buf, offset, length)) {
+                return NOT_TLS;
+            }
+            if (offset + HEADER_LENGTH > length) {
+                break;
+            }
+
+            final int recordLength = HEADER_LENGTH + payloadLength(buf, offset);
+            if (recordLength > MAX_RECORD_LENGTH) {
+                return NOT_TLS;
+            }
+            if (offset + recordLength > length) {
+                break;
+            }
+            offset += recordLength;
+        }
+        return offset;
+    }
+
+    private static boolean isValidPrefix(final byte[] buf, final int offset, final int length) {
+        final int contentType = buf[offset] & 0xff;
+        if (contentType < MIN_CONTENT_TYPE || contentType > MAX_CONTENT_TYPE) {
+            return false;
+        }
+        return offset + 1 >= length || buf[offset + 1] == MAJOR_VERSION;
+    }
+
+    /**
+     * Returns the payload length from a record header.
+     * @param buf buffer containing the header
+     * @param offset start of the header
+     * @return payload length
+     */
+    static int payloadLength(final byte[] buf, final int offset) {
+        return ((buf[offset + 3] & 0xff) << 8) | (buf[offset + 4] & 0xff);
+    }
+}
@@ -0,0 +1,69 @@
+package com.spinthechoice.privateproxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket that limits a rate in bytes per second.
+ * Rather than blocking, {@link #reserve(long)} takes the tokens (going into debt if needed)
+ * and returns how long the caller should pause before transferring more data.
+ */
+class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    private final long burstNanos;
+    /**
+     * Time at which the bucket would be full again (the "theoretical arrival time").
+     */
+    private final AtomicLong fullAt;
+
+    /**
+     * Creates a token bucket.
+     * @param bytesPerSecond sustained rate
+     * @param burstBytes bytes that can be transferred at once without pausing
+     */
+    TokenBucket(final long bytesPerSecond, final long burstBytes) {
+        this(bytesPerSecond, burstBytes, System.nanoTime());
+    }
+
+    TokenBucket(final long bytesPerSecond, final long burstBytes, final long now) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstNanos = toNanos(burstBytes);
+        this.fullAt = new AtomicLong(now);
+    }
+
+    /**
+     * Returns the sustained rate.
+     * @return bytes per second
+     */
+    long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes tokens for the given number of bytes.
+     * @param bytes bytes transferred
+     * @return nanoseconds to pause before the next transfer, or 0 if no pause is needed
+     */
+    long reserve(final long bytes) {
+        return reserve(bytes, System.nanoTime());
+    }
+
+    long reserve(final long bytes, final long now) {
+        final long cost = toNanos(bytes);
+        long current, next;
+        do {
+            current = fullAt.get();
+            next = Math.max(current, now) + cost;
+        } while (!fullAt.compareAndSet(current, next));
+        return Math.max(0, next - now - burstNanos);
+    }
+
+    private long toNanos(final long bytes) {
+        return bytes * NANOS_PER_SECOND / bytesPerSecond;
+    }
+}
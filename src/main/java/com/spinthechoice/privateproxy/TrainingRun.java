@@ -0,0 +1,98 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts a proxy on loopback, tunnels one request through it to a local echo server, and exits.
+ * This loads the classes a real proxy needs before its first tunnel, so it is used to record the
+ * AppCDS archive ({@code gradle cdsArchive}), and to time startup ({@code gradle startupBenchmark}).
+ * Nothing leaves the machine: the only trusted server is the echo server.
+ */
+public class TrainingRun {
+    /**
+     * Printed once the first tunnel has echoed a message.
+     */
+    static final String READY = "first tunnel ok";
+
+    private static final String MESSAGE = "ping";
+
+    private TrainingRun() {
+    }
+
+    /**
+     * Tunnels one message through a new proxy.
+     * @param onTunnel called once the message has come back, before the proxy is closed
+     * @throws IOException if the tunnel fails
+     */
+    static void tunnelOnce(final Runnable onTunnel) throws IOException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try (final ServerSocket upstreamSocket = new ServerSocket(0, 1, loopback)) {
+            executor.submit(() -> echo(upstreamSocket));
+            final int upstreamPort = upstreamSocket.getLocalPort();
+
+            final ServerSocket proxySocket = new ServerSocket(0, 1, loopback);
+            try (final ProxyServer server = new ProxyServer(proxySocket, executor, 1, ProxyConfig.defaults(),
+                    target -> target.port() == upstreamPort ? null : "Only the echo server is trusted")) {
+                server.run();
+                tunnel(proxySocket.getLocalPort(), upstreamPort);
+                onTunnel.run();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Void echo(final ServerSocket upstreamSocket) throws IOException {
+        try (final Socket socket = upstreamSocket.accept()) {
+            socket.getInputStream().transferTo(socket.getOutputStream());
+        }
+        return null;
+    }
+
+    private static void tunnel(final int proxyPort, final int upstreamPort) throws IOException {
+        try (final Socket client = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+            final OutputStream out = client.getOutputStream();
+            out.write(("CONNECT 127.0.0.1:" + upstreamPort + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+            final String status = in.readLine();
+            in.readLine();
+            if (status == null || !status.startsWith("HTTP/1.1 200")) {
+                throw new IOException("Unexpected response: " + status);
+            }
+
+            out.write((MESSAGE + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            if (!MESSAGE.equals(in.readLine())) {
+                throw new IOException("Tunnel did not echo the message");
+            }
+        }
+    }
+
+    /**
+     * Runs the training run and prints {@value #READY} once the tunnel works.
+     * @param args ignored
+     */
+    public static void main(final String[] args) {
+        try {
+            tunnelOnce(() -> {
+                System.out.println(READY);
+                System.out.flush();
+            });
+        } catch (IOException e) {
+            System.err.println("Training run failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -4,17 +4,49 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.function.IntConsumer;
 
 /**
  * Tunnels data from one socket directly to another socket.
+ * Optionally, data is written one or more whole TLS records at a time (see {@link TlsRecords}),
+ * so the receiver can decrypt a record as soon as a write arrives.
+ * When the input ends, only the output is shut down, so data can keep flowing the other way.
+ * The sockets are closed by whoever owns them once both directions are done,
+ * or by the tunnel if either direction fails.
+ * If nothing arrives for a while, the buffer is given back to {@link TunnelMemory} until data arrives again.
  */
 class Tunnel implements Runnable, AutoCloseable {
-    private static final int BUFFER_SIZE = 4096;
+    /**
+     * Decides when data that was read may be written.
+     */
+    @FunctionalInterface
+    interface Gate {
+        /**
+         * Gate that never waits.
+         */
+        Gate OPEN = (length, capacity) -> () -> {};
+
+        /**
+         * Waits until the data may be written.
+         * @param length number of bytes read
+         * @param capacity size of the buffer the bytes were read into
+         * @return action to run once the data is written
+         * @throws InterruptedException if interrupted while waiting
+         */
+        Runnable enter(int length, int capacity) throws InterruptedException;
+    }
 
     private final Socket sockIn;
     private final Socket sockOut;
     private final InputStream input;
     private final OutputStream output;
+    private final IntConsumer onTransfer;
+    private final Gate gate;
+    private final boolean recordFraming;
+    private final TunnelMemory memory;
+    private byte[] buffer; // tunnel thread only
 
     /**
      * Creates the tunnel.
@@ -23,24 +55,160 @@ class Tunnel implements Runnable, AutoCloseable {
      * @throws IOException any IO errors
      */
     Tunnel(final Socket sockIn, final Socket sockOut) throws IOException {
+        this(sockIn, sockOut, bytes -> {}, Gate.OPEN, false, new TunnelMemory(Duration.ZERO));
+    }
+
+    /**
+     * Creates the tunnel.
+     * @param sockIn socket to read from
+     * @param sockOut socket to write to
+     * @param onTransfer receives the number of bytes after each write
+     * @param gate decides when data may be written
+     * @param recordFraming whether to write whole TLS records only
+     * @param memory lends buffers, and takes them back while the tunnel is idle
+     * @throws IOException any IO errors
+     */
+    Tunnel(final Socket sockIn, final Socket sockOut, final IntConsumer onTransfer, final Gate gate,
+           final boolean recordFraming, final TunnelMemory memory) throws IOException {
         this.sockIn = sockIn;
         this.sockOut = sockOut;
         this.input = sockIn.getInputStream();
         this.output = sockOut.getOutputStream();
+        this.onTransfer = onTransfer;
+        this.gate = gate;
+        this.recordFraming = recordFraming;
+        this.memory = memory;
     }
 
     @Override
     public void run() {
-        final byte[] buf = new byte[BUFFER_SIZE];
-        int bytesRead;
-
         try {
-            while ((bytesRead = input.read(buf)) >= 0) {
-                output.write(buf, 0, bytesRead);
-                output.flush();
+            if (memory.idleMillis() > 0) {
+                sockIn.setSoTimeout(memory.idleMillis());
             }
+            if (recordFraming) {
+                relayRecords();
+            } else {
+                relay();
+            }
+            shutdownOutput();
         } catch (IOException e) {
             close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+        } finally {
+            memory.free(buffer);
+            buffer = null;
+        }
+    }
+
+    private void relay() throws IOException, InterruptedException {
+        int bytesRead;
+        while ((bytesRead = read(memory.bufferSize(), 0)) >= 0) {
+            write(buffer, bytesRead, buffer.length);
+        }
+    }
+
+    /**
+     * Reads until at least one whole record is buffered, then writes all complete records at once.
+     * A partial record is kept until the rest of it arrives. If the data turns out not to be TLS,
+     * the rest of the stream is relayed as is.
+     */
+    private void relayRecords() throws IOException, InterruptedException {
+        int buffered = 0;
+        int bytesRead;
+        while ((bytesRead = read(TlsRecords.MAX_RECORD_LENGTH, buffered)) >= 0) {
+            buffered += bytesRead;
+
+            final int complete = TlsRecords.completeLength(buffer, buffered);
+            if (complete == TlsRecords.NOT_TLS) {
+                write(buffer, buffered, buffer.length);
+                relay();
+                return;
+            }
+
+            if (complete > 0) {
+                write(buffer, complete, buffer.length);
+                buffered -= complete;
+                System.arraycopy(buffer, complete, buffer, 0, buffered);
+            }
+        }
+
+        if (buffered > 0) {
+            // the stream ended in the middle of a record; pass it on anyway
+            write(buffer, buffered, buffer.length);
+        }
+    }
+
+    /**
+     * Reads into the buffer, allocating one of the given size if the tunnel has none.
+     * An empty buffer (the offset is 0) that is larger than the size is swapped for a smaller one,
+     * so tunnels follow a smaller buffer size when memory is short.
+     * If nothing arrives for the idle time and the buffer holds nothing yet,
+     * the buffer is given back while waiting for more data.
+     */
+    private int read(final int size, final int offset) throws IOException {
+        if (offset == 0 && buffer != null && buffer.length > size) {
+            memory.free(buffer);
+            buffer = null;
+        }
+        while (true) {
+            if (buffer == null) {
+                buffer = memory.allocate(size);
+            }
+            try {
+                return input.read(buffer, offset, buffer.length - offset);
+            } catch (SocketTimeoutException e) {
+                if (offset == 0) {
+                    return readWhenIdle(size);
+                }
+                // part of a record is buffered; keep waiting for the rest of it
+            }
+        }
+    }
+
+    private int readWhenIdle(final int size) throws IOException {
+        memory.free(buffer);
+        buffer = null;
+        memory.idle();
+        final int first;
+        try {
+            sockIn.setSoTimeout(0);
+            first = input.read();
+        } finally {
+            memory.active();
+        }
+        if (first < 0) {
+            return -1;
+        }
+
+        sockIn.setSoTimeout(memory.idleMillis());
+        buffer = memory.allocate(size);
+        buffer[0] = (byte) first;
+        // take whatever else has arrived, without blocking
+        final int available = Math.min(input.available(), buffer.length - 1);
+        return available > 0 ? 1 + Math.max(0, input.read(buffer, 1, available)) : 1;
+    }
+
+    private void write(final byte[] buf, final int length, final int capacity)
+            throws IOException, InterruptedException {
+        final Runnable done = gate.enter(length, capacity);
+        try {
+            output.write(buf, 0, length);
+            output.flush();
+        } finally {
+            done.run();
+        }
+        onTransfer.accept(length);
+    }
+
+    /**
+     * Passes the end of the input on to the other side (a TCP FIN), without closing either socket.
+     */
+    private void shutdownOutput() throws IOException {
+        if (!sockOut.isClosed() && !sockOut.isOutputShutdown()) {
+            sockOut.shutdownOutput();
         }
     }
 
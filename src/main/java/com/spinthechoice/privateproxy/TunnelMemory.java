@@ -0,0 +1,161 @@
+package com.spinthechoice.privateproxy;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lends buffers to {@link Tunnel}s and keeps track of the memory they hold.
+ * A tunnel that has read nothing for a while gives its buffer back and waits for a single byte instead,
+ * so an idle connection holds no buffers at all. It gets a new buffer when data arrives.
+ * Under memory pressure (see {@link MemoryGuard}), tunnels read into smaller buffers and new tunnels are refused.
+ */
+public class TunnelMemory {
+    static final int DEFAULT_BUFFER_SIZE = 4096;
+    static final int SHRUNK_BUFFER_SIZE = 1024;
+
+    private volatile int idleMillis;
+    private volatile long maxBytes;
+    private volatile int bufferSize;
+    private volatile boolean shrunk;
+    private volatile boolean refusing;
+    private final LongAdder bufferBytes = new LongAdder();
+    private final LongAdder idleTunnels = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+
+    /**
+     * Creates the accounting for a server.
+     * @param releaseAfter how long a tunnel reads nothing before it gives its buffer back, or zero to never
+     */
+    TunnelMemory(final Duration releaseAfter) {
+        this(releaseAfter, 0);
+    }
+
+    /**
+     * Creates the accounting for a server with a budget.
+     * @param releaseAfter how long a tunnel reads nothing before it gives its buffer back, or zero to never
+     * @param maxBytes most bytes tunnels may hold in buffers before new tunnels are refused, or 0 for no limit
+     */
+    TunnelMemory(final Duration releaseAfter, final long maxBytes) {
+        this(releaseAfter, maxBytes, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates the accounting for a server with a budget and a buffer size.
+     * @param releaseAfter how long a tunnel reads nothing before it gives its buffer back, or zero to never
+     * @param maxBytes most bytes tunnels may hold in buffers before new tunnels are refused, or 0 for no limit
+     * @param bufferSize size of the buffer a tunnel direction reads into
+     */
+    TunnelMemory(final Duration releaseAfter, final long maxBytes, final int bufferSize) {
+        update(releaseAfter, maxBytes, bufferSize);
+    }
+
+    /**
+     * Changes the settings of a running server. Tunnels move to the new buffer size when their buffer is empty,
+     * and tunnels that are already waiting keep their idle time until they next get a buffer.
+     * @param releaseAfter how long a tunnel reads nothing before it gives its buffer back, or zero to never
+     * @param maxBytes most bytes tunnels may hold in buffers before new tunnels are refused, or 0 for no limit
+     * @param bufferSize size of the buffer a tunnel direction reads into
+     */
+    void update(final Duration releaseAfter, final long maxBytes, final int bufferSize) {
+        this.idleMillis = (int) Math.min(Integer.MAX_VALUE, releaseAfter.toMillis());
+        this.maxBytes = maxBytes;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Changes how tunnels use memory while memory is short.
+     * @param shrinkBuffers whether tunnels read into buffers of at most {@link #SHRUNK_BUFFER_SIZE}
+     * @param refuseTunnels whether new tunnels are refused, as if the budget were used up
+     */
+    void degrade(final boolean shrinkBuffers, final boolean refuseTunnels) {
+        this.shrunk = shrinkBuffers;
+        this.refusing = refuseTunnels;
+    }
+
+    /**
+     * Returns the size of the buffer a tunnel direction reads into.
+     * @return buffer size in bytes
+     */
+    int bufferSize() {
+        final int size = bufferSize;
+        return shrunk ? Math.min(size, SHRUNK_BUFFER_SIZE) : size;
+    }
+
+    /**
+     * Returns how long a tunnel reads nothing before it gives its buffer back.
+     * @return time in milliseconds, or 0 if buffers are never given back
+     */
+    int idleMillis() {
+        return idleMillis;
+    }
+
+    /**
+     * Returns whether tunnels hold as many bytes as the budget allows, or memory is too short for new tunnels.
+     * Tunnels that are already open keep relaying, but no new tunnels should be opened.
+     * @return whether the budget is used up
+     */
+    boolean exhausted() {
+        final long max = maxBytes;
+        return refusing || max > 0 && bufferBytes.sum() >= max;
+    }
+
+    /**
+     * Allocates a buffer for a tunnel.
+     * @param size buffer size
+     * @return buffer
+     */
+    byte[] allocate(final int size) {
+        bufferBytes.add(size);
+        return new byte[size];
+    }
+
+    /**
+     * Gives a buffer back when a tunnel is done with it.
+     * @param buffer buffer, or {@code null}
+     */
+    void free(final byte[] buffer) {
+        if (buffer != null) {
+            bufferBytes.add(-buffer.length);
+        }
+    }
+
+    /**
+     * Records that a tunnel gave its buffer back and is waiting for data.
+     */
+    void idle() {
+        idleTunnels.increment();
+        releases.increment();
+    }
+
+    /**
+     * Records that data arrived for an idle tunnel, or that it ended.
+     */
+    void active() {
+        idleTunnels.decrement();
+    }
+
+    /**
+     * Returns the bytes currently held in tunnel buffers.
+     * @return buffer bytes
+     */
+    public long bufferBytes() {
+        return bufferBytes.sum();
+    }
+
+    /**
+     * Returns the number of tunnel directions that hold no buffer while waiting for data.
+     * Each tunnel has two directions.
+     * @return number of idle directions
+     */
+    public long idleTunnels() {
+        return idleTunnels.sum();
+    }
+
+    /**
+     * Returns how many times tunnels have given their buffer back.
+     * @return number of releases
+     */
+    public long releases() {
+        return releases.sum();
+    }
+}
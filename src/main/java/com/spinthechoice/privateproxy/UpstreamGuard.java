@@ -0,0 +1,195 @@
+package com.spinthechoice.privateproxy;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.spinthechoice.privateproxy.ConnectParser.Server;
+
+/**
+ * Protects the proxy from failing remote servers.
+ * Each destination (host and port) has a bulkhead, which limits the number of open tunnels
+ * to that destination, and a {@link CircuitBreaker}, which stops connection attempts while
+ * the destination keeps failing. This keeps a single bad destination from tying up all handlers.
+ * Only destinations that passed validation get here, so the number of destinations is bounded
+ * by the list of trusted services.
+ */
+public class UpstreamGuard {
+    /**
+     * Thrown when a destination cannot be used right now.
+     */
+    static class UnavailableException extends Exception {
+        UnavailableException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Permission to connect and tunnel to a destination. Must be closed when the tunnel closes.
+     */
+    class Permit implements AutoCloseable {
+        private final Destination destination;
+        private final long ticket;
+        private final ClusterLimits.Permit shared;
+        private final AtomicBoolean reported = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit(final Destination destination, final long ticket, final ClusterLimits.Permit shared) {
+            this.destination = destination;
+            this.ticket = ticket;
+            this.shared = shared;
+        }
+
+        /**
+         * Reports the outcome of connecting to the destination.
+         * @param success whether the connection was established
+         * @param elapsedNanos time it took to connect (or fail)
+         */
+        void connected(final boolean success, final long elapsedNanos) {
+            if (reported.compareAndSet(false, true)) {
+                destination.breaker.record(ticket, success, elapsedNanos);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                if (reported.compareAndSet(false, true)) {
+                    // no attempt was made; don't leave a half-open breaker waiting for a trial result
+                    destination.breaker.abandon(ticket);
+                }
+                destination.release();
+                if (shared != null) {
+                    shared.close();
+                }
+            }
+        }
+    }
+
+    private class Destination {
+        private final Semaphore bulkhead;
+        private final CircuitBreaker breaker;
+
+        Destination() {
+            this.bulkhead = maxTunnels > 0 ? new Semaphore(maxTunnels) : null;
+            this.breaker = new CircuitBreaker(failureRateThreshold, openDuration, slowThreshold);
+        }
+
+        boolean tryAcquire() {
+            return bulkhead == null || bulkhead.tryAcquire();
+        }
+
+        void release() {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    private final int maxTunnels;
+    private final double failureRateThreshold;
+    private final Duration openDuration;
+    private final Duration slowThreshold;
+    private final ClusterLimits cluster;
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final LongAdder bulkheadRejections = new LongAdder();
+    private final LongAdder breakerRejections = new LongAdder();
+
+    /**
+     * Creates a guard.
+     * @param maxTunnels maximum number of open tunnels per destination, or 0 for unlimited
+     * @param failureRateThreshold fraction of failed connections at which a destination's breaker opens
+     * @param openDuration how long a breaker stays open
+     * @param slowThreshold connections slower than this count as failures
+     */
+    UpstreamGuard(final int maxTunnels, final double failureRateThreshold,
+                  final Duration openDuration, final Duration slowThreshold) {
+        this(maxTunnels, failureRateThreshold, openDuration, slowThreshold, null);
+    }
+
+    /**
+     * Creates a guard whose bulkheads also count the tunnels of other proxies.
+     * @param maxTunnels maximum number of open tunnels per destination, or 0 for unlimited
+     * @param failureRateThreshold fraction of failed connections at which a destination's breaker opens
+     * @param openDuration how long a breaker stays open
+     * @param slowThreshold connections slower than this count as failures
+     * @param cluster limits shared with other proxies, or {@code null}
+     */
+    UpstreamGuard(final int maxTunnels, final double failureRateThreshold,
+                  final Duration openDuration, final Duration slowThreshold, final ClusterLimits cluster) {
+        this.maxTunnels = maxTunnels;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDuration = openDuration;
+        this.slowThreshold = slowThreshold;
+        this.cluster = cluster;
+    }
+
+    /**
+     * Gets permission to connect to a destination.
+     * @param server destination
+     * @return permit, which must be closed once the tunnel is closed
+     * @throws UnavailableException if the destination has too many tunnels (on this proxy or across the cluster)
+     *         or its breaker is open
+     */
+    Permit acquire(final Server server) throws UnavailableException {
+        final Destination destination = destinations.computeIfAbsent(key(server), key -> new Destination());
+        if (!destination.tryAcquire()) {
+            bulkheadRejections.increment();
+            throw new UnavailableException("Too many connections to " + server.host());
+        }
+        final long ticket = destination.breaker.tryAcquire();
+        if (ticket == CircuitBreaker.REFUSED) {
+            destination.release();
+            breakerRejections.increment();
+            throw new UnavailableException(server.host() + " is unavailable");
+        }
+        final ClusterLimits.Permit shared;
+        try {
+            shared = cluster == null ? null : cluster.acquireDestination(server);
+        } catch (UnavailableException e) {
+            final Permit permit = new Permit(destination, ticket, null);
+            permit.close();
+            throw e;
+        }
+        return new Permit(destination, ticket, shared);
+    }
+
+    /**
+     * Returns the state of a destination's circuit breaker.
+     * @param server destination
+     * @return breaker state
+     */
+    CircuitBreaker.State state(final Server server) {
+        final Destination destination = destinations.get(key(server));
+        return destination == null ? CircuitBreaker.State.CLOSED : destination.breaker.state();
+    }
+
+    /**
+     * Returns the number of tunnels refused because a destination had too many tunnels.
+     * @return number of refusals
+     */
+    public long bulkheadRejections() {
+        return bulkheadRejections.sum();
+    }
+
+    /**
+     * Returns the number of tunnels refused because a destination's circuit breaker was open.
+     * @return number of refusals
+     */
+    public long breakerRejections() {
+        return breakerRejections.sum();
+    }
+
+    /**
+     * Returns the name of a destination, as used in metrics and logs.
+     * @param server destination
+     * @return host name and port
+     */
+    static String key(final Server server) {
+        return server.host().toLowerCase(Locale.ROOT) + ":" + server.port();
+    }
+}
@@ -0,0 +1,186 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Drives synthetic tunnels through {@link SocketHandler}s on loopback, so the JIT compiles the hot paths
+ * (parsing CONNECT, connecting, relaying) before real clients arrive.
+ * <p>
+ * Tunnels are run in rounds until a round adds almost no compilation time, or until the time limit.
+ * The warm-up has its own handlers, connection registry, metrics and event log, so none of its traffic
+ * is counted or logged with real traffic, and it always uses CONNECT mode. Nothing leaves the machine.
+ */
+class WarmUp {
+    private static final int CLIENTS = 4;
+    private static final int TUNNELS_PER_ROUND = 64;
+    private static final int PAYLOAD_LENGTH = 16 * 1024;
+    private static final int MIN_ROUNDS = 3;
+    // below this much new compilation per round, the JIT has settled
+    private static final long SETTLED_COMPILE_MILLIS = 5;
+
+    private final ProxyConfig config;
+    private final Duration limit;
+    private int rounds;
+    private int tunnels;
+
+    /**
+     * Creates a warm-up.
+     * @param config settings of the real server; the warm-up keeps its limits and socket options
+     * @param limit maximum time to spend warming up
+     */
+    WarmUp(final ProxyConfig config, final Duration limit) {
+        this.config = config.toBuilder()
+                .listenerMode(ListenerMode.CONNECT)
+                .logFile(null)
+                .metricsFile(null)
+                .accessLogDirectory(null)
+                .clusterPort(0)
+                .clusterMaxConnectionsPerClient(0)
+                .clusterMaxConnectionsPerClientPerSecond(0)
+                .clusterMaxTunnelsPerDestination(0)
+                .build();
+        this.limit = limit;
+    }
+
+    /**
+     * Runs tunnels until the JIT settles or the time limit passes.
+     * @throws IOException if the loopback sockets cannot be opened
+     */
+    void run() throws IOException {
+        final long deadline = System.nanoTime() + limit.toNanos();
+        final CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        final boolean measurable = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final HandlerContext context = HandlerContext.from(config);
+        try (final ServerSocket upstreamSocket = new ServerSocket(0, CLIENTS, loopback);
+             final ServerSocket proxySocket = new ServerSocket(0, CLIENTS, loopback)) {
+            final int upstreamPort = upstreamSocket.getLocalPort();
+            executor.submit(() -> echo(upstreamSocket, executor));
+            for (int i = 0; i < CLIENTS; i++) {
+                executor.submit(new LoopingSocketHandler(new SocketHandler(proxySocket, executor,
+                        server -> server.port() == upstreamPort ? null : "Only the warm-up server is trusted",
+                        context)));
+            }
+
+            long compileMillis = measurable ? compiler.getTotalCompilationTime() : 0;
+            while (System.nanoTime() < deadline) {
+                round(executor, proxySocket.getLocalPort(), upstreamPort);
+                rounds++;
+                if (measurable) {
+                    final long total = compiler.getTotalCompilationTime();
+                    final boolean settled = total - compileMillis < SETTLED_COMPILE_MILLIS;
+                    compileMillis = total;
+                    if (settled && rounds >= MIN_ROUNDS) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            context.registry().closeAll();
+            context.close();
+        }
+    }
+
+    /**
+     * Returns the number of rounds of tunnels that were run.
+     * @return number of rounds
+     */
+    int rounds() {
+        return rounds;
+    }
+
+    /**
+     * Returns the number of tunnels that echoed their payload.
+     * @return number of tunnels
+     */
+    int tunnels() {
+        return tunnels;
+    }
+
+    private void round(final ExecutorService executor, final int proxyPort, final int upstreamPort)
+            throws IOException {
+        final List<Future<Integer>> clients = new ArrayList<>(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.add(executor.submit(() -> tunnels(proxyPort, upstreamPort, TUNNELS_PER_ROUND / CLIENTS)));
+        }
+        for (final Future<Integer> client : clients) {
+            try {
+                tunnels += client.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Warm-up tunnel failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Warm-up interrupted", e);
+            }
+        }
+    }
+
+    private static int tunnels(final int proxyPort, final int upstreamPort, final int count) throws IOException {
+        final byte[] request = ("CONNECT 127.0.0.1:" + upstreamPort + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:" + upstreamPort + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        final byte[] payload = new byte[PAYLOAD_LENGTH];
+        final byte[] echoed = new byte[PAYLOAD_LENGTH];
+        for (int i = 0; i < count; i++) {
+            try (final Socket client = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+                final OutputStream out = client.getOutputStream();
+                final DataInputStream in = new DataInputStream(client.getInputStream());
+                out.write(request);
+                out.flush();
+                readResponse(in);
+                out.write(payload);
+                out.flush();
+                in.readFully(echoed);
+                client.shutdownOutput();
+            }
+        }
+        return count;
+    }
+
+    private static void readResponse(final InputStream in) throws IOException {
+        // the response is a status line and an empty line, with no body
+        int matched = 0;
+        final StringBuilder response = new StringBuilder();
+        while (matched < 4) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new IOException("Proxy closed the connection: " + response);
+            }
+            response.append((char) b);
+            matched = (b == '\r' && matched % 2 == 0) || (b == '\n' && matched % 2 == 1) ? matched + 1 : 0;
+        }
+        if (!response.toString().startsWith("HTTP/1.1 200")) {
+            throw new IOException("Unexpected response: " + response.toString().trim());
+        }
+    }
+
+    private static Void echo(final ServerSocket upstreamSocket, final ExecutorService executor) throws IOException {
+        while (!upstreamSocket.isClosed()) {
+            final Socket socket = upstreamSocket.accept();
+            executor.submit(() -> {
+                try (socket) {
+                    socket.getInputStream().transferTo(socket.getOutputStream());
+                }
+                return null;
+            });
+        }
+        return null;
+    }
+}
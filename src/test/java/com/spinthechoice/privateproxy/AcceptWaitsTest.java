@@ -0,0 +1,49 @@
+package com.spinthechoice.privateproxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AcceptWaitsTest {
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AcceptWaits waits = new AcceptWaits(clock::get);
+
+    /**
+     * Accepts a client after blocking for the given time.
+     */
+    private void accept(final long blockedNanos) {
+        final long start = waits.beforeAccept();
+        clock.addAndGet(blockedNanos);
+        waits.accepted(start);
+    }
+
+    @Test
+    void noWaitWhileHandlersAreFree() {
+        for (int i = 0; i < 10; ++i) {
+            accept(50 * MILLI);
+        }
+        assertEquals(0, waits.takeLongest());
+    }
+
+    @Test
+    void queuedClientsWaitSinceBacklogWasEmpty() {
+        accept(50 * MILLI);
+        // every handler is busy for a while, then takes queued clients without blocking
+        clock.addAndGet(30 * MILLI);
+        accept(0);
+        clock.addAndGet(10 * MILLI);
+        accept(0);
+        assertEquals(40 * MILLI, waits.takeLongest());
+        assertEquals(0, waits.takeLongest());
+
+        // an accept that blocks shows the backlog is empty again
+        accept(5 * MILLI);
+        accept(0);
+        assertEquals(0, waits.takeLongest());
+    }
+}
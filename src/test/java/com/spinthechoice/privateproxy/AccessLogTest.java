@@ -0,0 +1,138 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.spinthechoice.privateproxy.ConnectParser.Server;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccessLogTest {
+    private static final long MINUTE = AccessLog.WINDOW_MILLIS;
+
+    private final AtomicLong now = new AtomicLong(1000 * MINUTE + 5);
+    private final EventLog log = new EventLog(EventLog.Sink.stdout());
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("access");
+    }
+
+    @AfterEach
+    void closeLog() {
+        log.close();
+    }
+
+    private static Server server() {
+        return new Server("example.com", 443);
+    }
+
+    private static void tunnel(final AccessLog accessLog, final long connectMillis, final int up, final int down)
+            throws IOException {
+        try (final AccessLog.Entry entry = accessLog.begin()) {
+            entry.destination(server());
+            entry.connected(connectMillis * 1_000_000);
+            entry.status(200);
+            entry.upstream().accept(up);
+            entry.downstream().accept(down);
+        }
+    }
+
+    private String csv() throws IOException {
+        final StringBuilder csv = new StringBuilder();
+        final AccessLogReader reader = new AccessLogReader(csv);
+        for (final Path file : AccessLogWriter.segments(directory)) {
+            reader.read(file);
+        }
+        return csv.toString();
+    }
+
+    @Test
+    void aggregatesPerMinuteDestinationAndStatus() throws IOException {
+        final AccessLog accessLog = new AccessLog(new AccessLogWriter(directory, 4096, 2), log, now::get);
+        tunnel(accessLog, 2, 100, 1000);
+        tunnel(accessLog, 300, 50, 500);
+        try (final AccessLog.Entry entry = accessLog.begin()) {
+            entry.status(400);
+        }
+        accessLog.begin().close();
+
+        accessLog.flush(false);
+        assertEquals("", csv(), "the current minute is not written yet");
+
+        now.addAndGet(MINUTE);
+        tunnel(accessLog, 2, 1, 1);
+        accessLog.flush(false);
+        assertEquals(List.of(
+                "1970-01-01T16:40:00Z,-,0,1,0,0,0,0,0,0,0,0,0,0",
+                "1970-01-01T16:40:00Z,-,400,1,0,0,0,0,0,0,0,0,0,0",
+                "1970-01-01T16:40:00Z,example.com:443,200,2,150,1500,0,1,0,0,0,1,0,0"),
+                csv().lines().sorted().toList());
+
+        accessLog.close();
+        assertEquals(4, csv().lines().count());
+        assertTrue(csv().contains("1970-01-01T16:41:00Z,example.com:443,200,1,1,1,"));
+    }
+
+    @Test
+    void rotatesSegments() throws IOException {
+        // the smallest segment holds one record of the largest size
+        final ByteBuffer record = ByteBuffer.allocate(AccessLogWriter.MAX_RECORD_LENGTH);
+        try (final AccessLogWriter writer = new AccessLogWriter(directory, 0, 2)) {
+            for (int i = 0; i < 5; i++) {
+                writer.append(record.clear());
+            }
+        }
+
+        final List<Path> segments = AccessLogWriter.segments(directory);
+        assertEquals(2, segments.size());
+        assertEquals("access-0000000005.seg", segments.get(1).getFileName().toString());
+
+        // a restarted proxy continues the numbering instead of overwriting segments
+        final AccessLog restarted = new AccessLog(new AccessLogWriter(directory, 4096, 3), log, now::get);
+        tunnel(restarted, 1, 1, 1);
+        restarted.close();
+        final Path newest = AccessLogWriter.segments(directory).get(2);
+        assertEquals("access-0000000006.seg", newest.getFileName().toString());
+        final StringBuilder csv = new StringBuilder();
+        new AccessLogReader(csv).read(newest);
+        assertTrue(csv.toString().startsWith("1970-01-01T16:40:00Z,example.com:443,200,1,1,1,"));
+    }
+
+    @Test
+    void disabledWritesNothing() throws IOException {
+        final AccessLog accessLog = new AccessLog(null, log, now::get);
+        tunnel(accessLog, 1, 1, 1);
+        accessLog.close();
+        assertTrue(AccessLogWriter.segments(directory).isEmpty());
+    }
+
+    @Test
+    void varLong() {
+        final ByteBuffer buf = ByteBuffer.allocate(64);
+        for (final long value : new long[] {0, 1, 127, 128, 300, Long.MAX_VALUE, -1}) {
+            buf.clear();
+            AccessLogWriter.putVarLong(buf, value);
+            buf.flip();
+            assertEquals(value, AccessLogWriter.getVarLong(buf));
+            assertFalse(buf.hasRemaining());
+        }
+    }
+
+    @Test
+    void bucket() {
+        assertEquals(0, AccessLog.bucket(0));
+        assertEquals(1, AccessLog.bucket(1));
+        assertEquals(1, AccessLog.bucket(3));
+        assertEquals(2, AccessLog.bucket(4));
+        assertEquals(AccessLog.CONNECT_BUCKET_MILLIS.length, AccessLog.bucket(60_000));
+    }
+}
@@ -0,0 +1,60 @@
+package com.spinthechoice.privateproxy;
+
+import java.net.InetAddress;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BandwidthShaperTest {
+    @Test
+    void unlimitedNeverThrottles() {
+        final BandwidthShaper shaper = BandwidthShaper.unlimited();
+        try (final BandwidthShaper.Throttle throttle = shaper.open(InetAddress.getLoopbackAddress())) {
+            throttle.transferred(1_000_000);
+            throttle.transferred(1_000_000);
+        }
+        assertEquals(0, shaper.throttleCount());
+        assertEquals(0, shaper.clientCount());
+    }
+
+    @Test
+    void throttlesTunnelOverLimit() {
+        final BandwidthShaper shaper = new BandwidthShaper(100_000, 0, 0);
+        try (final BandwidthShaper.Throttle throttle = shaper.open(InetAddress.getLoopbackAddress())) {
+            final long start = System.nanoTime();
+            throttle.transferred(25_000);
+            throttle.transferred(5_000);
+            assertTrue(System.nanoTime() - start >= 40_000_000L);
+        }
+        assertEquals(1, shaper.throttleCount());
+        assertTrue(shaper.throttledNanos() > 0);
+    }
+
+    @Test
+    void sharesLimitBetweenTunnelsFromSameClient() {
+        final BandwidthShaper shaper = new BandwidthShaper(0, 100_000, 0);
+        final InetAddress client = InetAddress.getLoopbackAddress();
+        try (final BandwidthShaper.Throttle first = shaper.open(client);
+             final BandwidthShaper.Throttle second = shaper.open(client)) {
+            assertEquals(1, shaper.clientCount());
+            first.transferred(25_000);
+            assertEquals(0, shaper.throttleCount());
+            second.transferred(5_000);
+            assertEquals(1, shaper.throttleCount());
+        }
+        assertEquals(0, shaper.clientCount());
+    }
+
+    @Test
+    void interactiveTunnelsAreNotPausedByGlobalLimit() {
+        final BandwidthShaper shaper = new BandwidthShaper(0, 0, 100_000);
+        try (final BandwidthShaper.Throttle interactive = shaper.open(null, () -> true);
+             final BandwidthShaper.Throttle bulk = shaper.open(null, () -> false)) {
+            interactive.transferred(50_000);
+            assertEquals(0, shaper.throttleCount());
+            bulk.transferred(1);
+            assertEquals(1, shaper.throttleCount());
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.spinthechoice.privateproxy;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.spinthechoice.privateproxy.ConnectParser.Server;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingValidatorTest {
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final Server TRUSTED = new Server(LOOPBACK.getHostAddress(), 443);
+    private static final Server UNTRUSTED = new Server(LOOPBACK.getHostAddress(), 80);
+    private static final Duration TTL = Duration.ofMinutes(5);
+    private static final Duration NEGATIVE_TTL = Duration.ofSeconds(30);
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger checks = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Trusts port 443 only, and counts how often it is asked.
+     */
+    private CompletionStage<String> httpsOnly(final Server server) {
+        checks.incrementAndGet();
+        return CompletableFuture.completedFuture(server.port() == 443 ? null : "Only HTTPS");
+    }
+
+    private CachingValidator validator(final CachingValidator.Policy policy, final int maxEntries) {
+        return new CachingValidator(policy, TTL, NEGATIVE_TTL, maxEntries, Duration.ofMillis(200), clock::get);
+    }
+
+    private static String decide(final CachingValidator validator, final Server server) throws Exception {
+        return validator.checkServerAsync(server).toCompletableFuture().get();
+    }
+
+    @Test
+    void remembersDecisions() throws Exception {
+        final CachingValidator validator = validator(this::httpsOnly, 10);
+        assertNull(decide(validator, TRUSTED));
+        assertEquals("Only HTTPS", decide(validator, UNTRUSTED));
+        assertNull(decide(validator, TRUSTED));
+        assertEquals("Only HTTPS", decide(validator, UNTRUSTED));
+        assertEquals(2, checks.get());
+
+        // the untrusted server is forgotten first
+        clock.addAndGet(NEGATIVE_TTL.toNanos());
+        assertNull(decide(validator, TRUSTED));
+        assertEquals("Only HTTPS", decide(validator, UNTRUSTED));
+        assertEquals(3, checks.get());
+
+        clock.addAndGet(TTL.toNanos());
+        assertNull(decide(validator, TRUSTED));
+        assertEquals(4, checks.get());
+    }
+
+    @Test
+    void concurrentChecksShareOne() throws Exception {
+        final CompletableFuture<String> pending = new CompletableFuture<>();
+        final CachingValidator validator = validator(server -> {
+            checks.incrementAndGet();
+            return pending;
+        }, 10);
+        final CompletableFuture<String> first = validator.checkServerAsync(TRUSTED).toCompletableFuture();
+        final CompletableFuture<String> second = validator.checkServerAsync(TRUSTED).toCompletableFuture();
+        assertFalse(first.isDone());
+
+        // one caller giving up does not cancel the check for the others
+        first.cancel(false);
+        pending.complete("Not today");
+        assertEquals("Not today", second.get());
+        assertEquals(1, checks.get());
+    }
+
+    @Test
+    void failuresAreNotRemembered() {
+        final CachingValidator validator = validator(server -> {
+            checks.incrementAndGet();
+            return new CompletableFuture<>();
+        }, 10);
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> decide(validator, TRUSTED));
+        assertTrue(e.getCause() instanceof TimeoutException, e.getCause().toString());
+        assertEquals(0, validator.size());
+        assertEquals("Server could not be checked", validator.checkServer(TRUSTED));
+        assertEquals(2, checks.get());
+
+        final CachingValidator throwing = validator(server -> {
+            throw new IllegalStateException("policy is down");
+        }, 10);
+        assertThrows(ExecutionException.class, () -> decide(throwing, TRUSTED));
+    }
+
+    @Test
+    void forgetsLeastRecentlyUsed() throws Exception {
+        final CachingValidator validator = validator(this::httpsOnly, 2);
+        final Server other = new Server(LOOPBACK.getHostAddress(), 8443);
+        decide(validator, TRUSTED);
+        decide(validator, UNTRUSTED);
+        decide(validator, TRUSTED);
+        decide(validator, other);
+        assertEquals(2, validator.size());
+        assertEquals(3, checks.get());
+
+        decide(validator, TRUSTED);
+        assertEquals(3, checks.get());
+        decide(validator, UNTRUSTED);
+        assertEquals(4, checks.get());
+    }
+
+    @Test
+    void asksPolicyServiceOncePerDestination() throws Exception {
+        final List<String> asked = new CopyOnWriteArrayList<>();
+        final HttpServer policyService = HttpServer.create(new InetSocketAddress(LOOPBACK, 0), 0);
+        policyService.createContext("/check", exchange -> {
+            final String server = exchange.getRequestURI().getQuery();
+            asked.add(server);
+            final byte[] reason = (server.endsWith(":80") ? "Only HTTPS" : "").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, reason.length == 0 ? -1 : reason.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(reason);
+            }
+        });
+        policyService.start();
+
+        final HttpClient http = HttpClient.newHttpClient();
+        final String uri = "http://127.0.0.1:" + policyService.getAddress().getPort() + "/check?";
+        final CachingValidator validator = new CachingValidator(server -> http.sendAsync(
+                        HttpRequest.newBuilder(URI.create(uri + server.host() + ":" + server.port()))
+                                .build(),
+                        HttpResponse.BodyHandlers.ofString())
+                .thenApply(HttpResponse::body), TTL, NEGATIVE_TTL, 100, Duration.ofSeconds(5));
+
+        try (final ServerSocket upstream = new ServerSocket(0, 50, LOOPBACK);
+             final ProxyServer proxy = new ProxyServer(new ServerSocket(0, 50, LOOPBACK),
+                     Executors.newCachedThreadPool(), 2, ProxyConfig.defaults(), validator)) {
+            executor.submit(() -> {
+                while (true) {
+                    upstream.accept().close();
+                }
+            });
+            proxy.run();
+            final String allowed = "127.0.0.1:" + upstream.getLocalPort();
+
+            assertEquals("HTTP/1.1 200 OK", connect(proxy, allowed));
+            assertEquals("HTTP/1.1 200 OK", connect(proxy, allowed));
+            assertEquals("HTTP/1.1 400 Only HTTPS", connect(proxy, "127.0.0.1:80"));
+            assertEquals("HTTP/1.1 400 Only HTTPS", connect(proxy, "127.0.0.1:80"));
+            assertEquals(List.of(allowed, "127.0.0.1:80"), asked);
+        } finally {
+            policyService.stop(0);
+        }
+    }
+
+    @Test
+    void unreachablePolicyGetsServiceUnavailable() throws Exception {
+        final CachingValidator validator = new CachingValidator(server -> new CompletableFuture<>(),
+                TTL, NEGATIVE_TTL, 100, Duration.ofMillis(50));
+        try (final ProxyServer proxy = new ProxyServer(new ServerSocket(0, 50, LOOPBACK),
+                Executors.newCachedThreadPool(), 1, ProxyConfig.defaults(), validator)) {
+            proxy.run();
+            assertEquals("HTTP/1.1 503 Service Unavailable", connect(proxy, "127.0.0.1:443"));
+        }
+    }
+
+    private static String connect(final ProxyServer proxy, final String server) throws IOException {
+        try (final Socket client = new Socket(LOOPBACK, proxy.port())) {
+            final OutputStream out = client.getOutputStream();
+            out.write(("CONNECT " + server + " HTTP/1.1\r\nHost: " + server + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            return new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII))
+                    .readLine();
+        }
+    }
+}
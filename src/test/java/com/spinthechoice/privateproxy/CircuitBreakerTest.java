@@ -0,0 +1,124 @@
+package com.spinthechoice.privateproxy;
+
+import java.time.Duration;
+
+import com.spinthechoice.privateproxy.CircuitBreaker.State;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+    private static final long SECOND = 1_000_000_000L;
+    private static final long FAST = 1_000_000L;
+
+    private static CircuitBreaker breaker() {
+        return new CircuitBreaker(0.5, Duration.ofSeconds(10), Duration.ofSeconds(1));
+    }
+
+    private static void record(final CircuitBreaker breaker, final int times, final boolean success,
+                               final long elapsed) {
+        for (int i = 0; i < times; ++i) {
+            final long ticket = breaker.tryAcquire(0);
+            assertNotEquals(CircuitBreaker.REFUSED, ticket);
+            breaker.record(ticket, success, elapsed, 0);
+        }
+    }
+
+    @Test
+    void staysClosedBelowMinimumCalls() {
+        final CircuitBreaker breaker = breaker();
+        record(breaker, CircuitBreaker.MINIMUM_CALLS - 1, false, FAST);
+        assertEquals(State.CLOSED, breaker.state());
+    }
+
+    @Test
+    void opensOnFailures() {
+        final CircuitBreaker breaker = breaker();
+        record(breaker, 5, true, FAST);
+        record(breaker, 5, false, FAST);
+        assertEquals(State.OPEN, breaker.state());
+        assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire(SECOND));
+    }
+
+    @Test
+    void slowConnectionsCountAsFailures() {
+        final CircuitBreaker breaker = breaker();
+        record(breaker, 5, true, FAST);
+        record(breaker, 5, true, 2 * SECOND);
+        assertEquals(State.OPEN, breaker.state());
+    }
+
+    @Test
+    void staysClosedWhenMostlyHealthy() {
+        final CircuitBreaker breaker = breaker();
+        for (int i = 0; i < 10; ++i) {
+            record(breaker, 3, true, FAST);
+            record(breaker, 2, false, FAST);
+        }
+        assertEquals(State.CLOSED, breaker.state());
+    }
+
+    @Test
+    void oldOutcomesLeaveTheWindow() {
+        final CircuitBreaker breaker = breaker();
+        record(breaker, 4, false, FAST);
+        record(breaker, CircuitBreaker.WINDOW_SIZE, true, FAST);
+        // 13 of the last 33 failed, but only 9 of the last 20
+        record(breaker, 9, false, FAST);
+        assertEquals(State.CLOSED, breaker.state());
+    }
+
+    @Test
+    void halfOpenAllowsOneTrial() {
+        final CircuitBreaker breaker = breaker();
+        record(breaker, 10, false, FAST);
+
+        final long trial = breaker.tryAcquire(10 * SECOND);
+        assertNotEquals(CircuitBreaker.REFUSED, trial);
+        assertEquals(State.HALF_OPEN, breaker.state());
+        assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire(10 * SECOND));
+
+        breaker.record(trial, true, FAST, 10 * SECOND);
+        assertEquals(State.CLOSED, breaker.state());
+        assertNotEquals(CircuitBreaker.REFUSED, breaker.tryAcquire(10 * SECOND));
+    }
+
+    @Test
+    void abandonedTrialAllowsAnother() {
+        final CircuitBreaker breaker = breaker();
+        record(breaker, 10, false, FAST);
+
+        breaker.abandon(breaker.tryAcquire(10 * SECOND));
+        assertEquals(State.HALF_OPEN, breaker.state());
+        assertNotEquals(CircuitBreaker.REFUSED, breaker.tryAcquire(10 * SECOND));
+        assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire(10 * SECOND));
+    }
+
+    @Test
+    void staleOutcomesDoNotDecideTrial() {
+        final CircuitBreaker breaker = breaker();
+        // started while the breaker was closed, and still connecting when it opens
+        final long stale = breaker.tryAcquire(0);
+        record(breaker, 10, false, FAST);
+
+        final long trial = breaker.tryAcquire(10 * SECOND);
+        breaker.record(stale, true, FAST, 10 * SECOND);
+        breaker.abandon(stale);
+        assertEquals(State.HALF_OPEN, breaker.state());
+        assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire(10 * SECOND));
+
+        breaker.record(trial, false, FAST, 10 * SECOND);
+        assertEquals(State.OPEN, breaker.state());
+    }
+
+    @Test
+    void failedTrialOpensAgain() {
+        final CircuitBreaker breaker = breaker();
+        record(breaker, 10, false, FAST);
+
+        breaker.record(breaker.tryAcquire(10 * SECOND), false, FAST, 10 * SECOND);
+        assertEquals(State.OPEN, breaker.state());
+        assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire(15 * SECOND));
+        assertNotEquals(CircuitBreaker.REFUSED, breaker.tryAcquire(20 * SECOND));
+    }
+}
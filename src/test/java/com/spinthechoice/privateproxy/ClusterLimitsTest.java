@@ -0,0 +1,256 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+import com.spinthechoice.privateproxy.ConnectParser.Server;
+import com.spinthechoice.privateproxy.UpstreamGuard.UnavailableException;
+import com.spinthechoice.privateproxy.client.H2Client;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.spinthechoice.privateproxy.TestSockets.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterLimitsTest {
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+    private static final byte[] SECRET = "cluster secret".getBytes(StandardCharsets.US_ASCII);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<ProxyServer> proxies = new ArrayList<>();
+    private ServerSocket upstreamSocket;
+    private String upstream;
+
+    @BeforeEach
+    void startUpstream() throws IOException {
+        upstreamSocket = new ServerSocket(0, 50, LOOPBACK);
+        upstream = "127.0.0.1:" + upstreamSocket.getLocalPort();
+        executor.submit(() -> TestSockets.echo(upstreamSocket, executor));
+    }
+
+    @AfterEach
+    void stopServers() throws IOException {
+        proxies.forEach(ProxyServer::close);
+        upstreamSocket.close();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts proxies on loopback that are each other's peers.
+     */
+    private List<ProxyServer> cluster(final int count, final UnaryOperator<ProxyConfig.Builder> settings)
+            throws IOException {
+        final List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ports.add(freePort());
+        }
+        final List<ProxyServer> cluster = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final List<InetSocketAddress> peers = new ArrayList<>();
+            for (int j = 0; j < count; j++) {
+                if (j != i) {
+                    peers.add(new InetSocketAddress(LOOPBACK, ports.get(j)));
+                }
+            }
+            final ProxyConfig config = settings.apply(ProxyConfig.builder()
+                    .clusterPort(ports.get(i))
+                    .clusterPeers(peers)
+                    .clusterSecret(SECRET)
+                    .clusterGossipInterval(Duration.ofMillis(20)))
+                    .build();
+            final ProxyServer proxy = new ProxyServer(new ServerSocket(0, 50, LOOPBACK),
+                    Executors.newCachedThreadPool(), 4, config, server -> null);
+            proxies.add(proxy);
+            cluster.add(proxy);
+            proxy.run();
+        }
+        return cluster;
+    }
+
+    private static int freePort() throws IOException {
+        try (final DatagramSocket socket = new DatagramSocket(0, LOOPBACK)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Socket tunnel(final ProxyServer proxy, final String server) throws IOException {
+        final Socket client = new Socket(LOOPBACK, proxy.port());
+        assertEquals("HTTP/1.1 200 OK", connect(client, server).readLine());
+        return client;
+    }
+
+    @Test
+    void clientLimitHoldsAcrossProxies() throws Exception {
+        final List<ProxyServer> cluster = cluster(3, config -> config.clusterMaxConnectionsPerClient(2));
+        final ClusterLimits third = cluster.get(2).cluster();
+
+        try (final Socket first = tunnel(cluster.get(0), upstream);
+             final Socket second = tunnel(cluster.get(1), upstream)) {
+            waitFor(() -> third.clientConnections(LOOPBACK) == 2);
+            try (final Socket refused = new Socket(LOOPBACK, cluster.get(2).port())) {
+                assertEquals("HTTP/1.1 429 Too Many Requests", connect(refused, upstream).readLine());
+            }
+            assertEquals(1, third.clientRejections());
+
+            first.close();
+            waitFor(() -> third.clientConnections(LOOPBACK) == 1);
+            tunnel(cluster.get(2), upstream).close();
+        }
+    }
+
+    @Test
+    void destinationLimitHoldsAcrossProxies() throws Exception {
+        final List<ProxyServer> cluster = cluster(2, config -> config.clusterMaxTunnelsPerDestination(1));
+        final Server destination = new Server(LOOPBACK.getHostAddress(), upstreamSocket.getLocalPort());
+
+        try (final Socket first = tunnel(cluster.get(0), upstream)) {
+            waitFor(() -> cluster.get(1).cluster().destinationTunnels(destination) == 1);
+            try (final Socket refused = new Socket(LOOPBACK, cluster.get(1).port())) {
+                assertEquals("HTTP/1.1 503 Service Unavailable", connect(refused, upstream).readLine());
+            }
+            assertEquals(1, cluster.get(1).cluster().destinationRejections());
+        }
+    }
+
+    @Test
+    void h2ClientOverLimitIsToldToCalmDown() throws Exception {
+        final List<ProxyServer> cluster = cluster(1, config -> config
+                .listenerMode(ListenerMode.H2)
+                .clusterMaxConnectionsPerClient(1));
+        final ProxyServer proxy = cluster.get(0);
+
+        try (final H2Client first = new H2Client("localhost", proxy.port())) {
+            waitFor(() -> proxy.cluster().clientConnections(LOOPBACK) == 1);
+            try (final H2Client refused = new H2Client("localhost", proxy.port())) {
+                assertEquals(ENHANCE_YOUR_CALM, refused.goAwayCode());
+            }
+            assertEquals(1, proxy.cluster().clientRejections());
+        }
+    }
+
+    @Test
+    void countsOfStoppedProxyExpire() throws Exception {
+        final List<ProxyServer> cluster = cluster(2, config -> config.clusterMaxConnectionsPerClient(1));
+        final ClusterLimits second = cluster.get(1).cluster();
+
+        try (final Socket first = tunnel(cluster.get(0), upstream)) {
+            waitFor(() -> second.clientConnections(LOOPBACK) == 1);
+            // the first proxy goes silent without saying that its connection closed
+            cluster.get(0).cluster().close();
+            waitFor(() -> second.clientConnections(LOOPBACK) == 0);
+        }
+    }
+
+    @Test
+    void ignoresDatagramsWithWrongSecret() throws Exception {
+        final List<ProxyServer> cluster = cluster(1, config -> config.clusterMaxConnectionsPerClient(5));
+        final ClusterLimits target = cluster.get(0).cluster();
+        // a proxy of another cluster sends its counts to the first one
+        final ProxyConfig other = ProxyConfig.builder()
+                .clusterPort(freePort())
+                .clusterPeers(List.of(new InetSocketAddress(LOOPBACK, target.port())))
+                .clusterSecret("another secret".getBytes(StandardCharsets.US_ASCII))
+                .clusterMaxConnectionsPerClient(5)
+                .clusterGossipInterval(Duration.ofMillis(20))
+                .build();
+        final ProxyServer stranger = new ProxyServer(new ServerSocket(0, 50, LOOPBACK),
+                Executors.newCachedThreadPool(), 1, other, server -> null);
+        proxies.add(stranger);
+        stranger.run();
+
+        try (final Socket client = tunnel(stranger, upstream)) {
+            waitFor(() -> target.datagramsRejected() > 0);
+            assertEquals(0, target.clientConnections(LOOPBACK));
+        }
+    }
+
+    /**
+     * Passes the next datagram that the tap received on to the target.
+     * @return the datagram
+     */
+    private static byte[] forward(final DatagramSocket tap, final ClusterLimits target) throws Exception {
+        final DatagramPacket packet = new DatagramPacket(new byte[ClusterLimits.MAX_DATAGRAM_LENGTH],
+                ClusterLimits.MAX_DATAGRAM_LENGTH);
+        tap.receive(packet);
+        final byte[] datagram = Arrays.copyOf(packet.getData(), packet.getLength());
+        deliver(tap, target, datagram);
+        return datagram;
+    }
+
+    private static void deliver(final DatagramSocket tap, final ClusterLimits target, final byte[] datagram)
+            throws Exception {
+        final long handled = target.datagramsReceived() + target.datagramsRejected();
+        tap.send(new DatagramPacket(datagram, datagram.length, new InetSocketAddress(LOOPBACK, target.port())));
+        waitFor(() -> target.datagramsReceived() + target.datagramsRejected() > handled);
+    }
+
+    @Test
+    void ignoresReplayedDatagrams() throws Exception {
+        final ProxyConfig.Builder settings = ProxyConfig.builder()
+                .clusterSecret(SECRET)
+                .clusterMaxConnectionsPerClient(5)
+                .clusterGossipInterval(Duration.ofMillis(20));
+        try (final DatagramSocket tap = new DatagramSocket(0, LOOPBACK);
+             final EventLog log = new EventLog(EventLog.Sink.stdout());
+             final ClusterLimits target = new ClusterLimits(settings.clusterPort(freePort()).build(), log,
+                     System::currentTimeMillis);
+             final ClusterLimits sender = new ClusterLimits(settings.clusterPort(freePort())
+                     .clusterPeers(List.of(new InetSocketAddress(LOOPBACK, tap.getLocalPort()))).build(), log,
+                     System::currentTimeMillis)) {
+            tap.setSoTimeout(5000);
+            final ClusterLimits.Permit permit = sender.acquireClient(LOOPBACK);
+            final byte[] open = forward(tap, target);
+            assertEquals(1, target.clientConnections(LOOPBACK));
+
+            permit.close();
+            while (target.clientConnections(LOOPBACK) != 0) {
+                forward(tap, target);
+            }
+            // someone who captured the first datagram sends it again
+            final long rejected = target.datagramsRejected();
+            deliver(tap, target, open);
+            assertEquals(rejected + 1, target.datagramsRejected());
+            assertEquals(0, target.clientConnections(LOOPBACK));
+        }
+    }
+
+    @Test
+    void limitsNewConnectionsPerSecond() throws Exception {
+        final AtomicLong clock = new AtomicLong(10_000);
+        final ProxyConfig config = ProxyConfig.builder()
+                .clusterMaxConnectionsPerClientPerSecond(2)
+                .build();
+        try (final EventLog log = new EventLog(EventLog.Sink.stdout());
+             final ClusterLimits limits = new ClusterLimits(config, log, clock::get)) {
+            limits.acquireClient(LOOPBACK).close();
+            limits.acquireClient(LOOPBACK).close();
+            assertThrows(UnavailableException.class, () -> limits.acquireClient(LOOPBACK));
+
+            clock.addAndGet(1000);
+            limits.acquireClient(LOOPBACK).close();
+            assertEquals(1, limits.clientRejections());
+        }
+    }
+
+    @Test
+    void secretRequiredWithClusterPort() {
+        final ProxyConfig config = ProxyConfig.builder().clusterPort(1).build();
+        assertThrows(IllegalArgumentException.class, () -> HandlerContext.from(config));
+    }
+}
@@ -0,0 +1,137 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConfigFileTest {
+    private static Path write(final String... lines) throws IOException {
+        final Path file = Files.createTempDirectory("config").resolve("proxy.properties");
+        Files.write(file, List.of(lines));
+        return file;
+    }
+
+    @Test
+    void defaultsForMissingKeys() throws IOException {
+        final ConfigFile file = ConfigFile.load(write("port=8443"), Map.of());
+        assertEquals(8443, file.port());
+        assertEquals(ProxyServer.DEFAULT_THREAD_COUNT, file.threads());
+        assertEquals(ProxyServer.DEFAULT_DRAIN_TIMEOUT, file.drainTimeout());
+        assertEquals(Set.of("api.giphy.com:443"), file.trustedServers());
+        assertEquals(TunnelMemory.DEFAULT_BUFFER_SIZE, file.config().bufferSize());
+    }
+
+    @Test
+    void readsEveryKind() throws IOException {
+        final ConfigFile file = ConfigFile.load(write(
+                "port=inherited",
+                "threads=16",
+                "drainTimeout=1m",
+                "trustedServers=API.giphy.com:443, media.giphy.com:443",
+                "maxHandlers=32",
+                "connectTimeout=PT2S",
+                "circuitBreakerFailureRate=0.25",
+                "listenerMode=sni",
+                "bufferSize=16384",
+                "tlsRecordFraming=true",
+                "releaseBuffersAfter=500ms",
+                "clientSocket.keepAlive=true",
+                "upstreamSocket.receiveBufferSize=65536"), Map.of());
+        assertEquals(ConfigFile.INHERITED, file.port());
+        assertEquals(16, file.threads());
+        assertEquals(Duration.ofMinutes(1), file.drainTimeout());
+        assertEquals(Set.of("api.giphy.com:443", "media.giphy.com:443"), file.trustedServers());
+        final ProxyConfig config = file.config();
+        assertEquals(32, config.maxHandlers());
+        assertEquals(Duration.ofSeconds(2), config.connectTimeout());
+        assertEquals(0.25, config.circuitBreakerFailureRate());
+        assertEquals(ListenerMode.SNI, config.listenerMode());
+        assertEquals(16384, config.bufferSize());
+        assertTrue(config.tlsRecordFraming());
+        assertEquals(Duration.ofMillis(500), config.releaseBuffersAfter());
+        assertTrue(config.clientSocketOptions().keepAlive());
+        assertEquals(65536, config.upstreamSocketOptions().receiveBufferSize());
+    }
+
+    @Test
+    void environmentOverridesFile() throws IOException {
+        final ConfigFile file = ConfigFile.load(write("port=8443", "maxHandlers=32"), Map.of(
+                "PRIVATE_PROXY_MAX_HANDLERS", "64",
+                "PRIVATE_PROXY_CLIENT_SOCKET_TCP_NO_DELAY", "false",
+                "PATH", "/usr/bin"));
+        assertEquals(64, file.config().maxHandlers());
+        assertFalse(file.config().clientSocketOptions().tcpNoDelay());
+        assertEquals("PRIVATE_PROXY_CLUSTER_MAX_CONNECTIONS_PER_CLIENT_PER_SECOND",
+                ConfigFile.envName("clusterMaxConnectionsPerClientPerSecond"));
+    }
+
+    @Test
+    void reportsAllProblems() throws IOException {
+        final Path path = write("threads=0", "maxHandlerz=4", "connectTimeout=soon", "minHandlers=8",
+                "maxHandlers=4", "clusterPort=7000", "clusterSecret=");
+        final IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> ConfigFile.load(path, Map.of("PRIVATE_PROXY_NOTHING", "1")));
+        final String message = e.getMessage();
+        assertTrue(message.contains("port is required"), message);
+        assertTrue(message.contains("threads must be positive"), message);
+        assertTrue(message.contains("unknown setting maxHandlerz"), message);
+        assertTrue(message.contains("unknown environment variable PRIVATE_PROXY_NOTHING"), message);
+        assertTrue(message.contains("connectTimeout must be a duration"), message);
+        assertTrue(message.contains("minHandlers must not be more than maxHandlers"), message);
+        assertTrue(message.contains("clusterSecret is required"), message);
+    }
+
+    @Test
+    void valuesAreNotRepeated() throws IOException {
+        final Path path = write("port=8443", "clusterPeers=secret-value");
+        final IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> ConfigFile.load(path, Map.of()));
+        assertFalse(e.getMessage().contains("secret-value"), e.getMessage());
+    }
+
+    @Test
+    void reloadAppliesToRunningServer() throws IOException {
+        final Path path = write("port=0", "threads=2", "bufferSize=4096", "listenerMode=connect");
+        final ConfigFile started = ConfigFile.load(path, Map.of());
+        final ProxyServer server = new ProxyServer(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()),
+                Executors.newCachedThreadPool(), started.threads(), started.config(), target -> null);
+        try {
+            server.run();
+            Files.write(path, List.of("port=0", "threads=2", "bufferSize=8192", "maxHandlers=4",
+                    "globalBytesPerSecond=1000000", "listenerMode=sni", "trustedServers=example.com:443"));
+            final List<String> restart = ConfigFile.reload(path, Map.of(), started, server);
+
+            assertEquals(List.of("trustedServers", "listenerMode"), restart);
+            assertEquals(8192, server.tunnelMemory().bufferSize());
+            assertEquals(4, server.maxHandlerCount());
+            assertEquals(8192, server.config().bufferSize());
+            assertEquals(1_000_000, server.config().globalBytesPerSecond());
+            assertEquals(ListenerMode.CONNECT, server.config().listenerMode());
+
+            Files.write(path, List.of("port=0", "bufferSize=-1"));
+            assertThrows(IllegalArgumentException.class, () -> ConfigFile.reload(path, Map.of(), started, server));
+            assertEquals(8192, server.config().bufferSize());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    void shortDurations() {
+        assertEquals(Duration.ofMillis(250), ConfigFile.parseDuration("250ms"));
+        assertEquals(Duration.ofSeconds(5), ConfigFile.parseDuration("5s"));
+        assertEquals(Duration.ofHours(2), ConfigFile.parseDuration("2h"));
+        assertEquals(Duration.ofSeconds(90), ConfigFile.parseDuration("PT1M30S"));
+    }
+}
@@ -16,14 +16,14 @@ class ConnectParserTest {
     @Test
     void validConnect() throws InvalidConnectException {
         Server server = parse("CONNECT example.com:8080 HTTP/1.1");
-        assertEquals("example.com", server.host().getHostName());
+        assertEquals("example.com", server.host());
         assertEquals(8080, server.port());
     }
 
     @Test
     void extraSpaces() throws InvalidConnectException {
         Server server = parse("CONNECT   example.com:8080     HTTP/1.1");
-        assertEquals("example.com", server.host().getHostName());
+        assertEquals("example.com", server.host());
         assertEquals(8080, server.port());
     }
 
@@ -63,9 +63,16 @@ class ConnectParserTest {
     }
 
     @Test
-    void unresolvableAddress() {
+    void hostIsNotLookedUp() throws InvalidConnectException {
+        Server server = parse("CONNECT invalid:8080 HTTP/1.1");
+        assertEquals("invalid", server.host());
+        assertEquals(8080, server.port());
+    }
+
+    @Test
+    void emptyHost() {
         InvalidConnectException e = assertThrows(InvalidConnectException.class,
-                () -> parse("CONNECT invalid:8080 HTTP/1.1"));
+                () -> parse("CONNECT :8080 HTTP/1.1"));
         assertEquals("Invalid host in CONNECT", e.getMessage());
     }
 
@@ -0,0 +1,117 @@
+package com.spinthechoice.privateproxy;
+
+import java.net.Socket;
+import java.time.Duration;
+
+import com.spinthechoice.privateproxy.ConnectionRegistry.Connection;
+import com.spinthechoice.privateproxy.ConnectionRegistry.Snapshot;
+import com.spinthechoice.privateproxy.ConnectionRegistry.State;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionRegistryTest {
+    private static class TestSocket extends Socket {
+        private boolean closed = false;
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    void registerAndUnregister() {
+        final ConnectionRegistry registry = new ConnectionRegistry();
+        final Connection first = registry.register(new TestSocket());
+        final Connection second = registry.register(new TestSocket());
+        assertEquals(2, registry.size());
+        assertNotEquals(first.id(), second.id());
+
+        registry.unregister(first);
+        registry.unregister(first);
+        assertEquals(1, registry.size());
+        assertEquals(2, registry.opened());
+        assertEquals(1, registry.closed());
+    }
+
+    @Test
+    void listsBytesAndState() {
+        final ConnectionRegistry registry = new ConnectionRegistry();
+        final Connection connection = registry.register(new TestSocket());
+        connection.state(State.TUNNELING);
+        connection.recordUpstream(10);
+        connection.recordDownstream(20);
+        connection.recordDownstream(5);
+
+        final Snapshot snapshot = registry.list().get(0);
+        assertEquals(connection.id(), snapshot.id());
+        assertEquals(State.TUNNELING, snapshot.state());
+        assertEquals(10, snapshot.bytesUpstream());
+        assertEquals(25, snapshot.bytesDownstream());
+    }
+
+    @Test
+    void killClosesBothSockets() {
+        final ConnectionRegistry registry = new ConnectionRegistry();
+        final TestSocket client = new TestSocket();
+        final TestSocket upstream = new TestSocket();
+        final Connection connection = registry.register(client);
+        connection.attach(upstream);
+
+        assertTrue(registry.kill(connection.id()));
+        assertTrue(client.isClosed());
+        assertTrue(upstream.isClosed());
+        assertEquals(State.CLOSING, connection.state());
+        assertFalse(registry.kill(connection.id() + 1));
+    }
+
+    @Test
+    void closeIdle() {
+        final ConnectionRegistry registry = new ConnectionRegistry();
+        final TestSocket client = new TestSocket();
+        registry.register(client);
+
+        assertEquals(0, registry.closeIdle(Duration.ofHours(1)));
+        assertFalse(client.isClosed());
+        assertEquals(1, registry.closeIdle(Duration.ZERO));
+        assertTrue(client.isClosed());
+    }
+
+    @Test
+    void closeIdlestTunnels() {
+        final ConnectionRegistry registry = new ConnectionRegistry();
+        final TestSocket idlest = new TestSocket();
+        final TestSocket busy = new TestSocket();
+        final TestSocket accepted = new TestSocket();
+        registry.register(accepted);
+        registry.register(idlest).state(State.TUNNELING);
+        final Connection active = registry.register(busy);
+        active.state(State.TUNNELING);
+        active.recordUpstream(1);
+
+        assertEquals(0, registry.closeIdlest(2, Duration.ofHours(1)));
+        assertEquals(1, registry.closeIdlest(1, Duration.ZERO));
+        assertTrue(idlest.isClosed());
+        assertFalse(busy.isClosed());
+        assertFalse(accepted.isClosed());
+    }
+
+    @Test
+    void closeAll() {
+        final ConnectionRegistry registry = new ConnectionRegistry();
+        final TestSocket first = new TestSocket();
+        final TestSocket second = new TestSocket();
+        registry.register(first);
+        registry.register(second);
+
+        assertEquals(2, registry.closeAll());
+        assertTrue(first.isClosed());
+        assertTrue(second.isClosed());
+    }
+}
@@ -0,0 +1,487 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+
+/**
+ * Runs a {@link ProxyServer} under changing load for a long time, to find leaks that short tests miss:
+ * tunnels that never close, threads that pile up, or memory that is never given back.
+ * The proxy runs in this JVM, and a second JVM runs the clients and an echo server, so only the proxy is
+ * measured. The clients
+ * <ul>
+ *     <li>hold {@value #HELD} tunnels open and send a message through each every second,
+ *     which lets buffers be released and taken again</li>
+ *     <li>reset all held tunnels at once every {@value #STORM_SECONDS} seconds and reconnect them together</li>
+ *     <li>churn short tunnels on {@value #CHURNERS} threads: most echo up to 16 KiB and close, others
+ *     half-close, or reset the connection during the transfer or in the middle of the CONNECT header</li>
+ * </ul>
+ * Every {@value #SAMPLE_SECONDS} seconds the proxy's open file descriptors, live threads, heap after a full GC,
+ * direct buffers and resident memory are sampled. After the first third of the run (which also covers the
+ * minute idle tunnel threads are kept), each of these must stay level: the trend over the rest of the run may
+ * only grow by a little. When the clients stop, every connection must close and the file descriptors must
+ * return to where they started. The report ends with the steady state cost of each open tunnel.
+ * Any failure exits with status 1. Run with {@code gradle enduranceBenchmark}, or for longer
+ * with {@code gradle enduranceBenchmark --args=PT2H}; the default is {@value #DEFAULT_DURATION}.
+ */
+public class EnduranceBenchmark {
+    private static final String DEFAULT_DURATION = "PT3M";
+    private static final int HELD = 200;
+    private static final int CHURNERS = 8;
+    private static final int STORM_SECONDS = 15;
+    private static final int SAMPLE_SECONDS = 5;
+    private static final int HANDLERS = 256;
+    private static final int MAX_CHUNK = 16 * 1024;
+    private static final Duration RELEASE_AFTER = Duration.ofMillis(500);
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final String LOAD = "load";
+
+    /**
+     * Resources of the proxy process at one point in time.
+     * @param seconds seconds since the load started
+     * @param connections open client connections
+     * @param fds open file descriptors, or -1 if unknown
+     * @param threads live threads
+     * @param heap heap used after a full GC
+     * @param direct bytes in direct buffers
+     * @param rss resident set size, or 0 if unknown
+     */
+    private static record Sample(double seconds, int connections, long fds, int threads, long heap, long direct,
+                                 long rss) {}
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length == 3 && LOAD.equals(args[0])) {
+            new Load(Integer.parseInt(args[1]), Duration.parse(args[2])).run();
+            return;
+        }
+
+        final Duration duration = Duration.parse(args.length > 0 ? args[0] : DEFAULT_DURATION);
+        final List<String> failures = soak(duration);
+        if (failures.isEmpty()) {
+            System.out.println("PASS");
+        } else {
+            failures.forEach(failure -> System.out.println("FAIL " + failure));
+            System.exit(1);
+        }
+    }
+
+    private static List<String> soak(final Duration duration) throws Exception {
+        // resets are logged as failed connections, which would bury the samples
+        final Path log = Files.createTempFile("endurance", ".log");
+        final ProxyConfig config = ProxyConfig.builder()
+                .releaseBuffersAfter(RELEASE_AFTER)
+                .logFile(log)
+                .build();
+        final ProxyServer server = new ProxyServer(new ServerSocket(0, 4 * HELD, LOOPBACK),
+                Executors.newFixedThreadPool(HANDLERS), HANDLERS, config, target -> null);
+        final List<String> failures = new ArrayList<>();
+        try {
+            server.run();
+            final Sample baseline = sample(server, System.nanoTime());
+            System.out.printf("soaking for %s: %d held tunnels, %d churning clients%n",
+                    duration, HELD, CHURNERS);
+            print(baseline);
+
+            final Process load = startLoad(server.port(), duration);
+            final long start = System.nanoTime();
+            final List<Sample> samples = new ArrayList<>();
+            while (!load.waitFor(SAMPLE_SECONDS, TimeUnit.SECONDS)) {
+                final Sample sample = sample(server, start);
+                samples.add(sample);
+                print(sample);
+            }
+            if (load.exitValue() != 0) {
+                failures.add("load generator exited with status " + load.exitValue());
+            }
+
+            final List<Sample> steady = samples.stream()
+                    .filter(sample -> sample.seconds() >= duration.toSeconds() / 3.0)
+                    .toList();
+            if (steady.size() < 3) {
+                failures.add("run too short to judge the steady state");
+            } else {
+                checkLevel("file descriptors", steady, Sample::fds, 64, 0.1, failures);
+                checkLevel("threads", steady, Sample::threads, 32, 0.1, failures);
+                checkLevel("heap", steady, Sample::heap, 16 << 20, 0.25, failures);
+                checkLevel("direct memory", steady, Sample::direct, 1 << 20, 0.25, failures);
+                checkLevel("resident memory", steady, Sample::rss, 64 << 20, 0.25, failures);
+                report(baseline, steady, server);
+            }
+            checkClosed(server, baseline, start, failures);
+        } finally {
+            server.close();
+            System.out.println("proxy events: " + log);
+        }
+        return failures;
+    }
+
+    private static Process startLoad(final int port, final Duration duration) throws IOException {
+        final String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        final Process process = new ProcessBuilder(java, "-Xmx256m", "-cp", System.getProperty("java.class.path"),
+                EnduranceBenchmark.class.getName(), LOAD, Integer.toString(port), duration.toString())
+                .redirectErrorStream(true)
+                .start();
+        final Thread output = new Thread(() -> {
+            try (final BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                for (String line; (line = in.readLine()) != null; ) {
+                    System.out.println("load: " + line);
+                }
+            } catch (IOException e) {
+                // the process exited
+            }
+        }, "load-output");
+        output.setDaemon(true);
+        output.start();
+        return process;
+    }
+
+    private static Sample sample(final ProxyServer server, final long start) throws Exception {
+        for (int i = 0; i < 2; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        final long direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> "direct".equals(pool.getName()))
+                .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                .sum();
+        return new Sample((System.nanoTime() - start) / 1e9, server.connections().size(), fds(),
+                ManagementFactory.getThreadMXBean().getThreadCount(),
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), direct, rss());
+    }
+
+    private static void print(final Sample sample) {
+        System.out.printf("%6.0f s   connections %4d   fds %5d   threads %5d   heap %7.1f MiB   "
+                        + "direct %6.1f MiB   RSS %7.1f MiB%n",
+                sample.seconds(), sample.connections(), sample.fds(), sample.threads(), sample.heap() / 1048576.0,
+                sample.direct() / 1048576.0, sample.rss() / 1048576.0);
+    }
+
+    /**
+     * Fails if the trend of a value over the steady state, fitted by least squares, grows by more than
+     * a fixed slack plus a share of its mean. Short spikes, such as reconnect storms, barely move the trend.
+     */
+    private static void checkLevel(final String name, final List<Sample> steady, final ToDoubleFunction<Sample> value,
+                                   final double slack, final double share, final List<String> failures) {
+        if (steady.stream().anyMatch(sample -> value.applyAsDouble(sample) < 0)) {
+            System.out.printf("%s not available here%n", name);
+            return;
+        }
+        final double meanSeconds = steady.stream().mapToDouble(Sample::seconds).average().orElse(0);
+        final double mean = steady.stream().mapToDouble(value).average().orElse(0);
+        double covariance = 0;
+        double variance = 0;
+        for (final Sample sample : steady) {
+            covariance += (sample.seconds() - meanSeconds) * (value.applyAsDouble(sample) - mean);
+            variance += (sample.seconds() - meanSeconds) * (sample.seconds() - meanSeconds);
+        }
+        final double span = steady.get(steady.size() - 1).seconds() - steady.get(0).seconds();
+        final double growth = covariance / variance * span;
+        final double allowed = slack + share * mean;
+        if (growth > allowed) {
+            failures.add(String.format("%s grew by %.0f over %.0f s of steady state (at most %.0f allowed)",
+                    name, growth, span, allowed));
+        }
+    }
+
+    private static void report(final Sample baseline, final List<Sample> steady, final ProxyServer server) {
+        final double connections = median(steady, Sample::connections);
+        System.out.printf("steady state: %.0f connections, %d tunnels opened, %d buffer releases%n",
+                connections, server.metrics().get(MetricsFile.Counter.TUNNELS_OPENED),
+                server.tunnelMemory().releases());
+        if (connections > 0) {
+            System.out.printf("per connection: heap %.1f KiB   RSS %.1f KiB   threads %.2f   fds %.2f%n",
+                    (median(steady, Sample::heap) - baseline.heap()) / 1024.0 / connections,
+                    (median(steady, Sample::rss) - baseline.rss()) / 1024.0 / connections,
+                    (median(steady, Sample::threads) - baseline.threads()) / connections,
+                    (median(steady, Sample::fds) - baseline.fds()) / connections);
+        }
+    }
+
+    private static double median(final List<Sample> samples, final ToDoubleFunction<Sample> value) {
+        final double[] values = samples.stream().mapToDouble(value).sorted().toArray();
+        return values[values.length / 2];
+    }
+
+    /**
+     * Once the clients are gone, the proxy must close every connection and give back every socket.
+     */
+    private static void checkClosed(final ProxyServer server, final Sample baseline, final long start,
+                                    final List<String> failures) throws Exception {
+        final long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (server.connections().size() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        final Sample end = sample(server, start);
+        print(end);
+        if (end.connections() > 0) {
+            failures.add(end.connections() + " connections still open after the clients left");
+        }
+        if (baseline.fds() >= 0 && end.fds() > baseline.fds() + 16) {
+            failures.add(String.format("%d file descriptors open after the clients left, %d before they came",
+                    end.fds(), baseline.fds()));
+        }
+    }
+
+    /**
+     * Returns the number of open file descriptors on Linux, or -1 elsewhere.
+     */
+    private static long fds() throws IOException {
+        final Path fds = Path.of("/proc/self/fd");
+        if (!Files.isDirectory(fds)) {
+            return -1;
+        }
+        try (final Stream<Path> list = Files.list(fds)) {
+            return list.count();
+        }
+    }
+
+    /**
+     * Returns the resident set size on Linux, or 0 elsewhere.
+     */
+    private static long rss() throws IOException {
+        final Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return 0;
+        }
+        for (final String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The clients and the echo server, run in their own process.
+     */
+    private static class Load {
+        private final int proxyPort;
+        private final long deadline;
+        private final AtomicLong tunnels = new AtomicLong();
+        private final AtomicLong resets = new AtomicLong();
+        private final AtomicLong storms = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private byte[] request;
+
+        Load(final int proxyPort, final Duration duration) {
+            this.proxyPort = proxyPort;
+            this.deadline = System.nanoTime() + duration.toNanos();
+        }
+
+        void run() throws Exception {
+            final ExecutorService upstream = Executors.newCachedThreadPool(runnable -> {
+                final Thread thread = new Thread(runnable, "echo");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try (final ServerSocket upstreamSocket = new ServerSocket(0, 4 * HELD, LOOPBACK)) {
+                request = ("CONNECT 127.0.0.1:" + upstreamSocket.getLocalPort() + " HTTP/1.1\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+                upstream.submit(() -> echo(upstreamSocket, upstream));
+
+                final ExecutorService clients = Executors.newFixedThreadPool(CHURNERS + 1);
+                for (int i = 0; i < CHURNERS; i++) {
+                    clients.submit(this::churn);
+                }
+                clients.submit(this::hold);
+                clients.shutdown();
+                clients.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            System.out.printf("%d tunnels, %d resets, %d storms, %d errors%n",
+                    tunnels.get(), resets.get(), storms.get(), errors.get());
+        }
+
+        private static Void echo(final ServerSocket upstreamSocket, final ExecutorService upstream) {
+            try {
+                while (!upstreamSocket.isClosed()) {
+                    final Socket socket = upstreamSocket.accept();
+                    upstream.submit(() -> {
+                        try (socket) {
+                            socket.getInputStream().transferTo(socket.getOutputStream());
+                        }
+                        return null;
+                    });
+                }
+            } catch (IOException e) {
+                // closed at the end of the run
+            }
+            return null;
+        }
+
+        private Void churn() {
+            final Random random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline) {
+                try {
+                    switch (random.nextInt(10)) {
+                        case 0 -> resetDuringHeader();
+                        case 1, 2 -> resetDuringTransfer(random);
+                        case 3 -> halfClose(random);
+                        default -> echo(random);
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+            }
+            return null;
+        }
+
+        private void echo(final Random random) throws IOException {
+            try (final Socket client = open()) {
+                final byte[] message = message(random);
+                client.getOutputStream().write(message);
+                if (!Arrays.equals(message, client.getInputStream().readNBytes(message.length))) {
+                    throw new IOException("Echo did not match");
+                }
+            }
+        }
+
+        private void halfClose(final Random random) throws IOException {
+            try (final Socket client = open()) {
+                final byte[] message = message(random);
+                client.getOutputStream().write(message);
+                client.shutdownOutput();
+                if (client.getInputStream().readAllBytes().length != message.length) {
+                    throw new IOException("Echo did not match");
+                }
+            }
+        }
+
+        private void resetDuringTransfer(final Random random) throws IOException {
+            final Socket client = open();
+            client.getOutputStream().write(message(random));
+            reset(client);
+        }
+
+        private void resetDuringHeader() throws IOException {
+            final Socket client = new Socket(LOOPBACK, proxyPort);
+            client.getOutputStream().write(request, 0, request.length / 2);
+            reset(client);
+        }
+
+        private void reset(final Socket client) throws IOException {
+            client.setSoLinger(true, 0);
+            client.close();
+            resets.incrementAndGet();
+        }
+
+        private static byte[] message(final Random random) {
+            final byte[] message = new byte[1 + random.nextInt(MAX_CHUNK)];
+            random.nextBytes(message);
+            return message;
+        }
+
+        /**
+         * Holds tunnels open and pings each of them every second, and now and then resets all of them.
+         */
+        private Void hold() {
+            final List<Socket> held = new ArrayList<>();
+            long nextStorm = System.nanoTime() + TimeUnit.SECONDS.toNanos(STORM_SECONDS);
+            try {
+                reconnect(held);
+                while (System.nanoTime() < deadline) {
+                    final long next = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                    for (int i = 0; i < held.size(); i++) {
+                        try {
+                            ping(held.get(i));
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                            held.get(i).close();
+                            held.set(i, open());
+                        }
+                    }
+                    if (System.nanoTime() >= nextStorm) {
+                        for (final Socket socket : held) {
+                            reset(socket);
+                        }
+                        held.clear();
+                        reconnect(held);
+                        storms.incrementAndGet();
+                        nextStorm += TimeUnit.SECONDS.toNanos(STORM_SECONDS);
+                    }
+                    TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+                }
+                for (final Socket socket : held) {
+                    socket.close();
+                }
+            } catch (IOException | InterruptedException e) {
+                errors.incrementAndGet();
+            }
+            return null;
+        }
+
+        /**
+         * Sends all CONNECT requests before reading any response, so the proxy sees them all at once.
+         */
+        private void reconnect(final List<Socket> held) throws IOException {
+            for (int i = 0; i < HELD; i++) {
+                final Socket socket = new Socket(LOOPBACK, proxyPort);
+                socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(30));
+                socket.getOutputStream().write(request);
+                held.add(socket);
+            }
+            for (final Socket socket : held) {
+                readResponse(socket.getInputStream());
+                tunnels.incrementAndGet();
+            }
+        }
+
+        private static void ping(final Socket socket) throws IOException {
+            final OutputStream out = socket.getOutputStream();
+            out.write('.');
+            if (socket.getInputStream().read() != '.') {
+                throw new IOException("Tunnel closed");
+            }
+        }
+
+        private Socket open() throws IOException {
+            final Socket client = new Socket(LOOPBACK, proxyPort);
+            try {
+                client.setSoTimeout((int) TimeUnit.SECONDS.toMillis(30));
+                client.getOutputStream().write(request);
+                readResponse(client.getInputStream());
+                tunnels.incrementAndGet();
+                return client;
+            } catch (IOException e) {
+                client.close();
+                throw e;
+            }
+        }
+
+        private static void readResponse(final InputStream in) throws IOException {
+            // the response is a status line and an empty line
+            final StringBuilder response = new StringBuilder();
+            while (response.length() < 4 || !response.substring(response.length() - 4).equals("\r\n\r\n")) {
+                final int b = in.read();
+                if (b < 0) {
+                    throw new IOException("Proxy closed the connection");
+                }
+                response.append((char) b);
+            }
+            if (!response.toString().startsWith("HTTP/1.1 200 ")) {
+                throw new IOException("Proxy refused the tunnel: " + response.toString().strip());
+            }
+        }
+    }
+}
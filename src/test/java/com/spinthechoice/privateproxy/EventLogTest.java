@@ -0,0 +1,72 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+import com.spinthechoice.privateproxy.EventLog.Event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventLogTest {
+    private static class MemorySink implements EventLog.Sink {
+        private final StringBuffer lines = new StringBuffer();
+
+        @Override
+        public void write(final CharSequence batch) {
+            lines.append(batch);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    void writesEventsWithoutMessages() {
+        final MemorySink sink = new MemorySink();
+        final EventLog log = new EventLog(sink);
+        log.log(Event.CONNECTION_FAILED, new SocketException("Connection reset by 203.0.113.7"));
+        log.log(Event.ACCEPT_FAILED);
+        log.close();
+
+        final String[] lines = sink.lines.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(" WARN connection_failed cause=java.net.SocketException"), lines[0]);
+        assertTrue(lines[1].endsWith(" ERROR accept_failed"), lines[1]);
+        assertFalse(sink.lines.toString().contains("203.0.113.7"));
+    }
+
+    @Test
+    void dropsWhenFull() throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final MemorySink sink = new MemorySink() {
+            @Override
+            public void write(final CharSequence batch) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(batch);
+            }
+        };
+        final EventLog log = new EventLog(sink, 4);
+        log.log(Event.ACCEPT_FAILED);
+        writing.await();
+
+        // the writer is stuck, so only 4 of these fit
+        for (int i = 0; i < 6; i++) {
+            log.log(Event.CONNECTION_FAILED, new IOException());
+        }
+        assertEquals(2, log.dropped());
+
+        release.countDown();
+        log.close();
+        assertTrue(sink.lines.toString().contains("events_dropped count=2"), sink.lines.toString());
+    }
+}
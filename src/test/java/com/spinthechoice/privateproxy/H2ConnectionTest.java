@@ -0,0 +1,169 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.spinthechoice.privateproxy.client.H2Client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class H2ConnectionTest {
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private ServerSocket proxySocket;
+    private ServerSocket upstreamSocket;
+    private final HandlerContext context = HandlerContext.from(ProxyConfig.builder()
+            .listenerMode(ListenerMode.H2)
+            .build());
+
+    @BeforeEach
+    void startServers() throws IOException {
+        proxySocket = new ServerSocket(0);
+        upstreamSocket = new ServerSocket(0);
+        executor.submit(new LoopingSocketHandler(new SocketHandler(proxySocket, executor,
+                server -> server.port() == upstreamSocket.getLocalPort() ? null : "Untrusted server",
+                context)));
+        executor.submit(() -> TestSockets.echo(upstreamSocket, executor));
+    }
+
+    @AfterEach
+    void stopServers() throws IOException {
+        proxySocket.close();
+        upstreamSocket.close();
+        executor.shutdownNow();
+        context.close();
+    }
+
+    private String upstream() {
+        return "127.0.0.1:" + upstreamSocket.getLocalPort();
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void tunnelsShareConnection() throws Exception {
+        try (final H2Client client = new H2Client("localhost", proxySocket.getLocalPort())) {
+            final H2Client.Tunnel first = client.open(upstream());
+            final H2Client.Tunnel second = client.open(upstream());
+            assertEquals(200, first.status());
+            assertEquals(200, second.status());
+
+            second.send(bytes("second"), false);
+            first.send(bytes("first"), false);
+            assertArrayEquals(bytes("first"), first.read(5));
+            assertArrayEquals(bytes("second"), second.read(6));
+        }
+    }
+
+    @Test
+    void halfClosePropagates() throws Exception {
+        try (final H2Client client = new H2Client("localhost", proxySocket.getLocalPort())) {
+            final H2Client.Tunnel tunnel = client.open(upstream());
+            assertEquals(200, tunnel.status());
+
+            tunnel.send(bytes("hello"), true);
+            assertArrayEquals(bytes("hello"), tunnel.readToEnd());
+        }
+    }
+
+    @Test
+    void flowControlBridged() throws Exception {
+        final byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+        try (final H2Client client = new H2Client("localhost", proxySocket.getLocalPort())) {
+            final H2Client.Tunnel tunnel = client.open(upstream());
+            assertEquals(200, tunnel.status());
+
+            tunnel.send(data, true);
+            assertArrayEquals(data, tunnel.readToEnd());
+        }
+    }
+
+    @Test
+    void refusesUntrustedServer() throws Exception {
+        try (final H2Client client = new H2Client("localhost", proxySocket.getLocalPort())) {
+            assertEquals(400, client.open("127.0.0.1:1").status());
+            // the connection is still usable
+            assertEquals(200, client.open(upstream()).status());
+        }
+    }
+
+    @Test
+    void zeroWindowIncrementResetsStream() throws Exception {
+        try (final H2Client client = new H2Client("localhost", proxySocket.getLocalPort())) {
+            final H2Client.Tunnel broken = client.open(upstream());
+            final H2Client.Tunnel other = client.open(upstream());
+            assertEquals(200, broken.status());
+            assertEquals(200, other.status());
+
+            broken.windowUpdate(0);
+            assertEquals(PROTOCOL_ERROR, broken.resetCode());
+            // a stream error leaves the other streams alone
+            other.send(bytes("still here"), true);
+            assertArrayEquals(bytes("still here"), other.readToEnd());
+        }
+    }
+
+    @Test
+    void zeroWindowIncrementOnConnectionIsFatal() throws Exception {
+        try (final H2Client client = new H2Client("localhost", proxySocket.getLocalPort())) {
+            client.windowUpdate(0);
+            assertEquals(PROTOCOL_ERROR, client.goAwayCode());
+        }
+    }
+
+    @Test
+    void windowOverflowResetsStream() throws Exception {
+        try (final H2Client client = new H2Client("localhost", proxySocket.getLocalPort())) {
+            final H2Client.Tunnel tunnel = client.open(upstream());
+            assertEquals(200, tunnel.status());
+
+            tunnel.windowUpdate(Integer.MAX_VALUE);
+            assertEquals(FLOW_CONTROL_ERROR, tunnel.resetCode());
+        }
+    }
+
+    @Test
+    void connectionWindowOverflowIsFatal() throws Exception {
+        try (final H2Client client = new H2Client("localhost", proxySocket.getLocalPort())) {
+            client.windowUpdate(Integer.MAX_VALUE);
+            assertEquals(FLOW_CONTROL_ERROR, client.goAwayCode());
+        }
+    }
+
+    @Test
+    void initialWindowOverflowIsFatal() throws Exception {
+        try (final H2Client client = new H2Client("localhost", proxySocket.getLocalPort())) {
+            final H2Client.Tunnel tunnel = client.open(upstream());
+            assertEquals(200, tunnel.status());
+
+            // the stream's window is now as large as it may be, so any larger initial window overflows it
+            tunnel.windowUpdate(Integer.MAX_VALUE - 65535);
+            client.initialWindowSize(65536);
+            assertEquals(FLOW_CONTROL_ERROR, client.goAwayCode());
+        }
+    }
+
+    @Test
+    void closesWithoutPreface() throws IOException {
+        try (final Socket socket = new Socket("localhost", proxySocket.getLocalPort())) {
+            socket.getOutputStream().write(bytes("CONNECT " + upstream() + " HTTP/1.1\r\n\r\n"));
+            final InputStream in = socket.getInputStream();
+            assertEquals(-1, in.read());
+        }
+    }
+}
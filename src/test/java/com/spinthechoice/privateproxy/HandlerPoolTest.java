@@ -0,0 +1,143 @@
+package com.spinthechoice.privateproxy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HandlerPoolTest {
+    /**
+     * Handler that waits until it is stopped instead of accepting connections.
+     */
+    private static class IdleHandler extends SocketHandler {
+        IdleHandler(final HandlerContext context) {
+            // won't be using any other dependencies
+            super(null, null, null, context);
+        }
+
+        @Override
+        boolean isServerOpen() {
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final HandlerContext context = HandlerContext.from(ProxyConfig.defaults());
+    private final AtomicInteger busy = new AtomicInteger();
+    private final AtomicLong acceptWait = new AtomicLong();
+
+    @AfterEach
+    void stopExecutor() {
+        executor.shutdownNow();
+        context.close();
+    }
+
+    private HandlerPool pool(final int min, final int max) {
+        return new HandlerPool(executor, () -> new IdleHandler(context), busy::get, acceptWait::get, min, max);
+    }
+
+    private static void sample(final HandlerPool pool, final int times) {
+        for (int i = 0; i < times; ++i) {
+            pool.sample();
+        }
+    }
+
+    @Test
+    void startsWithinBounds() {
+        final HandlerPool pool = pool(2, 4);
+        pool.start(8);
+        assertEquals(4, pool.size());
+        pool.stop();
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    void newBoundsApplyAtOnce() {
+        final HandlerPool pool = pool(2, 4);
+        pool.start(4);
+        pool.bounds(1, 2);
+        assertEquals(2, pool.size());
+        pool.bounds(6, 8);
+        assertEquals(6, pool.size());
+        assertEquals(8, pool.max());
+        assertThrows(IllegalArgumentException.class, () -> pool.bounds(3, 2));
+        assertEquals(6, pool.size());
+        pool.stop();
+    }
+
+    @Test
+    void growsWhenBusy() {
+        final HandlerPool pool = pool(2, 5);
+        pool.start(2);
+        busy.set(2);
+
+        sample(pool, HandlerPool.GROW_AFTER_SAMPLES - 1);
+        assertEquals(2, pool.size());
+        pool.sample();
+        assertEquals(3, pool.size());
+
+        busy.set(3);
+        sample(pool, HandlerPool.GROW_AFTER_SAMPLES);
+        assertEquals(4, pool.size());
+        busy.set(4);
+        sample(pool, HandlerPool.GROW_AFTER_SAMPLES * 3);
+        assertEquals(5, pool.size());
+        pool.stop();
+    }
+
+    @Test
+    void shrinksSlowlyWhenIdle() {
+        final HandlerPool pool = pool(2, 5);
+        pool.start(4);
+
+        sample(pool, HandlerPool.SHRINK_AFTER_SAMPLES - 1);
+        assertEquals(4, pool.size());
+        pool.sample();
+        assertEquals(3, pool.size());
+        sample(pool, HandlerPool.SHRINK_AFTER_SAMPLES * 4);
+        assertEquals(2, pool.size());
+        pool.stop();
+    }
+
+    @Test
+    void keepsSizeInBetween() {
+        final HandlerPool pool = pool(2, 5);
+        pool.start(4);
+        busy.set(3);
+        sample(pool, HandlerPool.SHRINK_AFTER_SAMPLES * 2);
+        assertEquals(4, pool.size());
+        assertFalse(pool(3, 3).isResizable());
+        pool.stop();
+    }
+
+    @Test
+    void growsWhenClientsWait() {
+        final HandlerPool pool = pool(2, 5);
+        pool.start(4);
+        busy.set(3);
+        acceptWait.set(HandlerPool.GROW_ACCEPT_WAIT_NANOS);
+        sample(pool, HandlerPool.GROW_AFTER_SAMPLES);
+        assertEquals(5, pool.size());
+        pool.stop();
+    }
+
+    @Test
+    void invalidBounds() {
+        assertThrows(IllegalArgumentException.class, () -> pool(0, 2));
+        assertThrows(IllegalArgumentException.class, () -> pool(3, 2));
+    }
+}
@@ -0,0 +1,66 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HeaderReaderTest {
+    private static HeaderReader reader(final String text) {
+        return new HeaderReader(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void readsLinesWithEitherTerminator() throws IOException {
+        final HeaderReader in = reader("CONNECT example.com:443 HTTP/1.1\r\nHost: example.com\n\r\n");
+        assertEquals("CONNECT example.com:443 HTTP/1.1", in.readLine());
+        assertEquals("Host: example.com", in.readLine());
+        assertEquals("", in.readLine());
+        assertNull(in.readLine());
+    }
+
+    @Test
+    void returnsLastLineWithoutTerminator() throws IOException {
+        final HeaderReader in = reader("a\r\nb");
+        assertEquals("a", in.readLine());
+        assertEquals("b", in.readLine());
+        assertNull(in.readLine());
+    }
+
+    @Test
+    void readsLinesSplitAcrossReads() throws IOException {
+        final String longLine = "x".repeat(3000);
+        // one byte per read, so every line is completed by a later read
+        final InputStream slow = new ByteArrayInputStream(("a\r\n" + longLine + "\r\nb\r\n")
+                .getBytes(StandardCharsets.US_ASCII)) {
+            @Override
+            public synchronized int read(final byte[] b, final int off, final int len) {
+                return super.read(b, off, Math.min(1, len));
+            }
+        };
+        final HeaderReader in = new HeaderReader(slow);
+        assertEquals("a", in.readLine());
+        assertEquals(longLine, in.readLine());
+        assertEquals("b", in.readLine());
+        assertNull(in.readLine());
+    }
+
+    @Test
+    void rejectsLongLines() {
+        final HeaderReader in = reader("x".repeat(10000) + "\r\n");
+        assertThrows(IOException.class, in::readLine);
+    }
+
+    @Test
+    void cannotReadAfterRelease() {
+        final HeaderReader in = reader("a\r\n");
+        in.release();
+        assertThrows(IOException.class, in::readLine);
+    }
+}
@@ -0,0 +1,114 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HealthEndpointTest {
+    private final HttpClient client = HttpClient.newHttpClient();
+    private ProxyServer server;
+    private HealthEndpoint endpoint;
+
+    @BeforeEach
+    void startEndpoint() throws IOException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        server = new ProxyServer(new ServerSocket(0, 50, loopback), Executors.newCachedThreadPool(), 4);
+        endpoint = new HealthEndpoint(new InetSocketAddress(loopback, 0), Map.of("proxy", server));
+    }
+
+    @AfterEach
+    void stopEndpoint() {
+        endpoint.close();
+        server.close();
+    }
+
+    private HttpResponse<String> get(final String path) throws Exception {
+        return send(HttpRequest.newBuilder(uri(path)).GET().build());
+    }
+
+    private HttpResponse<String> send(final HttpRequest request) throws Exception {
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private URI uri(final String path) {
+        return URI.create("http://127.0.0.1:" + endpoint.port() + path);
+    }
+
+    @Test
+    void liveBeforeReady() throws Exception {
+        assertEquals(200, get("/live").statusCode());
+        assertEquals(503, get("/ready").statusCode());
+        assertTrue(get("/capacity").body().startsWith("headroom 0\n"));
+    }
+
+    @Test
+    void readyOnceRunning() throws Exception {
+        server.run();
+        assertEquals(200, get("/ready").statusCode());
+
+        final HttpResponse<String> capacity = get("/capacity");
+        assertEquals(200, capacity.statusCode());
+        assertTrue(capacity.body().startsWith("headroom 100\n"), capacity.body());
+        assertTrue(capacity.body().contains("\nhandlers 4\n"), capacity.body());
+        assertEquals(capacity.body(), get("/capacity/proxy").body());
+    }
+
+    @Test
+    void notReadyWhileDraining() throws Exception {
+        server.run();
+        server.close();
+        assertEquals(503, get("/ready").statusCode());
+    }
+
+    @Test
+    void unknownListener() throws Exception {
+        assertEquals(404, get("/capacity/other").statusCode());
+    }
+
+    @Test
+    void onlyGet() throws Exception {
+        final HttpResponse<String> response = send(HttpRequest.newBuilder(uri("/live"))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build());
+        assertEquals(405, response.statusCode());
+    }
+
+    @Test
+    void headroomFollowsBusiestResource() {
+        assertEquals(0, HealthEndpoint.headroom(false, 0, 4, 0, 0, 0, 0));
+        assertEquals(100, HealthEndpoint.headroom(true, 0, 4, 0, 0, 0, 0));
+        assertEquals(25, HealthEndpoint.headroom(true, 3, 4, 0, 0, 0, 0));
+        assertEquals(0, HealthEndpoint.headroom(true, 5, 4, 0, 0, 0, 0));
+        assertEquals(10, HealthEndpoint.headroom(true, 1, 4, 900, 1000, 0, 0));
+    }
+
+    @Test
+    void headroomShrinksWithConnectTime() {
+        assertEquals(50, HealthEndpoint.headroom(true, 0, 4, 0, 0, 500_000, 1_000_000));
+        assertEquals(0, HealthEndpoint.headroom(true, 0, 4, 0, 0, 2_000_000, 1_000_000));
+        assertEquals(25, HealthEndpoint.headroom(true, 2, 4, 0, 0, 500_000, 1_000_000));
+    }
+
+    @Test
+    void percentileOfBuckets() {
+        final long[] buckets = new long[MetricsFile.BUCKETS];
+        assertEquals(0, HealthEndpoint.percentile(buckets, 90));
+        buckets[3] = 9;
+        buckets[10] = 1;
+        assertEquals(8, HealthEndpoint.percentile(buckets, 90));
+        assertEquals(1024, HealthEndpoint.percentile(buckets, 99));
+    }
+}
@@ -0,0 +1,74 @@
+package com.spinthechoice.privateproxy;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.spinthechoice.privateproxy.HpackDecoder.CompressionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Uses the examples from RFC 7541, appendix C.
+ */
+class HpackDecoderTest {
+    private static byte[] hex(final String s) {
+        final String digits = s.replace(" ", "");
+        final byte[] bytes = new byte[digits.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static Map<String, String> decode(final HpackDecoder decoder, final String block)
+            throws CompressionException {
+        final byte[] bytes = hex(block);
+        return decoder.decode(bytes, 0, bytes.length);
+    }
+
+    @Test
+    void literalWithIndexing() throws CompressionException {
+        final HpackDecoder decoder = new HpackDecoder(4096);
+        assertEquals(Map.of("custom-key", "custom-header"),
+                decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"));
+        // the entry was added to the dynamic table
+        assertEquals(Map.of("custom-key", "custom-header"), decode(decoder, "be"));
+    }
+
+    @Test
+    void requestsWithoutHuffman() throws CompressionException {
+        final HpackDecoder decoder = new HpackDecoder(4096);
+        assertEquals(Map.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(Map.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                        "cache-control", "no-cache"),
+                decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"));
+    }
+
+    @Test
+    void requestsWithHuffman() throws CompressionException {
+        final HpackDecoder decoder = new HpackDecoder(4096);
+        assertEquals(Map.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+        assertEquals(Map.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                        "cache-control", "no-cache"),
+                decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"));
+        assertEquals(Map.of(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                        ":authority", "www.example.com", "custom-key", "custom-value"),
+                decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+    }
+
+    @Test
+    void invalidIndex() {
+        final HpackDecoder decoder = new HpackDecoder(4096);
+        assertThrows(CompressionException.class, () -> decode(decoder, "be"));
+    }
+
+    @Test
+    void tableSizeUpdateTooLarge() {
+        final HpackDecoder decoder = new HpackDecoder(4096);
+        assertThrows(CompressionException.class, () -> decode(decoder, "3fe2 1f"));
+    }
+}
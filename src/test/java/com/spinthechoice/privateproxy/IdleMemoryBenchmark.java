@@ -0,0 +1,174 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the memory an idle tunnel costs, to plan how many mostly idle clients a node can hold.
+ * Each variant runs in a new JVM, which opens a number of tunnels through {@link SocketHandler}s,
+ * sends one message through each, and then leaves them idle. It reports per tunnel:
+ * <ul>
+ *     <li>heap: live heap after a full GC (buffers, sockets, registry entries)</li>
+ *     <li>RSS: growth of the process's resident memory, which includes thread stacks and the heap</li>
+ *     <li>threads: the handler thread, which relays one direction, and a tunnel thread for the other</li>
+ * </ul>
+ * The clients and the upstream server keep no threads or buffers of their own, so only the proxy is measured.
+ * Socket buffers live in the kernel and are not included. Run with {@code gradle idleMemoryBenchmark}.
+ */
+public class IdleMemoryBenchmark {
+    private static final int TUNNELS = 1000;
+    private static final Duration RELEASE_AFTER = Duration.ofMillis(500);
+    private static final byte[] MESSAGE = "hello\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length == 2) {
+            measure(Duration.ofMillis(Long.parseLong(args[0])), Long.parseLong(args[1]));
+            return;
+        }
+
+        System.out.printf("%d idle tunnels per run%n", TUNNELS);
+        run("buffers kept", 0, 0);
+        run("buffers released", RELEASE_AFTER.toMillis(), 0);
+        run("released, 256 KiB stacks", RELEASE_AFTER.toMillis(), 256 * 1024);
+    }
+
+    private static void run(final String name, final long releaseAfterMillis, final long stackSize)
+            throws Exception {
+        final String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        final Process process = new ProcessBuilder(java, "-Xmx512m", "-cp", System.getProperty("java.class.path"),
+                IdleMemoryBenchmark.class.getName(), Long.toString(releaseAfterMillis), Long.toString(stackSize))
+                .redirectErrorStream(true)
+                .start();
+        try (final BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            for (String line; (line = in.readLine()) != null; ) {
+                System.out.printf("%-26s %s%n", name, line);
+            }
+        }
+        process.waitFor();
+    }
+
+    private static void measure(final Duration releaseAfter, final long stackSize) throws Exception {
+        final ProxyConfig config = ProxyConfig.builder()
+                .releaseBuffersAfter(releaseAfter)
+                .tunnelStackSize(stackSize)
+                .build();
+        final HandlerContext context = HandlerContext.from(config);
+        final ExecutorService handlers = Executors.newCachedThreadPool();
+        final ExecutorService tunnels = stackSize > 0
+                ? Executors.newCachedThreadPool(runnable -> new Thread(null, runnable, "tunnel", stackSize))
+                : Executors.newCachedThreadPool();
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        final List<Socket> sockets = new ArrayList<>();
+        try (final ServerSocket upstreamSocket = new ServerSocket(0, TUNNELS, loopback);
+             final ServerSocket proxySocket = new ServerSocket(0, TUNNELS, loopback)) {
+            final Thread upstream = new Thread(() -> echoOnce(upstreamSocket, sockets), "upstream");
+            upstream.start();
+            final long heapBefore = heapAfterGc();
+            final long rssBefore = rss();
+            final int threadsBefore = Thread.activeCount();
+
+            final byte[] request = ("CONNECT 127.0.0.1:" + upstreamSocket.getLocalPort() + " HTTP/1.1\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < TUNNELS; i++) {
+                handlers.submit(new SocketHandler(proxySocket, tunnels, server -> null, context));
+                final Socket client = new Socket(loopback, proxySocket.getLocalPort());
+                synchronized (sockets) {
+                    sockets.add(client);
+                }
+                client.getOutputStream().write(request);
+                final InputStream in = client.getInputStream();
+                readResponse(in);
+                client.getOutputStream().write(MESSAGE);
+                if (in.readNBytes(MESSAGE.length).length != MESSAGE.length) {
+                    throw new IOException("Tunnel closed");
+                }
+            }
+
+            Thread.sleep(releaseAfter.toMillis() + 1000);
+            final long heap = heapAfterGc() - heapBefore;
+            final long rss = rss() - rssBefore;
+            final int threads = Thread.activeCount() - threadsBefore - 1;
+            System.out.printf("heap %6.1f KiB   RSS %6.1f KiB   threads %.1f   buffers %.1f KiB   (per tunnel)%n",
+                    heap / 1024.0 / TUNNELS, rss / 1024.0 / TUNNELS, (double) threads / TUNNELS,
+                    context.tunnelMemory().bufferBytes() / 1024.0 / TUNNELS);
+        } finally {
+            synchronized (sockets) {
+                for (final Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+            handlers.shutdownNow();
+            tunnels.shutdownNow();
+            context.close();
+        }
+    }
+
+    /**
+     * Clients connect one at a time, so a single thread echoes the one message of each and then leaves it idle.
+     */
+    private static void echoOnce(final ServerSocket upstreamSocket, final List<Socket> sockets) {
+        try {
+            while (!upstreamSocket.isClosed()) {
+                final Socket socket = upstreamSocket.accept();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                socket.getOutputStream().write(socket.getInputStream().readNBytes(MESSAGE.length));
+            }
+        } catch (IOException e) {
+            // closed at the end of the run
+        }
+    }
+
+    private static void readResponse(final InputStream in) throws IOException {
+        // the response is a status line and an empty line
+        int matched = 0;
+        while (matched < 4) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new IOException("Proxy closed the connection");
+            }
+            matched = (b == '\r' && matched % 2 == 0) || (b == '\n' && matched % 2 == 1) ? matched + 1 : 0;
+        }
+    }
+
+    private static long heapAfterGc() throws InterruptedException {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Returns the resident set size on Linux, or 0 elsewhere.
+     */
+    private static long rss() throws IOException {
+        final Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return 0;
+        }
+        for (final String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+        return 0;
+    }
+}
@@ -1,5 +1,6 @@
 package com.spinthechoice.privateproxy;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -9,9 +10,9 @@ public class LoopingSocketHandlerTest {
         private final int runTimesBeforeClose;
         private int actualTimesRun;
 
-        TestHandler(final int runTimesBeforeClose) {
-            // won't be using any dependencies
-            super(null, null);
+        TestHandler(final HandlerContext context, final int runTimesBeforeClose) {
+            // won't be using any other dependencies
+            super(null, null, null, context);
             this.runTimesBeforeClose = runTimesBeforeClose;
         }
 
@@ -30,10 +31,18 @@ public class LoopingSocketHandlerTest {
         }
     }
 
+    private final HandlerContext context = HandlerContext.from(ProxyConfig.defaults());
+    private LoopingSocketHandler stopHandler;
+
+    @AfterEach
+    void closeContext() {
+        context.close();
+    }
+
     @Test
     void loopsUntilStopped() {
         final int limit = 5;
-        final TestHandler fake = new TestHandler(limit);
+        final TestHandler fake = new TestHandler(context, limit);
         final LoopingSocketHandler handler = new LoopingSocketHandler(fake);
         assertEquals(0, fake.timesRun());
         handler.run();
@@ -42,9 +51,23 @@ public class LoopingSocketHandlerTest {
 
     @Test
     void neverRuns() {
-        final TestHandler fake = new TestHandler(0);
+        final TestHandler fake = new TestHandler(context, 0);
         final LoopingSocketHandler handler = new LoopingSocketHandler(fake);
         handler.run();
         assertEquals(0, fake.timesRun());
     }
+
+    @Test
+    void stops() {
+        final TestHandler fake = new TestHandler(context, 5) {
+            @Override
+            public void run() {
+                super.run();
+                stopHandler.stop();
+            }
+        };
+        stopHandler = new LoopingSocketHandler(fake);
+        stopHandler.run();
+        assertEquals(1, fake.timesRun());
+    }
 }
@@ -0,0 +1,99 @@
+package com.spinthechoice.privateproxy;
+
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.spinthechoice.privateproxy.ConnectionRegistry.State;
+import com.spinthechoice.privateproxy.MemoryGuard.Level;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryGuardTest {
+    private final AtomicReference<Double> used = new AtomicReference<>(0.5);
+    private final HandlerContext context = HandlerContext.from(ProxyConfig.builder()
+            .memoryShrinkBuffersAt(0.7)
+            .memoryRefuseTunnelsAt(0.8)
+            .memoryCloseIdleAt(0.9)
+            .build());
+    private final MemoryGuard guard = new MemoryGuard(context, used::get, Duration.ZERO);
+
+    @AfterEach
+    void closeContext() {
+        context.close();
+    }
+
+    private Level check(final double share) {
+        used.set(share);
+        guard.check();
+        return guard.level();
+    }
+
+    @Test
+    void stepsUpAndDown() {
+        final TunnelMemory memory = context.tunnelMemory();
+        assertEquals(Level.NORMAL, check(0.5));
+        assertEquals(TunnelMemory.DEFAULT_BUFFER_SIZE, memory.bufferSize());
+
+        assertEquals(Level.SHRINK_BUFFERS, check(0.75));
+        assertEquals(TunnelMemory.SHRUNK_BUFFER_SIZE, memory.bufferSize());
+        assertFalse(memory.exhausted());
+
+        assertEquals(Level.REFUSE_TUNNELS, check(0.85));
+        assertTrue(memory.exhausted());
+
+        // usage must fall a margin below the threshold before the server steps down
+        assertEquals(Level.REFUSE_TUNNELS, check(0.78));
+        assertEquals(Level.SHRINK_BUFFERS, check(0.74));
+        assertFalse(memory.exhausted());
+
+        assertEquals(Level.NORMAL, check(0.1));
+        assertEquals(TunnelMemory.DEFAULT_BUFFER_SIZE, memory.bufferSize());
+    }
+
+    @Test
+    void closesIdleTunnelsWhileShort() {
+        final Socket client = new Socket();
+        context.registry().register(client).state(State.TUNNELING);
+
+        assertEquals(Level.CLOSE_IDLE, check(0.95));
+        assertTrue(client.isClosed());
+        assertEquals(1, guard.closedTunnels());
+        assertTrue(context.tunnelMemory().exhausted());
+    }
+
+    @Test
+    void disabledStepsAreSkipped() {
+        context.settings().set(ProxyConfig.builder()
+                .memoryShrinkBuffersAt(0)
+                .memoryRefuseTunnelsAt(0)
+                .memoryCloseIdleAt(0)
+                .build());
+        assertEquals(Level.NORMAL, check(1.0));
+        assertFalse(context.tunnelMemory().exhausted());
+    }
+
+    @Test
+    void watchesCollections() {
+        try (final MemoryGuard watching = new MemoryGuard(context, MemoryGuard::usedAfterCollection, Duration.ZERO)) {
+            watching.watch();
+            System.gc();
+            assertEquals(Level.NORMAL, watching.level());
+        }
+        final double share = MemoryGuard.usedAfterCollection();
+        assertTrue(share > 0 && share < 1, Double.toString(share));
+    }
+
+    @Test
+    void thresholdsMustRise() {
+        final ProxyConfig config = ProxyConfig.builder()
+                .memoryShrinkBuffersAt(0.9)
+                .memoryRefuseTunnelsAt(0)
+                .memoryCloseIdleAt(0.8)
+                .build();
+        final IllegalArgumentException e = assertThrows(IllegalArgumentException.class, config::validate);
+        assertEquals("memoryCloseIdleAt must not be less than memoryShrinkBuffersAt", e.getMessage());
+    }
+}
@@ -0,0 +1,77 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.spinthechoice.privateproxy.MetricsFile.Counter;
+import com.spinthechoice.privateproxy.MetricsFile.Histogram;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsFileTest {
+    @Test
+    void readerSeesUpdatesInPlace() throws IOException {
+        final Path file = Files.createTempDirectory("metrics").resolve("proxy.metrics");
+        try (final MetricsFile metrics = MetricsFile.create(file)) {
+            final MetricsReader reader = MetricsReader.open(file);
+            metrics.increment(Counter.CONNECTIONS_ACCEPTED);
+            metrics.add(Counter.BYTES_DOWNSTREAM, 1000);
+            assertEquals(1, reader.get(Counter.CONNECTIONS_ACCEPTED));
+            assertEquals(1000, reader.get(Counter.BYTES_DOWNSTREAM));
+
+            metrics.add(Counter.BYTES_DOWNSTREAM, 24);
+            assertEquals(1024, reader.get(Counter.BYTES_DOWNSTREAM));
+            assertEquals(0, reader.get(Counter.BAD_REQUESTS));
+        }
+    }
+
+    @Test
+    void valuesSurviveClose() throws IOException {
+        final Path file = Files.createTempDirectory("metrics").resolve("proxy.metrics");
+        try (final MetricsFile metrics = MetricsFile.create(file)) {
+            metrics.increment(Counter.UPSTREAM_FAILURES);
+        }
+
+        assertEquals(MetricsFile.LENGTH, Files.size(file));
+        assertEquals(1, MetricsReader.open(file).get(Counter.UPSTREAM_FAILURES));
+    }
+
+    @Test
+    void histogram() throws IOException {
+        final Path file = Files.createTempDirectory("metrics").resolve("proxy.metrics");
+        try (final MetricsFile metrics = MetricsFile.create(file)) {
+            for (int i = 0; i < 98; i++) {
+                metrics.record(Histogram.CONNECT_MICROS, 100);
+            }
+            metrics.record(Histogram.CONNECT_MICROS, 5000);
+            metrics.record(Histogram.CONNECT_MICROS, 5000);
+
+            final MetricsReader reader = MetricsReader.open(file);
+            assertEquals(100, metrics.count(Histogram.CONNECT_MICROS));
+            assertEquals(100, reader.count(Histogram.CONNECT_MICROS));
+            assertEquals(98 * 100 + 2 * 5000, reader.sum(Histogram.CONNECT_MICROS));
+            assertEquals(128, reader.percentile(Histogram.CONNECT_MICROS, 50));
+            assertEquals(8192, reader.percentile(Histogram.CONNECT_MICROS, 99));
+            assertEquals(0, reader.percentile(Histogram.TUNNEL_MILLIS, 99));
+        }
+    }
+
+    @Test
+    void bucket() {
+        assertEquals(0, MetricsFile.bucket(0));
+        assertEquals(1, MetricsFile.bucket(1));
+        assertEquals(2, MetricsFile.bucket(2));
+        assertEquals(2, MetricsFile.bucket(3));
+        assertEquals(11, MetricsFile.bucket(1024));
+        assertEquals(MetricsFile.BUCKETS - 1, MetricsFile.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        final Path file = Files.createTempFile("metrics", ".log");
+        Files.writeString(file, "not metrics, just some text that is long enough for a header");
+        assertThrows(IOException.class, () -> MetricsReader.open(file));
+    }
+}
@@ -0,0 +1,151 @@
+package com.spinthechoice.privateproxy;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.spinthechoice.privateproxy.PriorityScheduler.Flow;
+import com.spinthechoice.privateproxy.PriorityScheduler.TrafficClass;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrioritySchedulerTest {
+    private static final int CAPACITY = 4096;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private PriorityScheduler scheduler(final long bulkThresholdBytes, final int bulkConcurrency,
+                                        final Duration slowWriteThreshold) {
+        return new PriorityScheduler(bulkThresholdBytes, bulkConcurrency, slowWriteThreshold, clock::get);
+    }
+
+    private static void transfer(final Flow flow, final int length) throws InterruptedException {
+        flow.enter(length, CAPACITY).run();
+    }
+
+    @Test
+    void startsInteractive() throws InterruptedException {
+        final PriorityScheduler scheduler = scheduler(10_000, 1, Duration.ZERO);
+        final Flow flow = scheduler.open();
+        transfer(flow, 100);
+        assertEquals(TrafficClass.INTERACTIVE, flow.trafficClass());
+        assertEquals(1, scheduler.interactiveCount());
+    }
+
+    @Test
+    void bulkAfterThreshold() throws InterruptedException {
+        final PriorityScheduler scheduler = scheduler(10_000, 1, Duration.ZERO);
+        final Flow flow = scheduler.open();
+        transfer(flow, 6_000);
+        transfer(flow, 6_000);
+        assertEquals(TrafficClass.BULK, flow.trafficClass());
+        assertEquals(0, scheduler.interactiveCount());
+        assertEquals(1, scheduler.bulkCount());
+    }
+
+    @Test
+    void bulkAfterManyFullReads() throws InterruptedException {
+        final PriorityScheduler scheduler = scheduler(Long.MAX_VALUE, 1, Duration.ZERO);
+        final Flow flow = scheduler.open();
+        for (int i = 0; i < 31; ++i) {
+            transfer(flow, CAPACITY);
+        }
+        transfer(flow, 10);
+        assertEquals(TrafficClass.INTERACTIVE, flow.trafficClass());
+
+        for (int i = 0; i < 32; ++i) {
+            transfer(flow, CAPACITY);
+        }
+        assertEquals(TrafficClass.BULK, flow.trafficClass());
+    }
+
+    @Test
+    void returnsToInteractive() throws InterruptedException {
+        final PriorityScheduler scheduler = scheduler(10_000, 1, Duration.ZERO);
+        final Flow flow = scheduler.open();
+        transfer(flow, 6_000);
+        transfer(flow, 6_000);
+        assertEquals(TrafficClass.BULK, flow.trafficClass());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        transfer(flow, 100);
+        assertEquals(TrafficClass.INTERACTIVE, flow.trafficClass());
+        assertEquals(1, scheduler.interactiveCount());
+        assertEquals(0, scheduler.bulkCount());
+    }
+
+    @Test
+    void longLivedSlowFlowStaysInteractive() throws InterruptedException {
+        final PriorityScheduler scheduler = scheduler(10_000, 1, Duration.ZERO);
+        final Flow flow = scheduler.open();
+        // 2 MB over half an hour, far more than the threshold in total
+        for (int i = 0; i < 1_000; ++i) {
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+            transfer(flow, 2_000);
+        }
+        assertEquals(TrafficClass.INTERACTIVE, flow.trafficClass());
+        assertEquals(0, scheduler.bulkCount());
+    }
+
+    /**
+     * Makes interactive writes look slow: one takes 100 seconds by the scheduler's clock.
+     */
+    private void slowInteractiveWrite(final Flow interactive) throws InterruptedException {
+        final Runnable done = interactive.enter(10, CAPACITY);
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(100));
+        done.run();
+    }
+
+    private static CompletableFuture<Runnable> enterAsync(final Flow flow) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return flow.enter(5_000, CAPACITY);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Test
+    void bulkWritesWaitForSlowInteractiveWrites() throws Exception {
+        final PriorityScheduler scheduler = scheduler(1_000, 1, Duration.ofSeconds(10));
+        final Flow interactive = scheduler.open();
+        final Flow first = scheduler.open();
+        final Flow second = scheduler.open();
+
+        // without interactive writes in progress, bulk writes go ahead however many there are
+        final Runnable firstDone = first.enter(5_000, CAPACITY);
+        second.enter(5_000, CAPACITY).run();
+        assertEquals(0, scheduler.bulkWaitCount());
+
+        slowInteractiveWrite(interactive);
+        final Runnable interactiveDone = interactive.enter(10, CAPACITY);
+        final CompletableFuture<Runnable> secondEntered = enterAsync(second);
+        assertThrows(TimeoutException.class, () -> secondEntered.get(100, TimeUnit.MILLISECONDS));
+
+        interactiveDone.run();
+        secondEntered.get(5, TimeUnit.SECONDS).run();
+        firstDone.run();
+        assertEquals(1, scheduler.bulkWaitCount());
+    }
+
+    @Test
+    void stalledBulkWritesDoNotStopOthers() throws Exception {
+        final PriorityScheduler scheduler = scheduler(1_000, 1, Duration.ofMillis(50));
+        final Flow interactive = scheduler.open();
+        final Flow stalled = scheduler.open();
+        final Flow other = scheduler.open();
+
+        slowInteractiveWrite(interactive);
+        interactive.enter(10, CAPACITY);
+        // neither the interactive write nor the first bulk write ever finish
+        stalled.enter(5_000, CAPACITY);
+        for (int i = 0; i < 3; ++i) {
+            enterAsync(other).get(5, TimeUnit.SECONDS).run();
+        }
+        assertEquals(3, scheduler.bulkWaitCount());
+    }
+}
@@ -0,0 +1,128 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.spinthechoice.privateproxy.MetricsFile.Counter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.spinthechoice.privateproxy.TestSockets.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyHostTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private ServerSocket upstreamSocket;
+    private String upstream;
+    private ProxyHost host;
+
+    @BeforeEach
+    void startUpstream() throws IOException {
+        upstreamSocket = new ServerSocket(0);
+        upstream = "127.0.0.1:" + upstreamSocket.getLocalPort();
+        executor.submit(() -> TestSockets.echo(upstreamSocket, executor));
+    }
+
+    @AfterEach
+    void stopServers() throws IOException {
+        if (host != null) {
+            host.close();
+        }
+        upstreamSocket.close();
+        executor.shutdownNow();
+    }
+
+    private static void assertTunnel(final Socket client, final String server) throws IOException {
+        final BufferedReader in = connect(client, server);
+        assertEquals("HTTP/1.1 200 OK", in.readLine());
+        assertEquals("", in.readLine());
+        send(client, "hello\n");
+        assertEquals("hello", in.readLine());
+    }
+
+    @Test
+    void busyListenerDoesNotStarveOthers() throws IOException {
+        host = ProxyHost.builder()
+                .listener("busy", 0, 1, ProxyConfig.defaults(), upstream)
+                .listener("quiet", 0, 1, ProxyConfig.defaults(), upstream)
+                .build();
+        host.run();
+        final int busyPort = host.listener("busy").port();
+        final int quietPort = host.listener("quiet").port();
+
+        try (final Socket first = new Socket("localhost", busyPort);
+             final Socket second = new Socket("localhost", busyPort);
+             final Socket other = new Socket("localhost", quietPort)) {
+            assertTunnel(first, upstream);
+
+            // the busy listener's only handler is taken, so the second client waits
+            second.setSoTimeout(300);
+            final BufferedReader waiting = connect(second, upstream);
+            assertThrows(SocketTimeoutException.class, waiting::readLine);
+
+            assertTunnel(other, upstream);
+            assertEquals(1, host.listener("busy").metrics().get(Counter.TUNNELS_OPENED));
+            assertEquals(1, host.listener("quiet").metrics().get(Counter.TUNNELS_OPENED));
+        }
+    }
+
+    @Test
+    void refusesTunnelsOverBufferBudget() throws IOException {
+        host = ProxyHost.builder()
+                .listener("small", 0, 2, ProxyConfig.builder().maxBufferBytes(1).build(), upstream)
+                .build();
+        host.run();
+        final int port = host.listener("small").port();
+
+        try (final Socket first = new Socket("localhost", port);
+             final Socket second = new Socket("localhost", port)) {
+            assertTunnel(first, upstream);
+            assertTrue(host.listener("small").tunnelMemory().bufferBytes() > 0);
+
+            assertEquals("HTTP/1.1 503 Service Unavailable", connect(second, upstream).readLine());
+            assertEquals(1, host.listener("small").metrics().get(Counter.UPSTREAM_UNAVAILABLE));
+        }
+    }
+
+    @Test
+    void refusesUntrustedServer() throws IOException {
+        host = ProxyHost.builder()
+                .listener("only", 0, 1, ProxyConfig.defaults(), upstream)
+                .build();
+        host.run();
+
+        try (final Socket client = new Socket("localhost", host.listener("only").port())) {
+            final String line = connect(client, "127.0.0.1:" + (upstreamSocket.getLocalPort() + 1)).readLine();
+            assertTrue(line.startsWith("HTTP/1.1 400"), line);
+        }
+    }
+
+    @Test
+    void rejectsDuplicateNames() {
+        final ProxyHost.Builder builder = ProxyHost.builder()
+                .listener("twice", 0, 1, ProxyConfig.defaults(), upstream)
+                .listener("twice", 0, 1, ProxyConfig.defaults(), upstream);
+        assertThrows(IllegalArgumentException.class, builder::build);
+    }
+
+    @Test
+    void rejectsInvalidSettingsBuiltInCode() throws IOException {
+        final ProxyConfig invalid = ProxyConfig.builder().bufferSize(0).build();
+        final ProxyHost.Builder builder = ProxyHost.builder()
+                .listener("valid", 0, 1, ProxyConfig.defaults(), upstream)
+                .listener("invalid", 0, 1, invalid, upstream);
+        assertThrows(IllegalArgumentException.class, builder::build);
+
+        try (final ServerSocket serverSocket = new ServerSocket(0)) {
+            final IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                    () -> new ProxyServer(serverSocket, executor, 1, invalid));
+            assertTrue(e.getMessage().contains("bufferSize"), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyServerDrainTest {
+    private static ProxyServer startServer(final ServerSocket serverSocket) {
+        final ProxyServer server = new ProxyServer(serverSocket, Executors.newSingleThreadExecutor(), 1);
+        server.run();
+        return server;
+    }
+
+    private static void waitForConnections(final ProxyServer server, final int count) throws InterruptedException {
+        while (server.connections().size() < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void drainsImmediatelyWithoutConnections() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final ProxyServer server = startServer(serverSocket);
+
+        assertEquals(0, server.drain(Duration.ofSeconds(5)));
+        assertTrue(serverSocket.isClosed());
+    }
+
+    @Test
+    void letsOpenConnectionsFinish() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final ProxyServer server = startServer(serverSocket);
+
+        try (final Socket client = new Socket("localhost", serverSocket.getLocalPort())) {
+            waitForConnections(server, 1);
+            final CompletableFuture<Integer> drained = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return server.drain(Duration.ofSeconds(5));
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            final OutputStream out = client.getOutputStream();
+            out.write("KONNECT example.com:443 HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            final BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            assertEquals("HTTP/1.1 400 Not a CONNECT message", in.readLine());
+
+            assertEquals(0, drained.get().intValue());
+        }
+    }
+
+    @Test
+    void closesConnectionsAtDeadline() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final ProxyServer server = startServer(serverSocket);
+
+        try (final Socket client = new Socket("localhost", serverSocket.getLocalPort())) {
+            waitForConnections(server, 1);
+            assertEquals(1, server.drain(Duration.ofMillis(100)));
+            assertEquals(-1, client.getInputStream().read());
+        } catch (IOException e) {
+            // connection reset also means the connection was closed
+        }
+    }
+}
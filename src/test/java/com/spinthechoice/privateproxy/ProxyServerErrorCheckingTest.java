@@ -50,8 +50,9 @@ class ProxyServerErrorCheckingTest {
 
     @Test
     void badRequestIfUnresolvableHost() {
+        // an untrusted host is refused before it is looked up
         IOException e = assertThrows(IOException.class, this::unresolvableHost);
-        assertThat(e.getMessage(), containsString("\"HTTP/1.1 400 Invalid host in CONNECT\""));
+        assertThat(e.getMessage(), containsString("\"HTTP/1.1 400 api.example.com is not trusted\""));
     }
 
     @Test
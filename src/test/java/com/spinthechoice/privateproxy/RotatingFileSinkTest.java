@@ -0,0 +1,28 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RotatingFileSinkTest {
+    @Test
+    void rotates() throws IOException {
+        final Path dir = Files.createTempDirectory("log");
+        final Path file = dir.resolve("proxy.log");
+        try (final RotatingFileSink sink = new RotatingFileSink(file, 10, 2)) {
+            sink.write("first\n");
+            sink.write("second\n");
+            sink.write("third\n");
+            sink.write("fourth\n");
+        }
+
+        assertEquals("fourth\n", Files.readString(file));
+        assertEquals("third\n", Files.readString(dir.resolve("proxy.log.1")));
+        assertEquals("second\n", Files.readString(dir.resolve("proxy.log.2")));
+        assertFalse(Files.exists(dir.resolve("proxy.log.3")));
+    }
+}
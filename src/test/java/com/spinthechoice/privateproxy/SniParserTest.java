@@ -0,0 +1,101 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.spinthechoice.privateproxy.SniParser.InvalidClientHelloException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SniParserTest {
+    /**
+     * Builds a minimal ClientHello record with a padding extension before the server name.
+     */
+    static byte[] clientHello(final String serverName) {
+        final ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+        writeShort(extensions, 21); // padding
+        writeShort(extensions, 3);
+        extensions.writeBytes(new byte[3]);
+        if (serverName != null) {
+            final byte[] name = serverName.getBytes(StandardCharsets.US_ASCII);
+            writeShort(extensions, 0); // server_name
+            writeShort(extensions, name.length + 5);
+            writeShort(extensions, name.length + 3);
+            extensions.write(0); // host_name
+            writeShort(extensions, name.length);
+            extensions.writeBytes(name);
+        }
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeShort(body, 0x0303);
+        body.writeBytes(new byte[32]); // random
+        body.write(0); // session ID
+        writeShort(body, 2);
+        writeShort(body, 0x1301); // TLS_AES_128_GCM_SHA256
+        body.write(1);
+        body.write(0); // null compression
+        writeShort(body, extensions.size());
+        body.writeBytes(extensions.toByteArray());
+
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(22);
+        writeShort(record, 0x0301);
+        writeShort(record, body.size() + 4);
+        record.write(1); // ClientHello
+        record.write(0);
+        writeShort(record, body.size());
+        record.writeBytes(body.toByteArray());
+        return record.toByteArray();
+    }
+
+    private static void writeShort(final ByteArrayOutputStream out, final int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static String parse(final byte[] record, final int length) throws InvalidClientHelloException {
+        return SniParser.fromRecord(record, length).parse();
+    }
+
+    @Test
+    void serverName() throws InvalidClientHelloException {
+        final byte[] hello = clientHello("example.com");
+        assertEquals("example.com", parse(hello, hello.length));
+    }
+
+    @Test
+    void noServerName() {
+        final byte[] hello = clientHello(null);
+        InvalidClientHelloException e = assertThrows(InvalidClientHelloException.class,
+                () -> parse(hello, hello.length));
+        assertEquals("No server name in ClientHello", e.getMessage());
+    }
+
+    @Test
+    void truncated() {
+        final byte[] hello = clientHello("example.com");
+        InvalidClientHelloException e = assertThrows(InvalidClientHelloException.class,
+                () -> parse(hello, hello.length - 4));
+        assertEquals("Truncated ClientHello", e.getMessage());
+    }
+
+    @Test
+    void notHandshake() {
+        final byte[] record = TlsRecordsTest.record(23, 100);
+        InvalidClientHelloException e = assertThrows(InvalidClientHelloException.class,
+                () -> parse(record, record.length));
+        assertEquals("Not a TLS handshake", e.getMessage());
+    }
+
+    @Test
+    void notClientHello() {
+        final byte[] hello = clientHello("example.com");
+        hello[5] = 2; // ServerHello
+        InvalidClientHelloException e = assertThrows(InvalidClientHelloException.class,
+                () -> parse(hello, hello.length));
+        assertEquals("Not a ClientHello", e.getMessage());
+    }
+}
@@ -0,0 +1,257 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.spinthechoice.privateproxy.TestSockets.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SocketHandlerTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private ServerSocket proxySocket;
+    private final HandlerContext context = HandlerContext.from(ProxyConfig.defaults());
+    private ServerSocket upstreamSocket;
+
+    @BeforeEach
+    void startServers() throws IOException {
+        proxySocket = new ServerSocket(0);
+        upstreamSocket = new ServerSocket(0);
+        executor.submit(new LoopingSocketHandler(new SocketHandler(proxySocket, executor, x -> null, context)));
+        executor.submit(() -> TestSockets.echo(upstreamSocket, executor));
+    }
+
+    @AfterEach
+    void stopServers() throws IOException {
+        proxySocket.close();
+        upstreamSocket.close();
+        executor.shutdownNow();
+        context.close();
+    }
+
+    @Test
+    void okOnceConnected() throws IOException {
+        try (final Socket client = new Socket("localhost", proxySocket.getLocalPort())) {
+            final BufferedReader in = connect(client, "127.0.0.1:" + upstreamSocket.getLocalPort());
+            assertEquals("HTTP/1.1 200 OK", in.readLine());
+            assertEquals("", in.readLine());
+
+            send(client, "hello\n");
+            assertEquals("hello", in.readLine());
+        }
+    }
+
+    @Test
+    void badGatewayIfConnectFails() throws IOException {
+        final int closedPort;
+        try (final ServerSocket closed = new ServerSocket(0)) {
+            closedPort = closed.getLocalPort();
+        }
+
+        try (final Socket client = new Socket("localhost", proxySocket.getLocalPort())) {
+            final BufferedReader in = connect(client, "127.0.0.1:" + closedPort);
+            assertEquals("HTTP/1.1 502 Bad Gateway", in.readLine());
+        }
+    }
+
+    @Test
+    void badGatewayIfHostDoesNotResolve() throws IOException {
+        // the name is looked up when connecting, so it fails like a connection, not like a bad request
+        try (final Socket client = new Socket("localhost", proxySocket.getLocalPort())) {
+            final BufferedReader in = connect(client, "unresolvable.invalid:443");
+            assertEquals("HTTP/1.1 502 Bad Gateway", in.readLine());
+        }
+    }
+
+    @Test
+    void serviceUnavailableIfCheckNeverFinishes() throws IOException {
+        final SocketHandler.Validator stuck = new SocketHandler.Validator() {
+            @Override
+            public String checkServer(final ConnectParser.Server server) {
+                return null;
+            }
+
+            @Override
+            public CompletionStage<String> checkServerAsync(final ConnectParser.Server server) {
+                return new CompletableFuture<>();
+            }
+        };
+        final ProxyConfig config = ProxyConfig.builder().connectTimeout(Duration.ofMillis(100)).build();
+        try (final ServerSocket stuckSocket = new ServerSocket(0);
+             final HandlerContext stuckContext = HandlerContext.from(config)) {
+            executor.submit(new LoopingSocketHandler(new SocketHandler(stuckSocket, executor, stuck, stuckContext)));
+
+            try (final Socket client = new Socket("localhost", stuckSocket.getLocalPort())) {
+                final BufferedReader in = connect(client, "127.0.0.1:" + upstreamSocket.getLocalPort());
+                assertEquals("HTTP/1.1 503 Service Unavailable", in.readLine());
+            }
+        }
+    }
+
+    @Test
+    void gatewayTimeoutIfConnectTimesOut() throws IOException {
+        final ProxyConfig config = ProxyConfig.builder().connectTimeout(Duration.ofMillis(200)).build();
+        final List<Socket> queued = new ArrayList<>();
+        try (final ServerSocket full = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             final ServerSocket timingSocket = new ServerSocket(0);
+             final HandlerContext timingContext = HandlerContext.from(config)) {
+            // a server that never accepts drops new handshakes once its backlog is full
+            while (true) {
+                final Socket client = new Socket();
+                queued.add(client);
+                try {
+                    client.connect(full.getLocalSocketAddress(), 200);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                assertTrue(queued.size() < 20, "backlog never filled");
+            }
+            executor.submit(new LoopingSocketHandler(new SocketHandler(timingSocket, executor, x -> null,
+                    timingContext)));
+
+            try (final Socket client = new Socket("localhost", timingSocket.getLocalPort())) {
+                final BufferedReader in = connect(client, "127.0.0.1:" + full.getLocalPort());
+                assertEquals("HTTP/1.1 504 Gateway Timeout", in.readLine());
+            }
+        } finally {
+            for (final Socket client : queued) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    void connectsWhileHeaderIsRead() throws IOException {
+        try (final ServerSocket slowSocket = new ServerSocket(0);
+             final Socket client = new Socket("localhost", proxySocket.getLocalPort())) {
+            slowSocket.setSoTimeout(5000);
+            final String server = "127.0.0.1:" + slowSocket.getLocalPort();
+            send(client, "CONNECT " + server + " HTTP/1.1\r\n");
+
+            // the proxy reaches the server before the client has finished its header
+            try (final Socket accepted = slowSocket.accept()) {
+                send(client, "Host: " + server + "\r\n\r\n");
+                final BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                assertEquals("HTTP/1.1 200 OK", in.readLine());
+                assertEquals("", in.readLine());
+
+                accepted.getOutputStream().write("hello\n".getBytes(StandardCharsets.US_ASCII));
+                assertEquals("hello", in.readLine());
+            }
+        }
+    }
+
+    @Test
+    void badRequestIfNotConnect() throws IOException {
+        try (final Socket client = new Socket("localhost", proxySocket.getLocalPort())) {
+            send(client, "GET / HTTP/1.1\r\nHost: example.com\r\n\r\n");
+            final BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            assertEquals("HTTP/1.1 400 Not a CONNECT message", in.readLine());
+        }
+    }
+
+    @Test
+    void sniReplaysClientHello() throws IOException {
+        final ProxyConfig config = ProxyConfig.builder()
+                .listenerMode(ListenerMode.SNI)
+                .sniUpstreamPort(upstreamSocket.getLocalPort())
+                .build();
+        try (final ServerSocket sniSocket = new ServerSocket(0);
+             final HandlerContext sniContext = HandlerContext.from(config)) {
+            executor.submit(new LoopingSocketHandler(new SocketHandler(sniSocket, executor, x -> null, sniContext)));
+
+            try (final Socket client = new Socket("localhost", sniSocket.getLocalPort())) {
+                final byte[] hello = SniParserTest.clientHello("localhost");
+                client.getOutputStream().write(hello);
+                send(client, "\n");
+
+                final byte[] echoed = client.getInputStream().readNBytes(hello.length + 1);
+                assertArrayEquals(hello, Arrays.copyOf(echoed, hello.length));
+            }
+        }
+    }
+
+    @Test
+    void alertIfNotTls() throws IOException {
+        final ProxyConfig config = ProxyConfig.builder().listenerMode(ListenerMode.SNI).build();
+        try (final ServerSocket sniSocket = new ServerSocket(0);
+             final HandlerContext sniContext = HandlerContext.from(config)) {
+            executor.submit(new LoopingSocketHandler(new SocketHandler(sniSocket, executor, x -> null, sniContext)));
+
+            try (final Socket client = new Socket("localhost", sniSocket.getLocalPort())) {
+                connect(client, "127.0.0.1:" + upstreamSocket.getLocalPort());
+                final byte[] alert = client.getInputStream().readAllBytes();
+                assertArrayEquals(new byte[] {21, 3, 1, 0, 2, 2, 40}, alert);
+            }
+        }
+    }
+
+    @Test
+    void halfClosePassesThrough() throws Exception {
+        try (final ServerSocket countingSocket = new ServerSocket(0)) {
+            // replies only once the request is complete, like a server reading a body until EOF
+            final Future<?> counter = executor.submit(() -> {
+                try (final Socket socket = countingSocket.accept()) {
+                    final int length = socket.getInputStream().readAllBytes().length;
+                    socket.getOutputStream().write(("read " + length + "\n").getBytes(StandardCharsets.US_ASCII));
+                }
+                return null;
+            });
+
+            try (final Socket client = new Socket("localhost", proxySocket.getLocalPort())) {
+                final BufferedReader in = connect(client, "127.0.0.1:" + countingSocket.getLocalPort());
+                assertEquals("HTTP/1.1 200 OK", in.readLine());
+                assertEquals("", in.readLine());
+
+                send(client, "hello");
+                client.shutdownOutput();
+                assertEquals("read 5", in.readLine());
+                assertNull(in.readLine());
+            }
+            counter.get();
+        }
+    }
+
+    @Test
+    void metricsCountTunnel() throws Exception {
+        final MetricsFile metrics = context.metrics();
+        try (final ServerSocket countedSocket = new ServerSocket(0)) {
+            final Future<?> handler = executor.submit(new SocketHandler(countedSocket, executor, x -> null, context));
+            try (final Socket client = new Socket("localhost", countedSocket.getLocalPort())) {
+                final BufferedReader in = connect(client, "127.0.0.1:" + upstreamSocket.getLocalPort());
+                assertEquals("HTTP/1.1 200 OK", in.readLine());
+                assertEquals("", in.readLine());
+
+                send(client, "hello\n");
+                assertEquals("hello", in.readLine());
+            }
+            handler.get();
+        }
+
+        assertEquals(1, metrics.get(MetricsFile.Counter.CONNECTIONS_ACCEPTED));
+        assertEquals(1, metrics.get(MetricsFile.Counter.CONNECTIONS_CLOSED));
+        assertEquals(1, metrics.get(MetricsFile.Counter.TUNNELS_OPENED));
+        assertEquals(6, metrics.get(MetricsFile.Counter.BYTES_UPSTREAM));
+        assertEquals(6, metrics.get(MetricsFile.Counter.BYTES_DOWNSTREAM));
+        assertEquals(1, metrics.count(MetricsFile.Histogram.CONNECT_MICROS));
+        assertEquals(1, metrics.count(MetricsFile.Histogram.TUNNEL_MILLIS));
+    }
+}
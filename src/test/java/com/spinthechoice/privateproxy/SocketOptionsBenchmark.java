@@ -0,0 +1,140 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares socket option profiles on loopback, through a real {@link SocketHandler}.
+ * <ul>
+ *     <li>latency: round trips of small records that are written in two parts (header, then body),
+ *     which is where Nagle's algorithm and delayed acknowledgements interact</li>
+ *     <li>throughput: a bulk transfer echoed back through the tunnel</li>
+ * </ul>
+ * Run with {@code gradle benchmark}. Numbers from loopback only show relative differences;
+ * buffer sizes matter much more on links with real latency.
+ */
+public class SocketOptionsBenchmark {
+    private static final int ROUND_TRIPS = 2_000;
+    private static final int HEADER_LENGTH = 5;
+    private static final int RECORD_LENGTH = 100;
+    private static final int BULK_BYTES = 256 * 1024 * 1024;
+    private static final int CHUNK_LENGTH = 64 * 1024;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ServerSocket upstreamSocket;
+
+    private SocketOptionsBenchmark() throws IOException {
+        upstreamSocket = new ServerSocket(0);
+        executor.submit(this::echo);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final SocketOptionsBenchmark benchmark = new SocketOptionsBenchmark();
+        try {
+            final SocketOptions nagle = SocketOptions.builder().tcpNoDelay(false).build();
+            final SocketOptions noDelay = SocketOptions.defaults();
+            final SocketOptions bigBuffers = SocketOptions.builder()
+                    .sendBufferSize(1024 * 1024)
+                    .receiveBufferSize(1024 * 1024)
+                    .build();
+
+            benchmark.latency("Nagle", nagle);
+            benchmark.latency("TCP_NODELAY", noDelay);
+            benchmark.throughput("default buffers", noDelay);
+            benchmark.throughput("1 MiB buffers", bigBuffers);
+        } finally {
+            benchmark.upstreamSocket.close();
+            benchmark.executor.shutdownNow();
+        }
+    }
+
+    private Void echo() throws IOException {
+        while (!upstreamSocket.isClosed()) {
+            final Socket socket = upstreamSocket.accept();
+            socket.setTcpNoDelay(true);
+            executor.submit(() -> {
+                try (socket) {
+                    socket.getInputStream().transferTo(socket.getOutputStream());
+                }
+                return null;
+            });
+        }
+        return null;
+    }
+
+    private void latency(final String name, final SocketOptions options) throws Exception {
+        try (final ServerSocket proxySocket = new ServerSocket(0);
+             final Socket client = tunnel(proxySocket, options)) {
+            final OutputStream out = client.getOutputStream();
+            final InputStream in = client.getInputStream();
+            final byte[] record = new byte[RECORD_LENGTH];
+            final long[] nanos = new long[ROUND_TRIPS];
+            for (int i = 0; i < ROUND_TRIPS; i++) {
+                final long start = System.nanoTime();
+                out.write(record, 0, HEADER_LENGTH);
+                out.write(record, HEADER_LENGTH, RECORD_LENGTH - HEADER_LENGTH);
+                in.readNBytes(record, 0, RECORD_LENGTH);
+                nanos[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(nanos);
+            System.out.printf("latency    %-16s p50 %8.1f us   p99 %8.1f us%n", name,
+                    nanos[ROUND_TRIPS / 2] / 1000.0, nanos[ROUND_TRIPS * 99 / 100] / 1000.0);
+        }
+    }
+
+    private void throughput(final String name, final SocketOptions options) throws Exception {
+        try (final ServerSocket proxySocket = new ServerSocket(0);
+             final Socket client = tunnel(proxySocket, options)) {
+            final long start = System.nanoTime();
+            final Future<?> writer = executor.submit(() -> {
+                final byte[] chunk = new byte[CHUNK_LENGTH];
+                final OutputStream out = client.getOutputStream();
+                for (int sent = 0; sent < BULK_BYTES; sent += chunk.length) {
+                    out.write(chunk);
+                }
+                return null;
+            });
+            final byte[] buf = new byte[CHUNK_LENGTH];
+            final InputStream in = client.getInputStream();
+            long received = 0;
+            for (int read; received < BULK_BYTES && (read = in.read(buf)) != -1; ) {
+                received += read;
+            }
+            writer.get();
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("throughput %-16s %8.1f MiB/s%n", name, received / seconds / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Starts a handler with the options on both legs, and opens a tunnel to the echo server.
+     */
+    private Socket tunnel(final ServerSocket proxySocket, final SocketOptions options) throws IOException {
+        final ProxyConfig config = ProxyConfig.builder()
+                .clientSocketOptions(options)
+                .upstreamSocketOptions(options)
+                .build();
+        executor.submit(new SocketHandler(proxySocket, executor, server -> null, HandlerContext.from(config)));
+
+        final Socket client = new Socket();
+        options.applyTo(client);
+        client.connect(proxySocket.getLocalSocketAddress());
+        final int port = upstreamSocket.getLocalPort();
+        client.getOutputStream().write(("CONNECT 127.0.0.1:" + port + " HTTP/1.1\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        final BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+        final String status = in.readLine();
+        in.readLine();
+        if (!status.contains(" 200 ")) {
+            client.close();
+            throw new IOException("Unexpected response: " + status);
+        }
+        return client;
+    }
+}
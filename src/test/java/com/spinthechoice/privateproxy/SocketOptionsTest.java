@@ -0,0 +1,53 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SocketOptionsTest {
+    @Test
+    void defaults() throws IOException {
+        try (final Socket socket = new Socket()) {
+            SocketOptions.defaults().applyTo(socket);
+            assertTrue(socket.getTcpNoDelay());
+            assertFalse(socket.getKeepAlive());
+            assertEquals(-1, socket.getSoLinger());
+        }
+    }
+
+    @Test
+    void applied() throws IOException {
+        final SocketOptions options = SocketOptions.builder()
+                .tcpNoDelay(false)
+                .keepAlive(true)
+                .keepAliveIdle(Duration.ofMinutes(1))
+                .keepAliveInterval(Duration.ofSeconds(10))
+                .keepAliveCount(3)
+                .sendBufferSize(32 * 1024)
+                .receiveBufferSize(32 * 1024)
+                .linger(Duration.ofSeconds(5))
+                .build();
+        try (final Socket socket = new Socket()) {
+            options.applyTo(socket);
+            assertFalse(socket.getTcpNoDelay());
+            assertTrue(socket.getKeepAlive());
+            assertEquals(5, socket.getSoLinger());
+            // the kernel may round buffer sizes (Linux doubles them)
+            assertTrue(socket.getSendBufferSize() >= 32 * 1024);
+            assertTrue(socket.getReceiveBufferSize() >= 32 * 1024);
+        }
+    }
+
+    @Test
+    void toBuilderKeepsOptions() {
+        final SocketOptions options = SocketOptions.builder().keepAlive(true).receiveBufferSize(1024).build();
+        final SocketOptions copy = options.toBuilder().tcpNoDelay(false).build();
+        assertTrue(copy.keepAlive());
+        assertEquals(1024, copy.receiveBufferSize());
+        assertFalse(copy.tcpNoDelay());
+    }
+}
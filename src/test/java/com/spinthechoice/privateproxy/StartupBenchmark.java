@@ -0,0 +1,76 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures time from launch to the first working tunnel for each way of starting the proxy:
+ * <ul>
+ *     <li>the uberjar on a plain JVM</li>
+ *     <li>the uberjar with the AppCDS archive</li>
+ *     <li>the native executable, if it was built</li>
+ * </ul>
+ * Each variant launches {@link TrainingRun} in a new process and waits for it to print {@value TrainingRun#READY}.
+ * Run with {@code gradle startupBenchmark}, which passes the paths of the artifacts as system properties.
+ */
+public class StartupBenchmark {
+    private static final int RUNS = 10;
+
+    public static void main(final String[] args) throws Exception {
+        final String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        final String jar = System.getProperty("proxy.jar");
+        final Path archive = Path.of(System.getProperty("proxy.cds"));
+        final Path executable = Path.of(System.getProperty("proxy.native"));
+        final String main = TrainingRun.class.getName();
+
+        measure("JVM", java, "-Xshare:auto", "-cp", jar, main);
+        if (Files.exists(archive)) {
+            measure("JVM + AppCDS", java, "-XX:SharedArchiveFile=" + archive, "-Xshare:on", "-cp", jar, main);
+        } else {
+            System.out.println("skipping AppCDS: run gradle cdsArchive first");
+        }
+        if (Files.isExecutable(executable)) {
+            measure("native image", executable.toString());
+        } else {
+            System.out.println("skipping native image: run gradle nativeImage first");
+        }
+    }
+
+    private static void measure(final String name, final String... command) throws Exception {
+        // the first launch warms the page cache, so it is not counted
+        timeToFirstTunnel(command);
+        final long[] nanos = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            nanos[i] = timeToFirstTunnel(command);
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%-14s min %7.1f ms   median %7.1f ms   max %7.1f ms%n", name,
+                nanos[0] / 1e6, nanos[RUNS / 2] / 1e6, nanos[RUNS - 1] / 1e6);
+    }
+
+    private static long timeToFirstTunnel(final String... command) throws Exception {
+        final List<String> output = new ArrayList<>();
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try (final BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            for (String line; (line = in.readLine()) != null; ) {
+                if (TrainingRun.READY.equals(line)) {
+                    final long elapsed = System.nanoTime() - start;
+                    process.waitFor(10, TimeUnit.SECONDS);
+                    return elapsed;
+                }
+                output.add(line);
+            }
+        } finally {
+            process.destroy();
+        }
+        throw new IOException("Exited without a tunnel: " + String.join("\n", output));
+    }
+}
@@ -0,0 +1,82 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Upstream servers and client steps shared by the tests that run a proxy over real sockets.
+ */
+class TestSockets {
+    private static final Duration WAIT_TIMEOUT = Duration.ofSeconds(5);
+
+    private TestSockets() {
+    }
+
+    /**
+     * Accepts connections until the server socket is closed,
+     * and echoes everything each client sends until it stops sending.
+     * @param upstreamSocket server socket of the upstream server
+     * @param executor runs one thread per connection
+     * @return nothing, so the loop can be submitted as a {@link java.util.concurrent.Callable}
+     * @throws IOException if accepting fails, including when the server socket is closed
+     */
+    static Void echo(final ServerSocket upstreamSocket, final ExecutorService executor) throws IOException {
+        while (!upstreamSocket.isClosed()) {
+            final Socket socket = upstreamSocket.accept();
+            executor.submit(() -> {
+                try (socket) {
+                    socket.getInputStream().transferTo(socket.getOutputStream());
+                }
+                return null;
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Sends a message in ASCII.
+     * @param client client socket
+     * @param message message
+     * @throws IOException if the message cannot be sent
+     */
+    static void send(final Socket client, final String message) throws IOException {
+        final OutputStream out = client.getOutputStream();
+        out.write(message.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Sends a CONNECT request.
+     * @param client client socket
+     * @param server {@code host:port} of the remote server
+     * @return reader of the proxy's response and of the tunnel after it
+     * @throws IOException if the request cannot be sent
+     */
+    static BufferedReader connect(final Socket client, final String server) throws IOException {
+        send(client, "CONNECT " + server + " HTTP/1.1\r\nHost: " + server + "\r\n\r\n");
+        return new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Waits until the condition holds, which other threads make true, and fails after a few seconds.
+     * @param condition condition
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + WAIT_TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
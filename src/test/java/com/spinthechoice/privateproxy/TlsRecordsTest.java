@@ -0,0 +1,81 @@
+package com.spinthechoice.privateproxy;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TlsRecordsTest {
+    static byte[] record(final int type, final int payloadLength) {
+        final byte[] record = new byte[TlsRecords.HEADER_LENGTH + payloadLength];
+        record[0] = (byte) type;
+        record[1] = 3;
+        record[2] = 3;
+        record[3] = (byte) (payloadLength >> 8);
+        record[4] = (byte) payloadLength;
+        return record;
+    }
+
+    private static byte[] concat(final byte[]... arrays) {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+        final byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] array : arrays) {
+            System.arraycopy(array, 0, result, offset, array.length);
+            offset += array.length;
+        }
+        return result;
+    }
+
+    @Test
+    void emptyBuffer() {
+        assertEquals(0, TlsRecords.completeLength(new byte[0], 0));
+    }
+
+    @Test
+    void singleRecord() {
+        final byte[] buf = record(23, 100);
+        assertEquals(105, TlsRecords.completeLength(buf, buf.length));
+    }
+
+    @Test
+    void severalRecords() {
+        final byte[] buf = concat(record(22, 10), record(20, 1), record(23, 50));
+        assertEquals(buf.length, TlsRecords.completeLength(buf, buf.length));
+    }
+
+    @Test
+    void partialHeader() {
+        final byte[] buf = concat(record(22, 10), record(23, 50));
+        assertEquals(15, TlsRecords.completeLength(buf, 18));
+    }
+
+    @Test
+    void partialPayload() {
+        final byte[] buf = concat(record(22, 10), record(23, 50));
+        assertEquals(15, TlsRecords.completeLength(buf, 40));
+        assertEquals(0, TlsRecords.completeLength(buf, 14));
+    }
+
+    @Test
+    void notTls() {
+        final byte[] buf = "GET / HTTP/1.1\r\n".getBytes();
+        assertEquals(TlsRecords.NOT_TLS, TlsRecords.completeLength(buf, buf.length));
+    }
+
+    @Test
+    void wrongVersion() {
+        final byte[] buf = record(23, 10);
+        buf[1] = 2;
+        assertEquals(TlsRecords.NOT_TLS, TlsRecords.completeLength(buf, buf.length));
+    }
+
+    @Test
+    void recordTooLong() {
+        final byte[] buf = record(23, 10);
+        buf[3] = (byte) 0xff;
+        assertEquals(TlsRecords.NOT_TLS, TlsRecords.completeLength(buf, buf.length));
+    }
+}
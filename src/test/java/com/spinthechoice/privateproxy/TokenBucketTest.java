@@ -0,0 +1,43 @@
+package com.spinthechoice.privateproxy;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void noPauseWithinBurst() {
+        final TokenBucket bucket = new TokenBucket(1000, 500, 0);
+        assertEquals(0, bucket.reserve(250, 0));
+        assertEquals(0, bucket.reserve(250, 0));
+    }
+
+    @Test
+    void pausesWhenOverBurst() {
+        final TokenBucket bucket = new TokenBucket(1000, 500, 0);
+        assertEquals(0, bucket.reserve(500, 0));
+        assertEquals(SECOND / 2, bucket.reserve(500, 0));
+        // debt carries over to the next transfer
+        assertEquals(SECOND, bucket.reserve(500, 0));
+    }
+
+    @Test
+    void refillsOverTime() {
+        final TokenBucket bucket = new TokenBucket(1000, 500, 0);
+        assertEquals(SECOND / 2, bucket.reserve(1000, 0));
+        assertEquals(0, bucket.reserve(500, SECOND));
+    }
+
+    @Test
+    void unusedTimeDoesNotAccumulateBeyondBurst() {
+        final TokenBucket bucket = new TokenBucket(1000, 500, 0);
+        assertEquals(SECOND / 2, bucket.reserve(1000, 10 * SECOND));
+    }
+
+    @Test
+    void rateMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 0));
+    }
+}
@@ -0,0 +1,17 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrainingRunTest {
+    @Test
+    void tunnelsOnce() throws IOException {
+        final AtomicBoolean tunneled = new AtomicBoolean();
+        TrainingRun.tunnelOnce(() -> tunneled.set(true));
+        assertTrue(tunneled.get());
+    }
+}
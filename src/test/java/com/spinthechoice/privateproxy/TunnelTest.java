@@ -1,12 +1,17 @@
 package com.spinthechoice.privateproxy;
 
 import java.io.*;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 import org.junit.jupiter.api.Test;
 
+import static com.spinthechoice.privateproxy.TestSockets.*;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class TunnelTest {
@@ -14,6 +19,7 @@ public class TunnelTest {
         private final InputStream input;
         private final OutputStream output;
         private boolean closed = false;
+        private boolean outputShutdown = false;
 
         TestSocket(final InputStream input, final OutputStream output) {
             this.input = input;
@@ -39,6 +45,43 @@ public class TunnelTest {
         public synchronized void close() {
             closed = true;
         }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return outputShutdown;
+        }
+
+        @Override
+        public void shutdownOutput() {
+            outputShutdown = true;
+        }
+    }
+
+    /**
+     * Returns at most a few bytes per read, like a slow network.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunkSize;
+
+        ChunkedInputStream(final byte[] buf, final int chunkSize) {
+            super(buf);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) {
+            return super.read(b, off, Math.min(len, chunkSize));
+        }
+    }
+
+    private static class RecordingOutputStream extends ByteArrayOutputStream {
+        private final List<Integer> writes = new ArrayList<>();
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) {
+            writes.add(len);
+            super.write(b, off, len);
+        }
     }
 
     @Test
@@ -77,5 +120,112 @@ public class TunnelTest {
         assertEquals(expected, actual);
         assertFalse(sockIn.isClosed());
         assertFalse(sockOut.isClosed());
+        assertTrue(sockOut.isOutputShutdown());
     }
+
+    @Test
+    void closesBothOnError() throws IOException {
+        final InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        final TestSocket sockIn = new TestSocket(failing, null);
+        final TestSocket sockOut = new TestSocket(null, new ByteArrayOutputStream());
+        new Tunnel(sockIn, sockOut).run();
+
+        assertTrue(sockIn.isClosed());
+        assertTrue(sockOut.isClosed());
+        assertFalse(sockOut.isOutputShutdown());
+    }
+
+    @Test
+    void framesTlsRecords() throws IOException {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        records.write(TlsRecordsTest.record(22, 300));
+        records.write(TlsRecordsTest.record(23, 20));
+        records.write(TlsRecordsTest.record(23, 1000));
+        final byte[] expected = records.toByteArray();
+
+        final RecordingOutputStream output = new RecordingOutputStream();
+        final Tunnel tunnel = new Tunnel(
+                new TestSocket(new ChunkedInputStream(expected, 200), null),
+                new TestSocket(null, output),
+                bytes -> {}, Tunnel.Gate.OPEN, true, new TunnelMemory(Duration.ZERO));
+        tunnel.run();
+
+        assertArrayEquals(expected, output.toByteArray());
+        // writes end on record boundaries; the small record arrived with the first one, so they are coalesced
+        assertEquals(List.of(305 + 25, 1005), output.writes);
+    }
+
+    @Test
+    void framingFallsBackForOtherData() throws IOException {
+        final byte[] expected = "GET / HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        final RecordingOutputStream output = new RecordingOutputStream();
+        final Tunnel tunnel = new Tunnel(
+                new TestSocket(new ChunkedInputStream(expected, 10), null),
+                new TestSocket(null, output),
+                bytes -> {}, Tunnel.Gate.OPEN, true, new TunnelMemory(Duration.ZERO));
+        tunnel.run();
+
+        assertArrayEquals(expected, output.toByteArray());
+    }
+
+    @Test
+    void releasesBufferWhileIdle() throws Exception {
+        final TunnelMemory memory = new TunnelMemory(Duration.ofMillis(50));
+        try (final ServerSocket listener = new ServerSocket(0);
+             final Socket writer = new Socket("localhost", listener.getLocalPort());
+             final Socket sockIn = listener.accept()) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final Thread thread = new Thread(new Tunnel(sockIn, new TestSocket(null, output),
+                    bytes -> {}, Tunnel.Gate.OPEN, false, memory));
+            thread.start();
+
+            writer.getOutputStream().write("hello ".getBytes(StandardCharsets.US_ASCII));
+            waitFor(() -> memory.idleTunnels() == 1);
+            assertEquals(0, memory.bufferBytes());
+
+            writer.getOutputStream().write("world".getBytes(StandardCharsets.US_ASCII));
+            waitFor(() -> output.size() == 11);
+            writer.shutdownOutput();
+            thread.join(5000);
+
+            assertEquals("hello world", output.toString(StandardCharsets.US_ASCII));
+            assertEquals(0, memory.idleTunnels());
+            assertEquals(0, memory.bufferBytes());
+            assertTrue(memory.releases() >= 1);
+        }
+    }
+
+    @Test
+    void shrinksBufferUnderPressure() throws Exception {
+        final TunnelMemory memory = new TunnelMemory(Duration.ZERO);
+        try (final ServerSocket listener = new ServerSocket(0);
+             final Socket writer = new Socket("localhost", listener.getLocalPort());
+             final Socket sockIn = listener.accept()) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final Thread thread = new Thread(new Tunnel(sockIn, new TestSocket(null, output),
+                    bytes -> {}, Tunnel.Gate.OPEN, false, memory));
+            thread.start();
+
+            writer.getOutputStream().write("hello ".getBytes(StandardCharsets.US_ASCII));
+            waitFor(() -> output.size() == 6);
+            assertEquals(TunnelMemory.DEFAULT_BUFFER_SIZE, memory.bufferBytes());
+
+            memory.degrade(true, false);
+            writer.getOutputStream().write("world".getBytes(StandardCharsets.US_ASCII));
+            waitFor(() -> output.size() == 11);
+            // the tunnel swaps its buffer once it is empty, before it waits for more data
+            waitFor(() -> memory.bufferBytes() == TunnelMemory.SHRUNK_BUFFER_SIZE);
+            writer.shutdownOutput();
+            thread.join(5000);
+
+            assertEquals("hello world", output.toString(StandardCharsets.US_ASCII));
+            assertEquals(0, memory.bufferBytes());
+        }
+    }
+
 }
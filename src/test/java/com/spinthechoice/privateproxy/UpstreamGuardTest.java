@@ -0,0 +1,95 @@
+package com.spinthechoice.privateproxy;
+
+import java.time.Duration;
+
+import com.spinthechoice.privateproxy.ConnectParser.Server;
+import com.spinthechoice.privateproxy.UpstreamGuard.Permit;
+import com.spinthechoice.privateproxy.UpstreamGuard.UnavailableException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamGuardTest {
+    private static Server server(final String host) {
+        return new Server(host, 443);
+    }
+
+    private static UpstreamGuard guard(final int maxTunnels) {
+        return guard(maxTunnels, Duration.ofMinutes(1));
+    }
+
+    private static UpstreamGuard guard(final int maxTunnels, final Duration openDuration) {
+        return new UpstreamGuard(maxTunnels, 0.5, openDuration, Duration.ofSeconds(1));
+    }
+
+    private static void failConnects(final UpstreamGuard guard, final String host) throws Exception {
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; ++i) {
+            try (final Permit permit = guard.acquire(server(host))) {
+                permit.connected(false, 0);
+            }
+        }
+    }
+
+    @Test
+    void bulkheadLimitsTunnelsPerDestination() throws Exception {
+        final UpstreamGuard guard = guard(2);
+        final Permit first = guard.acquire(server("a.example.com"));
+        final Permit second = guard.acquire(server("A.example.com"));
+        assertThrows(UnavailableException.class, () -> guard.acquire(server("a.example.com")));
+
+        // other destinations are not affected
+        guard.acquire(server("b.example.com")).close();
+
+        first.close();
+        first.close();
+        guard.acquire(server("a.example.com")).close();
+        second.close();
+        assertEquals(1, guard.bulkheadRejections());
+    }
+
+    @Test
+    void failingDestinationIsRejected() throws Exception {
+        final UpstreamGuard guard = guard(0);
+        failConnects(guard, "a.example.com");
+
+        assertEquals(CircuitBreaker.State.OPEN, guard.state(server("a.example.com")));
+        assertThrows(UnavailableException.class, () -> guard.acquire(server("a.example.com")));
+        assertEquals(1, guard.breakerRejections());
+        assertEquals(CircuitBreaker.State.CLOSED, guard.state(server("b.example.com")));
+    }
+
+    @Test
+    void unusedTrialIsNotASuccess() throws Exception {
+        final UpstreamGuard guard = guard(0, Duration.ZERO);
+        failConnects(guard, "a.example.com");
+
+        // closed before connecting, e.g. because another limit refused the tunnel
+        final Permit trial = guard.acquire(server("a.example.com"));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, guard.state(server("a.example.com")));
+        trial.close();
+        trial.connected(true, 0);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, guard.state(server("a.example.com")));
+
+        try (final Permit next = guard.acquire(server("a.example.com"))) {
+            next.connected(true, 0);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, guard.state(server("a.example.com")));
+    }
+
+    @Test
+    void connectStartedBeforeOpeningIsNotTheTrial() throws Exception {
+        final UpstreamGuard guard = guard(0, Duration.ZERO);
+        final Permit slow = guard.acquire(server("a.example.com"));
+        failConnects(guard, "a.example.com");
+
+        final Permit trial = guard.acquire(server("a.example.com"));
+        slow.connected(true, 0);
+        slow.close();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, guard.state(server("a.example.com")));
+        assertThrows(UnavailableException.class, () -> guard.acquire(server("a.example.com")));
+
+        trial.connected(true, 0);
+        trial.close();
+        assertEquals(CircuitBreaker.State.CLOSED, guard.state(server("a.example.com")));
+    }
+}
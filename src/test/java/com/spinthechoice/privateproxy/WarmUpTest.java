@@ -0,0 +1,40 @@
+package com.spinthechoice.privateproxy;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WarmUpTest {
+    @Test
+    void tunnelsUntilSettledOrLimit() throws IOException {
+        final long start = System.nanoTime();
+        final WarmUp warmUp = new WarmUp(ProxyConfig.defaults(), Duration.ofSeconds(2));
+        warmUp.run();
+
+        assertTrue(warmUp.rounds() >= 1);
+        assertEquals(warmUp.rounds() * 64, warmUp.tunnels());
+        // a round that starts just before the limit still finishes
+        assertTrue(System.nanoTime() - start < Duration.ofSeconds(10).toNanos());
+    }
+
+    @Test
+    void readyAfterWarmUp() throws Exception {
+        final ProxyConfig config = ProxyConfig.builder().warmUpDuration(Duration.ofMillis(200)).build();
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final ProxyServer server = new ProxyServer(serverSocket, Executors.newSingleThreadExecutor(), 1, config);
+        assertFalse(server.isReady());
+
+        server.run();
+        assertTrue(server.isReady());
+        assertEquals(0, server.connections().size(), "warm-up tunnels are not real connections");
+        assertEquals(0, server.metrics().get(MetricsFile.Counter.TUNNELS_OPENED));
+
+        server.drain(Duration.ofSeconds(1));
+        assertFalse(server.isReady());
+    }
+}
@@ -0,0 +1,365 @@
+package com.spinthechoice.privateproxy.client;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HTTP/2 client that opens CONNECT tunnels over a single cleartext connection (with prior knowledge).
+ * Like {@link GiphyClient}, this is only meant for testing the proxy, so it is pretty bare-bones:
+ * it sends headers without compression and only understands the {@code :status} of responses.
+ */
+public class H2Client implements Closeable {
+    /**
+     * One CONNECT stream.
+     */
+    public class Tunnel {
+        private final int id;
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private long sendWindow;
+        private int status;
+        private boolean ended;
+        private boolean reset;
+        private int errorCode;
+
+        private Tunnel(final int id, final long sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+
+        /**
+         * Waits for the response to the CONNECT request.
+         * @return HTTP status, or 0 if the stream was reset
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public int status() throws InterruptedException {
+            synchronized (H2Client.this) {
+                while (status == 0 && !reset && !closed) {
+                    H2Client.this.wait();
+                }
+                return status;
+            }
+        }
+
+        /**
+         * Waits for the proxy to reset the stream.
+         * @return error code of the reset, or -1 if the connection closed first
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public int resetCode() throws InterruptedException {
+            synchronized (H2Client.this) {
+                while (!reset && !closed) {
+                    H2Client.this.wait();
+                }
+                return reset ? errorCode : -1;
+            }
+        }
+
+        /**
+         * Lets the proxy send more data on the stream, whether or not it makes sense.
+         * @param increment bytes added to the proxy's window
+         * @throws IOException if the frame cannot be sent
+         */
+        public void windowUpdate(final int increment) throws IOException {
+            writeWindowUpdate(id, increment);
+        }
+
+        /**
+         * Sends data, waiting for the proxy's flow control windows as needed.
+         * @param data data to send
+         * @param end whether this ends the client's half of the stream
+         * @throws IOException if the data cannot be sent
+         * @throws InterruptedException if interrupted while waiting for a window
+         */
+        public void send(final byte[] data, final boolean end) throws IOException, InterruptedException {
+            int offset = 0;
+            do {
+                final int length;
+                synchronized (H2Client.this) {
+                    while (data.length > offset && !reset && (connectionSendWindow <= 0 || sendWindow <= 0)) {
+                        H2Client.this.wait();
+                    }
+                    if (reset) {
+                        throw new IOException("Stream reset");
+                    }
+                    length = (int) Math.min(Math.min(data.length - offset, MAX_FRAME_SIZE),
+                            Math.min(connectionSendWindow, sendWindow));
+                    connectionSendWindow -= length;
+                    sendWindow -= length;
+                }
+                final boolean last = offset + length == data.length;
+                writeFrame(DATA, end && last ? END_STREAM : 0, id, data, offset, length);
+                offset += length;
+            } while (offset < data.length);
+        }
+
+        /**
+         * Reads data until the proxy ends its half of the stream.
+         * @return all data received on the stream
+         * @throws IOException if the stream is reset
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public byte[] readToEnd() throws IOException, InterruptedException {
+            synchronized (H2Client.this) {
+                while (!ended && !reset && !closed) {
+                    H2Client.this.wait();
+                }
+                if (!ended) {
+                    throw new IOException("Stream reset");
+                }
+                return received.toByteArray();
+            }
+        }
+
+        /**
+         * Reads a number of bytes.
+         * @param length number of bytes to read
+         * @return data
+         * @throws IOException if the stream ends first
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public byte[] read(final int length) throws IOException, InterruptedException {
+            synchronized (H2Client.this) {
+                while (received.size() < length && !ended && !reset && !closed) {
+                    H2Client.this.wait();
+                }
+                final byte[] all = received.toByteArray();
+                if (all.length < length) {
+                    throw new IOException("Stream ended");
+                }
+                received.reset();
+                received.write(all, length, all.length - length);
+                final byte[] result = new byte[length];
+                System.arraycopy(all, 0, result, 0, length);
+                return result;
+            }
+        }
+    }
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Map<Integer, Tunnel> tunnels = new HashMap<>();
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private long initialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int nextStreamId = 1;
+    private boolean closed;
+    private int goAwayCode = -1;
+
+    /**
+     * Connects to the proxy.
+     * @param host proxy host
+     * @param port proxy port
+     * @throws IOException if the connection fails
+     */
+    public H2Client(final String host, final int port) throws IOException {
+        socket = new Socket(host, port);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new BufferedOutputStream(socket.getOutputStream());
+        synchronized (out) {
+            out.write(PREFACE);
+        }
+        writeFrame(SETTINGS, 0, 0, new byte[0], 0, 0);
+        final Thread reader = new Thread(this::readFrames, "h2-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a CONNECT request.
+     * @param authority server-name:server-port
+     * @return the stream
+     * @throws IOException if the request cannot be sent
+     */
+    public Tunnel open(final String authority) throws IOException {
+        final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        writeHeader(block, ":method", "CONNECT");
+        writeHeader(block, ":authority", authority);
+        final byte[] headers = block.toByteArray();
+
+        final Tunnel tunnel;
+        synchronized (this) {
+            tunnel = new Tunnel(nextStreamId, initialWindowSize);
+            nextStreamId += 2;
+            tunnels.put(tunnel.id, tunnel);
+            // stream IDs must reach the proxy in order
+            writeFrame(HEADERS, END_HEADERS, tunnel.id, headers, 0, headers.length);
+        }
+        return tunnel;
+    }
+
+    /**
+     * Lets the proxy send more data on the connection, whether or not it makes sense.
+     * @param increment bytes added to the proxy's window
+     * @throws IOException if the frame cannot be sent
+     */
+    public void windowUpdate(final int increment) throws IOException {
+        writeWindowUpdate(0, increment);
+    }
+
+    /**
+     * Changes the initial window of the proxy's streams, which also changes the windows of open streams.
+     * @param size initial window size
+     * @throws IOException if the frame cannot be sent
+     */
+    public void initialWindowSize(final int size) throws IOException {
+        final byte[] payload = {
+                0, SETTINGS_INITIAL_WINDOW_SIZE,
+                (byte) (size >>> 24), (byte) (size >>> 16), (byte) (size >>> 8), (byte) size};
+        writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    /**
+     * Waits for the proxy to close the connection.
+     * @return error code of the proxy's GOAWAY, or -1 if it sent none
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized int goAwayCode() throws InterruptedException {
+        while (!closed) {
+            wait();
+        }
+        return goAwayCode;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private static void writeHeader(final ByteArrayOutputStream block, final String name, final String value) {
+        // literal without indexing, new name, no Huffman coding
+        block.write(0);
+        writeString(block, name);
+        writeString(block, value);
+    }
+
+    private static void writeString(final ByteArrayOutputStream block, final String s) {
+        final byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length >= 127) {
+            throw new IllegalArgumentException("Header too long: " + s);
+        }
+        block.write(bytes.length);
+        block.writeBytes(bytes);
+    }
+
+    private void readFrames() {
+        try {
+            while (true) {
+                final int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                final int type = in.readUnsignedByte();
+                final int flags = in.readUnsignedByte();
+                final int streamId = in.readInt() & 0x7fffffff;
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                onFrame(type, flags, streamId, payload);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void onFrame(final int type, final int flags, final int streamId, final byte[] payload)
+            throws IOException {
+        final Tunnel tunnel = tunnels.get(streamId);
+        if (streamId != 0 && tunnel == null) {
+            return;
+        }
+        switch (type) {
+            case DATA -> {
+                if (payload.length > 0) {
+                    // consume right away; tests read from memory
+                    writeWindowUpdate(0, payload.length);
+                    writeWindowUpdate(streamId, payload.length);
+                }
+                tunnel.received.write(payload, 0, payload.length);
+                tunnel.ended |= (flags & END_STREAM) != 0;
+            }
+            case HEADERS -> {
+                // the proxy sends :status as a literal with an indexed name
+                tunnel.status = Integer.parseInt(new String(payload, 2, payload[1], StandardCharsets.US_ASCII));
+                tunnel.ended |= (flags & END_STREAM) != 0;
+            }
+            case RST_STREAM -> {
+                tunnel.reset = true;
+                tunnel.errorCode = readInt(payload, 0);
+            }
+            case GOAWAY -> goAwayCode = readInt(payload, 4);
+            case SETTINGS -> onSettings(flags, payload);
+            case PING -> {
+                if ((flags & ACK) == 0) {
+                    writeFrame(PING, ACK, 0, payload, 0, payload.length);
+                }
+            }
+            case WINDOW_UPDATE -> {
+                final int increment = readInt(payload, 0) & 0x7fffffff;
+                if (streamId == 0) {
+                    connectionSendWindow += increment;
+                } else if (tunnel != null) {
+                    tunnel.sendWindow += increment;
+                }
+            }
+            default -> {
+            }
+        }
+        notifyAll();
+    }
+
+    private void onSettings(final int flags, final byte[] payload) throws IOException {
+        if ((flags & ACK) != 0) {
+            return;
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            final int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                final int value = readInt(payload, i + 2);
+                for (Tunnel tunnel : tunnels.values()) {
+                    tunnel.sendWindow += value - initialWindowSize;
+                }
+                initialWindowSize = value;
+            }
+        }
+        writeFrame(SETTINGS, ACK, 0, new byte[0], 0, 0);
+    }
+
+    private static int readInt(final byte[] buf, final int offset) {
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+                | ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    private void writeWindowUpdate(final int streamId, final int increment) throws IOException {
+        final byte[] payload = {
+                (byte) (increment >>> 24), (byte) (increment >>> 16), (byte) (increment >>> 8), (byte) increment};
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+    }
+
+    private void writeFrame(final int type, final int flags, final int streamId,
+                            final byte[] payload, final int offset, final int length) throws IOException {
+        synchronized (out) {
+            out.write(new byte[] {
+                    (byte) (length >>> 16), (byte) (length >>> 8), (byte) length, (byte) type, (byte) flags,
+                    (byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId});
+            out.write(payload, offset, length);
+            out.flush();
+        }
+    }
+}